@@ -0,0 +1,380 @@
+    .comm a,824,8
+    .comm b,824,8
+    .globl main
+main:
+    pushq %rbp
+    movq %rsp, %rbp
+    subq $80, %rsp
+    movq %rbx, -8(%rbp)
+    movq %r12, -16(%rbp)
+    movq $0, %rdi
+.L4_1:
+    cmpq $103, %rdi
+    jge .L4_2
+    movq %rdi, %rsi
+    imulq %rdi, %rsi
+    subq $1000, %rsi
+    leaq a(%rip), %r11
+    movq %rsi, (%r11,%rdi,8)
+    movq %rdi, %rsi
+    imulq $5, %rsi
+    movq $7, %r10
+    subq %rsi, %r10
+    movq %r10, %rsi
+    leaq b(%rip), %r11
+    movq %rsi, (%r11,%rdi,8)
+    movq %rdi, %rsi
+    addq $1, %rsi
+    movq %rsi, %rdi
+    jmp .L4_1
+.L4_2:
+    movq $0, %rdi
+    movq $0, %rsi
+    movq $1, %rcx
+    pxor %xmm0, %xmm0
+    pxor %xmm1, %xmm1
+    movq %rdi, %rax
+    movq $102, %rdx
+    cmpq %rdx, %rax
+    jge .L4_12
+.L4_11:
+    leaq a(%rip), %r11
+    movdqu (%r11,%rax,8), %xmm2
+    movdqa %xmm2, %xmm3
+    psllq $1, %xmm3
+    paddq %xmm3, %xmm0
+    leaq b(%rip), %r11
+    movdqu (%r11,%rax,8), %xmm4
+    paddq %xmm4, %xmm1
+    addq $2, %rax
+    cmpq %rdx, %rax
+    jl .L4_11
+.L4_12:
+    movq %rax, %rdi
+    pshufd $78, %xmm0, %xmm15
+    paddq %xmm15, %xmm0
+    movq %xmm0, %r10
+    addq %r10, %rsi
+    pshufd $78, %xmm1, %xmm15
+    paddq %xmm15, %xmm1
+    movq %xmm1, %r10
+    subq %r10, %rcx
+.L4_3:
+    cmpq $103, %rdi
+    jge .L4_4
+    leaq a(%rip), %r11
+    movq (%r11,%rdi,8), %r8
+    shlq $1, %r8
+    movq %rsi, %r10
+    addq %r8, %r10
+    movq %r10, %r8
+    movq %r10, %rsi
+    leaq b(%rip), %r11
+    movq (%r11,%rdi,8), %r8
+    movq %rcx, %r10
+    subq %r8, %r10
+    movq %r10, %r8
+    movq %r10, %rcx
+    movq %rdi, %r8
+    addq $1, %r8
+    movq %r8, %rdi
+    jmp .L4_3
+.L4_4:
+    movq %rsi, %rdi
+    imulq $1000, %rdi
+    addq %rcx, %rdi
+    call printInt
+    movq %rax, -24(%rbp)
+    call println
+    movq %rax, -32(%rbp)
+    call readInt
+    movq %rax, %rdi
+    movq %rax, %rbx
+.L4_5:
+    cmpq $0, %rbx
+    jle .L4_10
+    call readInt
+    movq %rax, %rdi
+    movq %rax, %r12
+    movq %rax, %rdi
+    call printInt
+    movq %rax, -40(%rbp)
+    movq $32, %rdi
+    call printChar
+    movq %rax, -48(%rbp)
+    movq %r12, %rdi
+    movq $0, %rsi
+    movq $0, %rcx
+    pxor %xmm0, %xmm0
+    movq %rsi, %rax
+    movq %rdi, %rdx
+    subq $1, %rdx
+    jo .L4_14
+    cmpq %rdx, %rax
+    jge .L4_14
+.L4_13:
+    leaq a(%rip), %r11
+    movdqu (%r11,%rax,8), %xmm1
+    paddq %xmm1, %xmm0
+    addq $2, %rax
+    cmpq %rdx, %rax
+    jl .L4_13
+.L4_14:
+    movq %rax, %rsi
+    pshufd $78, %xmm0, %xmm15
+    paddq %xmm15, %xmm0
+    movq %xmm0, %r10
+    addq %r10, %rcx
+.L4_6:
+    cmpq %rdi, %rsi
+    jge .L4_7
+    leaq a(%rip), %r11
+    movq (%r11,%rsi,8), %r8
+    movq %rcx, %r10
+    addq %r8, %r10
+    movq %r10, %r8
+    movq %r10, %rcx
+    movq %rsi, %r8
+    addq $1, %r8
+    movq %r8, %rsi
+    jmp .L4_6
+.L4_7:
+    movq %rcx, %rdi
+    call printInt
+    movq %rax, -56(%rbp)
+    movq $32, %rdi
+    call printChar
+    movq %rax, -64(%rbp)
+    movq %r12, %rdi
+    imulq $3, %rdi
+    movq %r12, %rsi
+    movq $0, %rcx
+    pxor %xmm0, %xmm0
+    movq %rcx, %rax
+    movq %rsi, %rdx
+    subq $1, %rdx
+    jo .L4_16
+    cmpq %rdx, %rax
+    jge .L4_16
+.L4_15:
+    leaq a(%rip), %r11
+    movdqu (%r11,%rax,8), %xmm1
+    leaq b(%rip), %r11
+    movdqu (%r11,%rax,8), %xmm2
+    movdqa %xmm2, %xmm3
+    psllq $3, %xmm3
+    movdqa %xmm1, %xmm4
+    psubq %xmm3, %xmm4
+    paddq %xmm4, %xmm0
+    addq $2, %rax
+    cmpq %rdx, %rax
+    jl .L4_15
+.L4_16:
+    movq %rax, %rcx
+    pshufd $78, %xmm0, %xmm15
+    paddq %xmm15, %xmm0
+    movq %xmm0, %r10
+    subq %r10, %rdi
+.L4_8:
+    cmpq %rsi, %rcx
+    jge .L4_9
+    leaq a(%rip), %r11
+    movq (%r11,%rcx,8), %r8
+    leaq b(%rip), %r11
+    movq (%r11,%rcx,8), %r9
+    shlq $3, %r9
+    subq %r9, %r8
+    movq %rdi, %r10
+    subq %r8, %r10
+    movq %r10, %r8
+    movq %r10, %rdi
+    movq %rcx, %r8
+    addq $1, %r8
+    movq %r8, %rcx
+    jmp .L4_8
+.L4_9:
+    call printInt
+    movq %rax, -72(%rbp)
+    call println
+    movq %rax, -80(%rbp)
+    movq %rbx, %rdi
+    subq $1, %rdi
+    movq %rdi, %rbx
+    jmp .L4_5
+.L4_10:
+    movq -8(%rbp), %rbx
+    movq -16(%rbp), %r12
+    leave
+    ret
+    .globl init
+init:
+    movq $0, %rdi
+.L0_1:
+    cmpq $103, %rdi
+    jge .L0_2
+    movq %rdi, %rsi
+    imulq %rdi, %rsi
+    subq $1000, %rsi
+    leaq a(%rip), %r11
+    movq %rsi, (%r11,%rdi,8)
+    movq %rdi, %rsi
+    imulq $5, %rsi
+    movq $7, %r10
+    subq %rsi, %r10
+    movq %r10, %rsi
+    leaq b(%rip), %r11
+    movq %rsi, (%r11,%rdi,8)
+    movq %rdi, %rsi
+    addq $1, %rsi
+    movq %rsi, %rdi
+    jmp .L0_1
+.L0_2:
+    ret
+    .globl sum
+sum:
+    movq $0, %rsi
+    movq $0, %rcx
+    pxor %xmm0, %xmm0
+    movq %rsi, %rax
+    movq %rdi, %rdx
+    subq $1, %rdx
+    jo .L1_4
+    cmpq %rdx, %rax
+    jge .L1_4
+.L1_3:
+    leaq a(%rip), %r11
+    movdqu (%r11,%rax,8), %xmm1
+    paddq %xmm1, %xmm0
+    addq $2, %rax
+    cmpq %rdx, %rax
+    jl .L1_3
+.L1_4:
+    movq %rax, %rsi
+    pshufd $78, %xmm0, %xmm15
+    paddq %xmm15, %xmm0
+    movq %xmm0, %r10
+    addq %r10, %rcx
+.L1_1:
+    cmpq %rdi, %rsi
+    jge .L1_2
+    leaq a(%rip), %r11
+    movq (%r11,%rsi,8), %r8
+    movq %rcx, %r10
+    addq %r8, %r10
+    movq %r10, %r8
+    movq %r10, %rcx
+    movq %rsi, %r8
+    addq $1, %r8
+    movq %r8, %rsi
+    jmp .L1_1
+.L1_2:
+    movq %rcx, %rax
+    ret
+    .globl difference
+difference:
+    movq $0, %rcx
+    pxor %xmm0, %xmm0
+    movq %rcx, %rax
+    movq %rdi, %rdx
+    subq $1, %rdx
+    jo .L2_4
+    cmpq %rdx, %rax
+    jge .L2_4
+.L2_3:
+    leaq a(%rip), %r11
+    movdqu (%r11,%rax,8), %xmm1
+    leaq b(%rip), %r11
+    movdqu (%r11,%rax,8), %xmm2
+    movdqa %xmm2, %xmm3
+    psllq $3, %xmm3
+    movdqa %xmm1, %xmm4
+    psubq %xmm3, %xmm4
+    paddq %xmm4, %xmm0
+    addq $2, %rax
+    cmpq %rdx, %rax
+    jl .L2_3
+.L2_4:
+    movq %rax, %rcx
+    pshufd $78, %xmm0, %xmm15
+    paddq %xmm15, %xmm0
+    movq %xmm0, %r10
+    subq %r10, %rsi
+.L2_1:
+    cmpq %rdi, %rcx
+    jge .L2_2
+    leaq a(%rip), %r11
+    movq (%r11,%rcx,8), %r8
+    leaq b(%rip), %r11
+    movq (%r11,%rcx,8), %r9
+    shlq $3, %r9
+    subq %r9, %r8
+    movq %rsi, %r10
+    subq %r8, %r10
+    movq %r10, %r8
+    movq %r10, %rsi
+    movq %rcx, %r8
+    addq $1, %r8
+    movq %r8, %rcx
+    jmp .L2_1
+.L2_2:
+    movq %rsi, %rax
+    ret
+    .globl sumAll
+sumAll:
+    movq $0, %rdi
+    movq $0, %rsi
+    movq $1, %rcx
+    pxor %xmm0, %xmm0
+    pxor %xmm1, %xmm1
+    movq %rdi, %rax
+    movq $102, %rdx
+    cmpq %rdx, %rax
+    jge .L3_4
+.L3_3:
+    leaq a(%rip), %r11
+    movdqu (%r11,%rax,8), %xmm2
+    movdqa %xmm2, %xmm3
+    psllq $1, %xmm3
+    paddq %xmm3, %xmm0
+    leaq b(%rip), %r11
+    movdqu (%r11,%rax,8), %xmm4
+    paddq %xmm4, %xmm1
+    addq $2, %rax
+    cmpq %rdx, %rax
+    jl .L3_3
+.L3_4:
+    movq %rax, %rdi
+    pshufd $78, %xmm0, %xmm15
+    paddq %xmm15, %xmm0
+    movq %xmm0, %r10
+    addq %r10, %rsi
+    pshufd $78, %xmm1, %xmm15
+    paddq %xmm15, %xmm1
+    movq %xmm1, %r10
+    subq %r10, %rcx
+.L3_1:
+    cmpq $103, %rdi
+    jge .L3_2
+    leaq a(%rip), %r11
+    movq (%r11,%rdi,8), %r8
+    shlq $1, %r8
+    movq %rsi, %r10
+    addq %r8, %r10
+    movq %r10, %r8
+    movq %r10, %rsi
+    leaq b(%rip), %r11
+    movq (%r11,%rdi,8), %r8
+    movq %rcx, %r10
+    subq %r8, %r10
+    movq %r10, %r8
+    movq %r10, %rcx
+    movq %rdi, %r8
+    addq $1, %r8
+    movq %r8, %rdi
+    jmp .L3_1
+.L3_2:
+    movq %rsi, %rdi
+    imulq $1000, %rdi
+    addq %rcx, %rdi
+    movq %rdi, %rax
+    ret
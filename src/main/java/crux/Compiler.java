@@ -62,6 +62,24 @@ public final class Compiler {
         case "--debug-emulator":
           driver.enableDebugEmulator();
           break;
+        case "--trace-emulator":
+          driver.setTraceEvents(Integer.parseInt(args[++i]));
+          break;
+        case "--bytecode-emulator":
+          driver.enableBytecodeEmulator();
+          break;
+        case "--tier-threshold":
+          driver.setTierThreshold(Integer.parseInt(args[++i]));
+          break;
+        case "--fusion-stats":
+          driver.enableFusionStats();
+          break;
+        case "--profile-emulator":
+          driver.enableProfileEmulator();
+          break;
+        case "--profile-stacks":
+          driver.setProfileStacksFile(args[++i]);
+          break;
         case "--read-ast":
           try {
             driver.readAST(new FileInputStream(args[i + 1]));
@@ -89,6 +107,54 @@ public final class Compiler {
           }
           i++;
           break;
+        case "--max-instructions":
+          driver.setMaxInstructions(Long.parseLong(args[++i]));
+          break;
+        case "--max-call-depth":
+          driver.setMaxCallDepth(Integer.parseInt(args[++i]));
+          break;
+        case "--max-global-words":
+          driver.setMaxGlobalWords(Long.parseLong(args[++i]));
+          break;
+        case "--batch-input":
+          driver.addBatchInputFile(args[++i]);
+          break;
+        case "-O0":
+          driver.setOptimizationLevel(0);
+          break;
+        case "-O1":
+          driver.setOptimizationLevel(1);
+          break;
+        case "--codegen-threads":
+          driver.setCodegenThreads(Integer.parseInt(args[++i]));
+          break;
+        case "--vectorize":
+          driver.setVectorInstructions(args[++i]);
+          break;
+        case "--fast-runtime-calls":
+          driver.enableFastRuntimeCalls();
+          break;
+        case "--emit-obj":
+          driver.setObjectFile("a.o");
+          break;
+        case "--peephole-stats":
+          driver.enablePeepholeStats();
+          break;
+        case "--bounds-check":
+          driver.enableBoundsChecks();
+          break;
+        case "--bounds-check-stats":
+          driver.enableBoundsCheckStats();
+          break;
+        case "--instrument":
+          driver.enableInstrument();
+          break;
+        case "--profile-use":
+          driver.setProfileUse(args[++i]);
+          break;
+        case "--ssa":
+          driver.enableSSARoundTrip();
+          break;
         case "--emulator-input": {
           if (driver.hasEmulatorInputFile())
             throw new RuntimeException("multiple input files");
@@ -130,7 +196,45 @@ public final class Compiler {
     System.out.println("--print-ir\t\t\tDump dot compatible representation of IR.");
     System.out.println("--emulator\t\t\tRun Emulator on IR.");
     System.out.println("--debug-emulator\t\tRun Emulator on IR with debugging turned on.");
+    System.out.println(
+        "--trace-emulator <count>\tRun Emulator on IR and print its last count instructions.");
+    System.out
+        .println("--bytecode-emulator\t\tRun IR translated to bytecode in a faster Emulator.");
+    System.out.println(
+        "--tier-threshold <count>\tCalls/loop iterations before a function is compiled "
+            + "(0: never).");
+    System.out.println(
+        "--fusion-stats\t\t\tRun the bytecode Emulator and report the superinstructions formed.");
+    System.out.println(
+        "--profile-emulator\t\tRun Emulator on IR and report where the program spends its time.");
+    System.out.println(
+        "--profile-stacks <file>\t\tProfile the Emulator and write flame graph stacks to file.");
     System.out.println("--emulator-input <input file>\tInput File for the emulator");
+    System.out.println("--max-instructions <count>\tStop the Emulator after count instructions.");
+    System.out.println("--max-call-depth <count>\tStop the Emulator when calls nest deeper.");
+    System.out.println(
+        "--max-global-words <count>\tStop the Emulator when it writes more global words.");
+    System.out.println(
+        "--batch-input <input file>\tRun the bytecode Emulator on every batch input concurrently.");
+    System.out.println("-O0\t\t\t\tKeep every variable on the stack in generated code.");
+    System.out.println("-O1\t\t\t\tAllocate registers in generated code (default).");
+    System.out.println(
+        "--codegen-threads <count>\tGenerate code for functions on count threads (0: default).");
+    System.out.println(
+        "--vectorize <none|sse2|avx2>\tVectorize simple array loops with these instructions.");
+    System.out.println(
+        "--fast-runtime-calls\t\tCall builtins through runtime entry points that keep registers.");
+    System.out.println("--emit-obj\t\t\tWrite an ELF object file a.o instead of a.s.");
+    System.out.println(
+        "--peephole-stats\t\tReport instruction counts before and after the peephole pass.");
+    System.out.println("--bounds-check\t\t\tFail on array offsets outside the array.");
+    System.out.println(
+        "--bounds-check-stats\t\tCheck bounds and report how many checks were eliminated.");
+    System.out.println(
+        "--instrument\t\t\tCount calls and branches and write them to crux.profile at exit.");
+    System.out.println(
+        "--profile-use <file>\t\tInline and lay out code by the counts of a profile file.");
+    System.out.println("--ssa\t\t\t\tConvert every function into SSA form and back.");
     System.out.println("--read-ast <input file>\t\tRead serialized version of AST in,");
     System.out.println("--read-type <input file>\tRead serialized version of type-checked AST in,");
     System.out.println("--read-ir <input file>\t\tRead serialized version of IR/CFG in,");
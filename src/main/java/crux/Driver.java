@@ -10,6 +10,19 @@ import crux.ir.ASTLower;
 import crux.printing.IRPrinter;
 import crux.ir.Program;
 import crux.ir.Emulator;
+import crux.ir.BufferedEmulatorIO;
+import crux.ir.BytecodeEmulator;
+import crux.ir.ConcurrentRunner;
+import crux.ir.ExecutableImage;
+import crux.ir.ExecutionLimits;
+import crux.ir.EmulatorIO;
+import crux.ir.Profiler;
+import crux.ir.Tracer;
+import crux.ir.BoundsChecks;
+import crux.ir.EdgeProfile;
+import crux.ir.Inliner;
+import crux.ir.Function;
+import crux.ir.SSAForm;
 import crux.backend.CodeGen;
 import crux.printing.ASTPrinter;
 import crux.printing.ParseTreePrinter;
@@ -18,6 +31,9 @@ import org.antlr.v4.runtime.CharStreams;
 import org.antlr.v4.runtime.CommonTokenStream;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 
 enum State {
   Continue, Finished, Error;
@@ -45,7 +61,28 @@ public final class Driver {
   private boolean typeCheck = false;
   private boolean printIR = false;
   private boolean runEmulator = false;
+  private boolean bytecodeEmulator = false;
+  private int tierThreshold = BytecodeEmulator.DEFAULT_TIER_THRESHOLD;
+  private boolean printFusionStats = false;
+  private boolean profileEmulator = false;
+  private String profileStacksFile = null;
+  private boolean debugEmulator = false;
+  private int traceEvents = 0;
+  private long maxInstructions = Long.MAX_VALUE;
+  private int maxCallDepth = Integer.MAX_VALUE;
+  private long maxGlobalWords = Long.MAX_VALUE;
   private boolean serialize = false;
+  private int optimizationLevel = 1;
+  private boolean peepholeStats = false;
+  private String objectFile;
+  private int codegenThreads = 0;
+  private String vectorInstructions = "sse2";
+  private boolean fastRuntimeCalls = false;
+  private boolean boundsCheck = false;
+  private boolean boundsCheckStats = false;
+  private boolean instrument = false;
+  private String profileUseFile = null;
+  private boolean ssaRoundTrip = false;
 
   // Set this flag to false if earlier stages in your compiler do not work.
   private final boolean supportsEndToEnd = false;
@@ -54,10 +91,13 @@ public final class Driver {
   private InputStream inputStream;
   private String emulatorInputFile = null;
   private InputStream emulatorInputStream = null;
+  private final List<String> batchInputFiles = new ArrayList<>();
 
   private CruxParser.ProgramContext parseTree;
   private DeclList ast;
   private Program irProgram;
+  private boolean boundsChecksInserted = false;
+  private boolean ssaRoundTripped = false;
   private Stage startStage = Stage.PARSE;
 
 
@@ -108,9 +148,183 @@ public final class Driver {
     runEmulator = true;
   }
 
+  public void enableBytecodeEmulator() {
+    runEmulator = true;
+    bytecodeEmulator = true;
+  }
+
+  public void setTierThreshold(int threshold) {
+    tierThreshold = threshold;
+  }
+
+  public void enableFusionStats() {
+    enableBytecodeEmulator();
+    printFusionStats = true;
+  }
+
+  /**
+   * Runs the program in the {@link Emulator} with a {@link Profiler} and prints the report to err.
+   * The profile is always taken in the tree-walking Emulator, whose instructions map directly to
+   * the IR.
+   */
+  public void enableProfileEmulator() {
+    runEmulator = true;
+    profileEmulator = true;
+  }
+
+  /**
+   * Like {@link #enableProfileEmulator()}, and also writes the call stacks in the collapsed format
+   * of flame graph tools to {@code file}.
+   */
+  public void setProfileStacksFile(String file) {
+    enableProfileEmulator();
+    profileStacksFile = file;
+  }
+
   public void enableDebugEmulator() {
     runEmulator = true;
-    Emulator.DEBUG = true;
+    debugEmulator = true;
+  }
+
+  /**
+   * Runs the program in the {@link Emulator}, keeping the last {@code events} executed instructions
+   * in a {@link Tracer}, and prints them to err after the run, also when it fails.
+   */
+  public void setTraceEvents(int events) {
+    runEmulator = true;
+    traceEvents = events;
+  }
+
+  /**
+   * Stops the {@link Emulator} after {@code count} instructions, see {@link ExecutionLimits}.
+   */
+  public void setMaxInstructions(long count) {
+    runEmulator = true;
+    maxInstructions = count;
+  }
+
+  public void setMaxCallDepth(int depth) {
+    runEmulator = true;
+    maxCallDepth = depth;
+  }
+
+  public void setMaxGlobalWords(long words) {
+    runEmulator = true;
+    maxGlobalWords = words;
+  }
+
+  /**
+   * Sets how many threads generate code for functions; 0 uses the common fork-join pool.
+   */
+  public void setCodegenThreads(int threads) {
+    codegenThreads = threads;
+  }
+
+  /**
+   * Sets the vector instructions generated code may use for loops: none, sse2 or avx2.
+   */
+  public void setVectorInstructions(String name) {
+    if (!List.of("none", "sse2", "avx2").contains(name))
+      throw new RuntimeException(String.format("unknown vector instructions '%s'", name));
+    vectorInstructions = name;
+  }
+
+  /**
+   * Makes generated code call the builtins through the register-preserving entry points of the
+   * runtime library.
+   */
+  public void enableFastRuntimeCalls() {
+    fastRuntimeCalls = true;
+  }
+
+  /**
+   * Makes every engine fail with "Index N out of bounds for length L" when an array offset is out
+   * of range. Checks that {@link BoundsChecks} proves unnecessary are left out.
+   */
+  public void enableBoundsChecks() {
+    boundsCheck = true;
+  }
+
+  /**
+   * Enables bounds checks and prints how many of them were eliminated per function to err.
+   */
+  public void enableBoundsCheckStats() {
+    boundsCheck = true;
+    boundsCheckStats = true;
+  }
+
+  /**
+   * Makes the program count how often every function is called and every jump goes either way, and
+   * write the counts to a profile file at exit: crux.profile, or the file named by the environment
+   * variable CRUX_PROFILE. Generated code does this through the runtime library; the emulator runs
+   * the program with a {@link Profiler} and writes the file itself.
+   */
+  public void enableInstrument() {
+    instrument = true;
+  }
+
+  /**
+   * Makes the code generator inline hot calls and lay out the code by the counts of a profile file
+   * that an instrumented build or run of the same program wrote.
+   */
+  public void setProfileUse(String file) {
+    profileUseFile = file;
+  }
+
+  /**
+   * Converts every function into SSA form and back with {@link SSAForm} before it runs or code is
+   * generated for it.
+   */
+  public void enableSSARoundTrip() {
+    ssaRoundTrip = true;
+  }
+
+  /**
+   * Makes the code generator write a relocatable object file with this name instead of a.s.
+   */
+  public void setObjectFile(String name) {
+    objectFile = name;
+  }
+
+  /**
+   * Prints the instruction counts per function before and after the peephole pass to err.
+   */
+  public void enablePeepholeStats() {
+    peepholeStats = true;
+  }
+
+  /**
+   * Sets the optimization level of the code generator; 0 keeps every variable on the stack.
+   */
+  public void setOptimizationLevel(int level) {
+    optimizationLevel = level;
+  }
+
+  private boolean hasLimits() {
+    return maxInstructions != Long.MAX_VALUE || maxCallDepth != Integer.MAX_VALUE
+        || maxGlobalWords != Long.MAX_VALUE;
+  }
+
+  /**
+   * The options in effect that only the tree-walking Emulator supports.
+   */
+  private List<String> getTreeEmulatorOptions() {
+    var options = new ArrayList<String>();
+    if (profileEmulator)
+      options.add("--profile-emulator");
+    if (instrument)
+      options.add("--instrument");
+    if (debugEmulator)
+      options.add("--debug-emulator");
+    if (traceEvents > 0)
+      options.add("--trace-emulator");
+    if (maxInstructions != Long.MAX_VALUE)
+      options.add("--max-instructions");
+    if (maxCallDepth != Integer.MAX_VALUE)
+      options.add("--max-call-depth");
+    if (maxGlobalWords != Long.MAX_VALUE)
+      options.add("--max-global-words");
+    return options;
   }
 
   public boolean hasInputFile() {
@@ -137,6 +351,16 @@ public final class Driver {
     emulatorInputStream = inputStream;
   }
 
+  /**
+   * Adds an input file for a batch run: the program is translated once and run against all batch
+   * inputs concurrently with a {@link ConcurrentRunner}. The outputs are printed in the order the
+   * files were added, each after a line naming its input.
+   */
+  public void addBatchInputFile(String inputFile) {
+    runEmulator = true;
+    batchInputFiles.add(inputFile);
+  }
+
   public boolean hasEmulatorInputFile() {
     return emulatorInputFile != null;
   }
@@ -308,6 +532,8 @@ public final class Driver {
   private State emitIR() {
     var astLower = new ASTLower();
     irProgram = astLower.lower(ast);
+    insertBoundsChecks();
+    roundTripSSA();
 
     if (printIR) {
       var printer = new IRPrinter(out);
@@ -329,23 +555,177 @@ public final class Driver {
   }
 
   private State emitASM() {
+    insertBoundsChecks();
+    roundTripSSA();
+    if (instrument && profileUseFile != null)
+      throw new RuntimeException("--instrument and --profile-use cannot be combined");
     var codegen = new CodeGen(irProgram);
+    if (instrument)
+      codegen.setInstrumentation(new EdgeProfile(irProgram));
+    if (profileUseFile != null) {
+      var profile = readProfile();
+      new Inliner(irProgram, profile).run();
+      codegen.setProfile(profile);
+    }
+    codegen.setOptimizationLevel(optimizationLevel);
+    codegen.setThreads(codegenThreads);
+    codegen.setVectorInstructions(vectorInstructions);
+    codegen.setFastRuntimeCalls(fastRuntimeCalls);
+    if (objectFile != null)
+      codegen.setObjectFile(objectFile);
     codegen.genCode();
+    if (peepholeStats)
+      codegen.writePeepholeStats(err);
 
     return State.Finished;
   }
 
   private State emulator() {
+    if (runEmulator && !batchInputFiles.isEmpty())
+      return runBatch();
     if (runEmulator) {
-      var emulatorInput = openEmulatorInput();
-      var emulator = new Emulator(irProgram, emulatorInput, out);
-      emulator.run();
+      var emulatorIO = openEmulatorIO();
+      // Profiles, traces and limits are only supported by the tree-walking Emulator.
+      var treeOptions = getTreeEmulatorOptions();
+      if (bytecodeEmulator && !treeOptions.isEmpty())
+        err.printf("warning: --bytecode-emulator does not support %s; running the Emulator%n",
+            String.join(", ", treeOptions));
+      if (bytecodeEmulator && treeOptions.isEmpty()) {
+        var emulator = new BytecodeEmulator(irProgram, emulatorIO);
+        emulator.setTierThreshold(tierThreshold);
+        emulator.run();
+        if (printFusionStats) {
+          err.println("superinstructions:");
+          emulator.getFusionCounts()
+              .forEach((name, count) -> err.printf("  %-14s %d%n", name, count));
+        }
+      } else {
+        var emulator = new Emulator(irProgram, emulatorIO);
+        var profiler = profileEmulator || instrument ? new Profiler() : null;
+        Tracer tracer = null;
+        if (debugEmulator)
+          tracer = Tracer.streaming(emulatorIO);
+        else if (traceEvents > 0)
+          tracer = new Tracer(traceEvents);
+        emulator.setProfiler(profiler);
+        emulator.setTracer(tracer);
+        emulator.setLimits(hasLimits()
+            ? new ExecutionLimits(maxInstructions, maxCallDepth, maxGlobalWords)
+            : ExecutionLimits.NONE);
+        try {
+          emulator.run();
+        } catch (Error e) {
+          // A run ended by a limit has a result but no failure; report it without a stack trace.
+          var result = emulator.getResult();
+          if (result == null || result.isFinished() || result.getFailure() != null)
+            throw e;
+          err.println("emulator " + result);
+          return State.Error;
+        } finally {
+          if (profileEmulator) {
+            profiler.writeReport(err);
+            writeProfileStacks(profiler);
+          }
+          if (instrument)
+            writeEdgeProfile(profiler.getEdgeProfile(irProgram));
+          if (tracer != null && !debugEmulator) {
+            err.printf("trace (%d earlier events dropped):%n", tracer.getDropped());
+            tracer.drain(err::println);
+          }
+        }
+      }
       return State.Finished;
     }
 
     return State.Continue;
   }
 
+  private void insertBoundsChecks() {
+    if (!boundsCheck || boundsChecksInserted)
+      return;
+    boundsChecksInserted = true;
+    var checks = new BoundsChecks(irProgram);
+    checks.insert();
+    if (boundsCheckStats)
+      checks.writeStats(err);
+  }
+
+  private void roundTripSSA() {
+    if (!ssaRoundTrip || ssaRoundTripped)
+      return;
+    ssaRoundTripped = true;
+    for (Iterator<Function> it = irProgram.getFunctions(); it.hasNext();)
+      SSAForm.construct(it.next()).destruct();
+  }
+
+  private State runBatch() {
+    var image = new ExecutableImage(irProgram);
+    var inputs = new ArrayList<InputStream>();
+    var outputs = new ArrayList<ByteArrayOutputStream>();
+    List<Throwable> failures;
+    try (var runner = new ConcurrentRunner(image)) {
+      runner.setTierThreshold(tierThreshold);
+      for (var file : batchInputFiles) {
+        inputs.add(new BufferedInputStream(new FileInputStream(file)));
+        outputs.add(new ByteArrayOutputStream());
+      }
+      failures = runner.runAll(inputs, outputs);
+    } catch (IOException e) {
+      throw new RuntimeException("cannot read batch input", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return State.Error;
+    } finally {
+      for (var input : inputs) {
+        try {
+          input.close();
+        } catch (IOException e) {
+          // ignored
+        }
+      }
+    }
+    for (int i = 0; i < batchInputFiles.size(); i++) {
+      out.printf("== %s ==%n", batchInputFiles.get(i));
+      var bytes = outputs.get(i).toByteArray();
+      out.write(bytes, 0, bytes.length);
+      out.flush();
+      if (failures.get(i) != null)
+        err.printf("%s: %s%n", batchInputFiles.get(i), failures.get(i));
+    }
+    return State.Finished;
+  }
+
+  private void writeProfileStacks(Profiler profiler) {
+    if (profileStacksFile == null)
+      return;
+    try (var stacks = new PrintStream(new FileOutputStream(profileStacksFile))) {
+      profiler.writeCollapsedStacks(stacks);
+    } catch (IOException e) {
+      throw new RuntimeException(String.format("cannot write file '%s'", profileStacksFile), e);
+    }
+  }
+
+  private void writeEdgeProfile(EdgeProfile profile) {
+    String file = System.getenv("CRUX_PROFILE");
+    if (file == null || file.isEmpty())
+      file = EdgeProfile.DEFAULT_FILE;
+    try (var stream = new PrintStream(new FileOutputStream(file))) {
+      profile.write(stream);
+    } catch (IOException e) {
+      throw new RuntimeException(String.format("cannot write file '%s'", file), e);
+    }
+  }
+
+  private EdgeProfile readProfile() {
+    var profile = new EdgeProfile(irProgram);
+    try (var stream = new BufferedInputStream(new FileInputStream(profileUseFile))) {
+      profile.read(stream);
+    } catch (IOException e) {
+      throw new RuntimeException(String.format("cannot read file '%s'", profileUseFile), e);
+    }
+    return profile;
+  }
+
   private CharStream openInput() {
     if (inputStream == null) {
       try {
@@ -362,17 +742,17 @@ public final class Driver {
     }
   }
 
-  private InputStream openEmulatorInput() {
+  private EmulatorIO openEmulatorIO() {
     if (emulatorInputFile != null) {
       try {
-        return new FileInputStream(emulatorInputFile);
+        return BufferedEmulatorIO.mapped(emulatorInputFile, out);
       } catch (IOException e) {
         throw new RuntimeException(String.format("cannot read file '%s'", emulatorInputFile), e);
       }
     } else if (emulatorInputStream != null) {
-      return emulatorInputStream;
+      return new BufferedEmulatorIO(emulatorInputStream, out);
     } else {
-      return System.in;
+      return new BufferedEmulatorIO(System.in, out);
     }
   }
 }
@@ -0,0 +1,231 @@
+package crux.backend;
+
+import crux.ir.*;
+import crux.ir.insts.JumpInst;
+import crux.ir.insts.ReturnInst;
+
+import java.util.*;
+
+/**
+ * Orders the basic blocks of a {@link Function} for emission, so that every block is followed by
+ * its likely successor and that edge costs no taken jump.
+ * <p>
+ * Which successor of a conditional jump is likely is guessed with the usual static heuristics: an
+ * edge that leaves a loop is unlikely and a back edge to a loop header is likely, so the body of
+ * a loop is laid out right after its condition and only the jump back to the condition is taken
+ * on every iteration. Otherwise the fall-through of the IR, next(0), is preferred.
+ * <p>
+ * With an {@link EdgeProfile}, the successor that the jump went to more often is likely instead,
+ * and the blocks that never ran in a function that did are placed after all others, so that the
+ * code that runs is contiguous.
+ * <p>
+ * Blocks are placed greedily: after a block comes its likely successor if it has not been placed
+ * yet, else its other successor, else the most recently postponed block.
+ * {@link FunctionCodeGen} inverts the condition of a jump whose taken target is placed right after
+ * it.
+ */
+final class BlockLayout {
+  private static final class Block {
+    final List<Instruction> insts = new ArrayList<>();
+    final List<Block> successors = new ArrayList<>();
+    final List<Block> predecessors = new ArrayList<>();
+    // Headers of the loops that contain this block.
+    final Set<Block> loops = new HashSet<>();
+    // Whether the profile says that the block never ran.
+    boolean cold;
+    boolean placed;
+
+    Instruction last() {
+      return insts.get(insts.size() - 1);
+    }
+  }
+
+  private final FrameLayout layout;
+  // Counts of an earlier run, or null.
+  private final EdgeProfile profile;
+  private final HashMap<Instruction, Block> blocks = new HashMap<>();
+  private final List<Instruction> order = new ArrayList<>();
+
+  BlockLayout(Function f, EdgeProfile profile) {
+    layout = f.getFrameLayout();
+    this.profile = profile;
+    if (f.getStart() == null)
+      return;
+    Block entry = formBlocks(f.getStart());
+    findLoops(entry);
+    if (profile != null && profile.getCalls(f) > 0) {
+      for (Block block : blocks.values())
+        block.cold = profile.getExecutions(f, block.insts.get(0)) == 0;
+    }
+    place(entry);
+  }
+
+  /**
+   * The instructions of the function in the order in which they are emitted.
+   */
+  List<Instruction> getInstructions() {
+    return order;
+  }
+
+  private boolean isLeader(Instruction inst) {
+    return layout.getNumPredecessors(inst) != 1;
+  }
+
+  /**
+   * Splits the CFG into basic blocks and links them. A block starts at the entry, at every target
+   * of a jump and wherever control flow merges, and it ends with a jump, a return or the
+   * instruction before the next start.
+   */
+  private Block formBlocks(Instruction start) {
+    var leaders = new HashSet<Instruction>();
+    leaders.add(start);
+    for (Instruction inst : layout.getInstructions()) {
+      if (isLeader(inst))
+        leaders.add(inst);
+      if (inst instanceof JumpInst) {
+        for (int childIdx = 0; childIdx < inst.numNext(); childIdx++) {
+          if (inst.getNext(childIdx) != null)
+            leaders.add(inst.getNext(childIdx));
+        }
+      }
+    }
+
+    // Leaders in depth-first order, so that the blocks are numbered deterministically.
+    var starts = new ArrayList<Instruction>();
+    for (Instruction inst : layout.getInstructions()) {
+      if (leaders.contains(inst))
+        starts.add(inst);
+    }
+    for (Instruction leader : starts) {
+      var block = new Block();
+      Instruction inst = leader;
+      while (true) {
+        block.insts.add(inst);
+        if (inst instanceof JumpInst || inst instanceof ReturnInst)
+          break;
+        Instruction next = inst.getNext(0);
+        if (next == null || leaders.contains(next))
+          break;
+        inst = next;
+      }
+      blocks.put(leader, block);
+    }
+
+    for (Instruction leader : starts) {
+      Block block = blocks.get(leader);
+      Instruction last = block.last();
+      if (last instanceof ReturnInst)
+        continue;
+      // next(0) first, so that it is the fall-through unless a heuristic says otherwise.
+      for (int childIdx = 0; childIdx < last.numNext(); childIdx++) {
+        Block child = blocks.get(last.getNext(childIdx));
+        if (child != null && !block.successors.contains(child)) {
+          block.successors.add(child);
+          child.predecessors.add(block);
+        }
+      }
+    }
+    return blocks.get(start);
+  }
+
+  /**
+   * Records for every block the natural loops it belongs to. A loop is formed by each back edge
+   * found by a depth-first search: its header is the target, and its body is every block that
+   * reaches the source of the edge without passing through the header.
+   */
+  private void findLoops(Block entry) {
+    var onStack = new HashSet<Block>();
+    var visited = new HashSet<Block>();
+    var stack = new ArrayDeque<Iterator<Block>>();
+    var path = new ArrayDeque<Block>();
+    visited.add(entry);
+    onStack.add(entry);
+    path.push(entry);
+    stack.push(entry.successors.iterator());
+    while (!stack.isEmpty()) {
+      Iterator<Block> children = stack.peek();
+      if (!children.hasNext()) {
+        stack.pop();
+        onStack.remove(path.pop());
+        continue;
+      }
+      Block child = children.next();
+      if (onStack.contains(child)) {
+        addLoop(child, path.peek());
+      } else if (visited.add(child)) {
+        onStack.add(child);
+        path.push(child);
+        stack.push(child.successors.iterator());
+      }
+    }
+  }
+
+  private void addLoop(Block header, Block latch) {
+    header.loops.add(header);
+    var worklist = new ArrayDeque<Block>();
+    worklist.push(latch);
+    while (!worklist.isEmpty()) {
+      Block block = worklist.pop();
+      if (block.loops.add(header))
+        worklist.addAll(block.predecessors);
+    }
+  }
+
+  /**
+   * The successor of {@code block} that control most likely continues to, or null if it has none.
+   */
+  private Block likelySuccessor(Block block) {
+    if (block.successors.size() < 2)
+      return block.successors.isEmpty() ? null : block.successors.get(0);
+    Block first = block.successors.get(0);
+    Block second = block.successors.get(1);
+    long[] counts = profile != null ? profile.getBranchCounts((JumpInst) block.last()) : null;
+    if (counts != null && counts[0] + counts[1] > 0)
+      return counts[1] >= counts[0] ? first : second;
+    boolean firstExits = !first.loops.containsAll(block.loops);
+    boolean secondExits = !second.loops.containsAll(block.loops);
+    if (firstExits != secondExits)
+      return firstExits ? second : first;
+    boolean firstBack = block.loops.contains(first) && first.loops.contains(first);
+    boolean secondBack = block.loops.contains(second) && second.loops.contains(second);
+    if (firstBack != secondBack)
+      return firstBack ? first : second;
+    return first;
+  }
+
+  private void place(Block entry) {
+    var postponed = new ArrayDeque<Block>();
+    var cold = new ArrayDeque<Block>();
+    Block block = entry;
+    while (block != null) {
+      block.placed = true;
+      order.addAll(block.insts);
+
+      Block likely = likelySuccessor(block);
+      Block next = null;
+      if (likely != null && !likely.placed && likely.cold == block.cold)
+        next = likely;
+      for (Block successor : block.successors) {
+        if (successor.placed || successor == next)
+          continue;
+        if (next == null && successor.cold == block.cold)
+          next = successor;
+        else if (successor.cold)
+          cold.push(successor);
+        else
+          postponed.push(successor);
+      }
+      while (next == null && !postponed.isEmpty()) {
+        Block candidate = postponed.pop();
+        if (!candidate.placed)
+          next = candidate;
+      }
+      while (next == null && !cold.isEmpty()) {
+        Block candidate = cold.pop();
+        if (!candidate.placed)
+          next = candidate;
+      }
+      block = next;
+    }
+  }
+}
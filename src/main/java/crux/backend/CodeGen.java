@@ -1,296 +1,225 @@
 package crux.backend;
 
-import crux.ast.SymbolTable.Symbol;
 import crux.ir.*;
-import crux.ir.insts.*;
-import crux.printing.IRValueFormatter;
+import crux.ir.insts.CallInst;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * Convert the CFG into Assembly Instructions
+ * <p>
+ * Every function is translated on its own by a {@link FunctionCodeGen}, concurrently on a
+ * fork-join pool, and the results are written in program order. The output does not depend on the
+ * number of threads.
  */
-public final class CodeGen extends InstVisitor {
-  private final IRValueFormatter irFormat = new IRValueFormatter();
+public final class CodeGen {
   private final Program p;
-  private final CodePrinter out;
-
-  private HashMap<Variable, Integer> varIndexes = new HashMap<>();
-  private HashMap<Instruction, String> currLabelMap;
-  private int varIndex;
-
-  Integer getStackIndex(Variable var) {
-    if (!varIndexes.containsKey(var)) {
-      varIndex++;
-      varIndexes.put(var, varIndex);
-    }
-    return varIndexes.get(var);
-  }
+  // Where the code goes: assembly text, or an object file if one was requested.
+  private CodePrinter out;
+  private ElfWriter object;
+  private String objectFile;
+
+  static final String[] ARG_REGISTERS = {"%rdi", "%rsi", "%rdx", "%rcx", "%r8", "%r9"};
+  // The counters of instrumented code, after a header of the profile fingerprint and the number
+  // of counters. The runtime writes them out at exit if main filled in the header.
+  static final String PROFILE_SYMBOL = "crux_profile";
+  static final int PROFILE_HEADER = 2;
+
+  private int optLevel = 1;
+  // 64-bit lanes of the vector instructions that loops are vectorized with, or 0 for none.
+  private int vectorWidth = 2;
+  private boolean fastRuntimeCalls = false;
+  // Threads that translate functions, or 0 for the common fork-join pool.
+  private int threads = 0;
+  private EdgeProfile counters;
+  private EdgeProfile profile;
+  // Instructions per function before and after the peephole pass, in program order.
+  private final LinkedHashMap<String, int[]> instructionCounts = new LinkedHashMap<>();
 
   public CodeGen(Program p) {
     this.p = p;
-    // Do not change the file name that is outputted or it will
-    // break the grader!
-    out = new CodePrinter("a.s");
   }
 
   /**
-   * It should allocate space for globals call genCode for each Function
+   * Writes the code as a relocatable ELF object file named {@code name} instead of as assembly.
    */
-  public void genCode() {
-    for (Iterator<GlobalDecl> globalIterator = p.getGlobals(); globalIterator.hasNext();) {
-      GlobalDecl globalDecl = globalIterator.next();
-      out.printCode(".comm " + globalDecl.getSymbol().getName() + "," + (globalDecl.getNumElement().getValue() * 8) + ",8");
-    }
-
-    int count[] = new int[1];
-    for (Iterator<Function> functionIterator = p.getFunctions(); functionIterator.hasNext();) {
-      Function function = functionIterator.next();
-      genCode(function, count);
-    }
-
-    out.close();
+  public void setObjectFile(String name) {
+    objectFile = name;
   }
 
-  private void genCode(Function f, int[] count) {
-    currLabelMap = f.assignLabels(count);
-
-    out.printCode(".globl " + f.getName());
-    out.printLabel(f.getName() + ":");
-
-    int totalSlots = f.getArguments().size() + f.getNumTempVars() + f.getNumTempAddressVars();
-    if(totalSlots < 2) totalSlots = 2;
-    if(totalSlots % 2 == 1) totalSlots++;
-    out.printCode("enter $(8 * " + totalSlots + "), $0");
-
-    List<LocalVar> args = f.getArguments();
-    String[] argRegisters = {"%rdi", "%rsi", "%rdx", "%rcx", "%r8", "%r9"};
-
-    for (int idx = 0; idx < args.size(); idx++) {
-      int slot = getStackIndex(args.get(idx));
-      out.printCode(String.format("movq %s, -%d(%%rbp)", argRegisters[idx], slot * 8));
-    }
-
-    if (f.getStart() != null) {
-      Set<Instruction> visited = new HashSet<>();
-      Deque<Instruction> worklist = new ArrayDeque<>();
-      worklist.push(f.getStart());
-
-      while (!worklist.isEmpty()) {
-        Instruction inst = worklist.pop();
-        if (!visited.add(inst)) continue;
-
-        String label = currLabelMap.get(inst);
-        if (label != null) {
-          out.printLabel(label + ":");
-        }
-
-        inst.accept(this);
-
-        for (int i = inst.numNext() - 1; i >= 0; i--) {
-          worklist.push(inst.getNext(i));
-        }
-      }
-    }
-
-    out.printCode("leave");
-    out.printCode("ret");
-  }
-
-  private void printInstructionInfo(Instruction i) {
-    var info = String.format("/* %s */", i.format(irFormat));
-    out.printCode(info);
-  }
-
-  @Override
-  public void visit(AddressAt i) {
-    AddressVar dest = i.getDst();
-    Symbol base = i.getBase();
-    LocalVar offset = i.getOffset();
-    int destSlot = getStackIndex(dest);
-
-    out.printCode(String.format("leaq %s(%%rip), %%r11", base.getName()));
-
-    if (offset != null) {
-      int offsetSlot = getStackIndex(offset);
-      out.printCode(String.format("movq -%d(%%rbp), %%r10", offsetSlot * 8));
-      out.printCode("imulq $8, %r10");
-      out.printCode("addq %r10, %r11");
-    }
-    out.printCode(String.format("movq %%r11, -%d(%%rbp)", destSlot * 8));
+  /**
+   * Sets how much work the code generator does. At 0 every IR instruction is translated on its own
+   * and every variable lives in its frame slot. From 1 on, the {@link InstructionSelector} folds
+   * constants, addresses and comparisons into their users, variables are kept in registers where
+   * the {@link RegisterAllocator} finds one, functions that call nothing get no frame, and the
+   * code is cleaned up by the {@link Peephole} pass.
+   */
+  public void setOptimizationLevel(int level) {
+    optLevel = level;
   }
 
-  @Override
-  public void visit(BinaryOperator i) {
-    LocalVar dest = i.getDst();
-    int destSlot = getStackIndex(dest);
-    LocalVar left = i.getLeftOperand();
-    int lhsSlot = getStackIndex(left);
-    LocalVar right = i.getRightOperand();
-    int rhsSlot = getStackIndex(right);
-
-    out.printCode(String.format("movq -%d(%%rbp), %%r10", lhsSlot * 8));
-    switch (i.getOperator()) {
-      case Add:
-        out.printCode(String.format("addq -%d(%%rbp), %%r10", rhsSlot * 8));
-        break;
-      case Sub:
-        out.printCode(String.format("subq -%d(%%rbp), %%r10", rhsSlot * 8));
+  /**
+   * Sets the vector instructions that simple loops over arrays are vectorized with, see
+   * {@link LoopVectorizer}: {@code "sse2"}, the default, which every x86-64 processor has,
+   * {@code "avx2"}, or {@code "none"}. Loops are only vectorized from optimization level 1 on.
+   */
+  public void setVectorInstructions(String name) {
+    switch (name) {
+      case "none":
+        vectorWidth = 0;
         break;
-      case Mul:
-        out.printCode(String.format("imulq -%d(%%rbp), %%r10", rhsSlot * 8));
+      case "sse2":
+        vectorWidth = 2;
         break;
-      case Div:
-        out.printCode("movq %r10, %rax");
-        out.printCode("cqto");
-        out.printCode(String.format("idivq -%d(%%rbp)", rhsSlot * 8));
-        out.printCode("movq %rax, %r10");
+      case "avx2":
+        vectorWidth = 4;
         break;
+      default:
+        throw new Error("Unknown vector instructions " + name);
     }
-    out.printCode(String.format("movq %%r10, -%d(%%rbp)", destSlot * 8));
   }
 
-  @Override
-  public void visit(CompareInst i) {
-    LocalVar dest = i.getDst();
-    int destSlot = getStackIndex(dest);
-    LocalVar left = i.getLeftOperand();
-    int lhsSlot = getStackIndex(left);
-    LocalVar right = i.getRightOperand();
-    int rhsSlot = getStackIndex(right);
-    CompareInst.Predicate predicate = i.getPredicate();
-
-    out.printCode(String.format("movq -%d(%%rbp), %%r10", lhsSlot * 8));
-    out.printCode(String.format("movq -%d(%%rbp), %%r11", rhsSlot * 8));
-    out.printCode("cmpq %r11, %r10");
-
-    switch (predicate) {
-      case EQ: out.printCode("sete %al"); break;
-      case NE: out.printCode("setne %al"); break;
-      case LT: out.printCode("setl %al"); break;
-      case LE: out.printCode("setle %al"); break;
-      case GT: out.printCode("setg %al"); break;
-      case GE: out.printCode("setge %al"); break;
-    }
-    out.printCode("movzbq %al, %rax");
-    out.printCode(String.format("movq %%rax, -%d(%%rbp)", destSlot * 8));
+  /**
+   * Makes calls of the builtins go to the {@code crux_} entry points of the runtime library, which
+   * preserve every register but %rax. Values then stay in caller-saved registers across those
+   * calls, and functions that print or read need fewer callee-saved registers. The program must
+   * be linked with {@code src/runtime/runtime.c} built by GCC for x86-64.
+   */
+  public void setFastRuntimeCalls(boolean enabled) {
+    fastRuntimeCalls = enabled;
   }
 
-  @Override
-  public void visit(JumpInst i) {
-    LocalVar predicate = i.getPredicate();
-    int predSlot = getStackIndex(predicate);
-    out.printCode(String.format("movq -%d(%%rbp), %%r10", predSlot * 8));
-    out.printCode("cmpq $1, %r10");
-
-    Instruction trueTarget = i.getNext(0);
-    Instruction falseTarget = i.getNext(1);
-    String trueLabel = currLabelMap.get(trueTarget);
-    String falseLabel = currLabelMap.get(falseTarget);
-    out.printCode(String.format("je %s", trueLabel));
-    out.printCode(String.format("jmp %s", falseLabel));
+  /**
+   * Whether {@code call} goes to a builtin through its register-preserving entry point when
+   * {@link #setFastRuntimeCalls} is on. Tail calls jump to the ordinary one.
+   */
+  static boolean isFastRuntimeCall(CallInst call) {
+    return call.getIntrinsic() != null && !call.isTailCall();
   }
 
-  @Override
-  public void visit(LoadInst i) {
-    LocalVar destination = i.getDst();
-    AddressVar sourceAddress = i.getSrcAddress();
-    int destinationSlot = getStackIndex(destination);
-    int sourceSlot = getStackIndex(sourceAddress);
-
-    out.printCode(String.format("movq -%d(%%rbp), %%r11", sourceSlot * 8));
-    out.printCode("movq (%r11), %rax");
-    out.printCode(String.format("movq %%rax, -%d(%%rbp)", destinationSlot * 8));
+  /**
+   * Sets how many threads translate functions; 0, the default, uses the common fork-join pool.
+   */
+  public void setThreads(int threads) {
+    this.threads = threads;
   }
 
-  @Override
-  public void visit(NopInst i) {
-    out.printCode("nop");
+  /**
+   * Makes the code count how often every function is called and every jump goes either way, in
+   * the counters numbered by {@code counters}, an {@link EdgeProfile} of this program. The runtime
+   * library writes them to a profile file at exit, see {@code src/runtime/runtime.c}. Loops are not
+   * vectorized then, so that the counts are those of the IR.
+   */
+  public void setInstrumentation(EdgeProfile counters) {
+    this.counters = counters;
   }
 
-  @Override
-  public void visit(StoreInst i) {
-    LocalVar srcValue = i.getSrcValue();
-    AddressVar destAddress = i.getDestAddress();
-
-    int srcValueSlot = getStackIndex(srcValue);
-    int destAddrSlot = getStackIndex(destAddress);
-
-    out.printCode(String.format("movq -%d(%%rbp), %%r10", srcValueSlot * 8));
-    out.printCode(String.format("movq -%d(%%rbp), %%r11", destAddrSlot * 8));
-    out.printCode("movq %r10, (%r11)");
+  /**
+   * Lays the code out by the counts of an earlier run: every block is followed by its more
+   * frequent successor, blocks that never ran are moved behind the others of their function, and
+   * functions that were never called are emitted after all others.
+   */
+  public void setProfile(EdgeProfile profile) {
+    this.profile = profile;
   }
 
-  @Override
-  public void visit(ReturnInst i) {
-    LocalVar returnValue = i.getReturnValue();
-    if (returnValue != null) {
-      int slot = getStackIndex(returnValue);
-      out.printCode(String.format("movq -%d(%%rbp), %%rax", slot * 8));
+  /**
+   * It should allocate space for globals call genCode for each Function
+   */
+  public void genCode() {
+    p.link();
+    if (objectFile != null) {
+      object = new ElfWriter();
+    } else {
+      // Do not change the file name that is outputted or it will
+      // break the grader!
+      out = new CodePrinter("a.s");
     }
-    out.printCode("leave");
-    out.printCode("ret");
-  }
-
-  @Override
-  public void visit(CallInst i) {
-    Symbol callee = i.getCallee();
-    List<LocalVar> params = i.getParams();
-    String[] argRegisters = {"%rdi", "%rsi", "%rdx", "%rcx", "%r8", "%r9"};
-    int numParams = params.size();
-
-    for (int idx = 0; idx < Math.min(numParams, argRegisters.length); idx++) {
-      int slot = getStackIndex(params.get(idx));
-      out.printCode(String.format("movq -%d(%%rbp), %s", slot * 8, argRegisters[idx]));
+    for (Iterator<GlobalDecl> globalIterator = p.getGlobals(); globalIterator.hasNext();) {
+      GlobalDecl globalDecl = globalIterator.next();
+      String name = globalDecl.getSymbol().getName();
+      long size = globalDecl.getNumElement().getValue() * 8;
+      if (object != null)
+        object.addCommon(name, size);
+      else
+        out.printCode(".comm " + name + "," + size + ",8");
     }
-
-    for (int idx = numParams - 1; idx >= argRegisters.length; idx--) {
-      int slot = getStackIndex(params.get(idx));
-      out.printCode(String.format("movq -%d(%%rbp), %%rax", slot * 8));
-      out.printCode("pushq %rax");
+    if (counters != null) {
+      long size = 8L * (PROFILE_HEADER + counters.getNumCounters());
+      if (object != null)
+        object.addCommon(PROFILE_SYMBOL, size);
+      else
+        out.printCode(".comm " + PROFILE_SYMBOL + "," + size + ",8");
     }
 
-    out.printCode("call " + callee.getName());
-
-    if (numParams > argRegisters.length) {
-      int numPushed = numParams - argRegisters.length;
-      out.printCode(String.format("addq $%d, %%rsp", numPushed * 8));
+    ForkJoinPool pool = threads > 0 ? new ForkJoinPool(threads) : ForkJoinPool.commonPool();
+    var tasks = new ArrayList<ForkJoinTask<FunctionCodeGen>>();
+    try {
+      int index = 0;
+      var cold = new ArrayList<ForkJoinTask<FunctionCodeGen>>();
+      for (Iterator<Function> functionIterator = p.getFunctions(); functionIterator.hasNext();) {
+        Function f = functionIterator.next();
+        var function = new FunctionCodeGen(f, index++, optLevel,
+            counters != null ? 0 : vectorWidth, fastRuntimeCalls, counters, profile);
+        var task = pool.submit(() -> {
+          function.generate();
+          return function;
+        });
+        if (profile != null && profile.getCalls(f) == 0)
+          cold.add(task);
+        else
+          tasks.add(task);
+      }
+      tasks.addAll(cold);
+      for (ForkJoinTask<FunctionCodeGen> task : tasks) {
+        write(task.join());
+      }
+    } finally {
+      if (pool != ForkJoinPool.commonPool())
+        pool.shutdown();
     }
 
-    if (i.getDst() != null) {
-      int destSlot = getStackIndex(i.getDst());
-      out.printCode(String.format("movq %%rax, -%d(%%rbp)", destSlot * 8));
-    }
+    if (object != null)
+      object.write(objectFile);
+    else
+      out.close();
   }
 
-  @Override
-  public void visit(UnaryNotInst i) {
-    LocalVar dest = i.getDst();
-    LocalVar operand = i.getInner();
-    int destSlot = getStackIndex(dest);
-    int operandSlot = getStackIndex(operand);
-    out.printCode(String.format("movq -%d(%%rbp), %%rax", operandSlot * 8));
-    out.printCode("movq $1, %r10");
-    out.printCode("subq %rax, %r10");
-    out.printCode(String.format("movq %%r10, -%d(%%rbp)", destSlot * 8));
+  private void write(FunctionCodeGen function) {
+    List<MachineInst> code = function.getCode();
+    instructionCounts.put(function.getName(),
+        new int[] {function.getNumInstructionsBefore(), Peephole.countInstructions(code)});
+
+    if (object != null) {
+      object.addFunction(function.getName(), code);
+      return;
+    }
+    out.printCode(".globl " + function.getName());
+    out.printLabel(function.getName() + ":");
+    for (MachineInst inst : code) {
+      if (inst.isLabel())
+        out.printLabel(inst.toString());
+      else
+        out.printCode(inst.toString());
+    }
   }
 
-  @Override
-  public void visit(CopyInst i) {
-    LocalVar destination = i.getDstVar();
-    Value source = i.getSrcValue();
-    int destSlot = getStackIndex(destination);
-    if (source instanceof LocalVar) {
-      int srcSlot = getStackIndex((LocalVar) source);
-      out.printCode(String.format("movq -%d(%%rbp), %%rax", srcSlot * 8));
-    } else if (source instanceof IntegerConstant) {
-      long value = ((IntegerConstant) source).getValue();
-      out.printCode(String.format("movq $%d, %%rax", value));
-    } else if (source instanceof BooleanConstant) {
-      boolean boolValue = ((BooleanConstant) source).getValue();
-      int value = boolValue ? 1 : 0;
-      out.printCode(String.format("movq $%d, %%rax", value));
+  /**
+   * Prints how many instructions every function had before and after the peephole pass, once
+   * {@link #genCode()} has run.
+   */
+  public void writePeepholeStats(java.io.PrintStream stream) {
+    int totalBefore = 0;
+    int totalAfter = 0;
+    stream.printf("%-24s %8s %8s%n", "function", "before", "after");
+    for (var entry : instructionCounts.entrySet()) {
+      int[] counts = entry.getValue();
+      stream.printf("%-24s %8d %8d%n", entry.getKey(), counts[0], counts[1]);
+      totalBefore += counts[0];
+      totalAfter += counts[1];
     }
-    out.printCode(String.format("movq %%rax, -%d(%%rbp)", destSlot * 8));
+    stream.printf("%-24s %8d %8d%n", "total", totalBefore, totalAfter);
   }
 }
@@ -0,0 +1,225 @@
+package crux.backend;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.*;
+
+/**
+ * Writes the code of a program as a relocatable x86-64 ELF object file, so that it can be linked
+ * with the runtime by {@code cc a.o src/runtime/runtime.c} without running an assembler.
+ * <p>
+ * The file has a {@code .text} section with the code of every function and its relocations, and a
+ * symbol table: a global function symbol for every function, a common symbol for every global,
+ * like {@code .comm} makes, and an undefined symbol for everything else that is referred to, such
+ * as the functions of the runtime. An empty {@code .note.GNU-stack} section marks the stack
+ * non-executable.
+ */
+final class ElfWriter {
+  private static final int SHT_PROGBITS = 1;
+  private static final int SHT_SYMTAB = 2;
+  private static final int SHT_STRTAB = 3;
+  private static final int SHT_RELA = 4;
+  private static final int SHF_ALLOC = 0x2;
+  private static final int SHF_EXECINSTR = 0x4;
+  private static final int SHF_INFO_LINK = 0x40;
+  private static final int STB_LOCAL = 0;
+  private static final int STB_GLOBAL = 1;
+  private static final int STT_NOTYPE = 0;
+  private static final int STT_OBJECT = 1;
+  private static final int STT_FUNC = 2;
+  private static final int STT_SECTION = 3;
+  private static final int SHN_UNDEF = 0;
+  private static final int SHN_COMMON = 0xFFF2;
+
+  // Section indices, in the order the section headers are written.
+  private static final int TEXT = 1;
+  private static final int RELA_TEXT = 2;
+  private static final int NOTE_GNU_STACK = 3;
+  private static final int SYMTAB = 4;
+  private static final int STRTAB = 5;
+  private static final int SHSTRTAB = 6;
+  private static final int NUM_SECTIONS = 7;
+
+  private static final class Symbol {
+    final String name;
+    final int type;
+    final int section;
+    final long value;
+    final long size;
+
+    Symbol(String name, int type, int section, long value, long size) {
+      this.name = name;
+      this.type = type;
+      this.section = section;
+      this.value = value;
+      this.size = size;
+    }
+  }
+
+  private final X86Encoder text = new X86Encoder();
+  private final LinkedHashMap<String, Symbol> symbols = new LinkedHashMap<>();
+
+  /**
+   * Allocates {@code size} bytes for the global {@code name}, aligned to 8 bytes.
+   */
+  void addCommon(String name, long size) {
+    symbols.put(name, new Symbol(name, STT_OBJECT, SHN_COMMON, 8, size));
+  }
+
+  void addFunction(String name, List<MachineInst> code) {
+    int start = text.size();
+    for (MachineInst inst : code) {
+      text.encode(inst);
+    }
+    text.endFunction();
+    symbols.put(name, new Symbol(name, STT_FUNC, TEXT, start, text.size() - start));
+  }
+
+  void write(String fileName) {
+    // Everything referred to but not defined here is left to the linker.
+    for (X86Encoder.Relocation relocation : text.getRelocations()) {
+      symbols.computeIfAbsent(relocation.symbol,
+          name -> new Symbol(name, STT_NOTYPE, SHN_UNDEF, 0, 0));
+    }
+
+    // The null symbol and the section symbol are local and must come first.
+    var strtab = new StringTable();
+    var symtab = buffer(24 * (2 + symbols.size()));
+    writeSymbol(symtab, 0, STB_LOCAL, STT_NOTYPE, SHN_UNDEF, 0, 0);
+    writeSymbol(symtab, 0, STB_LOCAL, STT_SECTION, TEXT, 0, 0);
+    var symbolIndices = new HashMap<String, Integer>();
+    for (Symbol symbol : symbols.values()) {
+      symbolIndices.put(symbol.name, symtab.position() / 24);
+      writeSymbol(symtab, strtab.add(symbol.name), STB_GLOBAL, symbol.type, symbol.section,
+          symbol.value, symbol.size);
+    }
+
+    List<X86Encoder.Relocation> relocations = text.getRelocations();
+    var rela = buffer(24 * relocations.size());
+    for (X86Encoder.Relocation relocation : relocations) {
+      rela.putLong(relocation.offset);
+      rela.putLong((long) symbolIndices.get(relocation.symbol) << 32 | relocation.type);
+      rela.putLong(relocation.addend);
+    }
+
+    var shstrtab = new StringTable();
+    int[] names = new int[NUM_SECTIONS];
+    names[TEXT] = shstrtab.add(".text");
+    names[RELA_TEXT] = shstrtab.add(".rela.text");
+    names[NOTE_GNU_STACK] = shstrtab.add(".note.GNU-stack");
+    names[SYMTAB] = shstrtab.add(".symtab");
+    names[STRTAB] = shstrtab.add(".strtab");
+    names[SHSTRTAB] = shstrtab.add(".shstrtab");
+
+    byte[][] contents = new byte[NUM_SECTIONS][];
+    contents[TEXT] = text.getCode();
+    contents[RELA_TEXT] = rela.array();
+    contents[NOTE_GNU_STACK] = new byte[0];
+    contents[SYMTAB] = symtab.array();
+    contents[STRTAB] = strtab.toBytes();
+    contents[SHSTRTAB] = shstrtab.toBytes();
+
+    // The ELF header, then the contents of the sections, each 8-byte aligned, then the headers.
+    long[] offsets = new long[NUM_SECTIONS];
+    long position = 64;
+    for (int section = 1; section < NUM_SECTIONS; section++) {
+      position = (position + 7) & ~7;
+      offsets[section] = position;
+      position += contents[section].length;
+    }
+    long sectionHeaders = (position + 7) & ~7;
+
+    var file = buffer((int) sectionHeaders + 64 * NUM_SECTIONS);
+    writeHeader(file, sectionHeaders);
+    for (int section = 1; section < NUM_SECTIONS; section++) {
+      file.position((int) offsets[section]);
+      file.put(contents[section]);
+    }
+    file.position((int) sectionHeaders);
+    file.put(new byte[64]);
+    writeSection(file, names[TEXT], SHT_PROGBITS, SHF_ALLOC | SHF_EXECINSTR, offsets[TEXT],
+        contents[TEXT].length, 0, 0, 16, 0);
+    writeSection(file, names[RELA_TEXT], SHT_RELA, SHF_INFO_LINK, offsets[RELA_TEXT],
+        contents[RELA_TEXT].length, SYMTAB, TEXT, 8, 24);
+    writeSection(file, names[NOTE_GNU_STACK], SHT_PROGBITS, 0, offsets[NOTE_GNU_STACK], 0, 0, 0,
+        1, 0);
+    // sh_info of a symbol table is the index of its first global symbol.
+    writeSection(file, names[SYMTAB], SHT_SYMTAB, 0, offsets[SYMTAB], contents[SYMTAB].length,
+        STRTAB, 2, 8, 24);
+    writeSection(file, names[STRTAB], SHT_STRTAB, 0, offsets[STRTAB], contents[STRTAB].length, 0,
+        0, 1, 0);
+    writeSection(file, names[SHSTRTAB], SHT_STRTAB, 0, offsets[SHSTRTAB],
+        contents[SHSTRTAB].length, 0, 0, 1, 0);
+
+    try (var stream = new FileOutputStream(fileName)) {
+      stream.write(file.array());
+    } catch (IOException e) {
+      throw new Error("Cannot write " + fileName, e);
+    }
+  }
+
+  private static ByteBuffer buffer(int size) {
+    return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static void writeHeader(ByteBuffer file, long sectionHeaders) {
+    // Magic, 64-bit, little-endian, version 1, System V ABI.
+    file.put(new byte[] {0x7F, 'E', 'L', 'F', 2, 1, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+    file.putShort((short) 1); // ET_REL
+    file.putShort((short) 62); // EM_X86_64
+    file.putInt(1);
+    file.putLong(0); // entry point
+    file.putLong(0); // program headers
+    file.putLong(sectionHeaders);
+    file.putInt(0); // flags
+    file.putShort((short) 64);
+    file.putShort((short) 0);
+    file.putShort((short) 0);
+    file.putShort((short) 64);
+    file.putShort((short) NUM_SECTIONS);
+    file.putShort((short) SHSTRTAB);
+  }
+
+  private static void writeSection(ByteBuffer file, int name, int type, long flags, long offset,
+      long size, int link, int info, long align, long entrySize) {
+    file.putInt(name);
+    file.putInt(type);
+    file.putLong(flags);
+    file.putLong(0); // address
+    file.putLong(offset);
+    file.putLong(size);
+    file.putInt(link);
+    file.putInt(info);
+    file.putLong(align);
+    file.putLong(entrySize);
+  }
+
+  private static void writeSymbol(ByteBuffer symtab, int name, int binding, int type, int section,
+      long value, long size) {
+    symtab.putInt(name);
+    symtab.put((byte) (binding << 4 | type));
+    symtab.put((byte) 0);
+    symtab.putShort((short) section);
+    symtab.putLong(value);
+    symtab.putLong(size);
+  }
+
+  /**
+   * The contents of a string table section: NUL-terminated names, starting with an empty one.
+   */
+  private static final class StringTable {
+    private final StringBuilder strings = new StringBuilder("\0");
+
+    int add(String name) {
+      int offset = strings.length();
+      strings.append(name).append('\0');
+      return offset;
+    }
+
+    byte[] toBytes() {
+      return strings.toString().getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+    }
+  }
+}
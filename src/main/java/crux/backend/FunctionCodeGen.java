@@ -0,0 +1,1017 @@
+package crux.backend;
+
+import crux.ast.SymbolTable.Symbol;
+import crux.ir.*;
+import crux.ir.insts.*;
+import crux.printing.IRValueFormatter;
+
+import java.util.*;
+
+/**
+ * Translates one {@link Function} into {@link MachineInst}s. All state of the translation lives
+ * here, so {@link CodeGen} can translate the functions of a program concurrently: labels are
+ * numbered per function and prefixed with the function's position in the program, which keeps
+ * them unique in the output file and the same however the work is scheduled.
+ */
+final class FunctionCodeGen extends InstVisitor {
+  // Slots below %rsp that a leaf function may use without moving %rsp: the 128-byte red zone.
+  private static final int RED_ZONE_SLOTS = 16;
+
+  private final IRValueFormatter irFormat = new IRValueFormatter();
+  private final Function f;
+  private final int optLevel;
+  // 64-bit lanes of the vector registers that loops are vectorized with, or 0 for none.
+  private final int vectorWidth;
+  // Whether builtins are called through the entry points that preserve all registers.
+  private final boolean fastRuntimeCalls;
+  // The numbering of the counters to increment, or null if the code is not instrumented.
+  private final EdgeProfile counters;
+  // Counts of an earlier run that guide the block layout, or null.
+  private final EdgeProfile profile;
+  private final String labelPrefix;
+  private int labelCount;
+
+  private List<MachineInst> code;
+  private int numInstructionsBefore;
+  private HashMap<Instruction, String> labelMap;
+  // The instruction emitted after the current one, or null at the end of the function.
+  private Instruction following;
+  // Folding decisions, or null at -O0, where every instruction is translated on its own.
+  private InstructionSelector selector;
+  // Registers of the variables, or null at -O0, where all live on the stack.
+  private RegisterAllocator registers;
+  // Loops to vectorize, or null if none are.
+  private LoopVectorizer vectorizer;
+  // Whether the function calls nothing, so it needs no frame and addresses its slots from %rsp.
+  private boolean leaf;
+  // Frame slots of the variables that live in memory, handed out as they are first needed. The
+  // slots before them hold the saved callee-saved registers.
+  private final HashMap<Variable, Integer> frameIndexes = new HashMap<>();
+  private int numFrameSlots;
+  // Label of the shared "leave; ret", created when first needed.
+  private String returnLabel;
+  // Stubs that report a failed bounds check, by the offset operand and array length they report.
+  private final LinkedHashMap<List<String>, String> boundsErrors = new LinkedHashMap<>();
+  // Stubs on the jumped-to edge of an instrumented jump, by label: the counter and the target.
+  private final LinkedHashMap<String, List<String>> counterStubs = new LinkedHashMap<>();
+
+  /**
+   * Prepares the translation of {@code f}, the {@code index}th function of its program, at the
+   * given optimization level (see {@link CodeGen#setOptimizationLevel(int)}), vectorizing loops
+   * with {@code vectorWidth} lanes if that is not 0, and with the fast builtin calls of
+   * {@link CodeGen#setFastRuntimeCalls} if {@code fastRuntimeCalls} is set. The code increments
+   * the {@code counters} if they are not null (see {@link CodeGen#setInstrumentation}), and the
+   * blocks are laid out by the {@code profile} if it is not null.
+   */
+  FunctionCodeGen(Function f, int index, int optLevel, int vectorWidth,
+      boolean fastRuntimeCalls, EdgeProfile counters, EdgeProfile profile) {
+    this.f = f;
+    this.optLevel = optLevel;
+    this.vectorWidth = vectorWidth;
+    this.fastRuntimeCalls = fastRuntimeCalls;
+    this.counters = counters;
+    this.profile = profile;
+    labelPrefix = ".L" + index + "_";
+  }
+
+  String getName() {
+    return f.getName();
+  }
+
+  /**
+   * The generated code, without the label of the function itself.
+   */
+  List<MachineInst> getCode() {
+    return code;
+  }
+
+  /**
+   * Number of instructions before the {@link Peephole} pass.
+   */
+  int getNumInstructionsBefore() {
+    return numInstructionsBefore;
+  }
+
+  private String newLabel() {
+    return labelPrefix + (++labelCount);
+  }
+
+  /**
+   * The frame slot of {@code var}, counted from 1, see {@link #frameSlot(int)}. Only variables
+   * that are kept in memory get one.
+   */
+  int getStackIndex(Variable var) {
+    return frameIndexes.computeIfAbsent(var, v -> ++numFrameSlots);
+  }
+
+  /**
+   * The memory operand of frame slot {@code index}: below %rbp, or in a leaf function below %rsp,
+   * in the red zone that the System V ABI leaves to a function that calls nothing.
+   */
+  private String frameSlot(int index) {
+    return String.format("-%d(%s)", index * 8, leaf ? "%rsp" : "%rbp");
+  }
+
+  /**
+   * The location of {@code var} as an operand: an immediate if it is a constant, its register, or
+   * its frame slot if it has none.
+   */
+  private String loc(Variable var) {
+    if (selector != null) {
+      Long value = selector.getConstant(var);
+      if (value != null)
+        return "$" + value;
+    }
+    if (registers != null) {
+      String reg = registers.getRegister(var);
+      if (reg != null)
+        return reg;
+    }
+    return frameSlot(getStackIndex(var));
+  }
+
+  /**
+   * Generates the code of the function; {@link #getCode()} returns it afterwards.
+   */
+  void generate() {
+    List<Instruction> order = optLevel > 0 ? new BlockLayout(f, profile).getInstructions() : linearize(f);
+    labelMap = assignLabels(order);
+    selector = optLevel > 0 ? new InstructionSelector(f) : null;
+    registers = optLevel > 0 ? new RegisterAllocator(f, order, selector, fastRuntimeCalls)
+        : null;
+    vectorizer = optLevel > 0 && vectorWidth > 0 ? new LoopVectorizer(f) : null;
+
+    boolean callsNothing = true;
+    for (Instruction inst : order) {
+      if (inst instanceof CallInst)
+        callsNothing = false;
+    }
+    int firstLabel = labelCount;
+    if (!emitFunction(order, optLevel > 0 && callsNothing)) {
+      // The slots do not fit in the red zone.
+      labelCount = firstLabel;
+      emitFunction(order, false);
+    }
+
+    numInstructionsBefore = Peephole.countInstructions(code);
+    if (optLevel > 0)
+      code = Peephole.optimize(code);
+  }
+
+  /**
+   * Emits the function with its prologue, as a leaf function without a frame if {@code leaf} is
+   * set. Returns false if a leaf function needs more slots than fit in the red zone, in which case
+   * the code is incomplete.
+   */
+  private boolean emitFunction(List<Instruction> order, boolean leaf) {
+    this.leaf = leaf;
+    List<String> saved = registers != null ? registers.getUsedCalleeSaved() : List.of();
+    frameIndexes.clear();
+    numFrameSlots = saved.size();
+    returnLabel = null;
+    boundsErrors.clear();
+    counterStubs.clear();
+
+    // The body first, so that the prologue knows how many slots it uses.
+    code = new ArrayList<>();
+    if (counters != null)
+      countCall();
+    if (order.isEmpty())
+      printReturn();
+    for (int k = 0; k < order.size(); k++) {
+      Instruction inst = order.get(k);
+      String label = labelMap.get(inst);
+      if (label != null) {
+        emitLabel(label);
+      }
+
+      following = k + 1 < order.size() ? order.get(k + 1) : null;
+      // The check stays where the address is computed, even if that is folded into its user.
+      if (inst instanceof AddressAt && ((AddressAt) inst).isChecked())
+        checkBounds((AddressAt) inst);
+      if (selector == null || !selector.isSkipped(inst))
+        inst.accept(this);
+      if (vectorizer != null && vectorizer.getLoopAfter(inst) != null)
+        emitVectorLoop(vectorizer.getLoopAfter(inst));
+
+      // Jumps continue to their next(0) themselves.
+      if (!(inst instanceof ReturnInst || inst instanceof JumpInst))
+        continueTo(inst.getNext(0));
+    }
+
+    if (returnLabel != null) {
+      emitLabel(returnLabel);
+      printReturn();
+    }
+    for (var entry : counterStubs.entrySet()) {
+      emitLabel(entry.getKey());
+      emit("incq", entry.getValue().get(0));
+      emit("jmp", entry.getValue().get(1));
+    }
+    for (var entry : boundsErrors.entrySet()) {
+      emitLabel(entry.getValue());
+      emit("movq", entry.getKey().get(0), "%rdi");
+      emit("movq", entry.getKey().get(1), "%rsi");
+      // The runtime does not return, so the stack only needs to be aligned for its own calls.
+      emit("andq", "$-16", "%rsp");
+      emit("call", "crux_bounds_error");
+    }
+    List<MachineInst> body = code;
+
+    // Arguments that live in a register for their whole lifetime are moved there, not spilled.
+    code = new ArrayList<>();
+    List<LocalVar> args = f.getArguments();
+    var srcs = new ArrayList<String>();
+    var dsts = new ArrayList<String>();
+    for (int idx = 0; idx < args.size(); idx++) {
+      if (registers != null && !registers.isLiveOnEntry(args.get(idx)))
+        continue;
+      if (idx < CodeGen.ARG_REGISTERS.length) {
+        srcs.add(CodeGen.ARG_REGISTERS[idx]);
+      } else {
+        // Above the return address, and the saved %rbp if there is a frame, in the order the
+        // caller pushed them.
+        int offset = (leaf ? 8 : 16) + 8 * (idx - CodeGen.ARG_REGISTERS.length);
+        srcs.add(String.format("%d(%s)", offset, leaf ? "%rsp" : "%rbp"));
+      }
+      dsts.add(loc(args.get(idx)));
+    }
+    parallelMove(srcs, dsts);
+    List<MachineInst> argumentMoves = code;
+
+    if (leaf && numFrameSlots > RED_ZONE_SLOTS)
+      return false;
+    code = new ArrayList<>();
+    if (!leaf) {
+      emit("pushq", "%rbp");
+      emit("movq", "%rsp", "%rbp");
+      // %rsp is 16-byte aligned after the push; keep it that way for calls.
+      int frameSize = 8 * (numFrameSlots + numFrameSlots % 2);
+      if (frameSize > 0)
+        emit("subq", "$" + frameSize, "%rsp");
+    }
+    for (int idx = 0; idx < saved.size(); idx++) {
+      emit("movq", saved.get(idx), frameSlot(idx + 1));
+    }
+    code.addAll(argumentMoves);
+    code.addAll(body);
+    return true;
+  }
+
+  private void emit(String opcode, String... operands) {
+    code.add(new MachineInst(opcode, operands));
+  }
+
+  private void emitLabel(String label) {
+    code.add(MachineInst.label(label));
+  }
+
+  /**
+   * Emits what it takes to execute {@code next} after the current instruction: nothing if it is
+   * emitted right after it, a jmp otherwise, or a return if there is no next instruction.
+   */
+  private void continueTo(Instruction next) {
+    if (next == null) {
+      // Falling off the end of a function returns.
+      printReturn();
+    } else if (next != following) {
+      emit("jmp", labelOf(next));
+    }
+  }
+
+  /**
+   * Labels every instruction that some edge reaches other than by falling through, i.e. every
+   * successor that is not emitted right after its predecessor. Labels are numbered in emission
+   * order.
+   */
+  private HashMap<Instruction, String> assignLabels(List<Instruction> order) {
+    var targets = new HashSet<Instruction>();
+    for (int k = 0; k < order.size(); k++) {
+      Instruction inst = order.get(k);
+      Instruction following = k + 1 < order.size() ? order.get(k + 1) : null;
+      for (int childIdx = 0; childIdx < inst.numNext(); childIdx++) {
+        Instruction child = inst.getNext(childIdx);
+        if (child != null && child != following)
+          targets.add(child);
+      }
+    }
+    var labels = new HashMap<Instruction, String>();
+    for (Instruction inst : order) {
+      if (targets.contains(inst))
+        labels.put(inst, newLabel());
+    }
+    return labels;
+  }
+
+  /**
+   * The order in which the instructions of {@code f} are emitted without optimization:
+   * depth-first, so that next(0) directly follows its instruction wherever possible. Every other
+   * edge becomes a jump to a label.
+   */
+  private static List<Instruction> linearize(Function f) {
+    var order = new ArrayList<Instruction>();
+    Stack<Instruction> tovisit = new Stack<>();
+    HashSet<Instruction> discovered = new HashSet<>();
+    if (f.getStart() != null) {
+      tovisit.push(f.getStart());
+      discovered.add(f.getStart());
+    }
+    while (!tovisit.isEmpty()) {
+      Instruction inst = tovisit.pop();
+      order.add(inst);
+      if (inst instanceof JumpInst) {
+        Instruction taken = inst.getNext(1);
+        if (taken != null && discovered.add(taken))
+          tovisit.push(taken);
+      }
+      if (inst instanceof ReturnInst)
+        continue;
+      Instruction next = inst.getNext(0);
+      if (next != null && discovered.add(next))
+        tovisit.push(next);
+    }
+    return order;
+  }
+
+  /**
+   * Moves every {@code srcs[i]} to {@code dsts[i]} as if all moves happened at once: a register
+   * that is both a source and a destination is read before it is overwritten, and cycles of
+   * registers are broken with %r10. The destinations must be distinct.
+   */
+  private void parallelMove(List<String> srcs, List<String> dsts) {
+    var pendingSrcs = new ArrayList<String>();
+    var pendingDsts = new ArrayList<String>();
+    for (int idx = 0; idx < srcs.size(); idx++) {
+      if (!srcs.get(idx).equals(dsts.get(idx))) {
+        pendingSrcs.add(srcs.get(idx));
+        pendingDsts.add(dsts.get(idx));
+      }
+    }
+    while (!pendingDsts.isEmpty()) {
+      boolean progress = false;
+      for (int idx = 0; idx < pendingDsts.size(); idx++) {
+        if (pendingSrcs.contains(pendingDsts.get(idx)))
+          continue;
+        move(pendingSrcs.remove(idx), pendingDsts.remove(idx));
+        idx--;
+        progress = true;
+      }
+      if (!progress) {
+        // Every remaining destination is still to be read, so they form cycles.
+        String blocked = pendingDsts.get(0);
+        move(blocked, "%r10");
+        for (int idx = 0; idx < pendingSrcs.size(); idx++) {
+          if (pendingSrcs.get(idx).equals(blocked))
+            pendingSrcs.set(idx, "%r10");
+        }
+      }
+    }
+  }
+
+  private void move(String src, String dst) {
+    if (src.equals(dst))
+      return;
+    if (!isRegister(src) && !isImmediate(src) && !isRegister(dst)) {
+      emit("movq", src, "%r11");
+      src = "%r11";
+    }
+    emit("movq", src, dst);
+  }
+
+  private static boolean isRegister(String operand) {
+    return operand.startsWith("%");
+  }
+
+  private static boolean isImmediate(String operand) {
+    return operand.startsWith("$");
+  }
+
+  /**
+   * {@code operand} itself if it is a register, otherwise {@code scratch} after loading it there.
+   */
+  private String inRegister(String operand, String scratch) {
+    if (isRegister(operand))
+      return operand;
+    emit("movq", operand, scratch);
+    return scratch;
+  }
+
+  /**
+   * The memory operand for the address {@code i} computes, which may use %r10 and %r11.
+   */
+  private String addressOperand(AddressAt i) {
+    String base = i.getBase().getName();
+    LocalVar offset = i.getOffset();
+    if (offset == null)
+      return base + "(%rip)";
+    String index = loc(offset);
+    if (isImmediate(index)) {
+      long displacement = 8 * Long.parseLong(index.substring(1));
+      if (InstructionSelector.isImmediate(displacement))
+        return String.format("%s%+d(%%rip)", base, displacement);
+    }
+    emit("leaq", base + "(%rip)", "%r11");
+    return String.format("(%%r11,%s,8)", inRegister(index, "%r10"));
+  }
+
+  /**
+   * Jumps to a stub that reports the error if the offset of {@code i} lies outside its array. The
+   * unsigned comparison catches negative offsets as well.
+   */
+  private void checkBounds(AddressAt i) {
+    String index = loc(i.getOffset());
+    long length = i.getExtent();
+    String stub = boundsErrors.computeIfAbsent(List.of(index, "$" + length), k -> newLabel());
+    if (isImmediate(index)) {
+      long value = Long.parseLong(index.substring(1));
+      if (value < 0 || value >= length)
+        emit("jmp", stub);
+      return;
+    }
+    if (InstructionSelector.isImmediate(length)) {
+      emit("cmpq", "$" + length, index);
+    } else {
+      emit("movabsq", "$" + length, "%r10");
+      emit("cmpq", "%r10", index);
+    }
+    emit("jae", stub);
+  }
+
+  private static String counter(int number) {
+    int offset = 8 * (CodeGen.PROFILE_HEADER + number);
+    return String.format("%s+%d(%%rip)", CodeGen.PROFILE_SYMBOL, offset);
+  }
+
+  /**
+   * Counts the call of the function. main also fills in the header of the counters, which tells
+   * the runtime that there are counters to write at exit.
+   */
+  private void countCall() {
+    if (f.getName().equals("main")) {
+      emit("movq", "$" + counters.getFingerprint(), CodeGen.PROFILE_SYMBOL + "(%rip)");
+      emit("movq", "$" + counters.getNumCounters(), CodeGen.PROFILE_SYMBOL + "+8(%rip)");
+    }
+    emit("incq", counter(counters.getCallCounter(f)));
+  }
+
+  /**
+   * Jumps to {@code target} if {@code condition} holds, counting both edges of the jump whose
+   * counters start at {@code number}: the jumped-to edge goes through a stub that counts it, and
+   * the other edge is counted right after the jump, where the flags are dead. {@code taken} tells
+   * whether the jumped-to edge is the one to next(1).
+   */
+  private void countedJump(int number, String condition, Instruction target, boolean taken) {
+    String stub = newLabel();
+    counterStubs.put(stub, List.of(counter(taken ? number : number + 1), targetLabel(target)));
+    emit("j" + condition, stub);
+    emit("incq", counter(taken ? number + 1 : number));
+  }
+
+  private String labelOf(Instruction inst) {
+    String label = labelMap.get(inst);
+    if (label == null)
+      throw new Error("No label for jump target " + inst.format(irFormat));
+    return label;
+  }
+
+  /**
+   * The label of a jump target, where a missing target (the jump of a break or continue) returns
+   * from the function, like it does in the {@link Emulator}.
+   */
+  private String targetLabel(Instruction target) {
+    if (target != null)
+      return labelOf(target);
+    if (returnLabel == null)
+      returnLabel = newLabel();
+    return returnLabel;
+  }
+
+  private void printReturn() {
+    restoreCalleeSaved();
+    if (!leaf)
+      emit("leave");
+    emit("ret");
+  }
+
+  private void restoreCalleeSaved() {
+    if (registers == null)
+      return;
+    List<String> saved = registers.getUsedCalleeSaved();
+    for (int idx = 0; idx < saved.size(); idx++) {
+      emit("movq", frameSlot(idx + 1), saved.get(idx));
+    }
+  }
+
+  /**
+   * Emits the vector version of {@code loop}, to run between its preheader and its header. It
+   * runs as many iterations as it can {@link #vectorWidth} at a time and leaves {@code i} at the
+   * first one it did not run, for the scalar loop to finish. The index lives in %rax and the last
+   * index a vector iteration may start at in %rdx. The vector registers hold the broadcast scalars,
+   * then the accumulators of the reductions, then every value the body computes.
+   */
+  private void emitVectorLoop(LoopVectorizer.Loop loop) {
+    if (loop.bound instanceof Long && (Long) loop.bound < Long.MIN_VALUE + vectorWidth)
+      return;
+    boolean avx = vectorWidth == 4;
+    int numRegisters = 0;
+
+    var broadcasts = new LinkedHashMap<Object, String>();
+    for (Object value : loop.broadcasts) {
+      String reg = vectorRegister(numRegisters++);
+      broadcasts.put(value, reg);
+      String src = value instanceof Long ? "$" + value : loc((Variable) value);
+      if (value instanceof Long && !InstructionSelector.isImmediate((Long) value)) {
+        emit("movabsq", src, "%r10");
+        src = "%r10";
+      }
+      emit("movq", inRegister(src, "%r10"), lowHalf(reg));
+      if (!avx)
+        emit("punpcklqdq", reg, reg);
+    }
+    if (avx) {
+      // After all legacy SSE moves, so that none of them follows a 256-bit instruction.
+      for (String reg : broadcasts.values()) {
+        emit("vpbroadcastq", lowHalf(reg), reg);
+      }
+    }
+    var accumulators = new LinkedHashMap<LocalVar, String>();
+    for (LocalVar reduction : loop.reductions.keySet()) {
+      String reg = vectorRegister(numRegisters++);
+      accumulators.put(reduction, reg);
+      if (avx)
+        emit("vpxor", reg, reg, reg);
+      else
+        emit("pxor", reg, reg);
+    }
+
+    String top = newLabel();
+    String done = newLabel();
+    move(loc(loop.index), "%rax");
+    if (loop.bound instanceof Long) {
+      long last = (Long) loop.bound - (vectorWidth - 1);
+      emit(InstructionSelector.isImmediate(last) ? "movq" : "movabsq", "$" + last, "%rdx");
+    } else {
+      move(loc((Variable) loop.bound), "%rdx");
+      emit("subq", "$" + (vectorWidth - 1), "%rdx");
+      emit("jo", done);
+    }
+    emit("cmpq", "%rdx", "%rax");
+    emit("jge", done);
+    emitLabel(top);
+
+    // What every variable holds: a vector register, or a Long or outside Variable in all lanes.
+    var values = new HashMap<Variable, Object>();
+    var arrays = new HashMap<Variable, String>();
+    String move = avx ? "vmovdqu" : "movdqu";
+    for (Instruction inst : loop.body) {
+      if (inst instanceof AddressAt) {
+        AddressAt address = (AddressAt) inst;
+        arrays.put(address.getDst(), address.getBase().getName());
+      } else if (inst instanceof LoadInst) {
+        LoadInst load = (LoadInst) inst;
+        String dst = vectorRegister(numRegisters++);
+        emit("leaq", arrays.get(load.getSrcAddress()) + "(%rip)", "%r11");
+        emit(move, "(%r11,%rax,8)", dst);
+        values.put(load.getDst(), dst);
+      } else if (inst instanceof StoreInst) {
+        StoreInst store = (StoreInst) inst;
+        String src = vectorOperand(loop, values, broadcasts, store.getSrcValue());
+        emit("leaq", arrays.get(store.getDestAddress()) + "(%rip)", "%r11");
+        emit(move, src, "(%r11,%rax,8)");
+      } else if (inst instanceof CopyInst) {
+        CopyInst copy = (CopyInst) inst;
+        Value src = copy.getSrcValue();
+        if (src instanceof IntegerConstant)
+          values.put(copy.getDstVar(), ((IntegerConstant) src).getValue());
+        else if (src instanceof BooleanConstant)
+          values.put(copy.getDstVar(), ((BooleanConstant) src).getValue() ? 1L : 0L);
+        else if (!loop.reductions.containsKey(copy.getDstVar()))
+          values.put(copy.getDstVar(), valueOf(loop, values, (Variable) src));
+      } else if (inst instanceof BinaryOperator) {
+        BinaryOperator op = (BinaryOperator) inst;
+        LocalVar lhs = op.getLeftOperand();
+        LocalVar rhs = op.getRightOperand();
+        LocalVar reduction = loop.partials.get(op.getDst());
+        if (reduction != null) {
+          // Sum the other operand per lane; the reduction adds or subtracts the total.
+          String acc = accumulators.get(reduction);
+          String x = vectorOperand(loop, values, broadcasts, lhs == reduction ? rhs : lhs);
+          if (avx)
+            emit("vpaddq", x, acc, acc);
+          else
+            emit("paddq", x, acc);
+          continue;
+        }
+        if (op.getOperator() == BinaryOperator.Op.Mul) {
+          boolean leftVector = valueOf(loop, values, lhs) instanceof String;
+          String src = (String) valueOf(loop, values, leftVector ? lhs : rhs);
+          long factor = (Long) valueOf(loop, values, leftVector ? rhs : lhs);
+          int shift = Long.numberOfTrailingZeros(factor);
+          if (shift == 0) {
+            values.put(op.getDst(), src);
+            continue;
+          }
+          String dst = vectorRegister(numRegisters++);
+          if (avx) {
+            emit("vpsllq", "$" + shift, src, dst);
+          } else {
+            emit("movdqa", src, dst);
+            emit("psllq", "$" + shift, dst);
+          }
+          values.put(op.getDst(), dst);
+          continue;
+        }
+        String a = vectorOperand(loop, values, broadcasts, lhs);
+        String b = vectorOperand(loop, values, broadcasts, rhs);
+        String dst = vectorRegister(numRegisters++);
+        String opcode = op.getOperator() == BinaryOperator.Op.Add ? "paddq" : "psubq";
+        if (avx) {
+          emit("v" + opcode, b, a, dst);
+        } else {
+          emit("movdqa", a, dst);
+          emit(opcode, b, dst);
+        }
+        values.put(op.getDst(), dst);
+      }
+    }
+
+    emit("addq", "$" + vectorWidth, "%rax");
+    emit("cmpq", "%rdx", "%rax");
+    emit("jl", top);
+    emitLabel(done);
+    move("%rax", loc(loop.index));
+    if (avx) {
+      for (String acc : accumulators.values()) {
+        emit("vextracti128", "$1", acc, "%xmm15");
+        emit("vpaddq", "%xmm15", lowHalf(acc), lowHalf(acc));
+      }
+      // Leave the upper halves clean, or later SSE code would pay for them.
+      emit("vzeroupper");
+    }
+    for (var entry : accumulators.entrySet()) {
+      String acc = lowHalf(entry.getValue());
+      emit("pshufd", "$78", acc, "%xmm15");
+      emit("paddq", "%xmm15", acc);
+      emit("movq", acc, "%r10");
+      emit(loop.reductions.get(entry.getKey()) ? "subq" : "addq", "%r10", loc(entry.getKey()));
+    }
+  }
+
+  private String vectorRegister(int index) {
+    return (vectorWidth == 4 ? "%ymm" : "%xmm") + index;
+  }
+
+  private static String lowHalf(String vectorRegister) {
+    return vectorRegister.replace("%ymm", "%xmm");
+  }
+
+  /**
+   * What {@code var} holds in the vector loop, see {@link #emitVectorLoop}.
+   */
+  private static Object valueOf(LoopVectorizer.Loop loop, Map<Variable, Object> values,
+      Variable var) {
+    return values.containsKey(var) ? values.get(var) : loop.getScalar(var);
+  }
+
+  /**
+   * The vector register that holds {@code var} in every lane.
+   */
+  private static String vectorOperand(LoopVectorizer.Loop loop, Map<Variable, Object> values,
+      Map<Object, String> broadcasts, Variable var) {
+    Object value = valueOf(loop, values, var);
+    return value instanceof String ? (String) value : broadcasts.get(value);
+  }
+
+  private void printInstructionInfo(Instruction i) {
+    code.add(MachineInst.comment(i.format(irFormat)));
+  }
+
+  @Override
+  public void visit(AddressAt i) {
+    emit("leaq", addressOperand(i), "%r11");
+    move("%r11", loc(i.getDst()));
+  }
+
+  @Override
+  public void visit(BinaryOperator i) {
+    String lhs = loc(i.getLeftOperand());
+    String rhs = loc(i.getRightOperand());
+    String dst = loc(i.getDst());
+    BinaryOperator.Op op = i.getOperator();
+
+    if (op == BinaryOperator.Op.Div) {
+      divide(lhs, rhs, dst);
+      return;
+    }
+    if (isImmediate(lhs) && op != BinaryOperator.Op.Sub) {
+      // Both remaining operations commute; keep the immediate on the right.
+      String tmp = lhs;
+      lhs = rhs;
+      rhs = tmp;
+    }
+    // Compute in the destination unless that would overwrite the right operand first.
+    String target = isRegister(dst) && !dst.equals(rhs) ? dst : "%r10";
+    move(lhs, target);
+    switch (op) {
+      case Add:
+        emit("addq", rhs, target);
+        break;
+      case Sub:
+        emit("subq", rhs, target);
+        break;
+      case Mul:
+        long factor = isImmediate(rhs) ? Long.parseLong(rhs.substring(1)) : 0;
+        if (factor > 0 && Long.bitCount(factor) == 1) {
+          int shift = Long.numberOfTrailingZeros(factor);
+          if (shift > 0)
+            emit("shlq", "$" + shift, target);
+        } else {
+          emit("imulq", rhs, target);
+        }
+        break;
+      default:
+        throw new Error("Unexpected operator " + op);
+    }
+    move(target, dst);
+  }
+
+  /**
+   * Emits {@code dst = lhs / rhs}, rounding towards zero. Division by a constant is done with
+   * shifts or a multiplication by its reciprocal, see {@link InstructionSelector#divisionMagic}.
+   */
+  private void divide(String lhs, String rhs, String dst) {
+    long divisor = isImmediate(rhs) ? Long.parseLong(rhs.substring(1)) : 0;
+    if (divisor == 0) {
+      emit("movq", lhs, "%rax");
+      emit("cqto");
+      emit("idivq", isImmediate(rhs) ? inRegister(rhs, "%r11") : rhs);
+      move("%rax", dst);
+      return;
+    }
+
+    long magnitude = Math.abs(divisor);
+    if (Long.bitCount(magnitude) == 1) {
+      String target = isRegister(dst) ? dst : "%r10";
+      move(lhs, target);
+      int shift = Long.numberOfTrailingZeros(magnitude);
+      if (shift > 0) {
+        // Add 2^shift - 1 to negative dividends, so that the shift rounds towards zero.
+        emit("movq", target, "%rax");
+        emit("sarq", "$63", "%rax");
+        emit("shrq", "$" + (64 - shift), "%rax");
+        emit("addq", "%rax", target);
+        emit("sarq", "$" + shift, target);
+      }
+      if (divisor < 0)
+        emit("negq", target);
+      move(target, dst);
+      return;
+    }
+
+    long[] magic = InstructionSelector.divisionMagic(divisor);
+    String x = inRegister(lhs, "%r10");
+    emit("movabsq", "$" + magic[0], "%rax");
+    emit("imulq", x);
+    if (divisor > 0 && magic[0] < 0)
+      emit("addq", x, "%rdx");
+    else if (divisor < 0 && magic[0] > 0)
+      emit("subq", x, "%rdx");
+    if (magic[1] > 0)
+      emit("sarq", "$" + magic[1], "%rdx");
+    emit("movq", "%rdx", "%rax");
+    emit("shrq", "$63", "%rax");
+    emit("addq", "%rax", "%rdx");
+    move("%rdx", dst);
+  }
+
+  /**
+   * Emits {@code cmpq} of the operands of {@code i}, so that the flags hold {@code lhs ? rhs}.
+   */
+  private void compare(CompareInst i) {
+    String lhs = inRegister(loc(i.getLeftOperand()), "%r10");
+    emit("cmpq", loc(i.getRightOperand()), lhs);
+  }
+
+  private static String conditionCode(CompareInst.Predicate predicate) {
+    switch (predicate) {
+      case EQ: return "e";
+      case NE: return "ne";
+      case LT: return "l";
+      case LE: return "le";
+      case GT: return "g";
+      case GE: return "ge";
+      default: throw new Error("Unexpected predicate " + predicate);
+    }
+  }
+
+  private static String negate(String condition) {
+    switch (condition) {
+      case "e": return "ne";
+      case "ne": return "e";
+      case "l": return "ge";
+      case "le": return "g";
+      case "g": return "le";
+      case "ge": return "l";
+      default: throw new Error("Unexpected condition " + condition);
+    }
+  }
+
+  @Override
+  public void visit(CompareInst i) {
+    compare(i);
+    emit("set" + conditionCode(i.getPredicate()), "%al");
+    String dst = loc(i.getDst());
+    if (isRegister(dst)) {
+      emit("movzbq", "%al", dst);
+    } else {
+      emit("movzbq", "%al", "%rax");
+      move("%rax", dst);
+    }
+  }
+
+  @Override
+  public void visit(JumpInst i) {
+    // next(1) is taken if the predicate holds; next(0) is the fall-through.
+    Instruction taken = i.getNext(1);
+    Instruction notTaken = i.getNext(0);
+    int number = counters != null ? counters.getTakenCounter(i) : -1;
+    if (taken == notTaken) {
+      if (number >= 0)
+        emit("incq", counter(number + 1));
+      continueTo(notTaken);
+      return;
+    }
+
+    String condition;
+    CompareInst compare = selector != null ? selector.getCompare(i) : null;
+    if (compare != null) {
+      compare(compare);
+      condition = conditionCode(compare.getPredicate());
+    } else {
+      String predicate = loc(i.getPredicate());
+      if (isImmediate(predicate)) {
+        // The jump of a break or continue.
+        if (number >= 0)
+          emit("incq", counter(predicate.equals("$0") ? number + 1 : number));
+        if (predicate.equals("$0"))
+          continueTo(notTaken);
+        else if (taken == null)
+          printReturn();
+        else if (taken != following)
+          emit("jmp", labelOf(taken));
+        return;
+      }
+      emit("cmpq", "$0", predicate);
+      condition = "ne";
+    }
+
+    if (taken != null && taken == following) {
+      // The layout put the taken target next, so jump to the other one if the predicate fails.
+      if (number >= 0)
+        countedJump(number, negate(condition), notTaken, false);
+      else
+        emit("j" + negate(condition), targetLabel(notTaken));
+      return;
+    }
+    if (number >= 0)
+      countedJump(number, condition, taken, true);
+    else
+      emit("j" + condition, targetLabel(taken));
+    continueTo(notTaken);
+  }
+
+  @Override
+  public void visit(LoadInst i) {
+    AddressAt address = selector != null ? selector.getAddress(i) : null;
+    String src = address != null ? addressOperand(address)
+        : "(" + inRegister(loc(i.getSrcAddress()), "%r11") + ")";
+    String dst = loc(i.getDst());
+    if (isRegister(dst)) {
+      emit("movq", src, dst);
+    } else {
+      emit("movq", src, "%rax");
+      move("%rax", dst);
+    }
+  }
+
+  @Override
+  public void visit(NopInst i) {
+    emit("nop");
+  }
+
+  @Override
+  public void visit(StoreInst i) {
+    AddressAt address = selector != null ? selector.getAddress(i) : null;
+    String dst = address != null ? addressOperand(address)
+        : "(" + inRegister(loc(i.getDestAddress()), "%r11") + ")";
+    String value = loc(i.getSrcValue());
+    if (!isImmediate(value))
+      value = inRegister(value, "%rax");
+    emit("movq", value, dst);
+  }
+
+  @Override
+  public void visit(ReturnInst i) {
+    LocalVar returnValue = i.getReturnValue();
+    if (returnValue != null) {
+      move(loc(returnValue), "%rax");
+    }
+    printReturn();
+  }
+
+  @Override
+  public void visit(CallInst i) {
+    if (fastRuntimeCalls && CodeGen.isFastRuntimeCall(i)) {
+      callRuntime(i);
+      return;
+    }
+    Symbol callee = i.getCallee();
+    List<LocalVar> params = i.getParams();
+    int numParams = params.size();
+    int numPushed = Math.max(0, numParams - CodeGen.ARG_REGISTERS.length);
+    // A tail call with stack arguments would have to overwrite the caller's own incoming ones.
+    boolean tail = i.isTailCall() && numPushed == 0;
+
+    // Pad, so that %rsp is 16-byte aligned again after the pushes.
+    if (numPushed % 2 == 1)
+      emit("subq", "$8", "%rsp");
+    for (int idx = numParams - 1; idx >= CodeGen.ARG_REGISTERS.length; idx--) {
+      emit("pushq", loc(params.get(idx)));
+    }
+
+    // Parameters may already sit in argument registers, possibly in each other's.
+    var srcs = new ArrayList<String>();
+    var dsts = new ArrayList<String>();
+    for (int idx = 0; idx < Math.min(numParams, CodeGen.ARG_REGISTERS.length); idx++) {
+      srcs.add(loc(params.get(idx)));
+      dsts.add(CodeGen.ARG_REGISTERS[idx]);
+    }
+    parallelMove(srcs, dsts);
+
+    if (tail) {
+      // Drop this frame and let the callee return straight to our caller.
+      restoreCalleeSaved();
+      emit("leave");
+      emit("jmp", callee.getName());
+      return;
+    }
+
+    emit("call", callee.getName());
+
+    if (numPushed > 0) {
+      emit("addq", "$" + (numPushed + numPushed % 2) * 8, "%rsp");
+    }
+
+    if (i.getDst() != null) {
+      move("%rax", loc(i.getDst()));
+    }
+  }
+
+  /**
+   * Calls the entry point of a builtin that preserves every register but %rax. Its argument goes
+   * in %rdi, so a variable that lives there is kept in %r11 during the call.
+   */
+  private void callRuntime(CallInst i) {
+    String entry = "crux_" + i.getIntrinsic().getName();
+    String arg = i.getParams().isEmpty() ? "%rdi" : loc(i.getParams().get(0));
+    boolean keep = !arg.equals("%rdi") && registers != null && registers.isAllocated("%rdi");
+    if (keep)
+      emit("movq", "%rdi", "%r11");
+    move(arg, "%rdi");
+    emit("call", entry);
+    if (keep)
+      emit("movq", "%r11", "%rdi");
+    // The printing builtins return nothing, but their calls still have a destination.
+    if (i.getDst() != null && f.getFrameLayout().getNumReads(i.getDst()) > 0)
+      move("%rax", loc(i.getDst()));
+  }
+
+  @Override
+  public void visit(UnaryNotInst i) {
+    String dst = loc(i.getDst());
+    String target = isRegister(dst) ? dst : "%r10";
+    move(loc(i.getInner()), target);
+    // Booleans are 0 or 1.
+    emit("xorq", "$1", target);
+    move(target, dst);
+  }
+
+  @Override
+  public void visit(CopyInst i) {
+    Value source = i.getSrcValue();
+    String src;
+    if (source instanceof LocalVar) {
+      src = loc((LocalVar) source);
+    } else if (source instanceof IntegerConstant) {
+      long value = ((IntegerConstant) source).getValue();
+      src = "$" + value;
+      if (!InstructionSelector.isImmediate(value)) {
+        emit("movq", src, "%rax");
+        src = "%rax";
+      }
+    } else {
+      src = ((BooleanConstant) source).getValue() ? "$1" : "$0";
+    }
+    move(src, loc(i.getDstVar()));
+  }
+}
@@ -0,0 +1,240 @@
+package crux.backend;
+
+import crux.ir.*;
+import crux.ir.insts.*;
+
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ * Chooses which IR instructions of a {@link Function} {@link FunctionCodeGen} merges into the
+ * x86-64 instructions of their users, instead of translating every IR instruction on its own:
+ * <ul>
+ * <li>A variable that is only ever written by one {@link CopyInst} of a constant small enough for
+ * an immediate is never stored anywhere; its readers use the constant directly.</li>
+ * <li>An {@link AddressAt} whose result only feeds one {@link LoadInst} or {@link StoreInst} is
+ * folded into the addressing mode of that load or store.</li>
+ * <li>A {@link CompareInst} whose result only feeds the {@link JumpInst} right after it becomes a
+ * {@code cmp} and a conditional jump, without materializing the boolean.</li>
+ * </ul>
+ * A producer is only folded into a user in the same basic block, and only if nothing between the
+ * two writes the producer's operands. Those operands are then read at the user, which
+ * {@link RegisterAllocator} takes into account through {@link #getUser(Instruction)}.
+ */
+final class InstructionSelector {
+  // How far apart a producer and its user may be, counted in instructions.
+  private static final int MAX_FOLD_DISTANCE = 64;
+
+  private final FrameLayout layout;
+  private final HashMap<Variable, Long> constants = new HashMap<>();
+  private final HashSet<Instruction> skipped = new HashSet<>();
+  private final HashMap<Instruction, Instruction> users = new HashMap<>();
+  private final HashMap<Instruction, AddressAt> addresses = new HashMap<>();
+  private final HashMap<JumpInst, CompareInst> compares = new HashMap<>();
+  private final HashSet<Variable> unallocated = new HashSet<>();
+
+  InstructionSelector(Function f) {
+    layout = f.getFrameLayout();
+    var args = new HashSet<Variable>(f.getArguments());
+    for (Instruction inst : layout.getInstructions()) {
+      if (!(inst instanceof CopyInst))
+        continue;
+      CopyInst copy = (CopyInst) inst;
+      Long value = constantValue(copy.getSrcValue());
+      LocalVar dst = copy.getDstVar();
+      if (value != null && isImmediate(value) && layout.getNumWrites(dst) == 1
+          && !args.contains(dst)) {
+        constants.put(dst, value);
+        skipped.add(copy);
+        unallocated.add(dst);
+      }
+    }
+
+    for (Instruction inst : layout.getInstructions()) {
+      if (inst instanceof AddressAt)
+        foldAddress((AddressAt) inst);
+      else if (inst instanceof CompareInst)
+        fuseCompare((CompareInst) inst);
+    }
+  }
+
+  private void foldAddress(AddressAt addressAt) {
+    AddressVar dst = addressAt.getDst();
+    if (layout.getNumWrites(dst) != 1 || layout.getNumReads(dst) != 1)
+      return;
+    Instruction user = findUser(addressAt, dst, getOperands(addressAt));
+    if (user == null)
+      return;
+    addresses.put(user, addressAt);
+    fold(addressAt, user);
+  }
+
+  private void fuseCompare(CompareInst compare) {
+    LocalVar dst = compare.getDst();
+    if (layout.getNumWrites(dst) != 1 || layout.getNumReads(dst) != 1)
+      return;
+    Instruction next = compare.getNext(0);
+    if (!(next instanceof JumpInst) || ((JumpInst) next).getPredicate() != dst
+        || layout.getNumPredecessors(next) != 1)
+      return;
+    compares.put((JumpInst) next, compare);
+    fold(compare, next);
+  }
+
+  private void fold(Instruction producer, Instruction user) {
+    users.put(producer, user);
+    skipped.add(producer);
+    unallocated.add(definedBy(producer));
+  }
+
+  /**
+   * The load or store that reads {@code address}, if it follows {@code producer} in the same basic
+   * block and nothing in between writes {@code operands}.
+   */
+  private Instruction findUser(Instruction producer, Variable address, List<Variable> operands) {
+    Instruction inst = producer.getNext(0);
+    for (int distance = 0; inst != null && distance < MAX_FOLD_DISTANCE; distance++) {
+      if (layout.getNumPredecessors(inst) != 1)
+        return null;
+      if (inst instanceof LoadInst && ((LoadInst) inst).getSrcAddress() == address)
+        return inst;
+      if (inst instanceof StoreInst && ((StoreInst) inst).getDestAddress() == address)
+        return inst;
+      if (inst instanceof JumpInst || inst instanceof ReturnInst)
+        return null;
+      if (operands.contains(definedBy(inst)))
+        return null;
+      inst = inst.getNext(0);
+    }
+    return null;
+  }
+
+  private static Variable definedBy(Instruction inst) {
+    if (inst instanceof AddressAt)
+      return ((AddressAt) inst).getDst();
+    if (inst instanceof BinaryOperator)
+      return ((BinaryOperator) inst).getDst();
+    if (inst instanceof CompareInst)
+      return ((CompareInst) inst).getDst();
+    if (inst instanceof CopyInst)
+      return ((CopyInst) inst).getDstVar();
+    if (inst instanceof LoadInst)
+      return ((LoadInst) inst).getDst();
+    if (inst instanceof UnaryNotInst)
+      return ((UnaryNotInst) inst).getDst();
+    if (inst instanceof CallInst)
+      return ((CallInst) inst).getDst();
+    return null;
+  }
+
+  private static Long constantValue(Value value) {
+    if (value instanceof IntegerConstant)
+      return ((IntegerConstant) value).getValue();
+    if (value instanceof BooleanConstant)
+      return ((BooleanConstant) value).getValue() ? 1L : 0L;
+    return null;
+  }
+
+  /**
+   * Whether {@code value} fits the sign-extended 32-bit immediate of most x86-64 instructions.
+   */
+  static boolean isImmediate(long value) {
+    return value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE;
+  }
+
+  /**
+   * The value of {@code var} if it is a constant that readers use as an immediate, otherwise null.
+   */
+  Long getConstant(Variable var) {
+    return constants.get(var);
+  }
+
+  /**
+   * Whether {@code inst} emits no code of its own, because it is a constant or folded into its
+   * user.
+   */
+  boolean isSkipped(Instruction inst) {
+    return skipped.contains(inst);
+  }
+
+  /**
+   * The instruction a skipped producer is folded into, or null.
+   */
+  Instruction getUser(Instruction producer) {
+    return users.get(producer);
+  }
+
+  /**
+   * The variables a folded producer reads; they are read at its user instead.
+   */
+  List<Variable> getOperands(Instruction producer) {
+    var operands = new ArrayList<Variable>();
+    if (producer instanceof AddressAt) {
+      operands.add(((AddressAt) producer).getOffset());
+    } else if (producer instanceof CompareInst) {
+      operands.add(((CompareInst) producer).getLeftOperand());
+      operands.add(((CompareInst) producer).getRightOperand());
+    }
+    operands.removeIf(var -> var == null || constants.containsKey(var));
+    return operands;
+  }
+
+  /**
+   * The address computation folded into a {@link LoadInst} or {@link StoreInst}, or null.
+   */
+  AddressAt getAddress(Instruction inst) {
+    return addresses.get(inst);
+  }
+
+  /**
+   * The comparison fused into {@code jump}, or null.
+   */
+  CompareInst getCompare(JumpInst jump) {
+    return compares.get(jump);
+  }
+
+  /**
+   * Whether FunctionCodeGen never reads or writes {@code var}, so it needs neither a register nor a
+   * slot.
+   */
+  boolean isUnallocated(Variable var) {
+    return unallocated.contains(var);
+  }
+
+  /**
+   * The multiplier {@code m} and shift {@code s} that divide by {@code d} without {@code idivq}:
+   * the quotient is the high half of {@code m * x}, corrected by {@code x} if the signs of
+   * {@code m} and {@code d} differ, shifted right arithmetically by {@code s}, plus one if that is
+   * negative. {@code |d|} must be at least 2. See Hacker's Delight, section 10-4.
+   */
+  static long[] divisionMagic(long d) {
+    BigInteger two63 = BigInteger.ONE.shiftLeft(63);
+    BigInteger ad = BigInteger.valueOf(d).abs();
+    BigInteger t = two63.add(BigInteger.valueOf(d >>> 63));
+    BigInteger anc = t.subtract(BigInteger.ONE).subtract(t.mod(ad));
+    int p = 63;
+    BigInteger q1 = two63.divide(anc);
+    BigInteger r1 = two63.subtract(q1.multiply(anc));
+    BigInteger q2 = two63.divide(ad);
+    BigInteger r2 = two63.subtract(q2.multiply(ad));
+    BigInteger delta;
+    do {
+      p++;
+      q1 = q1.shiftLeft(1);
+      r1 = r1.shiftLeft(1);
+      if (r1.compareTo(anc) >= 0) {
+        q1 = q1.add(BigInteger.ONE);
+        r1 = r1.subtract(anc);
+      }
+      q2 = q2.shiftLeft(1);
+      r2 = r2.shiftLeft(1);
+      if (r2.compareTo(ad) >= 0) {
+        q2 = q2.add(BigInteger.ONE);
+        r2 = r2.subtract(ad);
+      }
+      delta = ad.subtract(r2);
+    } while (q1.compareTo(delta) < 0 || (q1.equals(delta) && r1.signum() == 0));
+    long m = q2.add(BigInteger.ONE).longValue();
+    return new long[] {d < 0 ? -m : m, p - 64};
+  }
+}
@@ -0,0 +1,427 @@
+package crux.backend;
+
+import crux.ir.*;
+import crux.ir.insts.*;
+
+import java.util.*;
+
+/**
+ * Finds the loops of a {@link Function} that {@link FunctionCodeGen} can run several iterations
+ * at a time with SIMD instructions, before it runs the remaining iterations with the ordinary
+ * scalar code of the loop.
+ * <p>
+ * A loop qualifies if it is a counted loop over global arrays:
+ * <ul>
+ * <li>Its condition is {@code i < bound}, where {@code bound} is a constant or a variable the loop
+ * does not write, and its body is straight-line code that ends with {@code i = i + 1}.</li>
+ * <li>Every array access is at index {@code i}, so each iteration only touches its own elements
+ * and there are no dependences between iterations through memory.</li>
+ * <li>The values stored are built from loaded elements, constants and variables the loop does not
+ * write, with additions, subtractions and multiplications by powers of two; SSE2 and AVX2 have no
+ * 64-bit multiplication, comparison or division.</li>
+ * <li>A variable that carries a value from one iteration to the next is a reduction
+ * {@code s = s + x} or {@code s = s - x} of a vector value {@code x}.</li>
+ * <li>Nothing after the loop reads a variable the body writes, other than {@code i} and the
+ * reductions.</li>
+ * </ul>
+ */
+final class LoopVectorizer {
+  // xmm14 and xmm15 are left as scratch registers.
+  private static final int NUM_VECTOR_REGISTERS = 14;
+  private static final int MAX_BODY_LENGTH = 64;
+
+  /**
+   * A loop that qualifies, with what the body computes per variable.
+   */
+  static final class Loop {
+    // The instruction before the loop; the vector loop runs after it.
+    final Instruction preheader;
+    LocalVar index;
+    // The bound, either a Long or a Variable.
+    Object bound;
+    final List<Instruction> body = new ArrayList<>();
+    // The values of variables that are the same in all iterations: a Long or an outside Variable.
+    final HashMap<Variable, Object> scalars = new HashMap<>();
+    // Scalar values that vector operations use, in the order they are first used.
+    final LinkedHashSet<Object> broadcasts = new LinkedHashSet<>();
+    // Variables holding one element per iteration, which are kept in vector registers.
+    final HashSet<Variable> vectors = new HashSet<>();
+    // Addresses of element i of an array, computed in the body.
+    final HashSet<AddressVar> elements = new HashSet<>();
+    // The reduction each partial result belongs to, and whether it subtracts.
+    final HashMap<Variable, LocalVar> partials = new HashMap<>();
+    final LinkedHashMap<LocalVar, Boolean> reductions = new LinkedHashMap<>();
+
+    Loop(Instruction preheader) {
+      this.preheader = preheader;
+    }
+
+    /**
+     * The Long or outside Variable that {@code var} always holds, or null if it is a vector.
+     */
+    Object getScalar(Variable var) {
+      return scalars.get(var);
+    }
+  }
+
+  private final FrameLayout layout;
+  private final HashMap<Instruction, List<Instruction>> predecessors = new HashMap<>();
+  private final HashMap<Instruction, Loop> loops = new HashMap<>();
+
+  LoopVectorizer(Function f) {
+    layout = f.getFrameLayout();
+    for (Instruction inst : layout.getInstructions()) {
+      for (int childIdx = 0; childIdx < inst.numNext(); childIdx++) {
+        if (inst.getNext(childIdx) != null)
+          predecessors.computeIfAbsent(inst.getNext(childIdx), k -> new ArrayList<>()).add(inst);
+      }
+    }
+    for (Instruction inst : layout.getInstructions()) {
+      if (inst instanceof JumpInst) {
+        Loop loop = analyze((JumpInst) inst);
+        if (loop != null)
+          loops.put(loop.preheader, loop);
+      }
+    }
+  }
+
+  /**
+   * The loop that is entered right after {@code inst}, if it qualifies, or null.
+   */
+  Loop getLoopAfter(Instruction inst) {
+    return loops.get(inst);
+  }
+
+  /**
+   * Whether {@code var} holds a constant or an outside variable rather than a vector.
+   */
+  private static boolean isScalar(Loop loop, Variable var) {
+    return loop.scalars.containsKey(var);
+  }
+
+  private Loop analyze(JumpInst jump) {
+    // The condition: i < bound, computed right before the jump.
+    if (layout.getNumPredecessors(jump) != 1
+        || !(predecessors.get(jump).get(0) instanceof CompareInst))
+      return null;
+    CompareInst compare = (CompareInst) predecessors.get(jump).get(0);
+    if (compare.getDst() != jump.getPredicate()
+        || compare.getPredicate() != CompareInst.Predicate.LT
+        || layout.getNumReads(compare.getDst()) != 1)
+      return null;
+
+    // The body runs from the taken successor back to the header, where the two paths merge.
+    var body = new ArrayList<Instruction>();
+    Instruction inst = jump.getNext(1);
+    while (inst != null && layout.getNumPredecessors(inst) == 1 && body.size() < MAX_BODY_LENGTH) {
+      if (inst instanceof JumpInst || inst instanceof ReturnInst || inst instanceof CallInst)
+        return null;
+      body.add(inst);
+      inst = inst.getNext(0);
+    }
+    Instruction header = inst;
+    if (header == null || body.isEmpty() || layout.getNumPredecessors(header) != 2)
+      return null;
+
+    // The header: only nops and constants between the merge and the comparison.
+    var headerInsts = new ArrayList<Instruction>();
+    for (inst = header; inst != compare; inst = inst.getNext(0)) {
+      if (inst == null || headerInsts.size() > 8 || (inst != header
+          && layout.getNumPredecessors(inst) != 1))
+        return null;
+      if (!(inst instanceof NopInst) && constantCopy(inst) == null)
+        return null;
+      headerInsts.add(inst);
+    }
+
+    Instruction last = body.get(body.size() - 1);
+    Instruction preheader = null;
+    for (Instruction pred : predecessors.get(header)) {
+      if (pred != last)
+        preheader = pred;
+    }
+    if (preheader == null || preheader instanceof JumpInst)
+      return null;
+
+    var loop = new Loop(preheader);
+    loop.index = compare.getLeftOperand();
+    if (!stripIncrement(loop, body))
+      return null;
+
+    // Writes of the loop, to tell outside variables from loop-carried ones.
+    var written = new HashMap<Variable, Integer>();
+    for (Instruction member : body) {
+      Variable dst = definedBy(member);
+      if (dst != null)
+        written.merge(dst, 1, Integer::sum);
+    }
+    var headerConstants = new HashMap<Variable, Long>();
+    for (Instruction member : headerInsts) {
+      if (member instanceof CopyInst)
+        headerConstants.put(((CopyInst) member).getDstVar(), constantCopy(member));
+    }
+
+    LocalVar bound = compare.getRightOperand();
+    if (headerConstants.containsKey(bound))
+      loop.bound = headerConstants.get(bound);
+    else if (!written.containsKey(bound) && bound != loop.index)
+      loop.bound = bound;
+    else
+      return null;
+    if (written.containsKey(loop.index) || headerConstants.containsKey(loop.index))
+      return null;
+
+    var defined = new HashSet<Variable>();
+    var readsInLoop = new HashMap<Variable, Integer>();
+    int numRegisters = 0;
+    for (Instruction member : body) {
+      for (Variable read : readsOf(member)) {
+        readsInLoop.merge(read, 1, Integer::sum);
+        if (defined.contains(read) || read == loop.index || loop.reductions.containsKey(read))
+          continue;
+        if (written.containsKey(read)) {
+          // Loop-carried: only allowed as the accumulator of a reduction.
+          if (!startsReduction(loop, member, read))
+            return null;
+        } else if (!loop.scalars.containsKey(read)) {
+          loop.scalars.put(read, headerConstants.containsKey(read)
+              ? (Object) headerConstants.get(read) : read);
+        }
+      }
+      int produced = classify(loop, member);
+      if (produced < 0)
+        return null;
+      numRegisters += produced;
+      Variable dst = definedBy(member);
+      if (dst != null)
+        defined.add(dst);
+    }
+    for (Instruction member : headerInsts) {
+      for (Variable read : readsOf(member)) {
+        readsInLoop.merge(read, 1, Integer::sum);
+      }
+    }
+    readsInLoop.merge(loop.index, 2, Integer::sum);
+    readsInLoop.merge(bound, 1, Integer::sum);
+
+    // What the body writes must not be needed after the loop, apart from i and the reductions.
+    for (Variable dst : written.keySet()) {
+      if (dst == loop.index || loop.reductions.containsKey(dst))
+        continue;
+      if (layout.getNumReads(dst) != readsInLoop.getOrDefault(dst, 0))
+        return null;
+    }
+    for (Variable dst : headerConstants.keySet()) {
+      if (layout.getNumReads(dst) != readsInLoop.getOrDefault(dst, 0))
+        return null;
+    }
+    for (LocalVar reduction : loop.reductions.keySet()) {
+      if (readsInLoop.get(reduction) != 1 || written.get(reduction) != 1)
+        return null;
+    }
+    for (Variable partial : loop.partials.keySet()) {
+      if (layout.getNumReads(partial) != 1)
+        return null;
+    }
+    if (numRegisters + loop.broadcasts.size() + loop.reductions.size() > NUM_VECTOR_REGISTERS)
+      return null;
+    loop.body.addAll(body);
+    return loop;
+  }
+
+  /**
+   * Removes {@code i = i + 1} from the end of {@code body}, checking that nothing else in the body
+   * uses {@code i} except as an array index.
+   */
+  private boolean stripIncrement(Loop loop, List<Instruction> body) {
+    int size = body.size();
+    if (size < 3 || !(body.get(size - 1) instanceof CopyInst)
+        || !(body.get(size - 2) instanceof BinaryOperator))
+      return false;
+    CopyInst update = (CopyInst) body.get(size - 1);
+    BinaryOperator add = (BinaryOperator) body.get(size - 2);
+    Long one = constantCopy(body.get(size - 3));
+    if (update.getDstVar() != loop.index || update.getSrcValue() != add.getDst()
+        || add.getOperator() != BinaryOperator.Op.Add || one == null || one != 1)
+      return false;
+    LocalVar step = ((CopyInst) body.get(size - 3)).getDstVar();
+    boolean operands = (add.getLeftOperand() == loop.index && add.getRightOperand() == step)
+        || (add.getLeftOperand() == step && add.getRightOperand() == loop.index);
+    if (!operands || layout.getNumReads(add.getDst()) != 1 || layout.getNumReads(step) != 1)
+      return false;
+    body.subList(size - 3, size).clear();
+
+    for (Instruction member : body) {
+      boolean asIndex = member instanceof AddressAt;
+      if (!asIndex && readsOf(member).contains(loop.index))
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Records {@code s} as a reduction if {@code member} is {@code t = s + x} or {@code t = s - x}.
+   */
+  private static boolean startsReduction(Loop loop, Instruction member, Variable s) {
+    if (!(member instanceof BinaryOperator) || !(s instanceof LocalVar))
+      return false;
+    BinaryOperator op = (BinaryOperator) member;
+    Variable other = op.getLeftOperand() == s ? op.getRightOperand() : op.getLeftOperand();
+    boolean add = op.getOperator() == BinaryOperator.Op.Add;
+    boolean subtract = op.getOperator() == BinaryOperator.Op.Sub && op.getLeftOperand() == s;
+    if ((!add && !subtract) || other == s || !loop.vectors.contains(other))
+      return false;
+    loop.reductions.put((LocalVar) s, subtract);
+    return true;
+  }
+
+  /**
+   * Records what {@code inst} computes and returns how many vector registers its result needs, or
+   * -1 if it cannot be vectorized.
+   */
+  private int classify(Loop loop, Instruction inst) {
+    if (inst instanceof NopInst)
+      return 0;
+    Variable defined = definedBy(inst);
+    if (defined != null) {
+      // A variable may be assigned more than once; what it holds is what it was assigned last.
+      // Only the copy that ends a reduction may assign the accumulator.
+      if (loop.reductions.containsKey(defined) && !(inst instanceof CopyInst))
+        return -1;
+      loop.scalars.remove(defined);
+      loop.vectors.remove(defined);
+    }
+    if (inst instanceof CopyInst) {
+      CopyInst copy = (CopyInst) inst;
+      LocalVar dst = copy.getDstVar();
+      Long value = constantCopy(copy);
+      if (value != null) {
+        if (loop.reductions.containsKey(dst))
+          return -1;
+        loop.scalars.put(dst, value);
+        return 0;
+      }
+      Variable src = (Variable) copy.getSrcValue();
+      if (loop.partials.containsKey(src) || loop.reductions.containsKey(dst)) {
+        // The end of a reduction: s = t.
+        return loop.partials.get(src) == dst ? 0 : -1;
+      }
+      if (isScalar(loop, src))
+        loop.scalars.put(dst, loop.scalars.get(src));
+      else if (loop.vectors.contains(src))
+        loop.vectors.add(dst);
+      else
+        return -1;
+      return 0;
+    }
+    if (inst instanceof AddressAt) {
+      AddressAt address = (AddressAt) inst;
+      if (address.getOffset() != loop.index || address.isChecked())
+        return -1;
+      loop.elements.add(address.getDst());
+      return 0;
+    }
+    if (inst instanceof LoadInst) {
+      LoadInst load = (LoadInst) inst;
+      if (!loop.elements.contains(load.getSrcAddress()))
+        return -1;
+      loop.vectors.add(load.getDst());
+      return 1;
+    }
+    if (inst instanceof StoreInst) {
+      StoreInst store = (StoreInst) inst;
+      if (!loop.elements.contains(store.getDestAddress())
+          || !useAsVector(loop, store.getSrcValue()))
+        return -1;
+      return 0;
+    }
+    if (inst instanceof BinaryOperator) {
+      BinaryOperator op = (BinaryOperator) inst;
+      LocalVar lhs = op.getLeftOperand();
+      LocalVar rhs = op.getRightOperand();
+      if (loop.reductions.containsKey(lhs) || loop.reductions.containsKey(rhs)) {
+        loop.partials.put(op.getDst(), loop.reductions.containsKey(lhs) ? lhs : rhs);
+        return 0;
+      }
+      if (isScalar(loop, lhs) && isScalar(loop, rhs))
+        return -1;
+      switch (op.getOperator()) {
+        case Add:
+        case Sub:
+          if (!useAsVector(loop, lhs) || !useAsVector(loop, rhs))
+            return -1;
+          break;
+        case Mul:
+          LocalVar factor = isScalar(loop, lhs) ? lhs : rhs;
+          LocalVar other = factor == lhs ? rhs : lhs;
+          Object value = loop.scalars.get(factor);
+          if (!(value instanceof Long) || (Long) value <= 0 || Long.bitCount((Long) value) != 1
+              || !loop.vectors.contains(other))
+            return -1;
+          break;
+        default:
+          return -1;
+      }
+      loop.vectors.add(op.getDst());
+      return 1;
+    }
+    return -1;
+  }
+
+  /**
+   * Whether {@code var} can be an operand of a vector operation, noting the value to broadcast if
+   * it is a scalar.
+   */
+  private static boolean useAsVector(Loop loop, Variable var) {
+    if (isScalar(loop, var))
+      loop.broadcasts.add(loop.scalars.get(var));
+    return isScalar(loop, var) || loop.vectors.contains(var);
+  }
+
+  private static Long constantCopy(Instruction inst) {
+    if (!(inst instanceof CopyInst))
+      return null;
+    Value src = ((CopyInst) inst).getSrcValue();
+    if (src instanceof IntegerConstant)
+      return ((IntegerConstant) src).getValue();
+    if (src instanceof BooleanConstant)
+      return ((BooleanConstant) src).getValue() ? 1L : 0L;
+    return null;
+  }
+
+  private static Variable definedBy(Instruction inst) {
+    if (inst instanceof AddressAt)
+      return ((AddressAt) inst).getDst();
+    if (inst instanceof BinaryOperator)
+      return ((BinaryOperator) inst).getDst();
+    if (inst instanceof CopyInst)
+      return ((CopyInst) inst).getDstVar();
+    if (inst instanceof LoadInst)
+      return ((LoadInst) inst).getDst();
+    return null;
+  }
+
+  /**
+   * The variables {@code inst} reads, for the instructions a qualifying loop may contain.
+   */
+  private static List<Variable> readsOf(Instruction inst) {
+    var reads = new ArrayList<Variable>();
+    if (inst instanceof AddressAt) {
+      reads.add(((AddressAt) inst).getOffset());
+    } else if (inst instanceof BinaryOperator) {
+      reads.add(((BinaryOperator) inst).getLeftOperand());
+      reads.add(((BinaryOperator) inst).getRightOperand());
+    } else if (inst instanceof CopyInst) {
+      Value src = ((CopyInst) inst).getSrcValue();
+      if (src instanceof Variable)
+        reads.add((Variable) src);
+    } else if (inst instanceof LoadInst) {
+      reads.add(((LoadInst) inst).getSrcAddress());
+    } else if (inst instanceof StoreInst) {
+      reads.add(((StoreInst) inst).getSrcValue());
+      reads.add(((StoreInst) inst).getDestAddress());
+    }
+    reads.removeIf(Objects::isNull);
+    return reads;
+  }
+}
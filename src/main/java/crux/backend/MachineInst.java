@@ -0,0 +1,89 @@
+package crux.backend;
+
+import java.util.List;
+
+/**
+ * One line of generated x86-64 code: an instruction, a label or a comment. An instruction keeps
+ * its opcode and operands apart, in AT&T order and assembler syntax, so that the {@link Peephole}
+ * pass can match on them before the code is printed.
+ */
+final class MachineInst {
+  private enum Kind {
+    INSTRUCTION, LABEL, COMMENT
+  }
+
+  private final Kind kind;
+  private final String text;
+  private final List<String> operands;
+
+  private MachineInst(Kind kind, String text, List<String> operands) {
+    this.kind = kind;
+    this.text = text;
+    this.operands = operands;
+  }
+
+  MachineInst(String opcode, String... operands) {
+    this(Kind.INSTRUCTION, opcode, List.of(operands));
+  }
+
+  static MachineInst label(String name) {
+    return new MachineInst(Kind.LABEL, name, List.of());
+  }
+
+  static MachineInst comment(String text) {
+    return new MachineInst(Kind.COMMENT, text, List.of());
+  }
+
+  boolean isInstruction() {
+    return kind == Kind.INSTRUCTION;
+  }
+
+  boolean isLabel() {
+    return kind == Kind.LABEL;
+  }
+
+  /**
+   * The opcode of an instruction, or the name of a label.
+   */
+  String getOpcode() {
+    return text;
+  }
+
+  int numOperands() {
+    return operands.size();
+  }
+
+  String getOperand(int i) {
+    return operands.get(i);
+  }
+
+  boolean is(String opcode) {
+    return kind == Kind.INSTRUCTION && text.equals(opcode);
+  }
+
+  /**
+   * Whether this is a jump, conditional or not. Its only operand is the target.
+   */
+  boolean isJump() {
+    return kind == Kind.INSTRUCTION && text.startsWith("j");
+  }
+
+  /**
+   * Whether execution never continues with the next line.
+   */
+  boolean endsBlock() {
+    return is("jmp") || is("ret");
+  }
+
+  @Override
+  public String toString() {
+    switch (kind) {
+      case LABEL:
+        return text + ":";
+      case COMMENT:
+        return "/* " + text + " */";
+      default:
+        return operands.isEmpty() ? text : text + " " + String.join(", ", operands);
+    }
+  }
+}
@@ -0,0 +1,176 @@
+package crux.backend;
+
+import java.util.*;
+
+/**
+ * Local clean-ups of the {@link MachineInst}s of one function, applied until none of them changes
+ * anything any more:
+ * <ul>
+ * <li>{@code nop}s and moves of a location to itself are dropped.</li>
+ * <li>A move that reloads what the previous move stored is dropped or reads the stored value
+ * directly, e.g. {@code movq %rax, -8(%rbp); movq -8(%rbp), %rdi} loads {@code %rdi} from
+ * {@code %rax}.</li>
+ * <li>Adjacent additions and subtractions of constants to the same register are combined, and
+ * dropped if they add up to nothing.</li>
+ * <li>Jumps to a label that directly follows them are dropped, and so are lines after a
+ * {@code jmp} or {@code ret} up to the next label, and labels that no jump refers to.</li>
+ * </ul>
+ * The patterns only look at adjacent lines, so no label can come between them. Dropping an
+ * addition changes the flags, which is safe because {@link FunctionCodeGen} only tests flags
+ * right after the {@code cmpq}, or the {@code subq} of a vectorized loop, that sets them.
+ */
+final class Peephole {
+  private Peephole() {}
+
+  /**
+   * The optimized copy of {@code code}.
+   */
+  static List<MachineInst> optimize(List<MachineInst> code) {
+    var result = new ArrayList<>(code);
+    boolean changed = true;
+    while (changed) {
+      changed = removeNops(result);
+      changed |= forwardMoves(result);
+      changed |= combineAdds(result);
+      changed |= removeJumpsToNext(result);
+      changed |= removeUnreachable(result);
+      changed |= removeUnusedLabels(result);
+    }
+    return result;
+  }
+
+  /**
+   * Number of instructions in {@code code}, not counting labels and comments.
+   */
+  static int countInstructions(List<MachineInst> code) {
+    int count = 0;
+    for (MachineInst inst : code) {
+      if (inst.isInstruction())
+        count++;
+    }
+    return count;
+  }
+
+  private static boolean isRegister(String operand) {
+    return operand.startsWith("%");
+  }
+
+  private static boolean isImmediate(String operand) {
+    return operand.startsWith("$");
+  }
+
+  private static boolean isMove(MachineInst inst) {
+    return inst.is("movq") && inst.numOperands() == 2;
+  }
+
+  private static boolean removeNops(List<MachineInst> code) {
+    return code.removeIf(inst -> inst.is("nop")
+        || (isMove(inst) && inst.getOperand(0).equals(inst.getOperand(1))));
+  }
+
+  private static boolean forwardMoves(List<MachineInst> code) {
+    boolean changed = false;
+    for (int i = 0; i + 1 < code.size(); i++) {
+      MachineInst first = code.get(i);
+      MachineInst second = code.get(i + 1);
+      if (!isMove(first) || !isMove(second))
+        continue;
+      String src = first.getOperand(0);
+      String dst = first.getOperand(1);
+      if (!second.getOperand(0).equals(dst))
+        continue;
+      // The first move must not have changed a register that its source is addressed with.
+      if (isRegister(dst) && src.contains(dst))
+        continue;
+      String target = second.getOperand(1);
+      // movq cannot load an immediate into a vector register.
+      boolean forwardable = isRegister(src) || isImmediate(src) && !target.startsWith("%xmm");
+      if (target.equals(src)) {
+        code.remove(i + 1);
+        changed = true;
+      } else if (forwardable && isRegister(target)) {
+        code.set(i + 1, new MachineInst("movq", src, target));
+        changed = true;
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * The constant that {@code inst} adds to a register, or null if it is not such an instruction.
+   */
+  private static Long addend(MachineInst inst) {
+    if ((!inst.is("addq") && !inst.is("subq")) || !isImmediate(inst.getOperand(0))
+        || !isRegister(inst.getOperand(1)))
+      return null;
+    long value = Long.parseLong(inst.getOperand(0).substring(1));
+    return inst.is("addq") ? value : -value;
+  }
+
+  private static boolean combineAdds(List<MachineInst> code) {
+    boolean changed = false;
+    for (int i = 0; i < code.size(); i++) {
+      Long first = addend(code.get(i));
+      if (first == null)
+        continue;
+      if (first == 0) {
+        code.remove(i--);
+        changed = true;
+        continue;
+      }
+      if (i + 1 == code.size())
+        continue;
+      Long second = addend(code.get(i + 1));
+      String register = code.get(i).getOperand(1);
+      if (second == null || !code.get(i + 1).getOperand(1).equals(register))
+        continue;
+      long sum = first + second;
+      if (!InstructionSelector.isImmediate(sum))
+        continue;
+      code.remove(i + 1);
+      code.set(i, new MachineInst("addq", "$" + sum, register));
+      i--;
+      changed = true;
+    }
+    return changed;
+  }
+
+  private static boolean removeJumpsToNext(List<MachineInst> code) {
+    boolean changed = false;
+    for (int i = 0; i < code.size(); i++) {
+      MachineInst inst = code.get(i);
+      if (!inst.isJump())
+        continue;
+      for (int j = i + 1; j < code.size() && !code.get(j).isInstruction(); j++) {
+        if (code.get(j).isLabel() && code.get(j).getOpcode().equals(inst.getOperand(0))) {
+          code.remove(i--);
+          changed = true;
+          break;
+        }
+      }
+    }
+    return changed;
+  }
+
+  private static boolean removeUnreachable(List<MachineInst> code) {
+    boolean changed = false;
+    for (int i = 0; i < code.size(); i++) {
+      if (!code.get(i).endsBlock())
+        continue;
+      while (i + 1 < code.size() && !code.get(i + 1).isLabel()) {
+        code.remove(i + 1);
+        changed = true;
+      }
+    }
+    return changed;
+  }
+
+  private static boolean removeUnusedLabels(List<MachineInst> code) {
+    var targets = new HashSet<String>();
+    for (MachineInst inst : code) {
+      if (inst.isJump())
+        targets.add(inst.getOperand(0));
+    }
+    return code.removeIf(inst -> inst.isLabel() && !targets.contains(inst.getOpcode()));
+  }
+}
@@ -0,0 +1,237 @@
+package crux.backend;
+
+import crux.ir.*;
+import crux.ir.insts.CallInst;
+
+import java.util.*;
+
+/**
+ * Linear-scan register allocation for one {@link Function}, in the style of Poletto and Sarkar.
+ * <p>
+ * Every instruction in emission order gets two points: {@code 2k} where it reads its operands and
+ * {@code 2k + 1} where it writes its destination. A variable's interval runs from the first to the
+ * last point where {@link Liveness} finds it live, so a value that dies at an instruction can share
+ * a register with the value that instruction defines. Intervals are then assigned registers in the
+ * order they start; when none is free, the interval that ends last is left in its stack slot.
+ * An argument, or a value whose last use is as an argument of a call, prefers the register it is
+ * passed in, which saves the move there if that register is free.
+ * <p>
+ * Variables that the {@link InstructionSelector} turned into immediates or folded away get no
+ * interval. The operands of a folded instruction are read at its user, so their intervals are
+ * extended up to there.
+ * <p>
+ * Calls clobber the caller-saved registers, so an interval that is live across a call may only
+ * get a callee-saved register, which the function saves in its prologue. The arguments of a call
+ * and its result are not live across it and may use the argument registers. Calls of the
+ * runtime library that preserve all registers (see {@link CodeGen#setFastRuntimeCalls}) clobber
+ * nothing and do not count. {@code %rax},
+ * {@code %rdx}, {@code %r10} and {@code %r11} are never allocated: {@link FunctionCodeGen} uses
+ * them as scratch registers, and {@code idivq} and {@code setcc} need the first two.
+ */
+final class RegisterAllocator {
+  /** Caller-saved registers that may hold variables, preferred for intervals without calls. */
+  static final String[] CALLER_SAVED = {"%rdi", "%rsi", "%rcx", "%r8", "%r9"};
+  /** Callee-saved registers that may hold variables, except %rbp, which holds the frame. */
+  static final String[] CALLEE_SAVED = {"%rbx", "%r12", "%r13", "%r14", "%r15"};
+
+  private static final class Interval {
+    final Variable var;
+    int start = Integer.MAX_VALUE;
+    int end = -1;
+    boolean crossesCall;
+    String hint;
+    String register;
+
+    Interval(Variable var) {
+      this.var = var;
+    }
+
+    void add(int point) {
+      start = Math.min(start, point);
+      end = Math.max(end, point);
+    }
+  }
+
+  private final HashMap<Variable, String> mRegisters = new HashMap<>();
+  private final List<String> mUsedCalleeSaved = new ArrayList<>();
+  private final BitSet mLiveOnEntry;
+
+  /**
+   * Allocates registers for the variables of {@code f}, whose instructions will be emitted in
+   * {@code order} as chosen by {@code selector}. {@code fastRuntimeCalls} tells whether calls of
+   * the runtime library preserve all registers.
+   */
+  RegisterAllocator(Function f, List<Instruction> order, InstructionSelector selector,
+      boolean fastRuntimeCalls) {
+    var layout = f.getFrameLayout();
+    var liveness = new Liveness(f);
+    mLiveOnEntry = f.getStart() == null ? new BitSet() : liveness.getLiveIn(f.getStart());
+    var intervals = new Interval[layout.getNumSlots()];
+    var calls = new ArrayList<Integer>();
+    var clobberingCalls = new ArrayList<Integer>();
+    for (int k = 0; k < order.size(); k++) {
+      Instruction inst = order.get(k);
+      addPoints(intervals, layout, liveness.getLiveIn(inst), 2 * k);
+      addPoints(intervals, layout, liveness.getLiveOut(inst), 2 * k + 1);
+      if (inst instanceof CallInst) {
+        calls.add(k);
+        if (!fastRuntimeCalls || !CodeGen.isFastRuntimeCall((CallInst) inst))
+          clobberingCalls.add(k);
+      }
+    }
+    var positions = new HashMap<Instruction, Integer>();
+    for (int k = 0; k < order.size(); k++) {
+      positions.put(order.get(k), k);
+    }
+    for (Instruction inst : order) {
+      Instruction user = selector.getUser(inst);
+      if (user == null)
+        continue;
+      for (Variable var : selector.getOperands(inst)) {
+        intervals[var.getSlot()].add(2 * positions.get(user));
+      }
+    }
+
+    List<LocalVar> args = f.getArguments();
+    for (int idx = 0; idx < Math.min(args.size(), CodeGen.ARG_REGISTERS.length); idx++) {
+      hint(intervals[args.get(idx).getSlot()], CodeGen.ARG_REGISTERS[idx], 0);
+    }
+    for (int k : calls) {
+      List<LocalVar> params = ((CallInst) order.get(k)).getParams();
+      for (int idx = 0; idx < Math.min(params.size(), CodeGen.ARG_REGISTERS.length); idx++) {
+        hint(intervals[params.get(idx).getSlot()], CodeGen.ARG_REGISTERS[idx], 2 * k);
+      }
+    }
+
+    var sorted = new ArrayList<Interval>();
+    for (Interval interval : intervals) {
+      if (interval == null || selector.isUnallocated(interval.var))
+        continue;
+      for (int k : clobberingCalls) {
+        if (interval.start <= 2 * k && interval.end >= 2 * k + 1)
+          interval.crossesCall = true;
+      }
+      sorted.add(interval);
+    }
+    sorted.sort(Comparator.comparingInt((Interval i) -> i.start));
+    allocate(sorted);
+
+    for (Interval interval : sorted) {
+      if (interval.register != null)
+        mRegisters.put(interval.var, interval.register);
+    }
+    for (String reg : CALLEE_SAVED) {
+      if (mRegisters.containsValue(reg))
+        mUsedCalleeSaved.add(reg);
+    }
+  }
+
+  private static void addPoints(Interval[] intervals, FrameLayout layout, BitSet live,
+      int point) {
+    for (int slot = live.nextSetBit(0); slot >= 0; slot = live.nextSetBit(slot + 1)) {
+      if (intervals[slot] == null)
+        intervals[slot] = new Interval(layout.getVariable(slot));
+      intervals[slot].add(point);
+    }
+  }
+
+  /**
+   * Lets {@code interval} prefer {@code reg} if the interval starts or ends at {@code point},
+   * where the value is passed in that register.
+   */
+  private static void hint(Interval interval, String reg, int point) {
+    if (interval != null && interval.hint == null
+        && (interval.start == point || interval.end == point))
+      interval.hint = reg;
+  }
+
+  private static void allocate(List<Interval> sorted) {
+    // Ordered by end point, so expired intervals are at the front.
+    var active = new ArrayList<Interval>();
+    var free = new HashSet<String>();
+    free.addAll(Arrays.asList(CALLER_SAVED));
+    free.addAll(Arrays.asList(CALLEE_SAVED));
+
+    for (Interval current : sorted) {
+      while (!active.isEmpty() && active.get(0).end < current.start) {
+        free.add(active.remove(0).register);
+      }
+
+      String reg = null;
+      if (!current.crossesCall && current.hint != null && free.contains(current.hint))
+        reg = current.hint;
+      if (reg == null && !current.crossesCall)
+        reg = firstFree(CALLER_SAVED, free);
+      if (reg == null)
+        reg = firstFree(CALLEE_SAVED, free);
+
+      if (reg == null) {
+        // Spill whichever interval ends last: either a usable active one, or the current one.
+        Interval victim = null;
+        for (Interval candidate : active) {
+          if (current.crossesCall && !isCalleeSaved(candidate.register))
+            continue;
+          if (victim == null || candidate.end > victim.end)
+            victim = candidate;
+        }
+        if (victim == null || victim.end <= current.end)
+          continue;
+        reg = victim.register;
+        victim.register = null;
+        active.remove(victim);
+      } else {
+        free.remove(reg);
+      }
+
+      current.register = reg;
+      int pos = 0;
+      while (pos < active.size() && active.get(pos).end <= current.end)
+        pos++;
+      active.add(pos, current);
+    }
+  }
+
+  private static String firstFree(String[] registers, Set<String> free) {
+    for (String reg : registers) {
+      if (free.contains(reg))
+        return reg;
+    }
+    return null;
+  }
+
+  private static boolean isCalleeSaved(String reg) {
+    return Arrays.asList(CALLEE_SAVED).contains(reg);
+  }
+
+  /**
+   * The register that holds {@code var} for the whole function, or null if it lives in its stack
+   * slot.
+   */
+  String getRegister(Variable var) {
+    return mRegisters.get(var);
+  }
+
+  /**
+   * Whether some variable lives in {@code reg}.
+   */
+  boolean isAllocated(String reg) {
+    return mRegisters.containsValue(reg);
+  }
+
+  /**
+   * Whether the function may read {@code var} before writing it. Only such arguments need to be
+   * moved out of the registers they are passed in; the others may share a register with a live
+   * argument.
+   */
+  boolean isLiveOnEntry(Variable var) {
+    return mLiveOnEntry.get(var.getSlot());
+  }
+
+  /**
+   * The callee-saved registers the function uses, which its prologue has to save and every
+   * return has to restore.
+   */
+  List<String> getUsedCalleeSaved() {
+    return mUsedCalleeSaved;
+  }
+}
@@ -0,0 +1,524 @@
+package crux.backend;
+
+import java.util.*;
+
+/**
+ * Encodes the {@link MachineInst}s that {@link FunctionCodeGen} emits into x86-64 machine code, for
+ * {@link ElfWriter}. Only the opcodes and operand forms it uses are supported; anything else
+ * is an error.
+ * <p>
+ * Jumps to labels of the current function are resolved by {@link #endFunction()}: backward jumps
+ * within reach of a byte use the short form, all others a 32-bit displacement. A jump or call to
+ * any other name, and every {@code sym(%rip)} operand, becomes a {@link Relocation}.
+ */
+final class X86Encoder {
+  static final int R_X86_64_PC32 = 2;
+  static final int R_X86_64_PLT32 = 4;
+
+  /**
+   * A reference from the code to a symbol that the linker fills in: the 32-bit field at
+   * {@code offset} becomes the address of {@code symbol} plus {@code addend}, relative to the
+   * field.
+   */
+  static final class Relocation {
+    final int offset;
+    final String symbol;
+    final int type;
+    final long addend;
+
+    Relocation(int offset, String symbol, int type, long addend) {
+      this.offset = offset;
+      this.symbol = symbol;
+      this.type = type;
+      this.addend = addend;
+    }
+  }
+
+  private enum Kind {
+    REGISTER, IMMEDIATE, MEMORY
+  }
+
+  private static final class Operand {
+    Kind kind;
+    int register = -1;
+    // Registers: whether it is an %xmm or %ymm register, and which.
+    boolean vector;
+    boolean ymm;
+    long value;
+    // Memory operands: base register (-1 for %rip), index register (-1 for none) and symbol.
+    int index = -1;
+    int scale = 1;
+    String symbol;
+  }
+
+  private static final Map<String, Integer> REGISTERS = new HashMap<>();
+  private static final Map<String, Integer> CONDITIONS = Map.of("o", 0x0, "ae", 0x3, "e", 0x4, "ne", 0x5,
+      "l", 0xC, "ge", 0xD, "le", 0xE, "g", 0xF);
+  // The /digit of the group 1 arithmetic instructions, which is also their opcode / 8.
+  private static final Map<String, Integer> ARITHMETIC =
+      Map.of("addq", 0, "andq", 4, "subq", 5, "xorq", 6, "cmpq", 7);
+  private static final Map<String, Integer> SHIFTS = Map.of("shlq", 4, "shrq", 5, "sarq", 7);
+  private static final Map<String, Integer> UNARY = Map.of("negq", 3, "imulq", 5, "idivq", 7);
+  // Opcodes after 0F of the packed integer operations, as 66-prefixed SSE2 or VEX instructions.
+  private static final Map<String, Integer> PACKED = Map.of("paddq", 0xD4, "psubq", 0xFB,
+      "pxor", 0xEF, "punpcklqdq", 0x6C);
+
+  static {
+    String[] names = {"rax", "rcx", "rdx", "rbx", "rsp", "rbp", "rsi", "rdi"};
+    for (int reg = 0; reg < 16; reg++) {
+      REGISTERS.put("%" + (reg < 8 ? names[reg] : "r" + reg), reg);
+    }
+    REGISTERS.put("%al", 0);
+  }
+
+  private byte[] code = new byte[4096];
+  private int size;
+  private final List<Relocation> relocations = new ArrayList<>();
+  private final HashMap<String, Integer> labels = new HashMap<>();
+  // Label of every 32-bit jump displacement to patch, by the offset of the displacement.
+  private final LinkedHashMap<Integer, String> jumpFixups = new LinkedHashMap<>();
+
+  int size() {
+    return size;
+  }
+
+  byte[] getCode() {
+    return Arrays.copyOf(code, size);
+  }
+
+  List<Relocation> getRelocations() {
+    return relocations;
+  }
+
+  /**
+   * Resolves the jumps of the function encoded since the last call. Jumps to names that are not
+   * labels of the function go to symbols, e.g. a tail call.
+   */
+  void endFunction() {
+    for (var fixup : jumpFixups.entrySet()) {
+      int offset = fixup.getKey();
+      Integer target = labels.get(fixup.getValue());
+      if (target == null)
+        relocations.add(new Relocation(offset, fixup.getValue(), R_X86_64_PLT32, -4));
+      else
+        patch32(offset, target - (offset + 4));
+    }
+    jumpFixups.clear();
+    labels.clear();
+  }
+
+  void encode(MachineInst inst) {
+    if (inst.isLabel()) {
+      if (labels.put(inst.getOpcode(), size) != null)
+        throw new Error("Duplicate label " + inst.getOpcode());
+      return;
+    }
+    if (!inst.isInstruction())
+      return;
+
+    String opcode = inst.getOpcode();
+    var operands = new ArrayList<Operand>();
+    if (!inst.isJump() && !inst.is("call")) {
+      for (int idx = 0; idx < inst.numOperands(); idx++) {
+        operands.add(parse(inst.getOperand(idx)));
+      }
+    }
+
+    if (ARITHMETIC.containsKey(opcode)) {
+      arithmetic(ARITHMETIC.get(opcode), operands.get(0), operands.get(1));
+    } else if (SHIFTS.containsKey(opcode)) {
+      Operand dst = operands.get(1);
+      long count = operands.get(0).value;
+      rex(true, 0, dst);
+      emit8(count == 1 ? 0xD1 : 0xC1);
+      modrm(SHIFTS.get(opcode), dst, count == 1 ? 0 : 1);
+      if (count != 1)
+        emit8((int) count);
+    } else if (opcode.equals("imulq") && operands.size() == 2) {
+      multiply(operands.get(0), operands.get(1));
+    } else if (UNARY.containsKey(opcode)) {
+      rex(true, 0, operands.get(0));
+      emit8(0xF7);
+      modrm(UNARY.get(opcode), operands.get(0), 0);
+    } else if (opcode.equals("incq")) {
+      rex(true, 0, operands.get(0));
+      emit8(0xFF);
+      modrm(0, operands.get(0), 0);
+    } else if (opcode.equals("movq") && (operands.get(0).vector || operands.get(1).vector)) {
+      // movq between a general purpose and a vector register.
+      boolean toVector = operands.get(1).vector;
+      Operand vector = operands.get(toVector ? 1 : 0);
+      sse(0x66, true, toVector ? 0x6E : 0x7E, vector.register, operands.get(toVector ? 0 : 1), 0);
+    } else if (opcode.equals("movq") || opcode.equals("movabsq")) {
+      move(operands.get(0), operands.get(1));
+    } else if (opcode.equals("leaq")) {
+      registerAndMemory(0x8D, operands.get(1).register, operands.get(0));
+    } else if (opcode.equals("movzbq")) {
+      rex(true, operands.get(1).register, operands.get(0));
+      emit8(0x0F);
+      emit8(0xB6);
+      modrm(operands.get(1).register, operands.get(0), 0);
+    } else if (opcode.startsWith("set") && CONDITIONS.containsKey(opcode.substring(3))) {
+      if (operands.get(0).register >= 4)
+        throw new Error("Unsupported operand of " + inst);
+      emit8(0x0F);
+      emit8(0x90 | CONDITIONS.get(opcode.substring(3)));
+      modrm(0, operands.get(0), 0);
+    } else if (opcode.equals("pushq")) {
+      push(operands.get(0));
+    } else if (opcode.equals("jmp")) {
+      jump(new int[] {0xEB}, new int[] {0xE9}, inst.getOperand(0));
+    } else if (opcode.startsWith("j") && CONDITIONS.containsKey(opcode.substring(1))) {
+      int condition = CONDITIONS.get(opcode.substring(1));
+      jump(new int[] {0x70 | condition}, new int[] {0x0F, 0x80 | condition}, inst.getOperand(0));
+    } else if (opcode.equals("call")) {
+      emit8(0xE8);
+      relocations.add(new Relocation(size, inst.getOperand(0), R_X86_64_PLT32, -4));
+      emit32(0);
+    } else if (opcode.equals("enter")) {
+      emit8(0xC8);
+      emit16((int) operands.get(0).value);
+      emit8((int) operands.get(1).value);
+    } else if (opcode.equals("cqto")) {
+      emit8(0x48);
+      emit8(0x99);
+    } else if (opcode.equals("leave")) {
+      emit8(0xC9);
+    } else if (opcode.equals("ret")) {
+      emit8(0xC3);
+    } else if (opcode.equals("nop")) {
+      emit8(0x90);
+    } else if (opcode.startsWith("v") || opcode.startsWith("p") || opcode.startsWith("movdq")) {
+      vector(opcode, operands);
+    } else {
+      throw new Error("Cannot encode " + inst);
+    }
+  }
+
+  /**
+   * The SSE2 and AVX2 instructions of vectorized loops.
+   */
+  private void vector(String opcode, List<Operand> operands) {
+    if (opcode.equals("vzeroupper")) {
+      emit8(0xC5);
+      emit8(0xF8);
+      emit8(0x77);
+      return;
+    }
+    Operand first = operands.get(0);
+    Operand last = operands.get(operands.size() - 1);
+    if (PACKED.containsKey(opcode)) {
+      sse(0x66, false, PACKED.get(opcode), last.register, first, 0);
+    } else if (opcode.startsWith("v") && PACKED.containsKey(opcode.substring(1))) {
+      vex(1, 1, last.ymm, operands.get(1).register, PACKED.get(opcode.substring(1)),
+          last.register, first, 0);
+    } else if (opcode.equals("movdqu") || opcode.equals("vmovdqu")) {
+      // F3 0F 6F loads, F3 0F 7F stores.
+      boolean store = last.kind == Kind.MEMORY;
+      Operand register = store ? first : last;
+      Operand rm = store ? last : first;
+      if (opcode.equals("movdqu"))
+        sse(0xF3, false, store ? 0x7F : 0x6F, register.register, rm, 0);
+      else
+        vex(1, 2, register.ymm, 0, store ? 0x7F : 0x6F, register.register, rm, 0);
+    } else if (opcode.equals("movdqa")) {
+      sse(0x66, false, 0x6F, last.register, first, 0);
+    } else if (opcode.equals("psllq")) {
+      sse(0x66, false, 0x73, 6, last, 1);
+      emit8((int) first.value);
+    } else if (opcode.equals("vpsllq")) {
+      vex(1, 1, last.ymm, last.register, 0x73, 6, operands.get(1), 1);
+      emit8((int) first.value);
+    } else if (opcode.equals("pshufd")) {
+      sse(0x66, false, 0x70, last.register, operands.get(1), 1);
+      emit8((int) first.value);
+    } else if (opcode.equals("vpbroadcastq")) {
+      vex(2, 1, true, 0, 0x59, last.register, first, 0);
+    } else if (opcode.equals("vextracti128")) {
+      vex(3, 1, true, 0, 0x39, operands.get(1).register, last, 1);
+      emit8((int) first.value);
+    } else {
+      throw new Error("Cannot encode " + opcode);
+    }
+  }
+
+  /**
+   * A legacy SSE instruction 0F {@code opcode} after the mandatory {@code prefix}, 0 for none,
+   * with {@code reg} in the reg field.
+   */
+  private void sse(int prefix, boolean wide, int opcode, int reg, Operand rm, int trailing) {
+    if (prefix != 0)
+      emit8(prefix);
+    rex(wide, reg, rm);
+    emit8(0x0F);
+    emit8(opcode);
+    modrm(reg, rm, trailing);
+  }
+
+  /**
+   * A VEX instruction with W0 in opcode map {@code map} (1 for 0F, 2 for 0F38, 3 for 0F3A) with
+   * the implied prefix {@code pp} (1 for 66, 2 for F3), on 256 bits if {@code ymm}. {@code vvvv}
+   * is the additional source register; 0 if there is none. Like gas, this uses the two-byte VEX
+   * prefix where it can.
+   */
+  private void vex(int map, int pp, boolean ymm, int vvvv, int opcode, int reg, Operand rm,
+      int trailing) {
+    int r = reg >= 8 ? 0 : 0x80;
+    int x = rm.index >= 8 ? 0 : 0x40;
+    int b = rm.register >= 8 ? 0 : 0x20;
+    int payload = (~vvvv & 0xF) << 3 | (ymm ? 0x4 : 0) | pp;
+    if (map == 1 && x != 0 && b != 0) {
+      emit8(0xC5);
+      emit8(r | payload);
+    } else {
+      emit8(0xC4);
+      emit8(r | x | b | map);
+      emit8(payload);
+    }
+    emit8(opcode);
+    modrm(reg, rm, trailing);
+  }
+
+  /**
+   * {@code dst op= src} for the group 1 instruction with the given /digit.
+   */
+  private void arithmetic(int digit, Operand src, Operand dst) {
+    if (src.kind == Kind.IMMEDIATE) {
+      boolean small = fitsByte(src.value);
+      rex(true, 0, dst);
+      emit8(small ? 0x83 : 0x81);
+      modrm(digit, dst, small ? 1 : 4);
+      immediate(src.value, small ? 1 : 4);
+    } else if (src.kind == Kind.REGISTER) {
+      rex(true, src.register, dst);
+      emit8(digit * 8 + 0x01);
+      modrm(src.register, dst, 0);
+    } else {
+      registerAndMemory(digit * 8 + 0x03, dst.register, src);
+    }
+  }
+
+  private void multiply(Operand src, Operand dst) {
+    if (src.kind == Kind.IMMEDIATE) {
+      boolean small = fitsByte(src.value);
+      rex(true, dst.register, dst);
+      emit8(small ? 0x6B : 0x69);
+      modrm(dst.register, dst, small ? 1 : 4);
+      immediate(src.value, small ? 1 : 4);
+    } else {
+      rex(true, dst.register, src);
+      emit8(0x0F);
+      emit8(0xAF);
+      modrm(dst.register, src, 0);
+    }
+  }
+
+  private void move(Operand src, Operand dst) {
+    if (src.kind == Kind.IMMEDIATE) {
+      if (InstructionSelector.isImmediate(src.value)) {
+        rex(true, 0, dst);
+        emit8(0xC7);
+        modrm(0, dst, 4);
+        emit32((int) src.value);
+      } else {
+        if (dst.kind != Kind.REGISTER)
+          throw new Error("64-bit immediate stored to memory");
+        emit8(0x48 | (dst.register >> 3));
+        emit8(0xB8 | (dst.register & 7));
+        for (int shift = 0; shift < 64; shift += 8) {
+          emit8((int) (src.value >> shift));
+        }
+      }
+    } else if (src.kind == Kind.REGISTER) {
+      rex(true, src.register, dst);
+      emit8(0x89);
+      modrm(src.register, dst, 0);
+    } else {
+      registerAndMemory(0x8B, dst.register, src);
+    }
+  }
+
+  private void push(Operand src) {
+    if (src.kind == Kind.IMMEDIATE) {
+      boolean small = fitsByte(src.value);
+      emit8(small ? 0x6A : 0x68);
+      immediate(src.value, small ? 1 : 4);
+    } else if (src.kind == Kind.REGISTER) {
+      if (src.register >= 8)
+        emit8(0x41);
+      emit8(0x50 | (src.register & 7));
+    } else {
+      rex(false, 0, src);
+      emit8(0xFF);
+      modrm(6, src, 0);
+    }
+  }
+
+  /**
+   * An instruction with a register in the reg field and a register or memory operand.
+   */
+  private void registerAndMemory(int opcode, int register, Operand rm) {
+    if (register < 0)
+      throw new Error("Expected a register destination");
+    rex(true, register, rm);
+    emit8(opcode);
+    modrm(register, rm, 0);
+  }
+
+  private void jump(int[] shortOpcode, int[] nearOpcode, String target) {
+    Integer offset = labels.get(target);
+    if (offset != null && fitsByte(offset - (size + shortOpcode.length + 1))) {
+      for (int b : shortOpcode) {
+        emit8(b);
+      }
+      emit8(offset - (size + 1));
+      return;
+    }
+    for (int b : nearOpcode) {
+      emit8(b);
+    }
+    jumpFixups.put(size, target);
+    emit32(0);
+  }
+
+  private void rex(boolean wide, int register, Operand rm) {
+    int rex = wide ? 0x48 : 0x40;
+    if (register >= 8)
+      rex |= 0x04;
+    if (rm.index >= 8)
+      rex |= 0x02;
+    if (rm.register >= 8)
+      rex |= 0x01;
+    if (rex != 0x40)
+      emit8(rex);
+  }
+
+  /**
+   * The ModRM byte and what follows it for {@code rm}. {@code trailing} is the number of
+   * immediate bytes after the displacement, which a %rip-relative relocation must skip.
+   */
+  private void modrm(int reg, Operand rm, int trailing) {
+    reg &= 7;
+    if (rm.kind == Kind.REGISTER) {
+      emit8(0xC0 | reg << 3 | (rm.register & 7));
+      return;
+    }
+    if (rm.kind != Kind.MEMORY)
+      throw new Error("Expected a register or memory operand");
+    if (rm.register < 0) {
+      emit8(reg << 3 | 0x05);
+      if (rm.symbol != null)
+        relocations.add(new Relocation(size, rm.symbol, R_X86_64_PC32, rm.value - 4 - trailing));
+      emit32(rm.symbol != null ? 0 : (int) rm.value);
+      return;
+    }
+    int base = rm.register & 7;
+    // [%rbp] and [%r13] without a displacement mean something else, so give them one.
+    int mod = rm.value == 0 && base != 5 ? 0x00 : fitsByte(rm.value) ? 0x40 : 0x80;
+    if (rm.index >= 0) {
+      emit8(mod | reg << 3 | 0x04);
+      emit8(Integer.numberOfTrailingZeros(rm.scale) << 6 | (rm.index & 7) << 3 | base);
+    } else if (base == 4) {
+      emit8(mod | reg << 3 | 0x04);
+      emit8(0x24);
+    } else {
+      emit8(mod | reg << 3 | base);
+    }
+    if (mod == 0x40)
+      emit8((int) rm.value);
+    else if (mod == 0x80)
+      emit32((int) rm.value);
+  }
+
+  private static boolean fitsByte(long value) {
+    return value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE;
+  }
+
+  private void immediate(long value, int bytes) {
+    if (bytes == 1)
+      emit8((int) value);
+    else
+      emit32((int) value);
+  }
+
+  private static int register(String name) {
+    Integer reg = REGISTERS.get(name);
+    if (reg == null)
+      throw new Error("Unknown register " + name);
+    return reg;
+  }
+
+  /**
+   * Parses a general purpose or vector register, an immediate such as {@code $8} or
+   * {@code $(8 * 4)}, or a memory operand {@code disp(%base)}, {@code (%base,%index,scale)} or
+   * {@code sym+disp(%rip)}.
+   */
+  private static Operand parse(String text) {
+    var operand = new Operand();
+    if (text.startsWith("%xmm") || text.startsWith("%ymm")) {
+      operand.kind = Kind.REGISTER;
+      operand.vector = true;
+      operand.ymm = text.startsWith("%ymm");
+      operand.register = Integer.parseInt(text.substring(4));
+      return operand;
+    }
+    if (text.startsWith("%")) {
+      operand.kind = Kind.REGISTER;
+      operand.register = register(text);
+      return operand;
+    }
+    if (text.startsWith("$")) {
+      operand.kind = Kind.IMMEDIATE;
+      String value = text.substring(1);
+      if (value.startsWith("(")) {
+        operand.value = 1;
+        for (String factor : value.substring(1, value.length() - 1).split("\\*")) {
+          operand.value *= Long.parseLong(factor.trim());
+        }
+      } else {
+        operand.value = Long.parseLong(value);
+      }
+      return operand;
+    }
+
+    operand.kind = Kind.MEMORY;
+    int open = text.indexOf('(');
+    String displacement = text.substring(0, open);
+    String[] parts = text.substring(open + 1, text.length() - 1).split(",");
+    if (parts[0].equals("%rip")) {
+      int sign = Math.max(displacement.indexOf('+'), displacement.indexOf('-'));
+      operand.symbol = sign < 0 ? displacement : displacement.substring(0, sign);
+      operand.value = sign < 0 ? 0 : Long.parseLong(displacement.substring(sign));
+      return operand;
+    }
+    operand.value = displacement.isEmpty() ? 0 : Long.parseLong(displacement);
+    operand.register = register(parts[0]);
+    if (parts.length > 1) {
+      operand.index = register(parts[1]);
+      operand.scale = Integer.parseInt(parts[2]);
+    }
+    return operand;
+  }
+
+  private void emit8(int b) {
+    if (size == code.length)
+      code = Arrays.copyOf(code, 2 * size);
+    code[size++] = (byte) b;
+  }
+
+  private void emit16(int value) {
+    emit8(value);
+    emit8(value >> 8);
+  }
+
+  private void emit32(int value) {
+    emit16(value);
+    emit16(value >> 16);
+  }
+
+  private void patch32(int offset, int value) {
+    for (int idx = 0; idx < 4; idx++) {
+      code[offset + idx] = (byte) (value >> (8 * idx));
+    }
+  }
+}
@@ -46,6 +46,8 @@ public final class ASTLower implements NodeVisitor<InstPair> {
   private Function mCurrentFunction = null;
 
   private Map<Symbol, LocalVar> mCurrentLocalVarMap = null;
+  // The position of the innermost node being lowered that has one.
+  private Position mCurrentPosition = null;
 
   /**
    * A constructor to initialize member variables
@@ -57,6 +59,29 @@ public final class ASTLower implements NodeVisitor<InstPair> {
     return mCurrentProgram;
   }
 
+  /**
+   * Lowers {@code node}. The instructions it creates record its position, unless they belong to one
+   * of its children that has a position of its own.
+   */
+  private InstPair lower(Node node) {
+    Position enclosing = mCurrentPosition;
+    if (node.getPosition() != null)
+      mCurrentPosition = node.getPosition();
+    try {
+      return node.accept(this);
+    } finally {
+      mCurrentPosition = enclosing;
+    }
+  }
+
+  /**
+   * Records the position of the node being lowered on {@code inst}, which has just been created.
+   */
+  private <T extends Instruction> T at(T inst) {
+    inst.setPosition(mCurrentPosition);
+    return inst;
+  }
+
   @Override
   public InstPair visit(DeclList declList) {
     mCurrentProgram = new Program();
@@ -102,7 +127,7 @@ public final class ASTLower implements NodeVisitor<InstPair> {
     mCurrentProgram.addFunction(mCurrentFunction);
 
     // visit the function body
-    InstPair bodyPair = functionDef.getStatements().accept(this);
+    InstPair bodyPair = lower(functionDef.getStatements());
     // set the starting instruction of mCurrentFunction
     if (bodyPair != null) {
       mCurrentFunction.setStart(bodyPair.getStart());
@@ -118,11 +143,11 @@ public final class ASTLower implements NodeVisitor<InstPair> {
 
   @Override
   public InstPair visit(StatementList statementList) {
-    NopInst startInst = new NopInst();
+    NopInst startInst = at(new NopInst());
     Instruction lastInst = startInst;
 
     for (Node stmt : statementList.getChildren()) {
-      InstPair stmtPair = stmt.accept(this);
+      InstPair stmtPair = lower(stmt);
 
       if (stmtPair != null) {
         lastInst.setNext(0, stmtPair.getStart());
@@ -148,7 +173,7 @@ public final class ASTLower implements NodeVisitor<InstPair> {
       mCurrentLocalVarMap.put(varDecl.getSymbol(), localVar);
     }
 
-    NopInst nop = new NopInst();
+    NopInst nop = at(new NopInst());
     return new InstPair(nop, nop);
   }
 
@@ -163,7 +188,7 @@ public final class ASTLower implements NodeVisitor<InstPair> {
     GlobalDecl globalDecl = new GlobalDecl(arrayDecl.getSymbol(), size);
     mCurrentProgram.addGlobalVar(globalDecl);
 
-    NopInst nop = new NopInst();
+    NopInst nop = at(new NopInst());
     return new InstPair(nop, nop);
   }
 
@@ -177,13 +202,13 @@ public final class ASTLower implements NodeVisitor<InstPair> {
     Symbol symbol = name.getSymbol();
     if (mCurrentLocalVarMap.containsKey(symbol)) {    // Local
       LocalVar src = mCurrentLocalVarMap.get(symbol);
-      Instruction inst = new NopInst();
+      Instruction inst = at(new NopInst());
       return new InstPair(inst, inst, src);
     } else {     // Global
       LocalVar temp = mCurrentFunction.getTempVar(symbol.getType());
       AddressVar addr = mCurrentFunction.getTempAddressVar(symbol.getType());
-      AddressAt addrAt = new AddressAt(addr, symbol);
-      LoadInst load = new LoadInst(temp, addr);
+      AddressAt addrAt = at(new AddressAt(addr, symbol));
+      LoadInst load = at(new LoadInst(temp, addr));
       addrAt.setNext(0, load);
       return new InstPair(addrAt, load, temp);
     }
@@ -203,30 +228,30 @@ public final class ASTLower implements NodeVisitor<InstPair> {
       Symbol sym = varAccess.getSymbol();
 
       if (mCurrentLocalVarMap.containsKey(sym)) {
-        InstPair rhsPair = assignment.getValue().accept(this);
+        InstPair rhsPair = lower(assignment.getValue());
         LocalVar dest = mCurrentLocalVarMap.get(sym);
-        CopyInst copyInst = new CopyInst(dest, rhsPair.getValue());
+        CopyInst copyInst = at(new CopyInst(dest, rhsPair.getValue()));
         rhsPair.getEnd().setNext(0, copyInst);
         return new InstPair(rhsPair.getStart(), copyInst);
       } else {
         AddressVar addr = mCurrentFunction.getTempAddressVar(sym.getType());
-        AddressAt addrAt = new AddressAt(addr, sym);
-        InstPair rhsPair = assignment.getValue().accept(this);
+        AddressAt addrAt = at(new AddressAt(addr, sym));
+        InstPair rhsPair = lower(assignment.getValue());
         addrAt.setNext(0, rhsPair.getStart());
-        StoreInst storeInst = new StoreInst((LocalVar) rhsPair.getValue(), addr);
+        StoreInst storeInst = at(new StoreInst((LocalVar) rhsPair.getValue(), addr));
         rhsPair.getEnd().setNext(0, storeInst);
         return new InstPair(addrAt, storeInst);
       }
     } else if (target instanceof ArrayAccess) {
       ArrayAccess arrayAccess = (ArrayAccess) target;
-      InstPair indexPair = ((Node) arrayAccess.getIndex()).accept(this);
-      InstPair rhsPair = assignment.getValue().accept(this);
+      InstPair indexPair = lower(arrayAccess.getIndex());
+      InstPair rhsPair = lower(assignment.getValue());
       Type baseType = ((ArrayType) arrayAccess.getBase().getType()).getBase();
       AddressVar addrVar = mCurrentFunction.getTempAddressVar(baseType);
-      AddressAt addrAt = new AddressAt(addrVar, arrayAccess.getBase(), (LocalVar) indexPair.getValue());
+      AddressAt addrAt = at(new AddressAt(addrVar, arrayAccess.getBase(), (LocalVar) indexPair.getValue()));
       indexPair.getEnd().setNext(0, addrAt);
       addrAt.setNext(0, rhsPair.getStart());
-      StoreInst storeInst = new StoreInst((LocalVar) rhsPair.getValue(), addrVar);
+      StoreInst storeInst = at(new StoreInst((LocalVar) rhsPair.getValue(), addrVar));
       rhsPair.getEnd().setNext(0, storeInst);
       return new InstPair(indexPair.getStart(), storeInst);
     }
@@ -244,7 +269,7 @@ public final class ASTLower implements NodeVisitor<InstPair> {
     Instruction last = null;
 
     for (Node arg : functionCall.getArguments()) {
-      InstPair argPair = arg.accept(this);
+      InstPair argPair = lower(arg);
       if (start == null) {
         start = argPair.getStart();
       } else {
@@ -254,7 +279,7 @@ public final class ASTLower implements NodeVisitor<InstPair> {
       argValues.add((LocalVar) argPair.getValue());
     }
     LocalVar result = mCurrentFunction.getTempVar(functionCall.getType());
-    CallInst callInst = new CallInst(result, functionCall.getCallee(), argValues);
+    CallInst callInst = at(new CallInst(result, functionCall.getCallee(), argValues));
     if (last != null) {
       last.setNext(0, callInst);
       return new InstPair(start, callInst, result);
@@ -272,26 +297,26 @@ public final class ASTLower implements NodeVisitor<InstPair> {
   public InstPair visit(OpExpr operation) {
     OpExpr.Operation op = operation.getOp();
     if (op == OpExpr.Operation.LOGIC_NOT) {
-      InstPair operandPair = operation.getLeft().accept(this);
+      InstPair operandPair = lower(operation.getLeft());
       LocalVar result = mCurrentFunction.getTempVar(operation.getType());
-      UnaryNotInst notInst = new UnaryNotInst(result, (LocalVar) operandPair.getValue());
+      UnaryNotInst notInst = at(new UnaryNotInst(result, (LocalVar) operandPair.getValue()));
       operandPair.getEnd().setNext(0, notInst);
       return new InstPair(operandPair.getStart(), notInst, result);
     } else if (op == OpExpr.Operation.LOGIC_OR) {
-      InstPair leftPair = operation.getLeft().accept(this);
+      InstPair leftPair = lower(operation.getLeft());
       LocalVar result = mCurrentFunction.getTempVar(operation.getType());
-      JumpInst jump = new JumpInst((LocalVar) leftPair.getValue());
+      JumpInst jump = at(new JumpInst((LocalVar) leftPair.getValue()));
       leftPair.getEnd().setNext(0, jump);
 
-      NopInst thenBlock = new NopInst();
-      CopyInst copyTrue = new CopyInst(result, BooleanConstant.get(mCurrentProgram, true));
+      NopInst thenBlock = at(new NopInst());
+      CopyInst copyTrue = at(new CopyInst(result, BooleanConstant.get(mCurrentProgram, true)));
       thenBlock.setNext(0, copyTrue);
 
-      InstPair rightPair = operation.getRight().accept(this);
-      CopyInst copyRight = new CopyInst(result, (LocalVar) rightPair.getValue());
+      InstPair rightPair = lower(operation.getRight());
+      CopyInst copyRight = at(new CopyInst(result, (LocalVar) rightPair.getValue()));
       rightPair.getEnd().setNext(0, copyRight);
 
-      NopInst join = new NopInst();
+      NopInst join = at(new NopInst());
       jump.setNext(1, thenBlock);
       jump.setNext(0, rightPair.getStart());
 
@@ -299,20 +324,20 @@ public final class ASTLower implements NodeVisitor<InstPair> {
       copyRight.setNext(0, join);
       return new InstPair(leftPair.getStart(), join, result);
     } else if (op == OpExpr.Operation.LOGIC_AND) {
-      InstPair leftPair = operation.getLeft().accept(this);
+      InstPair leftPair = lower(operation.getLeft());
       LocalVar result = mCurrentFunction.getTempVar(operation.getType());
-      JumpInst jump = new JumpInst((LocalVar) leftPair.getValue());
+      JumpInst jump = at(new JumpInst((LocalVar) leftPair.getValue()));
       leftPair.getEnd().setNext(0, jump);
 
-      InstPair rightPair = operation.getRight().accept(this);
-      CopyInst copyRight = new CopyInst(result, (LocalVar) rightPair.getValue());
+      InstPair rightPair = lower(operation.getRight());
+      CopyInst copyRight = at(new CopyInst(result, (LocalVar) rightPair.getValue()));
       rightPair.getEnd().setNext(0, copyRight);
 
-      NopInst elseBlock = new NopInst();
-      CopyInst copyFalse = new CopyInst(result, BooleanConstant.get(mCurrentProgram, false));
+      NopInst elseBlock = at(new NopInst());
+      CopyInst copyFalse = at(new CopyInst(result, BooleanConstant.get(mCurrentProgram, false)));
       elseBlock.setNext(0, copyFalse);
 
-      NopInst join = new NopInst();
+      NopInst join = at(new NopInst());
       jump.setNext(1, rightPair.getStart());
       jump.setNext(0, elseBlock);
 
@@ -321,8 +346,8 @@ public final class ASTLower implements NodeVisitor<InstPair> {
       return new InstPair(leftPair.getStart(), join, result);
 
     } else {
-      InstPair leftPair = operation.getLeft().accept(this);
-      InstPair rightPair = operation.getRight().accept(this);
+      InstPair leftPair = lower(operation.getLeft());
+      InstPair rightPair = lower(operation.getRight());
       leftPair.getEnd().setNext(0, rightPair.getStart());
       LocalVar result = mCurrentFunction.getTempVar(operation.getType());
 
@@ -332,7 +357,7 @@ public final class ASTLower implements NodeVisitor<InstPair> {
         else if (op == OpExpr.Operation.SUB) {temp = BinaryOperator.Op.Sub;}
         else if (op == OpExpr.Operation.MULT) {temp = BinaryOperator.Op.Mul;}
         else {temp = BinaryOperator.Op.Div;}
-        BinaryOperator binOp = new BinaryOperator(temp, result, (LocalVar) leftPair.getValue(), (LocalVar) rightPair.getValue());
+        BinaryOperator binOp = at(new BinaryOperator(temp, result, (LocalVar) leftPair.getValue(), (LocalVar) rightPair.getValue()));
         rightPair.getEnd().setNext(0, binOp);
         return new InstPair(leftPair.getStart(), binOp, result);
       } else {
@@ -344,7 +369,7 @@ public final class ASTLower implements NodeVisitor<InstPair> {
         else if (op == OpExpr.Operation.EQ) {temp = CompareInst.Predicate.EQ;}
         else {temp = CompareInst.Predicate.NE;}
 
-        CompareInst cmpInst = new CompareInst(result, temp, (LocalVar) leftPair.getValue(), (LocalVar) rightPair.getValue());
+        CompareInst cmpInst = at(new CompareInst(result, temp, (LocalVar) leftPair.getValue(), (LocalVar) rightPair.getValue()));
         rightPair.getEnd().setNext(0, cmpInst);
         return new InstPair(leftPair.getStart(), cmpInst, result);
       }
@@ -360,10 +385,11 @@ public final class ASTLower implements NodeVisitor<InstPair> {
     Type arrayType = ((ArrayType)access.getBase().getType()).getBase();
     AddressVar baseAddr = mCurrentFunction.getTempAddressVar(arrayType);
     LocalVar localVar = mCurrentFunction.getTempVar(arrayType);
-    InstPair indexPair = access.getIndex().accept(this);
-    AddressAt addrAt = new AddressAt(baseAddr, access.getBase(), (LocalVar) indexPair.getValue());
+    InstPair indexPair = lower(access.getIndex());
+    AddressAt addrAt =
+        at(new AddressAt(baseAddr, access.getBase(), (LocalVar) indexPair.getValue()));
     indexPair.getEnd().setNext(0, addrAt);
-    LoadInst loadInst = new LoadInst(localVar, baseAddr);
+    LoadInst loadInst = at(new LoadInst(localVar, baseAddr));
     addrAt.setNext(0, loadInst);
     return new InstPair(indexPair.getStart(), loadInst, localVar);
   }
@@ -376,7 +402,7 @@ public final class ASTLower implements NodeVisitor<InstPair> {
   public InstPair visit(LiteralBool literalBool) {
     LocalVar result = mCurrentFunction.getTempVar(literalBool.getType());
     BooleanConstant constant = BooleanConstant.get(mCurrentProgram, literalBool.getValue());
-    CopyInst copy = new CopyInst(result, constant);
+    CopyInst copy = at(new CopyInst(result, constant));
     return new InstPair(copy, copy, result);
   }
 
@@ -388,7 +414,7 @@ public final class ASTLower implements NodeVisitor<InstPair> {
   public InstPair visit(LiteralInt literalInt) {
     LocalVar result = mCurrentFunction.getTempVar(literalInt.getType());
     IntegerConstant constant = IntegerConstant.get(mCurrentProgram, literalInt.getValue());
-    CopyInst copy = new CopyInst(result, constant);
+    CopyInst copy = at(new CopyInst(result, constant));
     return new InstPair(copy, copy, result);
   }
 
@@ -399,12 +425,12 @@ public final class ASTLower implements NodeVisitor<InstPair> {
   @Override
   public InstPair visit(Return ret) {
     if (ret.getValue() != null) {
-      InstPair exprPair = ret.getValue().accept(this);
-      ReturnInst retInst = new ReturnInst((LocalVar) exprPair.getValue());
+      InstPair exprPair = lower(ret.getValue());
+      ReturnInst retInst = at(new ReturnInst((LocalVar) exprPair.getValue()));
       exprPair.getEnd().setNext(0, retInst);
       return new InstPair(exprPair.getStart(), retInst);
     } else {
-      ReturnInst retInst = new ReturnInst(null);
+      ReturnInst retInst = at(new ReturnInst(null));
       return new InstPair(retInst, retInst);
     }
   }
@@ -417,8 +443,8 @@ public final class ASTLower implements NodeVisitor<InstPair> {
   public InstPair visit(Break brk) {
     LocalVar trueVar = mCurrentFunction.getTempVar(new BoolType());
     BooleanConstant trueConst = BooleanConstant.get(mCurrentProgram, true);
-    CopyInst copyInst = new CopyInst(trueVar, trueConst);
-    JumpInst jump = new JumpInst(trueVar);
+    CopyInst copyInst = at(new CopyInst(trueVar, trueConst));
+    JumpInst jump = at(new JumpInst(trueVar));
     copyInst.setNext(0, jump);
     return new InstPair(copyInst, jump);
   }
@@ -431,8 +457,8 @@ public final class ASTLower implements NodeVisitor<InstPair> {
   public InstPair visit(Continue cnt) {
     LocalVar trueVar = mCurrentFunction.getTempVar(new BoolType());
     BooleanConstant trueConst = BooleanConstant.get(mCurrentProgram, true);
-    CopyInst copyInst = new CopyInst(trueVar, trueConst);
-    JumpInst jump = new JumpInst(trueVar);
+    CopyInst copyInst = at(new CopyInst(trueVar, trueConst));
+    JumpInst jump = at(new JumpInst(trueVar));
     copyInst.setNext(0, jump);
     return new InstPair(copyInst, jump);
   }
@@ -443,23 +469,23 @@ public final class ASTLower implements NodeVisitor<InstPair> {
    */
   @Override
   public InstPair visit(IfElseBranch ifElseBranch) {
-    InstPair condPair = ifElseBranch.getCondition().accept(this);
-    JumpInst jump = new JumpInst((LocalVar) condPair.getValue());
+    InstPair condPair = lower(ifElseBranch.getCondition());
+    JumpInst jump = at(new JumpInst((LocalVar) condPair.getValue()));
     condPair.getEnd().setNext(0, jump);
-    InstPair thenPair = ifElseBranch.getThenBlock().accept(this);
+    InstPair thenPair = lower(ifElseBranch.getThenBlock());
     jump.setNext(1, thenPair.getStart());
 
     InstPair elsePair = null;
     if (ifElseBranch.getElseBlock() != null) {
-      elsePair = ifElseBranch.getElseBlock().accept(this);
+      elsePair = lower(ifElseBranch.getElseBlock());
       jump.setNext(0, elsePair.getStart());
     } else {
-      Instruction noElseBlock = new NopInst();
+      Instruction noElseBlock = at(new NopInst());
       jump.setNext(0, noElseBlock);
       elsePair = new InstPair(noElseBlock, noElseBlock);
     }
 
-    NopInst join = new NopInst();
+    NopInst join = at(new NopInst());
     thenPair.getEnd().setNext(0, join);
     elsePair.getEnd().setNext(0, join);
 
@@ -472,15 +498,15 @@ public final class ASTLower implements NodeVisitor<InstPair> {
    */
   @Override
   public InstPair visit(WhileLoop loop) {
-    NopInst condStart = new NopInst();
-    InstPair condPair = loop.getCondition().accept(this);
+    NopInst condStart = at(new NopInst());
+    InstPair condPair = lower(loop.getCondition());
     condStart.setNext(0, condPair.getStart());
 
-    JumpInst jumpCond = new JumpInst((LocalVar) condPair.getValue());
+    JumpInst jumpCond = at(new JumpInst((LocalVar) condPair.getValue()));
     condPair.getEnd().setNext(0, jumpCond);
-    NopInst join = new NopInst();
+    NopInst join = at(new NopInst());
 
-    InstPair bodyPair = loop.getBody().accept(this);
+    InstPair bodyPair = lower(loop.getBody());
     bodyPair.getEnd().setNext(0, condStart);
     jumpCond.setNext(1, bodyPair.getStart());
     jumpCond.setNext(0, join);
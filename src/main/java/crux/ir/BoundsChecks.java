@@ -0,0 +1,575 @@
+package crux.ir;
+
+import crux.ast.SymbolTable.Symbol;
+import crux.ast.types.ArrayType;
+import crux.ast.types.BoolType;
+import crux.ast.types.IntType;
+import crux.ir.insts.*;
+
+import java.io.PrintStream;
+import java.util.*;
+
+/**
+ * Array bounds checks. Every {@link AddressAt} with an offset is checked against the extent of its
+ * array (see {@link AddressAt#isChecked()}), and then as many checks as possible are taken out
+ * again:
+ * <ul>
+ * <li>A check whose offset {@link RangeAnalysis} proves to lie within the array is dropped. This
+ * covers loops whose condition bounds the index by a constant, such as {@code while i < 10} over an
+ * array of ten elements, and accesses at an offset that an earlier check already covers.</li>
+ * <li>A check in an innermost loop that counts an index {@code i} up by one while
+ * {@code i < bound} or {@code i <= bound} is hoisted in front of the loop, if it runs in every
+ * iteration and its offset is {@code i} plus a constant or does not change in the loop. If the loop
+ * runs at all, the offsets of its first and last iteration are then checked once.</li>
+ * </ul>
+ * A loop only gets hoisted checks if it calls nothing, does not divide by a variable and is only
+ * left through its condition. A hoisted check therefore only fails if the loop would have failed
+ * later, and nothing the loop does in between is visible; the offset it reports is the first or
+ * last of the range instead of the one the loop would have reached first.
+ * <p>
+ * The checks that remain are carried out by every engine when the address is computed, and a
+ * failing check ends the program with the message of {@link #indexError(long, long)}.
+ */
+public final class BoundsChecks {
+  private final Program p;
+  // Accesses, proven and hoisted checks per function, in program order.
+  private final LinkedHashMap<String, int[]> counts = new LinkedHashMap<>();
+
+  public BoundsChecks(Program p) {
+    this.p = p;
+  }
+
+  /**
+   * The error a failing check raises, with the same message as the native runtime.
+   */
+  static Error indexError(long index, long length) {
+    return new Error(String.format("Index %d out of bounds for length %d", index, length));
+  }
+
+  /**
+   * Checks the accesses of every function and removes the checks that are not needed. This changes
+   * the CFGs and must only be done once.
+   */
+  public void insert() {
+    for (Iterator<Function> it = p.getFunctions(); it.hasNext();) {
+      insert(it.next());
+    }
+  }
+
+  private void insert(Function f) {
+    var accesses = new ArrayList<AddressAt>();
+    for (Instruction inst : f.getFrameLayout().getInstructions()) {
+      if (inst instanceof AddressAt && ((AddressAt) inst).getOffset() != null) {
+        ((AddressAt) inst).setChecked(true);
+        accesses.add((AddressAt) inst);
+      }
+    }
+    var ranges = new RangeAnalysis(f);
+    var remaining = new ArrayList<AddressAt>();
+    for (AddressAt access : accesses) {
+      long[] range = ranges.getOffsetRange(access);
+      if (range == null || (range[0] >= 0 && range[1] < access.getExtent()))
+        access.setChecked(false);
+      else
+        remaining.add(access);
+    }
+    int hoisted = remaining.isEmpty() ? 0 : new Hoister(f).hoist(remaining);
+    counts.put(f.getName(), new int[] {accesses.size(),
+        accesses.size() - remaining.size(), hoisted});
+  }
+
+  /**
+   * Prints how many accesses every function has and how many of their checks were proven
+   * unnecessary or hoisted out of loops, once {@link #insert()} has run.
+   */
+  public void writeStats(PrintStream stream) {
+    int[] total = new int[3];
+    stream.printf("%-24s %8s %8s %8s %8s%n", "function", "accesses", "proven", "hoisted",
+        "checked");
+    for (var entry : counts.entrySet()) {
+      int[] c = entry.getValue();
+      stream.printf("%-24s %8d %8d %8d %8d%n", entry.getKey(), c[0], c[1], c[2],
+          c[0] - c[1] - c[2]);
+      for (int k = 0; k < total.length; k++)
+        total[k] += c[k];
+    }
+    stream.printf("%-24s %8d %8d %8d %8d%n", "total", total[0], total[1], total[2],
+        total[0] - total[1] - total[2]);
+    double accesses = Math.max(total[0], 1);
+    stream.printf("eliminated %.1f%% of checks, hoisted %.1f%% out of loops%n",
+        100 * total[1] / accesses, 100 * total[2] / accesses);
+  }
+
+  /**
+   * A loop that checks can be hoisted out of, described by the shape of its condition.
+   */
+  private static final class Loop {
+    final Instruction header;
+    final Set<Instruction> body;
+    Instruction latch;
+    // The last instruction before the loop, or null if the loop starts the function.
+    Instruction preheader;
+    // The first instruction after the condition in an iteration, and the ones before it.
+    Instruction bodyStart;
+    Set<Instruction> condition;
+    CompareInst compare;
+    // The condition that holds in the loop: index < bound, or index <= bound.
+    CompareInst.Predicate predicate;
+    LocalVar index;
+    LocalVar bound;
+    // How the bound is computed again in front of the loop if the loop computes it itself.
+    Instruction boundDefinition;
+    // The copy index = index + 1.
+    CopyInst increment;
+    // The checks that replace the hoisted ones, in the order they are found.
+    final LinkedHashMap<List<Object>, AddressAt> checks = new LinkedHashMap<>();
+
+    Loop(Instruction header, Set<Instruction> body) {
+      this.header = header;
+      this.body = body;
+    }
+  }
+
+  /**
+   * Hoists checks out of the innermost loops of one function.
+   */
+  private final class Hoister {
+    private final Function f;
+    private final FrameLayout layout;
+    private final HashMap<Instruction, List<Instruction>> predecessors = new HashMap<>();
+    private final HashMap<Variable, Instruction> definitions = new HashMap<>();
+    // The innermost loop around each instruction, if it qualifies.
+    private final HashMap<Instruction, Loop> loopOf = new HashMap<>();
+
+    Hoister(Function f) {
+      this.f = f;
+      layout = f.getFrameLayout();
+      for (Instruction inst : layout.getInstructions()) {
+        for (int childIdx = 0; childIdx < inst.numNext(); childIdx++) {
+          if (inst.getNext(childIdx) != null)
+            predecessors.computeIfAbsent(inst.getNext(childIdx), k -> new ArrayList<>())
+                .add(inst);
+        }
+        if (inst.mDestVar != null && layout.getNumWrites(inst.mDestVar) == 1)
+          definitions.put(inst.mDestVar, inst);
+      }
+      findLoops();
+    }
+
+    /**
+     * Hoists what it can of {@code accesses} and returns how many were hoisted.
+     */
+    int hoist(List<AddressAt> accesses) {
+      int hoisted = 0;
+      var changed = new LinkedHashSet<Loop>();
+      for (AddressAt access : accesses) {
+        Loop loop = loopOf.get(access);
+        if (loop != null && hoist(loop, access)) {
+          access.setChecked(false);
+          changed.add(loop);
+          hoisted++;
+        }
+      }
+      for (Loop loop : changed)
+        insertGuard(loop);
+      if (!changed.isEmpty())
+        f.invalidateFrameLayout();
+      return hoisted;
+    }
+
+    private void findLoops() {
+      // Back edges are the edges to an instruction on the stack of a depth-first search.
+      var latches = new LinkedHashMap<Instruction, List<Instruction>>();
+      var onStack = new HashSet<Instruction>();
+      var visited = new HashSet<Instruction>();
+      var stack = new ArrayDeque<Instruction>();
+      var nextChild = new HashMap<Instruction, Integer>();
+      stack.push(f.getStart());
+      visited.add(f.getStart());
+      onStack.add(f.getStart());
+      while (!stack.isEmpty()) {
+        Instruction inst = stack.peek();
+        int childIdx = nextChild.getOrDefault(inst, 0);
+        if (childIdx == inst.numNext()) {
+          stack.pop();
+          onStack.remove(inst);
+          continue;
+        }
+        nextChild.put(inst, childIdx + 1);
+        Instruction child = inst.getNext(childIdx);
+        if (child == null)
+          continue;
+        if (onStack.contains(child))
+          latches.computeIfAbsent(child, k -> new ArrayList<>()).add(inst);
+        else if (visited.add(child)) {
+          onStack.add(child);
+          stack.push(child);
+        }
+      }
+
+      var loops = new ArrayList<Loop>();
+      for (var entry : latches.entrySet()) {
+        Instruction header = entry.getKey();
+        var body = new HashSet<Instruction>();
+        body.add(header);
+        var pending = new ArrayDeque<>(entry.getValue());
+        while (!pending.isEmpty()) {
+          Instruction inst = pending.pop();
+          if (body.add(inst))
+            pending.addAll(predecessors.getOrDefault(inst, List.of()));
+        }
+        var loop = new Loop(header, body);
+        if (entry.getValue().size() == 1)
+          loop.latch = entry.getValue().get(0);
+        loops.add(loop);
+      }
+      for (Loop loop : loops) {
+        boolean innermost = true;
+        for (Loop other : loops) {
+          if (other != loop && loop.body.contains(other.header))
+            innermost = false;
+        }
+        if (innermost && analyze(loop)) {
+          for (Instruction inst : loop.body)
+            loopOf.put(inst, loop);
+        }
+      }
+    }
+
+    /**
+     * Whether the loop has the shape described in {@link BoundsChecks}, filling in its fields.
+     */
+    private boolean analyze(Loop loop) {
+      if (loop.latch == null)
+        return false;
+      for (Instruction pred : predecessors.get(loop.header)) {
+        if (loop.body.contains(pred))
+          continue;
+        if (loop.preheader != null)
+          return false;
+        loop.preheader = pred;
+      }
+      if (loop.preheader == null && loop.header != f.getStart())
+        return false;
+
+      JumpInst exit = null;
+      for (Instruction inst : loop.body) {
+        if (inst instanceof CallInst || inst instanceof ReturnInst || mayDivideByZero(inst))
+          return false;
+        int numNext = inst instanceof JumpInst ? 2 : 1;
+        for (int childIdx = 0; childIdx < numNext; childIdx++) {
+          if (loop.body.contains(inst.getNext(childIdx)))
+            continue;
+          if (!(inst instanceof JumpInst) || exit != null || inst.getNext(childIdx) == null)
+            return false;
+          exit = (JumpInst) inst;
+        }
+      }
+      if (exit == null || layout.getNumPredecessors(exit) != 1)
+        return false;
+      Instruction compare = predecessors.get(exit).get(0);
+      if (!(compare instanceof CompareInst) || definitions.get(exit.getPredicate()) != compare)
+        return false;
+      loop.compare = (CompareInst) compare;
+      boolean takenStays = loop.body.contains(exit.getNext(1));
+      loop.bodyStart = exit.getNext(takenStays ? 1 : 0);
+      loop.condition = reachable(loop, loop.header, exit);
+      loop.condition.add(exit);
+
+      // Normalize the condition to index < bound or index <= bound.
+      CompareInst.Predicate predicate = loop.compare.getPredicate();
+      if (!takenStays)
+        predicate = RangeAnalysis.negate(predicate);
+      LocalVar lhs = loop.compare.getLeftOperand();
+      LocalVar rhs = loop.compare.getRightOperand();
+      if (!findIncrement(loop, lhs)) {
+        if (!findIncrement(loop, rhs))
+          return false;
+        lhs = rhs;
+        rhs = loop.compare.getLeftOperand();
+        predicate = swap(predicate);
+      }
+      if (predicate != CompareInst.Predicate.LT && predicate != CompareInst.Predicate.LE)
+        return false;
+      loop.predicate = predicate;
+      loop.index = lhs;
+      loop.bound = rhs;
+      if (lhs == rhs || !invariantBound(loop))
+        return false;
+      // The increment runs once in every iteration, after the condition.
+      return !loop.condition.contains(loop.increment)
+          && !reaches(loop, loop.bodyStart, loop.latch, loop.increment);
+    }
+
+    private boolean mayDivideByZero(Instruction inst) {
+      if (!(inst instanceof BinaryOperator)
+          || ((BinaryOperator) inst).getOperator() != BinaryOperator.Op.Div)
+        return false;
+      Long divisor = constant(((BinaryOperator) inst).getRightOperand());
+      return divisor == null || divisor == 0;
+    }
+
+    /**
+     * The value of {@code var} if it is only ever written by a copy of an integer constant.
+     */
+    private Long constant(LocalVar var) {
+      Instruction def = definitions.get(var);
+      if (def instanceof CopyInst && ((CopyInst) def).getSrcValue() instanceof IntegerConstant)
+        return ((IntegerConstant) ((CopyInst) def).getSrcValue()).getValue();
+      return null;
+    }
+
+    private CompareInst.Predicate swap(CompareInst.Predicate predicate) {
+      switch (predicate) {
+        case LT:
+          return CompareInst.Predicate.GT;
+        case LE:
+          return CompareInst.Predicate.GE;
+        case GT:
+          return CompareInst.Predicate.LT;
+        case GE:
+          return CompareInst.Predicate.LE;
+        default:
+          return predicate;
+      }
+    }
+
+    /**
+     * Whether the only write of {@code var} in the loop is {@code var = var + 1}, which it then
+     * records as the increment of the loop.
+     */
+    private boolean findIncrement(Loop loop, LocalVar var) {
+      CopyInst increment = null;
+      for (Instruction inst : loop.body) {
+        if (inst.mDestVar != var)
+          continue;
+        if (increment != null || !(inst instanceof CopyInst))
+          return false;
+        increment = (CopyInst) inst;
+      }
+      if (increment == null || !(increment.getSrcValue() instanceof LocalVar))
+        return false;
+      Instruction sum = definitions.get(increment.getSrcValue());
+      if (!(sum instanceof BinaryOperator))
+        return false;
+      BinaryOperator add = (BinaryOperator) sum;
+      if (add.getOperator() != BinaryOperator.Op.Add)
+        return false;
+      LocalVar one = add.getLeftOperand() == var ? add.getRightOperand() : add.getLeftOperand();
+      if ((add.getLeftOperand() != var && add.getRightOperand() != var)
+          || !Long.valueOf(1).equals(constant(one)))
+        return false;
+      loop.increment = increment;
+      return true;
+    }
+
+    /**
+     * Whether the bound has the same value in every iteration, and how it can be computed in front
+     * of the loop: the bound itself if the loop does not write it, otherwise a constant or a global
+     * that the loop does not store to.
+     */
+    private boolean invariantBound(Loop loop) {
+      if (!writesInLoop(loop, loop.bound))
+        return true;
+      Instruction def = definitions.get(loop.bound);
+      if (def == null || !loop.body.contains(def))
+        return false;
+      if (constant(loop.bound) != null) {
+        loop.boundDefinition = def;
+        return true;
+      }
+      if (!(def instanceof LoadInst))
+        return false;
+      Instruction address = definitions.get(((LoadInst) def).getSrcAddress());
+      if (!(address instanceof AddressAt) || ((AddressAt) address).getOffset() != null)
+        return false;
+      Symbol global = ((AddressAt) address).getBase();
+      for (Instruction inst : loop.body) {
+        if (!(inst instanceof StoreInst))
+          continue;
+        Instruction target = definitions.get(((StoreInst) inst).getDestAddress());
+        if (!(target instanceof AddressAt) || ((AddressAt) target).getBase() == global)
+          return false;
+      }
+      loop.boundDefinition = def;
+      return true;
+    }
+
+    private boolean writesInLoop(Loop loop, Variable var) {
+      for (Instruction inst : loop.body) {
+        if (inst.mDestVar == var)
+          return true;
+      }
+      return false;
+    }
+
+    /**
+     * The instructions of the loop reachable from {@code from} in the same iteration, without
+     * passing {@code avoid}.
+     */
+    private Set<Instruction> reachable(Loop loop, Instruction from, Instruction avoid) {
+      var result = new HashSet<Instruction>();
+      var pending = new ArrayDeque<Instruction>();
+      if (from != avoid)
+        pending.push(from);
+      while (!pending.isEmpty()) {
+        Instruction inst = pending.pop();
+        if (!result.add(inst))
+          continue;
+        for (int childIdx = 0; childIdx < inst.numNext(); childIdx++) {
+          Instruction child = inst.getNext(childIdx);
+          if (child != null && child != avoid && child != loop.header
+              && loop.body.contains(child))
+            pending.push(child);
+        }
+      }
+      return result;
+    }
+
+    private boolean reaches(Loop loop, Instruction from, Instruction to, Instruction avoid) {
+      return reachable(loop, from, avoid).contains(to);
+    }
+
+    /**
+     * How much the index has grown since the condition when {@code inst} runs: 0 before the
+     * increment, 1 after it, or null if either is possible.
+     */
+    private Long growth(Loop loop, Instruction inst) {
+      boolean before = reaches(loop, loop.bodyStart, inst, loop.increment);
+      boolean after = reachable(loop, loop.increment, null).contains(inst);
+      if (before == after)
+        return null;
+      return before ? 0L : 1L;
+    }
+
+    /**
+     * Plans the checks that replace the check of {@code access} in front of the loop, if it can
+     * be hoisted.
+     */
+    private boolean hoist(Loop loop, AddressAt access) {
+      if (loop.condition.contains(access)
+          || reaches(loop, loop.bodyStart, loop.latch, access))
+        return false;
+      LocalVar offset = access.getOffset();
+      if (!writesInLoop(loop, offset)) {
+        loop.checks.putIfAbsent(List.of(access.getBase(), offset), access);
+        return true;
+      }
+      Instruction def = offset == loop.index ? access : definitions.get(offset);
+      long shift = 0;
+      if (offset != loop.index) {
+        if (!(def instanceof BinaryOperator) || !loop.body.contains(def))
+          return false;
+        BinaryOperator op = (BinaryOperator) def;
+        LocalVar other = op.getLeftOperand() == loop.index ? op.getRightOperand()
+            : op.getRightOperand() == loop.index ? op.getLeftOperand() : null;
+        Long value = other != null ? constant(other) : null;
+        if (value == null || op.getOperator() == BinaryOperator.Op.Mul
+            || op.getOperator() == BinaryOperator.Op.Div
+            || (op.getOperator() == BinaryOperator.Op.Sub && other == op.getLeftOperand()))
+          return false;
+        shift = op.getOperator() == BinaryOperator.Op.Sub ? -value : value;
+        // The offset must be computed in the same iteration as the access.
+        if (shift == Long.MIN_VALUE || loop.condition.contains(def)
+            || reaches(loop, loop.bodyStart, access, def))
+          return false;
+      }
+      Long growth = growth(loop, def);
+      if (growth == null)
+        return false;
+      try {
+        long first = Math.addExact(shift, growth);
+        long last = loop.predicate == CompareInst.Predicate.LT ? Math.subtractExact(first, 1)
+            : first;
+        loop.checks.putIfAbsent(List.of(access.getBase(), loop.index, first), access);
+        loop.checks.putIfAbsent(List.of(access.getBase(), loop.bound, last), access);
+      } catch (ArithmeticException e) {
+        return false;
+      }
+      return true;
+    }
+
+    /**
+     * Puts the hoisted checks on the edge into the loop, behind a test of whether the loop runs at
+     * all:
+     *
+     * <pre>
+     * {@code
+     * if (index < bound) {
+     *   check(first offset);
+     *   check(last offset);
+     * }
+     * }
+     * </pre>
+     */
+    private void insertGuard(Loop loop) {
+      var chain = new ArrayList<Instruction>();
+      LocalVar bound = loop.bound;
+      if (loop.boundDefinition instanceof CopyInst) {
+        bound = f.getTempVar(new IntType());
+        chain.add(new CopyInst(bound, ((CopyInst) loop.boundDefinition).getSrcValue()));
+      } else if (loop.boundDefinition instanceof LoadInst) {
+        var address = (AddressAt) definitions.get(
+            ((LoadInst) loop.boundDefinition).getSrcAddress());
+        AddressVar global = f.getTempAddressVar(new IntType());
+        bound = f.getTempVar(new IntType());
+        chain.add(new AddressAt(global, address.getBase()));
+        chain.add(new LoadInst(bound, global));
+      }
+      LocalVar runs = f.getTempVar(new BoolType());
+      chain.add(new CompareInst(runs, loop.predicate, loop.index, bound));
+      var jump = new JumpInst(runs);
+      chain.add(jump);
+      for (Instruction inst : chain)
+        inst.setPosition(loop.compare.getPosition());
+
+      var checks = new ArrayList<Instruction>();
+      for (var entry : loop.checks.entrySet()) {
+        List<Object> key = entry.getKey();
+        AddressAt access = entry.getValue();
+        LocalVar offset = (LocalVar) key.get(1);
+        if (offset == loop.bound)
+          offset = bound;
+        var part = new ArrayList<Instruction>();
+        if (key.size() == 3 && (long) key.get(2) != 0) {
+          LocalVar amount = f.getTempVar(new IntType());
+          part.add(new CopyInst(amount, IntegerConstant.get(p, (long) key.get(2))));
+          LocalVar sum = f.getTempVar(new IntType());
+          part.add(new BinaryOperator(BinaryOperator.Op.Add, sum, offset, amount));
+          offset = sum;
+        }
+        Symbol array = access.getBase();
+        var check = new AddressAt(
+            f.getTempAddressVar(((ArrayType) array.getType()).getBase()), array, offset);
+        check.setChecked(true);
+        part.add(check);
+        for (Instruction inst : part)
+          inst.setPosition(access.getPosition());
+        checks.addAll(part);
+      }
+
+      var join = new NopInst();
+      join.setNext(0, loop.header);
+      link(checks, join);
+      jump.setNext(1, checks.get(0));
+      jump.setNext(0, join);
+      link(chain.subList(0, chain.size() - 1), jump);
+      if (loop.preheader == null) {
+        f.setStart(chain.get(0));
+        return;
+      }
+      for (int childIdx = 0; childIdx < loop.preheader.numNext(); childIdx++) {
+        if (loop.preheader.getNext(childIdx) == loop.header)
+          loop.preheader.setNext(childIdx, chain.get(0));
+      }
+    }
+
+    /**
+     * Connects {@code insts} in order, followed by {@code next}.
+     */
+    private void link(List<Instruction> insts, Instruction next) {
+      for (int k = 0; k < insts.size(); k++)
+        insts.get(k).setNext(0, k + 1 < insts.size() ? insts.get(k + 1) : next);
+    }
+  }
+}
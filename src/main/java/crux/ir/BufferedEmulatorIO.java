@@ -0,0 +1,250 @@
+package crux.ir;
+
+import java.io.*;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The default {@link EmulatorIO}. Output is collected in a large character buffer and encoded in
+ * bulk when it is full, when the program ends, on {@link #flush()} and before a read that could
+ * block. The bytes written are exactly the ones a {@link PrintStream} with the platform charset
+ * would have produced for the same calls.
+ * <p>
+ * Input is decoded into a character buffer as well. {@link #readInt()} parses digits directly from
+ * that buffer instead of materializing each line as a string. An input file given to
+ * {@link #mapped(String, OutputStream)} is memory-mapped and decoded once up front, so reading it
+ * never blocks and never has to flush.
+ */
+public final class BufferedEmulatorIO implements EmulatorIO {
+  private static final int BUFFER_SIZE = 1 << 16;
+  private static final String LINE_SEPARATOR = System.lineSeparator();
+
+  private final Writer out;
+  private final char[] outBuf = new char[BUFFER_SIZE];
+  private int outPos;
+
+  // Null if all of the input was decoded into inBuf up front.
+  private final Reader in;
+  private char[] inBuf;
+  private int inPos;
+  private int inLimit;
+  // Set after a line ended with '\r', so that a following '\n' belongs to the same terminator.
+  private boolean skipLF;
+
+  public BufferedEmulatorIO(InputStream input, OutputStream output) {
+    this(new InputStreamReader(input), new char[BUFFER_SIZE], 0, output);
+  }
+
+  private BufferedEmulatorIO(Reader in, char[] inBuf, int inLimit, OutputStream output) {
+    this.in = in;
+    this.inBuf = inBuf;
+    this.inLimit = inLimit;
+    out = new OutputStreamWriter(output);
+  }
+
+  /**
+   * Reads the input from the file {@code inputFile} by mapping it into memory.
+   */
+  public static BufferedEmulatorIO mapped(String inputFile, OutputStream output)
+      throws IOException {
+    try (var channel = FileChannel.open(Path.of(inputFile), StandardOpenOption.READ)) {
+      var bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      CharBuffer chars = Charset.defaultCharset().decode(bytes);
+      char[] inBuf = new char[chars.remaining()];
+      chars.get(inBuf);
+      return new BufferedEmulatorIO(null, inBuf, inBuf.length, output);
+    }
+  }
+
+  @Override
+  public long readInt() throws IOException {
+    if (skipLF && inPos < inLimit) {
+      skipLF = false;
+      if (inBuf[inPos] == '\n')
+        inPos++;
+    }
+    // Fast path: the whole line is in the buffer and is a plain decimal number.
+    if (!skipLF) {
+      for (int i = inPos; i < inLimit; i++) {
+        char c = inBuf[i];
+        if (c == '\n' || c == '\r') {
+          if (!isNumber(inPos, i))
+            break;
+          long value = parse(inPos, i);
+          inPos = i + 1;
+          skipLF = c == '\r';
+          return value;
+        }
+      }
+    }
+    return Long.parseLong(readLine());
+  }
+
+  @Override
+  public int readChar() throws IOException {
+    if (inPos == inLimit && !fill())
+      return -1;
+    if (skipLF) {
+      skipLF = false;
+      if (inBuf[inPos] == '\n' && ++inPos == inLimit && !fill())
+        return -1;
+    }
+    return inBuf[inPos++];
+  }
+
+  @Override
+  public void printBool(boolean value) {
+    print(value ? "true" : "false");
+  }
+
+  @Override
+  public void printInt(long value) {
+    if (value == Long.MIN_VALUE) {
+      print(Long.toString(value));
+      return;
+    }
+    if (BUFFER_SIZE - outPos < 20)
+      flush();
+    if (value < 0) {
+      outBuf[outPos++] = '-';
+      value = -value;
+    }
+    int end = outPos + digits(value);
+    for (int i = end - 1; i >= outPos; i--) {
+      outBuf[i] = (char) ('0' + value % 10);
+      value /= 10;
+    }
+    outPos = end;
+  }
+
+  @Override
+  public void printChar(char value) {
+    if (outPos == BUFFER_SIZE)
+      flush();
+    outBuf[outPos++] = value;
+  }
+
+  @Override
+  public void print(String s) {
+    int length = s.length();
+    if (length > BUFFER_SIZE - outPos) {
+      flush();
+      if (length > BUFFER_SIZE) {
+        write(s.toCharArray(), length);
+        return;
+      }
+    }
+    s.getChars(0, length, outBuf, outPos);
+    outPos += length;
+  }
+
+  @Override
+  public void println(String s) {
+    print(s);
+    print(LINE_SEPARATOR);
+  }
+
+  @Override
+  public void flush() {
+    write(outBuf, outPos);
+    outPos = 0;
+  }
+
+  private void write(char[] chars, int length) {
+    // Like PrintStream, errors of the underlying stream are not reported to the program.
+    try {
+      out.write(chars, 0, length);
+      out.flush();
+    } catch (IOException e) {
+      // ignored
+    }
+  }
+
+  /**
+   * The line starting at {@code inPos} without its terminator, or null at the end of the input.
+   * Follows the rules of {@link BufferedReader#readLine()}.
+   */
+  private String readLine() throws IOException {
+    var line = new StringBuilder();
+    while (true) {
+      if (inPos == inLimit && !fill())
+        return line.length() > 0 ? line.toString() : null;
+      char c = inBuf[inPos];
+      if (skipLF) {
+        skipLF = false;
+        if (c == '\n') {
+          inPos++;
+          continue;
+        }
+      }
+      inPos++;
+      if (c == '\n' || c == '\r') {
+        skipLF = c == '\r';
+        return line.toString();
+      }
+      line.append(c);
+    }
+  }
+
+  /**
+   * Refills the input buffer. Returns false at the end of the input.
+   */
+  private boolean fill() throws IOException {
+    if (in == null)
+      return false;
+    // Keep an unterminated line, so that readInt can still parse it from the buffer.
+    int kept = inLimit - inPos;
+    if (kept == inBuf.length)
+      inBuf = Arrays.copyOf(inBuf, inBuf.length * 2);
+    System.arraycopy(inBuf, inPos, inBuf, 0, kept);
+    inPos = 0;
+    inLimit = kept;
+    // The program may be waiting for a prompt to be seen before it types anything.
+    flush();
+    int n = in.read(inBuf, inLimit, inBuf.length - inLimit);
+    if (n <= 0)
+      return false;
+    inLimit += n;
+    return true;
+  }
+
+  /**
+   * Whether {@code inBuf[start, end)} is an optionally signed decimal number that is short enough
+   * to be parsed without overflow checks.
+   */
+  private boolean isNumber(int start, int end) {
+    if (start < end && (inBuf[start] == '-' || inBuf[start] == '+'))
+      start++;
+    if (start == end || end - start > 18)
+      return false;
+    for (int i = start; i < end; i++) {
+      if (inBuf[i] < '0' || inBuf[i] > '9')
+        return false;
+    }
+    return true;
+  }
+
+  private long parse(int start, int end) {
+    boolean negative = inBuf[start] == '-';
+    if (negative || inBuf[start] == '+')
+      start++;
+    long value = 0;
+    for (int i = start; i < end; i++) {
+      value = value * 10 + (inBuf[i] - '0');
+    }
+    return negative ? -value : value;
+  }
+
+  private static int digits(long value) {
+    int n = 1;
+    while (value >= 10) {
+      value /= 10;
+      n++;
+    }
+    return n;
+  }
+}
@@ -0,0 +1,210 @@
+package crux.ir;
+
+/**
+ * The pre-decoded form of a {@link Function}, as produced by {@link BytecodeTranslator} and executed
+ * by {@link BytecodeEmulator}. The body is a flat {@code int[]}: every instruction is an opcode
+ * followed by its operands. Operands are frame slots (see {@link FrameLayout}), inline immediates or
+ * absolute code offsets, so the interpreter never touches the instruction graph.
+ * <p>
+ * Layout of each opcode (d = destination slot, a/b = source slots):
+ *
+ * <pre>
+ * {@code
+ * CONST      d lo hi          d = (hi << 32) | lo
+ * COPY       d a              d = a
+ * ADD..DIV   d a b            d = a op b
+ * GE..NE     d a b            d = a pred b ? 1 : 0
+ * NOT        d a              d = a == 0 ? 1 : 0
+ * ADDR       d base           d = base
+ * ADDR_INDEX d base a         d = base + a
+ * CHECK      a length         fail unless 0 <= a < length
+ * LOAD       d a              d = memory[a]
+ * LOAD_BOOL  d a              d = memory[a] != 0 ? 1 : 0
+ * STORE      a b              memory[b] = a
+ * BRANCH     a target         if (a != 0) goto target
+ * GOTO       target           goto target
+ * CALL       d fn n a1..an    d = functions[fn](a1, .., an)
+ * RETURN     a                return a
+ * RETURN_VOID                 return
+ * READ_INT   d, READ_CHAR d, PRINT_BOOL a, PRINT_INT a, PRINT_CHAR a, PRINTLN
+ * }
+ * </pre>
+ *
+ * The translator fuses common instruction pairs into superinstructions. They behave exactly like
+ * the pair, except that the intermediate value is not kept, because nothing else reads it:
+ *
+ * <pre>
+ * {@code
+ * ADD_IMM..DIV_IMM         d a imm            d = a op imm             (CONST + ADD..DIV)
+ * LOAD_GLOBAL              d base             d = memory[base]         (ADDR + LOAD)
+ * LOAD_ELEMENT             d base a           d = memory[base + a]     (ADDR_INDEX + LOAD)
+ * STORE_GLOBAL             a base             memory[base] = a         (ADDR + STORE)
+ * STORE_ELEMENT            a base b           memory[base + b] = a     (ADDR_INDEX + STORE)
+ * BRANCH_GE..BRANCH_NE     a b target         if (a pred b) goto target  (GE..NE + BRANCH)
+ * }
+ * </pre>
+ *
+ * A destination slot of -1 means the result is discarded. Unlike {@link Emulator}, addresses are
+ * counted in 8-byte words, so {@code base} is the word index of a global.
+ */
+public final class Bytecode {
+  public static final int CONST = 0;
+  public static final int COPY = 1;
+  public static final int ADD = 2;
+  public static final int SUB = 3;
+  public static final int MUL = 4;
+  public static final int DIV = 5;
+  public static final int GE = 6;
+  public static final int GT = 7;
+  public static final int LE = 8;
+  public static final int LT = 9;
+  public static final int EQ = 10;
+  public static final int NE = 11;
+  public static final int NOT = 12;
+  public static final int ADDR = 13;
+  public static final int ADDR_INDEX = 14;
+  public static final int LOAD = 15;
+  public static final int LOAD_BOOL = 16;
+  public static final int STORE = 17;
+  public static final int BRANCH = 18;
+  public static final int GOTO = 19;
+  public static final int CALL = 20;
+  public static final int RETURN = 21;
+  public static final int RETURN_VOID = 22;
+  public static final int READ_INT = 23;
+  public static final int READ_CHAR = 24;
+  public static final int PRINT_BOOL = 25;
+  public static final int PRINT_INT = 26;
+  public static final int PRINT_CHAR = 27;
+  public static final int PRINTLN = 28;
+  public static final int ADD_IMM = 29;
+  public static final int SUB_IMM = 30;
+  public static final int MUL_IMM = 31;
+  public static final int DIV_IMM = 32;
+  public static final int LOAD_GLOBAL = 33;
+  public static final int LOAD_ELEMENT = 34;
+  public static final int STORE_GLOBAL = 35;
+  public static final int STORE_ELEMENT = 36;
+  public static final int BRANCH_GE = 37;
+  public static final int BRANCH_GT = 38;
+  public static final int BRANCH_LE = 39;
+  public static final int BRANCH_LT = 40;
+  public static final int BRANCH_EQ = 41;
+  public static final int BRANCH_NE = 42;
+  public static final int CHECK = 43;
+
+  private static final String[] NAMES = {"const", "copy", "add", "sub", "mul", "div", "ge", "gt",
+      "le", "lt", "eq", "ne", "not", "addr", "addr_index", "load", "load_bool", "store", "branch",
+      "goto", "call", "return", "return_void", "read_int", "read_char", "print_bool", "print_int",
+      "print_char", "println", "add_imm", "sub_imm", "mul_imm", "div_imm", "load_global",
+      "load_element", "store_global", "store_element", "branch_ge", "branch_gt", "branch_le",
+      "branch_lt", "branch_eq", "branch_ne", "check"};
+
+  private final String mName;
+  private final int[] mCode;
+  private final int mNumSlots;
+  private final int mNumArgs;
+
+  Bytecode(String name, int[] code, int numSlots, int numArgs) {
+    mName = name;
+    mCode = code;
+    mNumSlots = numSlots;
+    mNumArgs = numArgs;
+  }
+
+  public String getName() {
+    return mName;
+  }
+
+  /**
+   * The code array. It is shared, not copied, so callers must not modify it.
+   */
+  public int[] getCode() {
+    return mCode;
+  }
+
+  public int getNumSlots() {
+    return mNumSlots;
+  }
+
+  public int getNumArgs() {
+    return mNumArgs;
+  }
+
+  /**
+   * Number of operands that follow the opcode at {@code pc}.
+   */
+  public static int numOperands(int[] code, int pc) {
+    switch (code[pc]) {
+      case CONST:
+      case ADD:
+      case SUB:
+      case MUL:
+      case DIV:
+      case GE:
+      case GT:
+      case LE:
+      case LT:
+      case EQ:
+      case NE:
+      case ADDR_INDEX:
+      case ADD_IMM:
+      case SUB_IMM:
+      case MUL_IMM:
+      case DIV_IMM:
+      case LOAD_ELEMENT:
+      case STORE_ELEMENT:
+      case BRANCH_GE:
+      case BRANCH_GT:
+      case BRANCH_LE:
+      case BRANCH_LT:
+      case BRANCH_EQ:
+      case BRANCH_NE:
+        return 3;
+      case COPY:
+      case NOT:
+      case ADDR:
+      case LOAD:
+      case LOAD_BOOL:
+      case STORE:
+      case BRANCH:
+      case LOAD_GLOBAL:
+      case STORE_GLOBAL:
+      case CHECK:
+        return 2;
+      case GOTO:
+      case RETURN:
+      case READ_INT:
+      case READ_CHAR:
+      case PRINT_BOOL:
+      case PRINT_INT:
+      case PRINT_CHAR:
+        return 1;
+      case CALL:
+        return 3 + code[pc + 3];
+      default:
+        return 0;
+    }
+  }
+
+  public static String opcodeName(int opcode) {
+    return NAMES[opcode];
+  }
+
+  /**
+   * Disassembles the code, one instruction per line.
+   */
+  @Override
+  public String toString() {
+    var builder = new StringBuilder();
+    builder.append(mName).append(": ").append(mNumSlots).append(" slots\n");
+    for (int pc = 0; pc < mCode.length; pc += 1 + numOperands(mCode, pc)) {
+      builder.append(String.format("%5d  %s", pc, opcodeName(mCode[pc])));
+      for (int j = 1; j <= numOperands(mCode, pc); j++) {
+        builder.append(' ').append(mCode[pc + j]);
+      }
+      builder.append('\n');
+    }
+    return builder.toString();
+  }
+}
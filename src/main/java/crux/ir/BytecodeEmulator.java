@@ -0,0 +1,494 @@
+package crux.ir;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * An alternative to {@link Emulator} that first translates the whole program into
+ * {@link Bytecode} and then interprets the code arrays with a single {@code switch} loop. The
+ * observable behaviour (program output, prompts and diagnostics) is the same as the
+ * {@link Emulator}'s, but there is no per-instruction double dispatch and no walking of the
+ * instruction graph.
+ */
+public final class BytecodeEmulator {
+  /** Default for {@link #setTierThreshold(int)}. */
+  public static final int DEFAULT_TIER_THRESHOLD = 1000;
+
+  private final Bytecode[] functions;
+  private final int mainIndex;
+  private final GlobalMemory memory;
+  private final Map<String, Integer> fusionCounts;
+
+  EmulatorIO io;
+
+  // The call stack: the state of every caller of the running function. frames[d] is the frame of
+  // the function at depth d; it stays allocated after a return and is reused by the next call that
+  // reaches the same depth, so steady-state calls do not allocate.
+  private int[] callerFn = new int[16];
+  private long[][] frames = new long[16][];
+  private int[] callerPc = new int[16];
+  private int[] callerRetSlot = new int[16];
+  private int depth;
+
+  // The state of the running function, handed between the interpreter and compiled code.
+  private int fnIndex;
+  private long[] frame;
+  private int pc;
+  private int retSlot;
+  private boolean finished;
+
+  // Tiering: functions are compiled to closures once their calls plus back-edges reach the
+  // threshold. A threshold of 0 or less keeps everything in the interpreter.
+  private int tierThreshold = DEFAULT_TIER_THRESHOLD;
+  private final int[] hotness;
+  private final ClosureCompiler.CompiledFunction[] compiled;
+  private final ClosureCompiler closureCompiler = new ClosureCompiler(this);
+
+  public BytecodeEmulator(Program p, InputStream emulatorInput, OutputStream emulatorOutput) {
+    this(p, new BufferedEmulatorIO(emulatorInput, emulatorOutput));
+  }
+
+  public BytecodeEmulator(Program p, EmulatorIO io) {
+    this(new ExecutableImage(p), io);
+  }
+
+  /**
+   * An emulator for a program that has already been translated. Nothing of the image is modified,
+   * so emulators on different threads may share it.
+   */
+  public BytecodeEmulator(ExecutableImage image, EmulatorIO io) {
+    this.io = io;
+
+    functions = image.getFunctions();
+    fusionCounts = image.getFusionCounts();
+    mainIndex = image.getMainIndex();
+    memory = GlobalMemory.allocate(image.getNumGlobalWords());
+    hotness = new int[functions.length];
+    compiled = new ClosureCompiler.CompiledFunction[functions.length];
+  }
+
+  /**
+   * Sets the number of calls plus loop back-edges after which a function is compiled to closures.
+   * Loops that get hot while running are switched to the compiled code at their header.
+   */
+  public void setTierThreshold(int threshold) {
+    tierThreshold = threshold;
+  }
+
+  /**
+   * How often the translator formed each superinstruction, keyed by opcode name.
+   */
+  public Map<String, Integer> getFusionCounts() {
+    return fusionCounts;
+  }
+
+  /**
+   * Number of functions that have been promoted to compiled code.
+   */
+  public int getNumCompiled() {
+    int count = 0;
+    for (var c : compiled) {
+      if (c != null)
+        count++;
+    }
+    return count;
+  }
+
+  public void run() {
+    fnIndex = mainIndex;
+    depth = 0;
+    frame = frameAt(0, functions[mainIndex].getNumSlots());
+    pc = 0;
+    retSlot = -1;
+    finished = false;
+    try {
+      while (!finished) {
+        var c = compiled[fnIndex];
+        if (c != null)
+          runCompiled(c);
+        else
+          interpret();
+      }
+    } finally {
+      io.flush();
+    }
+  }
+
+  /**
+   * Counts a call or back-edge of function {@code index} and compiles it once it is hot. Returns
+   * whether compiled code is available.
+   */
+  private boolean heat(int index) {
+    if (compiled[index] != null)
+      return true;
+    if (tierThreshold <= 0 || ++hotness[index] < tierThreshold)
+      return false;
+    compiled[index] = closureCompiler.compile(functions[index]);
+    return true;
+  }
+
+  /**
+   * Sets up the frame of {@code callee}, pushing the running function as its caller.
+   */
+  private long[] enter(int callee, int returnPc, int dst) {
+    push(fnIndex, returnPc, retSlot);
+    fnIndex = callee;
+    frame = frameAt(depth, functions[callee].getNumSlots());
+    pc = 0;
+    retSlot = dst;
+    return frame;
+  }
+
+  /**
+   * Returns {@code value} from the running function to its caller.
+   */
+  private void leave(long value) {
+    if (depth == 0) {
+      finished = true;
+      return;
+    }
+    int slot = retSlot;
+    depth--;
+    fnIndex = callerFn[depth];
+    frame = frames[depth];
+    pc = callerPc[depth];
+    retSlot = callerRetSlot[depth];
+    if (slot >= 0)
+      frame[slot] = value;
+  }
+
+  private void runCompiled(ClosureCompiler.CompiledFunction c) {
+    ClosureCompiler.Block[] blocks = c.blocks;
+    long[] f = frame;
+    int b = c.blockAt[pc];
+    while (true) {
+      ClosureCompiler.Block block = blocks[b];
+      for (ClosureCompiler.Op op : block.ops) {
+        op.exec(f);
+      }
+      switch (block.kind) {
+        case ClosureCompiler.JUMP:
+          b = block.exit.next(f);
+          break;
+        case ClosureCompiler.CALL: {
+          int[] args = block.args;
+          long[] calleeFrame = enter(block.callee, block.continuationPc, block.dst);
+          for (int j = 0; j < args.length; j++) {
+            calleeFrame[j] = f[args[j]];
+          }
+          heat(block.callee);
+          return;
+        }
+        default:
+          leave(block.valueSlot >= 0 ? f[block.valueSlot] : 0);
+          return;
+      }
+    }
+  }
+
+  private void interpret() {
+    int[] code = functions[fnIndex].getCode();
+    long[] frame = this.frame;
+    int pc = this.pc;
+
+    while (true) {
+      switch (code[pc]) {
+        case Bytecode.CONST:
+          frame[code[pc + 1]] = ((long) code[pc + 3] << 32) | (code[pc + 2] & 0xFFFFFFFFL);
+          pc += 4;
+          break;
+        case Bytecode.COPY:
+          frame[code[pc + 1]] = frame[code[pc + 2]];
+          pc += 3;
+          break;
+        case Bytecode.ADD:
+          frame[code[pc + 1]] = frame[code[pc + 2]] + frame[code[pc + 3]];
+          pc += 4;
+          break;
+        case Bytecode.SUB:
+          frame[code[pc + 1]] = frame[code[pc + 2]] - frame[code[pc + 3]];
+          pc += 4;
+          break;
+        case Bytecode.MUL:
+          frame[code[pc + 1]] = frame[code[pc + 2]] * frame[code[pc + 3]];
+          pc += 4;
+          break;
+        case Bytecode.DIV:
+          frame[code[pc + 1]] = frame[code[pc + 2]] / frame[code[pc + 3]];
+          pc += 4;
+          break;
+        case Bytecode.GE:
+          frame[code[pc + 1]] = frame[code[pc + 2]] >= frame[code[pc + 3]] ? 1 : 0;
+          pc += 4;
+          break;
+        case Bytecode.GT:
+          frame[code[pc + 1]] = frame[code[pc + 2]] > frame[code[pc + 3]] ? 1 : 0;
+          pc += 4;
+          break;
+        case Bytecode.LE:
+          frame[code[pc + 1]] = frame[code[pc + 2]] <= frame[code[pc + 3]] ? 1 : 0;
+          pc += 4;
+          break;
+        case Bytecode.LT:
+          frame[code[pc + 1]] = frame[code[pc + 2]] < frame[code[pc + 3]] ? 1 : 0;
+          pc += 4;
+          break;
+        case Bytecode.EQ:
+          frame[code[pc + 1]] = frame[code[pc + 2]] == frame[code[pc + 3]] ? 1 : 0;
+          pc += 4;
+          break;
+        case Bytecode.NE:
+          frame[code[pc + 1]] = frame[code[pc + 2]] != frame[code[pc + 3]] ? 1 : 0;
+          pc += 4;
+          break;
+        case Bytecode.NOT:
+          frame[code[pc + 1]] = frame[code[pc + 2]] == 0 ? 1 : 0;
+          pc += 3;
+          break;
+        case Bytecode.ADDR:
+          frame[code[pc + 1]] = code[pc + 2];
+          pc += 3;
+          break;
+        case Bytecode.ADDR_INDEX:
+          frame[code[pc + 1]] = code[pc + 2] + frame[code[pc + 3]];
+          pc += 4;
+          break;
+        case Bytecode.CHECK:
+          checkIndex(frame[code[pc + 1]], code[pc + 2]);
+          pc += 3;
+          break;
+        case Bytecode.LOAD:
+          frame[code[pc + 1]] = load(frame[code[pc + 2]]);
+          pc += 3;
+          break;
+        case Bytecode.LOAD_BOOL:
+          frame[code[pc + 1]] = load(frame[code[pc + 2]]) != 0 ? 1 : 0;
+          pc += 3;
+          break;
+        case Bytecode.STORE:
+          store(frame[code[pc + 2]], frame[code[pc + 1]]);
+          pc += 3;
+          break;
+        case Bytecode.BRANCH: {
+          int target = frame[code[pc + 1]] != 0 ? code[pc + 2] : pc + 3;
+          if (target <= pc && heat(fnIndex)) {
+            // On-stack replacement at the loop header.
+            this.pc = target;
+            return;
+          }
+          pc = target;
+          break;
+        }
+        case Bytecode.GOTO: {
+          int target = code[pc + 1];
+          if (target <= pc && heat(fnIndex)) {
+            this.pc = target;
+            return;
+          }
+          pc = target;
+          break;
+        }
+        case Bytecode.CALL: {
+          int callee = code[pc + 2];
+          int numArgs = code[pc + 3];
+          long[] calleeFrame = enter(callee, pc + 4 + numArgs, code[pc + 1]);
+          for (int j = 0; j < numArgs; j++) {
+            calleeFrame[j] = frame[code[pc + 4 + j]];
+          }
+          if (heat(callee))
+            return;
+          code = functions[callee].getCode();
+          frame = calleeFrame;
+          pc = 0;
+          break;
+        }
+        case Bytecode.RETURN:
+        case Bytecode.RETURN_VOID: {
+          leave(code[pc] == Bytecode.RETURN ? frame[code[pc + 1]] : 0);
+          if (finished || compiled[fnIndex] != null)
+            return;
+          code = functions[fnIndex].getCode();
+          frame = this.frame;
+          pc = this.pc;
+          break;
+        }
+        case Bytecode.READ_INT:
+          frame[code[pc + 1]] = readInt();
+          pc += 2;
+          break;
+        case Bytecode.READ_CHAR:
+          frame[code[pc + 1]] = readChar();
+          pc += 2;
+          break;
+        case Bytecode.PRINT_BOOL:
+          printBool(frame[code[pc + 1]]);
+          pc += 2;
+          break;
+        case Bytecode.PRINT_INT:
+          printInt(frame[code[pc + 1]]);
+          pc += 2;
+          break;
+        case Bytecode.PRINT_CHAR:
+          printChar(frame[code[pc + 1]]);
+          pc += 2;
+          break;
+        case Bytecode.PRINTLN:
+          println();
+          pc += 1;
+          break;
+        case Bytecode.ADD_IMM:
+          frame[code[pc + 1]] = frame[code[pc + 2]] + code[pc + 3];
+          pc += 4;
+          break;
+        case Bytecode.SUB_IMM:
+          frame[code[pc + 1]] = frame[code[pc + 2]] - code[pc + 3];
+          pc += 4;
+          break;
+        case Bytecode.MUL_IMM:
+          frame[code[pc + 1]] = frame[code[pc + 2]] * code[pc + 3];
+          pc += 4;
+          break;
+        case Bytecode.DIV_IMM:
+          frame[code[pc + 1]] = frame[code[pc + 2]] / code[pc + 3];
+          pc += 4;
+          break;
+        case Bytecode.LOAD_GLOBAL:
+          frame[code[pc + 1]] = load(code[pc + 2]);
+          pc += 3;
+          break;
+        case Bytecode.LOAD_ELEMENT:
+          frame[code[pc + 1]] = load(code[pc + 2] + frame[code[pc + 3]]);
+          pc += 4;
+          break;
+        case Bytecode.STORE_GLOBAL:
+          store(code[pc + 2], frame[code[pc + 1]]);
+          pc += 3;
+          break;
+        case Bytecode.STORE_ELEMENT:
+          store(code[pc + 2] + frame[code[pc + 3]], frame[code[pc + 1]]);
+          pc += 4;
+          break;
+        case Bytecode.BRANCH_GE:
+        case Bytecode.BRANCH_GT:
+        case Bytecode.BRANCH_LE:
+        case Bytecode.BRANCH_LT:
+        case Bytecode.BRANCH_EQ:
+        case Bytecode.BRANCH_NE: {
+          long left = frame[code[pc + 1]];
+          long right = frame[code[pc + 2]];
+          boolean taken;
+          switch (code[pc]) {
+            case Bytecode.BRANCH_GE:
+              taken = left >= right;
+              break;
+            case Bytecode.BRANCH_GT:
+              taken = left > right;
+              break;
+            case Bytecode.BRANCH_LE:
+              taken = left <= right;
+              break;
+            case Bytecode.BRANCH_LT:
+              taken = left < right;
+              break;
+            case Bytecode.BRANCH_EQ:
+              taken = left == right;
+              break;
+            default:
+              taken = left != right;
+              break;
+          }
+          int target = taken ? code[pc + 3] : pc + 4;
+          if (target <= pc && heat(fnIndex)) {
+            this.pc = target;
+            return;
+          }
+          pc = target;
+          break;
+        }
+        default:
+          throw new Error("Invalid opcode " + code[pc] + " in " + functions[fnIndex].getName()
+              + " at " + pc);
+      }
+    }
+  }
+
+  long load(long address) {
+    if (!memory.isInitialized(address)) {
+      io.println("Reading from uninitialized memory");
+      return 0;
+    }
+    return memory.get(address);
+  }
+
+  void store(long address, long value) {
+    memory.set(address, value);
+  }
+
+  static void checkIndex(long index, int length) {
+    if (index < 0 || index >= length)
+      throw BoundsChecks.indexError(index, length);
+  }
+
+  long readInt() {
+    try {
+      io.print("int?");
+      return io.readInt();
+    } catch (IOException e) {
+      throw new Error("Error in inputting Integer.");
+    }
+  }
+
+  long readChar() {
+    try {
+      int val = io.readChar();
+      if (val == -1)
+        throw new Error("Reading past end of stream.");
+      return val;
+    } catch (IOException e) {
+      throw new Error("Error in inputting Integer.");
+    }
+  }
+
+  void printBool(long value) {
+    io.printBool(value != 0);
+  }
+
+  void printInt(long value) {
+    io.printInt(value);
+  }
+
+  void printChar(long value) {
+    io.printChar((char) value);
+  }
+
+  void println() {
+    io.println("");
+  }
+
+  /**
+   * Returns a cleared frame of at least {@code numSlots} slots for depth {@code d}.
+   */
+  private long[] frameAt(int d, int numSlots) {
+    if (d == frames.length)
+      frames = Arrays.copyOf(frames, d * 2);
+    long[] f = frames[d];
+    if (f == null || f.length < numSlots)
+      return frames[d] = new long[numSlots];
+    Arrays.fill(f, 0, numSlots, 0);
+    return f;
+  }
+
+  private void push(int fn, int returnPc, int retSlot) {
+    if (depth == callerFn.length) {
+      int capacity = depth * 2;
+      callerFn = Arrays.copyOf(callerFn, capacity);
+      callerPc = Arrays.copyOf(callerPc, capacity);
+      callerRetSlot = Arrays.copyOf(callerRetSlot, capacity);
+    }
+    callerFn[depth] = fn;
+    callerPc[depth] = returnPc;
+    callerRetSlot[depth] = retSlot;
+    depth++;
+  }
+}
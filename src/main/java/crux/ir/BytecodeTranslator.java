@@ -0,0 +1,410 @@
+package crux.ir;
+
+import crux.ast.SymbolTable.Symbol;
+import crux.ast.types.IntType;
+import crux.ir.insts.*;
+
+import java.util.*;
+
+/**
+ * Translates every {@link Function} of a {@link Program} into {@link Bytecode}. Each function is
+ * translated exactly once: the CFG is linearized so that the false successor of a jump (and the
+ * only successor of everything else) falls through, frame slots come from {@link FrameLayout},
+ * constants become inline immediates and jump targets are resolved to code offsets. Calls are
+ * translated from their linked target (see {@link Program#link()}).
+ * <p>
+ * Pairs of instructions that {@link ASTLower} produces for nearly every expression are fused into a
+ * single superinstruction (see {@link Bytecode}): a global access and its address computation, an
+ * arithmetic operation and its constant operand, and a compare and the jump on its result. A pair
+ * is only fused when the second instruction cannot be reached any other way and the value passed
+ * between them is not read anywhere else. {@link #getFusionCounts()} tells how often each
+ * superinstruction was formed.
+ */
+public final class BytecodeTranslator {
+  private final List<Function> mFunctions = new ArrayList<>();
+  private final HashMap<String, Integer> mFunctionIndex = new HashMap<>();
+  private final HashMap<Symbol, Integer> mGlobalBase = new HashMap<>();
+  private long mNumGlobalWords;
+  private final TreeMap<String, Integer> mFusionCounts = new TreeMap<>();
+
+  public BytecodeTranslator(Program p) {
+    p.link();
+    for (Iterator<Function> func_it = p.getFunctions(); func_it.hasNext();) {
+      Function f = func_it.next();
+      mFunctionIndex.put(f.getName(), mFunctions.size());
+      mFunctions.add(f);
+    }
+    for (Iterator<GlobalDecl> glob_it = p.getGlobals(); glob_it.hasNext();) {
+      GlobalDecl g = glob_it.next();
+      if (mNumGlobalWords > Integer.MAX_VALUE)
+        throw new Error("Globals do not fit into the bytecode address space");
+      mGlobalBase.put(g.getSymbol(), (int) mNumGlobalWords);
+      mNumGlobalWords += g.getNumElement().getValue();
+    }
+  }
+
+  /**
+   * Index of the function called {@code name} in the array returned by {@link #translate()}, or -1.
+   */
+  public int getFunctionIndex(String name) {
+    return mFunctionIndex.getOrDefault(name, -1);
+  }
+
+  /**
+   * Total size of all globals, in 8-byte words.
+   */
+  public long getNumGlobalWords() {
+    return mNumGlobalWords;
+  }
+
+  /**
+   * How often each superinstruction was formed by {@link #translate()}, keyed by its opcode name.
+   */
+  public Map<String, Integer> getFusionCounts() {
+    return Collections.unmodifiableMap(mFusionCounts);
+  }
+
+  public Bytecode[] translate() {
+    Bytecode[] result = new Bytecode[mFunctions.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = new FunctionTranslator(mFunctions.get(i)).translate();
+    }
+    return result;
+  }
+
+  private final class FunctionTranslator extends InstVisitor {
+    private final Function f;
+    private FrameLayout layout;
+    private int[] code = new int[64];
+    private int size;
+    private final HashMap<Instruction, Integer> pcOf = new HashMap<>();
+    private final ArrayList<Integer> patchAt = new ArrayList<>();
+    private final ArrayList<Instruction> patchTarget = new ArrayList<>();
+
+    FunctionTranslator(Function f) {
+      this.f = f;
+    }
+
+    Bytecode translate() {
+      layout = f.getFrameLayout();
+      Deque<Instruction> pending = new ArrayDeque<>();
+      if (f.getStart() == null)
+        emit(Bytecode.RETURN_VOID);
+      else
+        pending.push(f.getStart());
+      while (!pending.isEmpty()) {
+        Instruction inst = pending.pop();
+        if (pcOf.containsKey(inst))
+          continue;
+        // Emit the fall-through chain starting at inst.
+        while (true) {
+          if (inst == null) {
+            // Running off the end of the CFG is an implicit return.
+            emit(Bytecode.RETURN_VOID);
+            break;
+          }
+          Integer target = pcOf.get(inst);
+          if (target != null) {
+            emit(Bytecode.GOTO, target);
+            break;
+          }
+          pcOf.put(inst, size);
+          if (inst instanceof AddressAt && ((AddressAt) inst).isChecked())
+            emitCheck((AddressAt) inst);
+          Instruction second = fuse(inst);
+          if (second != null) {
+            pcOf.put(second, pcOf.get(inst));
+            inst = second;
+          } else {
+            inst.accept(this);
+          }
+          if (inst instanceof ReturnInst)
+            break;
+          if (inst instanceof JumpInst && inst.getNext(1) != null)
+            pending.push(inst.getNext(1));
+          inst = inst.getNext(0);
+        }
+      }
+
+      int returnStub = -1;
+      for (int j = 0; j < patchAt.size(); j++) {
+        Instruction target = patchTarget.get(j);
+        int targetPc;
+        if (target == null) {
+          if (returnStub < 0) {
+            returnStub = size;
+            emit(Bytecode.RETURN_VOID);
+          }
+          targetPc = returnStub;
+        } else {
+          targetPc = pcOf.get(target);
+        }
+        code[patchAt.get(j)] = targetPc;
+      }
+
+      return new Bytecode(f.getName(), Arrays.copyOf(code, size), layout.getNumSlots(),
+          f.getArguments().size());
+    }
+
+    /**
+     * Emits {@code first} and its successor as one superinstruction if they form a known pair.
+     * Returns the successor that was absorbed, or null if nothing was emitted.
+     */
+    private Instruction fuse(Instruction first) {
+      Instruction second = first.getNext(0);
+      if (second == null || layout.getNumPredecessors(second) != 1)
+        return null;
+
+      if (first instanceof AddressAt) {
+        AddressAt addr = (AddressAt) first;
+        AddressVar address = addr.getDst();
+        if (!readOnce(address))
+          return null;
+        int base = globalBase(addr.getBase());
+        LocalVar index = addr.getOffset();
+        if (second instanceof LoadInst && ((LoadInst) second).getSrcAddress() == address
+            && address.getType() instanceof IntType) {
+          // Boolean loads normalize the value, so they keep the plain LOAD_BOOL.
+          int dst = slot(((LoadInst) second).getDst());
+          if (index == null)
+            emitFused(Bytecode.LOAD_GLOBAL, dst, base);
+          else
+            emitFused(Bytecode.LOAD_ELEMENT, dst, base, slot(index));
+          return second;
+        }
+        if (second instanceof StoreInst && ((StoreInst) second).getDestAddress() == address) {
+          int src = slot(((StoreInst) second).getSrcValue());
+          if (index == null)
+            emitFused(Bytecode.STORE_GLOBAL, src, base);
+          else
+            emitFused(Bytecode.STORE_ELEMENT, src, base, slot(index));
+          return second;
+        }
+        return null;
+      }
+
+      if (first instanceof CopyInst && second instanceof BinaryOperator) {
+        CopyInst copy = (CopyInst) first;
+        BinaryOperator binop = (BinaryOperator) second;
+        if (!(copy.getSrcValue() instanceof IntegerConstant)
+            || binop.getRightOperand() != copy.getDstVar()
+            || binop.getLeftOperand() == copy.getDstVar() || !readOnce(copy.getDstVar()))
+          return null;
+        long value = ((IntegerConstant) copy.getSrcValue()).getValue();
+        if (value != (int) value)
+          return null;
+        int op = 0;
+        switch (binop.getOperator()) {
+          case Add:
+            op = Bytecode.ADD_IMM;
+            break;
+          case Sub:
+            op = Bytecode.SUB_IMM;
+            break;
+          case Mul:
+            op = Bytecode.MUL_IMM;
+            break;
+          case Div:
+            op = Bytecode.DIV_IMM;
+            break;
+        }
+        emitFused(op, slot(binop.getDst()), slot(binop.getLeftOperand()), (int) value);
+        return second;
+      }
+
+      if (first instanceof CompareInst && second instanceof JumpInst) {
+        CompareInst cmp = (CompareInst) first;
+        if (((JumpInst) second).getPredicate() != cmp.getDst() || !readOnce(cmp.getDst()))
+          return null;
+        int op = 0;
+        switch (cmp.getPredicate()) {
+          case GE:
+            op = Bytecode.BRANCH_GE;
+            break;
+          case GT:
+            op = Bytecode.BRANCH_GT;
+            break;
+          case LE:
+            op = Bytecode.BRANCH_LE;
+            break;
+          case LT:
+            op = Bytecode.BRANCH_LT;
+            break;
+          case EQ:
+            op = Bytecode.BRANCH_EQ;
+            break;
+          case NE:
+            op = Bytecode.BRANCH_NE;
+            break;
+        }
+        emitFused(op, slot(cmp.getLeftOperand()), slot(cmp.getRightOperand()), -1);
+        patchAt.add(size - 1);
+        patchTarget.add(second.getNext(1));
+        return second;
+      }
+      return null;
+    }
+
+    private boolean readOnce(Variable v) {
+      return layout.getNumReads(v) == 1;
+    }
+
+    private void emitFused(int... words) {
+      mFusionCounts.merge(Bytecode.opcodeName(words[0]), 1, Integer::sum);
+      emit(words);
+    }
+
+    private void emit(int... words) {
+      if (size + words.length > code.length)
+        code = Arrays.copyOf(code, Math.max(code.length * 2, size + words.length));
+      for (int w : words)
+        code[size++] = w;
+    }
+
+    private int slot(Variable v) {
+      return v == null ? -1 : v.getSlot();
+    }
+
+    private int globalBase(Symbol base) {
+      Integer offset = mGlobalBase.get(base);
+      if (offset == null)
+        throw new Error("Unknown global " + base.getName() + " in function " + f.getName());
+      return offset;
+    }
+
+    /**
+     * Emits the bounds check of {@code i} on its own, so that it still runs if the address is
+     * fused into its load or store.
+     */
+    private void emitCheck(AddressAt i) {
+      if (i.getExtent() > Integer.MAX_VALUE)
+        throw new Error("Array " + i.getBase().getName() + " is too large for a bounds check");
+      emit(Bytecode.CHECK, slot(i.getOffset()), (int) i.getExtent());
+    }
+
+    public void visit(AddressAt i) {
+      if (i.getOffset() == null)
+        emit(Bytecode.ADDR, slot(i.getDst()), globalBase(i.getBase()));
+      else
+        emit(Bytecode.ADDR_INDEX, slot(i.getDst()), globalBase(i.getBase()), slot(i.getOffset()));
+    }
+
+    public void visit(BinaryOperator i) {
+      int op = 0;
+      switch (i.getOperator()) {
+        case Add:
+          op = Bytecode.ADD;
+          break;
+        case Sub:
+          op = Bytecode.SUB;
+          break;
+        case Mul:
+          op = Bytecode.MUL;
+          break;
+        case Div:
+          op = Bytecode.DIV;
+          break;
+      }
+      emit(op, slot(i.getDst()), slot(i.getLeftOperand()), slot(i.getRightOperand()));
+    }
+
+    public void visit(CompareInst i) {
+      int op = 0;
+      switch (i.getPredicate()) {
+        case GE:
+          op = Bytecode.GE;
+          break;
+        case GT:
+          op = Bytecode.GT;
+          break;
+        case LE:
+          op = Bytecode.LE;
+          break;
+        case LT:
+          op = Bytecode.LT;
+          break;
+        case EQ:
+          op = Bytecode.EQ;
+          break;
+        case NE:
+          op = Bytecode.NE;
+          break;
+      }
+      emit(op, slot(i.getDst()), slot(i.getLeftOperand()), slot(i.getRightOperand()));
+    }
+
+    public void visit(CopyInst i) {
+      Value src = i.getSrcValue();
+      if (src instanceof IntegerConstant) {
+        long value = ((IntegerConstant) src).getValue();
+        emit(Bytecode.CONST, slot(i.getDstVar()), (int) value, (int) (value >>> 32));
+      } else if (src instanceof BooleanConstant) {
+        emit(Bytecode.CONST, slot(i.getDstVar()), ((BooleanConstant) src).getValue() ? 1 : 0, 0);
+      } else {
+        emit(Bytecode.COPY, slot(i.getDstVar()), slot((Variable) src));
+      }
+    }
+
+    public void visit(JumpInst i) {
+      emit(Bytecode.BRANCH, slot(i.getPredicate()), -1);
+      patchAt.add(size - 1);
+      patchTarget.add(i.getNext(1));
+    }
+
+    public void visit(LoadInst i) {
+      int op = i.getSrcAddress().getType() instanceof IntType ? Bytecode.LOAD : Bytecode.LOAD_BOOL;
+      emit(op, slot(i.getDst()), slot(i.getSrcAddress()));
+    }
+
+    public void visit(NopInst i) {
+      // Nops only mark positions in the CFG, they do not produce code.
+    }
+
+    public void visit(StoreInst i) {
+      emit(Bytecode.STORE, slot(i.getSrcValue()), slot(i.getDestAddress()));
+    }
+
+    public void visit(ReturnInst i) {
+      if (i.getReturnValue() == null)
+        emit(Bytecode.RETURN_VOID);
+      else
+        emit(Bytecode.RETURN, slot(i.getReturnValue()));
+    }
+
+    public void visit(CallInst i) {
+      List<LocalVar> params = i.getParams();
+      Intrinsic intrinsic = i.getIntrinsic();
+      if (intrinsic == null) {
+        emit(Bytecode.CALL, slot(i.getDst()), getFunctionIndex(i.getTarget().getName()),
+            params.size());
+        for (LocalVar param : params)
+          emit(slot(param));
+        return;
+      }
+      switch (intrinsic) {
+        case READ_INT:
+          emit(Bytecode.READ_INT, slot(i.getDst()));
+          break;
+        case READ_CHAR:
+          emit(Bytecode.READ_CHAR, slot(i.getDst()));
+          break;
+        case PRINT_BOOL:
+          emit(Bytecode.PRINT_BOOL, slot(params.get(0)));
+          break;
+        case PRINT_INT:
+          emit(Bytecode.PRINT_INT, slot(params.get(0)));
+          break;
+        case PRINT_CHAR:
+          emit(Bytecode.PRINT_CHAR, slot(params.get(0)));
+          break;
+        case PRINTLN:
+          emit(Bytecode.PRINTLN);
+          break;
+      }
+    }
+
+    public void visit(UnaryNotInst i) {
+      emit(Bytecode.NOT, slot(i.getDst()), slot(i.getInner()));
+    }
+  }
+}
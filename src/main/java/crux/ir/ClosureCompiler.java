@@ -0,0 +1,625 @@
+package crux.ir;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The second execution tier of the {@link BytecodeEmulator}. It compiles the {@link Bytecode} of a
+ * hot function into basic blocks of pre-bound closures, one per instruction, that read and write
+ * the same {@code long[]} frames as the interpreter. The closures are specialized on the
+ * instruction kind and on the shape of their operands, e.g. an add of a slot and a constant, a load
+ * from a fixed global, or a compare that directly selects the successor block. The JIT can then
+ * compile each closure to a handful of machine instructions and inline through the block.
+ * <p>
+ * Blocks end at every jump, call and return, so a call never nests on the Java stack: the
+ * emulator performs it and later resumes the caller at the block following the call. Because
+ * every block starts at a known bytecode offset, the emulator can also switch from interpreting a
+ * function to running its compiled form at a loop header (on-stack replacement).
+ */
+final class ClosureCompiler {
+  /** A straight-line operation inside a block. */
+  interface Op {
+    void exec(long[] f);
+  }
+
+  /** Computes the index of the next block. */
+  interface Exit {
+    int next(long[] f);
+  }
+
+  static final int JUMP = 0;
+  static final int CALL = 1;
+  static final int RETURN = 2;
+
+  static final class Block {
+    final int startPc;
+    Op[] ops;
+    int kind;
+    Exit exit;
+    // CALL: callee index, destination slot, argument slots and the pc to resume at.
+    int callee;
+    int dst;
+    int[] args;
+    int continuationPc;
+    // RETURN: slot of the returned value, or -1.
+    int valueSlot = -1;
+
+    Block(int startPc) {
+      this.startPc = startPc;
+    }
+  }
+
+  static final class CompiledFunction {
+    final Block[] blocks;
+    // Maps the bytecode offset of every block start to the block.
+    final int[] blockAt;
+
+    CompiledFunction(Block[] blocks, int[] blockAt) {
+      this.blocks = blocks;
+      this.blockAt = blockAt;
+    }
+  }
+
+  private final BytecodeEmulator emulator;
+
+  ClosureCompiler(BytecodeEmulator emulator) {
+    this.emulator = emulator;
+  }
+
+  CompiledFunction compile(Bytecode fn) {
+    return new FunctionCompiler(fn).compile();
+  }
+
+  private final class FunctionCompiler {
+    private final int[] code;
+    // Start offsets of all instructions, in order.
+    private final int[] starts;
+    // Number of instructions reading each slot, over the whole function.
+    private final int[] reads;
+    private final boolean[] leader;
+    // Instructions that another instruction has absorbed and that emit nothing.
+    private final boolean[] absorbed;
+    // For an instruction whose right operand is an absorbed CONST, the index of that CONST.
+    private final int[] constFrom;
+    // For a load or store whose address computation was absorbed, the index of the ADDR.
+    private final int[] addrFrom;
+
+    FunctionCompiler(Bytecode fn) {
+      code = fn.getCode();
+      var startList = new ArrayList<Integer>();
+      for (int pc = 0; pc < code.length; pc += 1 + Bytecode.numOperands(code, pc))
+        startList.add(pc);
+      starts = startList.stream().mapToInt(Integer::intValue).toArray();
+      reads = new int[fn.getNumSlots()];
+      leader = new boolean[code.length + 1];
+      absorbed = new boolean[starts.length];
+      constFrom = new int[starts.length];
+      addrFrom = new int[starts.length];
+      Arrays.fill(constFrom, -1);
+      Arrays.fill(addrFrom, -1);
+
+      leader[0] = true;
+      for (int pc : starts) {
+        for (int slot : sources(pc))
+          reads[slot]++;
+        int next = pc + 1 + Bytecode.numOperands(code, pc);
+        switch (code[pc]) {
+          case Bytecode.BRANCH:
+            leader[code[pc + 2]] = true;
+            leader[next] = true;
+            break;
+          case Bytecode.GOTO:
+            leader[code[pc + 1]] = true;
+            leader[next] = true;
+            break;
+          case Bytecode.BRANCH_GE:
+          case Bytecode.BRANCH_GT:
+          case Bytecode.BRANCH_LE:
+          case Bytecode.BRANCH_LT:
+          case Bytecode.BRANCH_EQ:
+          case Bytecode.BRANCH_NE:
+            leader[code[pc + 3]] = true;
+            leader[next] = true;
+            break;
+          case Bytecode.CALL:
+          case Bytecode.RETURN:
+          case Bytecode.RETURN_VOID:
+            leader[next] = true;
+            break;
+        }
+      }
+    }
+
+    /**
+     * Decides which instructions are folded into their user before any code is emitted, since a
+     * CONST is folded into an instruction that comes after it.
+     */
+    private void plan() {
+      for (int i = 0; i < starts.length; i++) {
+        int pc = starts[i];
+        int op = code[pc];
+        if (isBranchCompare(op)) {
+          int k = constantSource(i, code[pc + 2]);
+          if (k >= 0) {
+            absorbed[k] = true;
+            constFrom[i] = k;
+          }
+        } else if ((op >= Bytecode.ADD && op <= Bytecode.DIV) || fusesWithBranch(i)) {
+          int k = constantSource(i, code[pc + 3]);
+          if (k >= 0) {
+            absorbed[k] = true;
+            constFrom[i] = k;
+          }
+        } else if (op == Bytecode.ADDR || op == Bytecode.ADDR_INDEX) {
+          int d = code[pc + 1];
+          int user = soleReader(i, d);
+          if (user < 0)
+            continue;
+          int upc = starts[user];
+          boolean isLoad = code[upc] == Bytecode.LOAD || code[upc] == Bytecode.LOAD_BOOL;
+          boolean isStore = code[upc] == Bytecode.STORE && code[upc + 2] == d && code[upc + 1] != d;
+          if ((isLoad || isStore)
+              && !(op == Bytecode.ADDR_INDEX && writtenBetween(i, user, code[pc + 3]))) {
+            absorbed[i] = true;
+            addrFrom[user] = i;
+          }
+        }
+      }
+    }
+
+    /**
+     * Whether instruction {@code i} is a compare whose result only feeds the branch right after
+     * it, so the boolean never needs to be materialized.
+     */
+    private boolean fusesWithBranch(int i) {
+      int pc = starts[i];
+      if (!isCompare(code[pc]) || i + 1 == starts.length)
+        return false;
+      int next = starts[i + 1];
+      return !leader[next] && code[next] == Bytecode.BRANCH && code[next + 1] == code[pc + 1]
+          && reads[code[pc + 1]] == 1;
+    }
+
+    CompiledFunction compile() {
+      plan();
+      int[] blockAt = new int[code.length + 1];
+      Arrays.fill(blockAt, -1);
+      var blocks = new ArrayList<Block>();
+      for (int pc : starts) {
+        if (leader[pc]) {
+          blockAt[pc] = blocks.size();
+          blocks.add(new Block(pc));
+        }
+      }
+
+      int i = 0;
+      for (Block block : blocks) {
+        var ops = new ArrayList<Op>();
+        while (true) {
+          int pc = starts[i];
+          int next = pc + 1 + Bytecode.numOperands(code, pc);
+          int op = code[pc];
+          boolean last = i + 1 == starts.length || leader[next];
+          if (op == Bytecode.BRANCH) {
+            int p = code[pc + 1];
+            int taken = blockAt[code[pc + 2]];
+            int fallthrough = blockAt[next];
+            block.kind = JUMP;
+            block.exit = f -> f[p] != 0 ? taken : fallthrough;
+          } else if (op == Bytecode.GOTO) {
+            int target = blockAt[code[pc + 1]];
+            block.kind = JUMP;
+            block.exit = f -> target;
+          } else if (op == Bytecode.CALL) {
+            block.kind = CALL;
+            block.dst = code[pc + 1];
+            block.callee = code[pc + 2];
+            block.args = Arrays.copyOfRange(code, pc + 4, pc + 4 + code[pc + 3]);
+            block.continuationPc = next;
+          } else if (op == Bytecode.RETURN || op == Bytecode.RETURN_VOID) {
+            block.kind = RETURN;
+            block.valueSlot = op == Bytecode.RETURN ? code[pc + 1] : -1;
+          } else if (isBranchCompare(op)) {
+            block.kind = JUMP;
+            block.exit = compareAndBranch(i, op - Bytecode.BRANCH_GE + Bytecode.GE, code[pc + 1],
+                code[pc + 2], blockAt[code[pc + 3]], blockAt[next]);
+          } else if (fusesWithBranch(i)) {
+            block.kind = JUMP;
+            block.exit = compareAndBranch(i, op, code[pc + 2], code[pc + 3], blockAt[code[next + 2]],
+                blockAt[next + 1 + Bytecode.numOperands(code, next)]);
+            i += 2;
+            break;
+          } else if (!absorbed[i]) {
+            ops.add(compileOp(i));
+          }
+          i++;
+          if (last) {
+            if (block.exit == null && block.kind == JUMP) {
+              int target = blockAt[next];
+              block.exit = f -> target;
+            }
+            break;
+          }
+        }
+        block.ops = ops.toArray(new Op[0]);
+      }
+      return new CompiledFunction(blocks.toArray(new Block[0]), blockAt);
+    }
+
+    /**
+     * Index of the only instruction after {@code i} in the same block that reads {@code slot}, or
+     * -1 if there is none or {@code slot} is read anywhere else in the function.
+     */
+    private int soleReader(int i, int slot) {
+      if (reads[slot] != 1)
+        return -1;
+      for (int j = i + 1; j < starts.length; j++) {
+        int pc = starts[j];
+        if (leader[pc])
+          return -1;
+        for (int s : sources(pc)) {
+          if (s == slot)
+            return j;
+        }
+        if (dest(pc) == slot)
+          return -1;
+      }
+      return -1;
+    }
+
+    /**
+     * Whether any instruction strictly between {@code i} and {@code j} writes {@code slot}.
+     */
+    private boolean writtenBetween(int i, int j, int slot) {
+      for (int k = i + 1; k < j; k++) {
+        if (dest(starts[k]) == slot)
+          return true;
+      }
+      return false;
+    }
+
+    /**
+     * Index of the CONST in the same block that defines {@code slot} for instruction {@code user},
+     * if {@code user} is the only instruction reading it; otherwise -1.
+     */
+    private int constantSource(int user, int slot) {
+      if (reads[slot] != 1)
+        return -1;
+      for (int k = user - 1; k >= 0 && !leader[starts[k + 1]]; k--) {
+        int pc = starts[k];
+        if (dest(pc) == slot)
+          return code[pc] == Bytecode.CONST ? k : -1;
+      }
+      return -1;
+    }
+
+    private long constant(int pc) {
+      return ((long) code[pc + 3] << 32) | (code[pc + 2] & 0xFFFFFFFFL);
+    }
+
+    /**
+     * The exit of a block ending in {@code a op b}, where {@code op} is a compare opcode and
+     * {@code b} may have been folded into a constant.
+     */
+    private Exit compareAndBranch(int i, int op, int a, int b, int taken, int fallthrough) {
+      if (constFrom[i] >= 0) {
+        long c = constant(starts[constFrom[i]]);
+        switch (op) {
+          case Bytecode.GE:
+            return f -> f[a] >= c ? taken : fallthrough;
+          case Bytecode.GT:
+            return f -> f[a] > c ? taken : fallthrough;
+          case Bytecode.LE:
+            return f -> f[a] <= c ? taken : fallthrough;
+          case Bytecode.LT:
+            return f -> f[a] < c ? taken : fallthrough;
+          case Bytecode.EQ:
+            return f -> f[a] == c ? taken : fallthrough;
+          default:
+            return f -> f[a] != c ? taken : fallthrough;
+        }
+      }
+      switch (op) {
+        case Bytecode.GE:
+          return f -> f[a] >= f[b] ? taken : fallthrough;
+        case Bytecode.GT:
+          return f -> f[a] > f[b] ? taken : fallthrough;
+        case Bytecode.LE:
+          return f -> f[a] <= f[b] ? taken : fallthrough;
+        case Bytecode.LT:
+          return f -> f[a] < f[b] ? taken : fallthrough;
+        case Bytecode.EQ:
+          return f -> f[a] == f[b] ? taken : fallthrough;
+        default:
+          return f -> f[a] != f[b] ? taken : fallthrough;
+      }
+    }
+
+    private Op compileOp(int i) {
+      int pc = starts[i];
+      int d = code[pc + 1];
+      BytecodeEmulator e = emulator;
+      if (addrFrom[i] >= 0)
+        return access(i);
+      switch (code[pc]) {
+        case Bytecode.CONST: {
+          long c = constant(pc);
+          return f -> f[d] = c;
+        }
+        case Bytecode.COPY: {
+          int a = code[pc + 2];
+          return f -> f[d] = f[a];
+        }
+        case Bytecode.ADD:
+        case Bytecode.SUB:
+        case Bytecode.MUL:
+        case Bytecode.DIV:
+          return arithmetic(i);
+        case Bytecode.GE:
+        case Bytecode.GT:
+        case Bytecode.LE:
+        case Bytecode.LT:
+        case Bytecode.EQ:
+        case Bytecode.NE:
+          return compare(i);
+        case Bytecode.NOT: {
+          int a = code[pc + 2];
+          return f -> f[d] = f[a] == 0 ? 1 : 0;
+        }
+        case Bytecode.ADDR:
+        case Bytecode.ADDR_INDEX:
+          return address(i);
+        case Bytecode.CHECK: {
+          int length = code[pc + 2];
+          return f -> BytecodeEmulator.checkIndex(f[d], length);
+        }
+        case Bytecode.LOAD: {
+          int a = code[pc + 2];
+          return f -> f[d] = e.load(f[a]);
+        }
+        case Bytecode.LOAD_BOOL: {
+          int a = code[pc + 2];
+          return f -> f[d] = e.load(f[a]) != 0 ? 1 : 0;
+        }
+        case Bytecode.STORE: {
+          int a = code[pc + 2];
+          return f -> e.store(f[a], f[d]);
+        }
+        case Bytecode.READ_INT:
+          return f -> f[d] = e.readInt();
+        case Bytecode.READ_CHAR:
+          return f -> f[d] = e.readChar();
+        case Bytecode.PRINT_BOOL:
+          return f -> e.printBool(f[d]);
+        case Bytecode.PRINT_INT:
+          return f -> e.printInt(f[d]);
+        case Bytecode.PRINT_CHAR:
+          return f -> e.printChar(f[d]);
+        case Bytecode.PRINTLN:
+          return f -> e.println();
+        case Bytecode.ADD_IMM: {
+          int a = code[pc + 2];
+          long c = code[pc + 3];
+          return f -> f[d] = f[a] + c;
+        }
+        case Bytecode.SUB_IMM: {
+          int a = code[pc + 2];
+          long c = code[pc + 3];
+          return f -> f[d] = f[a] - c;
+        }
+        case Bytecode.MUL_IMM: {
+          int a = code[pc + 2];
+          long c = code[pc + 3];
+          return f -> f[d] = f[a] * c;
+        }
+        case Bytecode.DIV_IMM: {
+          int a = code[pc + 2];
+          long c = code[pc + 3];
+          return f -> f[d] = f[a] / c;
+        }
+        case Bytecode.LOAD_GLOBAL: {
+          int base = code[pc + 2];
+          return f -> f[d] = e.load(base);
+        }
+        case Bytecode.LOAD_ELEMENT: {
+          int base = code[pc + 2];
+          int index = code[pc + 3];
+          return f -> f[d] = e.load(base + f[index]);
+        }
+        case Bytecode.STORE_GLOBAL: {
+          int base = code[pc + 2];
+          return f -> e.store(base, f[d]);
+        }
+        case Bytecode.STORE_ELEMENT: {
+          int base = code[pc + 2];
+          int index = code[pc + 3];
+          return f -> e.store(base + f[index], f[d]);
+        }
+        default:
+          throw new Error("Cannot compile opcode " + Bytecode.opcodeName(code[pc]));
+      }
+    }
+
+    private Op arithmetic(int i) {
+      int pc = starts[i];
+      int d = code[pc + 1];
+      int a = code[pc + 2];
+      int b = code[pc + 3];
+      if (constFrom[i] >= 0) {
+        long c = constant(starts[constFrom[i]]);
+        switch (code[pc]) {
+          case Bytecode.ADD:
+            return f -> f[d] = f[a] + c;
+          case Bytecode.SUB:
+            return f -> f[d] = f[a] - c;
+          case Bytecode.MUL:
+            return f -> f[d] = f[a] * c;
+          default:
+            return f -> f[d] = f[a] / c;
+        }
+      }
+      switch (code[pc]) {
+        case Bytecode.ADD:
+          return f -> f[d] = f[a] + f[b];
+        case Bytecode.SUB:
+          return f -> f[d] = f[a] - f[b];
+        case Bytecode.MUL:
+          return f -> f[d] = f[a] * f[b];
+        default:
+          return f -> f[d] = f[a] / f[b];
+      }
+    }
+
+    private Op compare(int i) {
+      int pc = starts[i];
+      int d = code[pc + 1];
+      int a = code[pc + 2];
+      int b = code[pc + 3];
+      switch (code[pc]) {
+        case Bytecode.GE:
+          return f -> f[d] = f[a] >= f[b] ? 1 : 0;
+        case Bytecode.GT:
+          return f -> f[d] = f[a] > f[b] ? 1 : 0;
+        case Bytecode.LE:
+          return f -> f[d] = f[a] <= f[b] ? 1 : 0;
+        case Bytecode.LT:
+          return f -> f[d] = f[a] < f[b] ? 1 : 0;
+        case Bytecode.EQ:
+          return f -> f[d] = f[a] == f[b] ? 1 : 0;
+        default:
+          return f -> f[d] = f[a] != f[b] ? 1 : 0;
+      }
+    }
+
+    private Op address(int i) {
+      int pc = starts[i];
+      int d = code[pc + 1];
+      int base = code[pc + 2];
+      if (code[pc] == Bytecode.ADDR_INDEX) {
+        int index = code[pc + 3];
+        return f -> f[d] = base + f[index];
+      }
+      return f -> f[d] = base;
+    }
+
+    /**
+     * A load or store whose address computation was absorbed: the address is formed from the
+     * global's base and, for arrays, the index slot.
+     */
+    private Op access(int i) {
+      int pc = starts[i];
+      int x = code[pc + 1];
+      int apc = starts[addrFrom[i]];
+      int base = code[apc + 2];
+      boolean indexed = code[apc] == Bytecode.ADDR_INDEX;
+      int index = indexed ? code[apc + 3] : -1;
+      BytecodeEmulator e = emulator;
+      switch (code[pc]) {
+        case Bytecode.STORE:
+          if (indexed)
+            return f -> e.store(base + f[index], f[x]);
+          return f -> e.store(base, f[x]);
+        case Bytecode.LOAD_BOOL:
+          if (indexed)
+            return f -> f[x] = e.load(base + f[index]) != 0 ? 1 : 0;
+          return f -> f[x] = e.load(base) != 0 ? 1 : 0;
+        default:
+          if (indexed)
+            return f -> f[x] = e.load(base + f[index]);
+          return f -> f[x] = e.load(base);
+      }
+    }
+
+    private boolean isCompare(int op) {
+      return op >= Bytecode.GE && op <= Bytecode.NE;
+    }
+
+    private boolean isBranchCompare(int op) {
+      return op >= Bytecode.BRANCH_GE && op <= Bytecode.BRANCH_NE;
+    }
+
+    private int dest(int pc) {
+      switch (code[pc]) {
+        case Bytecode.STORE:
+        case Bytecode.STORE_GLOBAL:
+        case Bytecode.STORE_ELEMENT:
+        case Bytecode.BRANCH:
+        case Bytecode.BRANCH_GE:
+        case Bytecode.BRANCH_GT:
+        case Bytecode.BRANCH_LE:
+        case Bytecode.BRANCH_LT:
+        case Bytecode.BRANCH_EQ:
+        case Bytecode.BRANCH_NE:
+        case Bytecode.GOTO:
+        case Bytecode.RETURN:
+        case Bytecode.RETURN_VOID:
+        case Bytecode.PRINT_BOOL:
+        case Bytecode.PRINT_INT:
+        case Bytecode.PRINT_CHAR:
+        case Bytecode.PRINTLN:
+        case Bytecode.CHECK:
+          return -1;
+        default:
+          return code[pc + 1];
+      }
+    }
+
+    private List<Integer> sources(int pc) {
+      switch (code[pc]) {
+        case Bytecode.COPY:
+        case Bytecode.NOT:
+        case Bytecode.LOAD:
+        case Bytecode.LOAD_BOOL:
+        case Bytecode.ADD_IMM:
+        case Bytecode.SUB_IMM:
+        case Bytecode.MUL_IMM:
+        case Bytecode.DIV_IMM:
+          return List.of(code[pc + 2]);
+        case Bytecode.LOAD_ELEMENT:
+          return List.of(code[pc + 3]);
+        case Bytecode.STORE_GLOBAL:
+          return List.of(code[pc + 1]);
+        case Bytecode.STORE_ELEMENT:
+          return List.of(code[pc + 1], code[pc + 3]);
+        case Bytecode.BRANCH_GE:
+        case Bytecode.BRANCH_GT:
+        case Bytecode.BRANCH_LE:
+        case Bytecode.BRANCH_LT:
+        case Bytecode.BRANCH_EQ:
+        case Bytecode.BRANCH_NE:
+          return List.of(code[pc + 1], code[pc + 2]);
+        case Bytecode.ADD:
+        case Bytecode.SUB:
+        case Bytecode.MUL:
+        case Bytecode.DIV:
+        case Bytecode.GE:
+        case Bytecode.GT:
+        case Bytecode.LE:
+        case Bytecode.LT:
+        case Bytecode.EQ:
+        case Bytecode.NE:
+          return List.of(code[pc + 2], code[pc + 3]);
+        case Bytecode.ADDR_INDEX:
+          return List.of(code[pc + 3]);
+        case Bytecode.STORE:
+          return List.of(code[pc + 1], code[pc + 2]);
+        case Bytecode.BRANCH:
+        case Bytecode.RETURN:
+        case Bytecode.PRINT_BOOL:
+        case Bytecode.PRINT_INT:
+        case Bytecode.PRINT_CHAR:
+        case Bytecode.CHECK:
+          return List.of(code[pc + 1]);
+        case Bytecode.CALL: {
+          var args = new ArrayList<Integer>();
+          for (int j = 0; j < code[pc + 3]; j++)
+            args.add(code[pc + 4 + j]);
+          return args;
+        }
+        default:
+          return List.of();
+      }
+    }
+  }
+}
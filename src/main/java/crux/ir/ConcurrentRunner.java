@@ -0,0 +1,121 @@
+package crux.ir;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Runs one {@link ExecutableImage} against many inputs at the same time. Every run gets its own
+ * {@link BytecodeEmulator} and {@link BufferedEmulatorIO} on the shared image, so runs do not see
+ * each other's state. At most {@code parallelism} runs execute at once.
+ * <p>
+ * Runs are started on virtual threads if the JDK has them, and on a fixed pool of platform threads
+ * otherwise. Emulated calls never nest on the Java stack, so neither needs a large stack.
+ */
+public final class ConcurrentRunner implements AutoCloseable {
+  private final ExecutableImage image;
+  private final ExecutorService executor;
+  private final Semaphore permits;
+  private volatile int tierThreshold = BytecodeEmulator.DEFAULT_TIER_THRESHOLD;
+
+  /**
+   * A runner that executes as many runs at once as there are processors.
+   */
+  public ConcurrentRunner(ExecutableImage image) {
+    this(image, Runtime.getRuntime().availableProcessors());
+  }
+
+  public ConcurrentRunner(ExecutableImage image, int parallelism) {
+    if (parallelism < 1)
+      throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+    this.image = image;
+    permits = new Semaphore(parallelism);
+    ExecutorService virtual = newVirtualThreadExecutor();
+    if (virtual != null) {
+      executor = virtual;
+    } else {
+      executor = Executors.newFixedThreadPool(parallelism, r -> {
+        var thread = new Thread(r, "crux-runner");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+  }
+
+  /**
+   * {@code Executors.newVirtualThreadPerTaskExecutor()}, or null if this JDK does not provide it.
+   * It is looked up reflectively, so that the code still compiles for older releases.
+   */
+  private static ExecutorService newVirtualThreadExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+          .invoke(null);
+    } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+      // Not available, or only as a disabled preview feature.
+      return null;
+    }
+  }
+
+  /**
+   * Applies {@link BytecodeEmulator#setTierThreshold(int)} to the runs submitted from now on.
+   */
+  public void setTierThreshold(int threshold) {
+    tierThreshold = threshold;
+  }
+
+  /**
+   * Starts a run that reads from {@code input} and writes to {@code output}. The returned future
+   * completes once the output has been flushed; if the program fails, it fails with the error the
+   * emulator threw.
+   */
+  public Future<Void> submit(InputStream input, OutputStream output) {
+    int threshold = tierThreshold;
+    return executor.submit(() -> {
+      permits.acquire();
+      try {
+        var emulator = new BytecodeEmulator(image, new BufferedEmulatorIO(input, output));
+        emulator.setTierThreshold(threshold);
+        emulator.run();
+      } finally {
+        permits.release();
+      }
+      return null;
+    });
+  }
+
+  /**
+   * Runs the program once for every pair of {@code inputs.get(i)} and {@code outputs.get(i)} and
+   * waits for all of them. Returns, per run, null if it succeeded or what it failed with.
+   */
+  public List<Throwable> runAll(List<? extends InputStream> inputs,
+      List<? extends OutputStream> outputs) throws InterruptedException {
+    if (inputs.size() != outputs.size())
+      throw new IllegalArgumentException(
+          String.format("%d inputs but %d outputs", inputs.size(), outputs.size()));
+    var futures = new ArrayList<Future<Void>>(inputs.size());
+    for (int i = 0; i < inputs.size(); i++) {
+      futures.add(submit(inputs.get(i), outputs.get(i)));
+    }
+    var failures = new ArrayList<Throwable>(futures.size());
+    for (var future : futures) {
+      try {
+        future.get();
+        failures.add(null);
+      } catch (ExecutionException e) {
+        failures.add(e.getCause());
+      }
+    }
+    return failures;
+  }
+
+  /**
+   * Lets the submitted runs finish and releases the threads.
+   */
+  @Override
+  public void close() {
+    executor.shutdown();
+  }
+}
@@ -0,0 +1,388 @@
+package crux.ir;
+
+import crux.ir.insts.JumpInst;
+import crux.ir.insts.ReturnInst;
+
+import java.util.*;
+
+/**
+ * The basic blocks of a {@link Function} and their dominator tree. Block a dominates block b if
+ * every path from the entry of the function to b goes through a; the immediate dominator of b is
+ * the dominator of b closest to it. The dominance frontier of a is the set of blocks that a does
+ * not strictly dominate but one of whose predecessors it dominates, which is where the values
+ * defined in a meet values from other paths.
+ * <p>
+ * Blocks are numbered in reverse postorder, so the entry is block 0 and every block comes after
+ * its immediate dominator. A {@link ReturnInst} or a missing successor leaves the function, and
+ * code after a return is not part of any block. The immediate dominators are computed with the
+ * iterative algorithm of Cooper, Harvey and Kennedy, which intersects the dominators of the
+ * predecessors by walking up the tree; the frontiers are found by walking up from the
+ * predecessors of every merge point. Both take close to linear time on the CFGs that structured
+ * code lowers to, so functions with tens of thousands of instructions are cheap.
+ */
+public final class DominatorTree {
+  private final List<List<Instruction>> blocks = new ArrayList<>();
+  private final HashMap<Instruction, Integer> blockOf = new HashMap<>();
+  // Position of every instruction in its block; instructions added at the head count down from 0.
+  private final HashMap<Instruction, Integer> positions = new HashMap<>();
+  private final int[][] succs;
+  private final int[][] preds;
+  private final int[] idoms;
+  private final int[][] children;
+  private final int[][] frontiers;
+  // Preorder numbers of the tree, and the largest one in each subtree, for constant-time queries.
+  private final int[] preorder;
+  private final int[] lastDescendant;
+
+  public DominatorTree(Function function) {
+    Instruction start = function.getStart();
+    if (start == null) {
+      succs = preds = children = frontiers = new int[0][];
+      idoms = preorder = lastDescendant = new int[0];
+      return;
+    }
+
+    // Count the edges into every instruction that can run.
+    var numPreds = new HashMap<Instruction, Integer>();
+    var insts = new ArrayList<Instruction>();
+    var stack = new ArrayDeque<Instruction>();
+    numPreds.put(start, 1);
+    stack.push(start);
+    while (!stack.isEmpty()) {
+      Instruction inst = stack.pop();
+      insts.add(inst);
+      for (int childIdx = numSuccessors(inst) - 1; childIdx >= 0; childIdx--) {
+        Instruction child = inst.getNext(childIdx);
+        if (child != null && numPreds.merge(child, 1, Integer::sum) == 1)
+          stack.push(child);
+      }
+    }
+
+    var leaders = new HashMap<Instruction, Integer>();
+    var firsts = new ArrayList<Instruction>();
+    for (Instruction inst : insts) {
+      if (inst == start || numPreds.get(inst) != 1)
+        addLeader(inst, leaders, firsts);
+      if (inst instanceof JumpInst) {
+        for (int childIdx = 0; childIdx < 2; childIdx++) {
+          Instruction child = inst.getNext(childIdx);
+          if (child != null)
+            addLeader(child, leaders, firsts);
+        }
+      }
+    }
+    int n = firsts.size();
+    var members = new ArrayList<List<Instruction>>();
+    var blockSuccs = new int[n][];
+    for (int b = 0; b < n; b++) {
+      var block = new ArrayList<Instruction>();
+      Instruction inst = firsts.get(b);
+      block.add(inst);
+      while (numSuccessors(inst) == 1) {
+        Instruction next = inst.getNext(0);
+        if (next == null || leaders.containsKey(next))
+          break;
+        block.add(next);
+        inst = next;
+      }
+      members.add(block);
+      var targets = new ArrayList<Integer>();
+      for (int childIdx = 0; childIdx < numSuccessors(inst); childIdx++) {
+        Instruction child = inst.getNext(childIdx);
+        if (child != null && !targets.contains(leaders.get(child)))
+          targets.add(leaders.get(child));
+      }
+      blockSuccs[b] = toArray(targets);
+    }
+
+    // Number the blocks in reverse postorder.
+    int[] order = new int[n];
+    Arrays.fill(order, -1);
+    var postorder = new ArrayList<Integer>();
+    var nextChild = new int[n];
+    var blockStack = new ArrayDeque<Integer>();
+    order[0] = 0;
+    blockStack.push(0);
+    while (!blockStack.isEmpty()) {
+      int b = blockStack.peek();
+      if (nextChild[b] == blockSuccs[b].length) {
+        blockStack.pop();
+        postorder.add(b);
+        continue;
+      }
+      int child = blockSuccs[b][nextChild[b]++];
+      if (order[child] < 0) {
+        order[child] = 0;
+        blockStack.push(child);
+      }
+    }
+    for (int idx = 0; idx < n; idx++)
+      order[postorder.get(n - 1 - idx)] = idx;
+
+    succs = new int[n][];
+    var predLists = new ArrayList<List<Integer>>();
+    for (int b = 0; b < n; b++)
+      predLists.add(new ArrayList<>());
+    for (int idx = 0; idx < n; idx++) {
+      int old = postorder.get(n - 1 - idx);
+      List<Instruction> block = members.get(old);
+      blocks.add(block);
+      for (int pos = 0; pos < block.size(); pos++) {
+        blockOf.put(block.get(pos), idx);
+        positions.put(block.get(pos), pos);
+      }
+      succs[idx] = new int[blockSuccs[old].length];
+      for (int k = 0; k < succs[idx].length; k++) {
+        succs[idx][k] = order[blockSuccs[old][k]];
+        predLists.get(succs[idx][k]).add(idx);
+      }
+    }
+    preds = new int[n][];
+    for (int b = 0; b < n; b++)
+      preds[b] = toArray(predLists.get(b));
+
+    idoms = computeIdoms();
+    children = computeChildren();
+    preorder = new int[n];
+    lastDescendant = new int[n];
+    numberTree();
+    frontiers = computeFrontiers();
+  }
+
+  private static void addLeader(Instruction inst, HashMap<Instruction, Integer> leaders,
+      List<Instruction> firsts) {
+    if (!leaders.containsKey(inst)) {
+      leaders.put(inst, firsts.size());
+      firsts.add(inst);
+    }
+  }
+
+  /**
+   * The number of successors that control can take from {@code inst}; a null one returns.
+   */
+  static int numSuccessors(Instruction inst) {
+    if (inst instanceof ReturnInst)
+      return 0;
+    return inst instanceof JumpInst ? 2 : 1;
+  }
+
+  private static int[] toArray(List<Integer> list) {
+    int[] array = new int[list.size()];
+    for (int idx = 0; idx < array.length; idx++)
+      array[idx] = list.get(idx);
+    return array;
+  }
+
+  private int[] computeIdoms() {
+    int n = blocks.size();
+    int[] idom = new int[n];
+    Arrays.fill(idom, -1);
+    idom[0] = 0;
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int b = 1; b < n; b++) {
+        int newIdom = -1;
+        for (int pred : preds[b]) {
+          if (idom[pred] < 0)
+            continue;
+          newIdom = newIdom < 0 ? pred : intersect(idom, pred, newIdom);
+        }
+        if (newIdom != idom[b]) {
+          idom[b] = newIdom;
+          changed = true;
+        }
+      }
+    }
+    idom[0] = -1;
+    return idom;
+  }
+
+  /**
+   * The closest common dominator of two blocks, walking up from whichever comes later.
+   */
+  private static int intersect(int[] idom, int a, int b) {
+    while (a != b) {
+      while (a > b)
+        a = idom[a];
+      while (b > a)
+        b = idom[b];
+    }
+    return a;
+  }
+
+  private int[][] computeChildren() {
+    int n = blocks.size();
+    int[] counts = new int[n];
+    for (int b = 1; b < n; b++)
+      counts[idoms[b]]++;
+    int[][] result = new int[n][];
+    for (int b = 0; b < n; b++)
+      result[b] = new int[counts[b]];
+    Arrays.fill(counts, 0);
+    for (int b = 1; b < n; b++)
+      result[idoms[b]][counts[idoms[b]]++] = b;
+    return result;
+  }
+
+  private void numberTree() {
+    int counter = 0;
+    var stack = new ArrayDeque<Integer>();
+    var nextChild = new int[blocks.size()];
+    preorder[0] = counter++;
+    stack.push(0);
+    while (!stack.isEmpty()) {
+      int b = stack.peek();
+      if (nextChild[b] == children[b].length) {
+        stack.pop();
+        lastDescendant[b] = counter - 1;
+        continue;
+      }
+      int child = children[b][nextChild[b]++];
+      preorder[child] = counter++;
+      stack.push(child);
+    }
+  }
+
+  private int[][] computeFrontiers() {
+    int n = blocks.size();
+    var lists = new ArrayList<List<Integer>>();
+    for (int b = 0; b < n; b++)
+      lists.add(new ArrayList<>());
+    for (int b = 0; b < n; b++) {
+      // The entry of the function is an edge into block 0 as well.
+      if (preds[b].length < (b == 0 ? 1 : 2))
+        continue;
+      for (int pred : preds[b]) {
+        for (int runner = pred; runner != idoms[b]; runner = idoms[runner]) {
+          List<Integer> frontier = lists.get(runner);
+          // All of b is added before the next block, so a repeat is always the last element.
+          if (!frontier.isEmpty() && frontier.get(frontier.size() - 1) == b)
+            break;
+          frontier.add(b);
+        }
+      }
+    }
+    int[][] result = new int[n][];
+    for (int b = 0; b < n; b++)
+      result[b] = toArray(lists.get(b));
+    return result;
+  }
+
+  public int getNumBlocks() {
+    return blocks.size();
+  }
+
+  /**
+   * The block that {@code inst} belongs to, or -1 if it cannot run.
+   */
+  public int getBlock(Instruction inst) {
+    Integer block = blockOf.get(inst);
+    return block != null ? block : -1;
+  }
+
+  /**
+   * The instructions of {@code block} in the order in which they run. The list is unmodifiable
+   * and is not copied.
+   */
+  public List<Instruction> getInstructions(int block) {
+    return Collections.unmodifiableList(blocks.get(block));
+  }
+
+  public Instruction getFirst(int block) {
+    return blocks.get(block).get(0);
+  }
+
+  /**
+   * The instruction of {@code block} whose successors start other blocks.
+   */
+  public Instruction getLast(int block) {
+    List<Instruction> insts = blocks.get(block);
+    return insts.get(insts.size() - 1);
+  }
+
+  /**
+   * The distinct blocks that control can go to from {@code block}. The array is shared, not
+   * copied, so callers must not modify it.
+   */
+  public int[] getSuccessors(int block) {
+    return succs[block];
+  }
+
+  /**
+   * The distinct blocks that control can come from to {@code block}. The array is shared, not
+   * copied, so callers must not modify it.
+   */
+  public int[] getPredecessors(int block) {
+    return preds[block];
+  }
+
+  /**
+   * The immediate dominator of {@code block}, or -1 for the entry block.
+   */
+  public int getIdom(int block) {
+    return idoms[block];
+  }
+
+  /**
+   * The blocks whose immediate dominator is {@code block}. The array is shared, not copied, so
+   * callers must not modify it.
+   */
+  public int[] getChildren(int block) {
+    return children[block];
+  }
+
+  /**
+   * The dominance frontier of {@code block}. The array is shared, not copied, so callers must not
+   * modify it.
+   */
+  public int[] getFrontier(int block) {
+    return frontiers[block];
+  }
+
+  /**
+   * Whether every path from the entry to block {@code b} goes through block {@code a}. A block
+   * dominates itself.
+   */
+  public boolean dominates(int a, int b) {
+    return preorder[a] <= preorder[b] && preorder[b] <= lastDescendant[a];
+  }
+
+  /**
+   * Whether every path from the entry to instruction {@code b} goes through instruction {@code a}.
+   * An instruction dominates itself.
+   */
+  public boolean dominates(Instruction a, Instruction b) {
+    int blockA = blockOf.get(a);
+    int blockB = blockOf.get(b);
+    if (blockA != blockB)
+      return dominates(blockA, blockB);
+    return positions.get(a) <= positions.get(b);
+  }
+
+  /**
+   * The preorder number of {@code block} in the tree. Blocks that a block dominates follow it
+   * directly, so sorting by this number lists every block after its dominators.
+   */
+  public int getPreorder(int block) {
+    return preorder[block];
+  }
+
+  /**
+   * The position of {@code inst} in its block. Positions grow in the order in which the
+   * instructions run.
+   */
+  public int getPosition(Instruction inst) {
+    return positions.get(inst);
+  }
+
+  /**
+   * Records that {@code inst} now runs first in {@code block}; see {@link SSAForm}.
+   */
+  void prepend(int block, Instruction inst) {
+    List<Instruction> insts = blocks.get(block);
+    positions.put(inst, positions.get(insts.get(0)) - 1);
+    blockOf.put(inst, block);
+    insts.add(0, inst);
+  }
+}
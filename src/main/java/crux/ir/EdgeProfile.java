@@ -0,0 +1,232 @@
+package crux.ir;
+
+import crux.ir.insts.JumpInst;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * How often every {@link Function} of a program was called and how often every {@link JumpInst}
+ * went to its taken target, next(1), and to its fall-through, next(0). Generated code built with
+ * {@code --instrument} counts these and the runtime writes them to a file at exit; the
+ * {@link Emulator} collects the same counts with a {@link Profiler}. {@code --profile-use} reads
+ * the file back for the backend and the {@link Inliner}.
+ * <p>
+ * The counters of a program are numbered in program order: per function its calls, then the taken
+ * and fall-through counts of each of its jumps in the order of
+ * {@link FrameLayout#getInstructions()}. Both collectors see the same CFGs, so a profile fits every
+ * build of the program with the same options that change the CFG, like {@code --bounds-check}. A
+ * profile file is a line {@code crux-profile <fingerprint> <counters>} followed by one count per
+ * line. The fingerprint is computed from the names and the shapes of the functions, so that a
+ * profile of a different program is rejected.
+ * <p>
+ * The number of times each instruction ran is derived from the counts: an instruction runs as
+ * often as control reaches it from the entry and along the edges into it.
+ */
+public final class EdgeProfile {
+  public static final String DEFAULT_FILE = "crux.profile";
+  private static final String MAGIC = "crux-profile";
+
+  private final List<Function> functions = new ArrayList<>();
+  private final HashMap<Function, Integer> callCounters = new HashMap<>();
+  private final HashMap<JumpInst, Integer> jumpCounters = new HashMap<>();
+  private final int numCounters;
+  private final int fingerprint;
+
+  private final HashMap<Function, Long> calls = new HashMap<>();
+  // Taken and fall-through counts; also of jumps that were copied from profiled ones.
+  private final HashMap<JumpInst, long[]> branches = new HashMap<>();
+  // Derived per function on first use, see getExecutions.
+  private final HashMap<Function, HashMap<Instruction, Long>> executions = new HashMap<>();
+
+  /**
+   * An empty profile of {@code p}, with its counters numbered.
+   */
+  public EdgeProfile(Program p) {
+    int counter = 0;
+    int hash = 1;
+    for (Iterator<Function> it = p.getFunctions(); it.hasNext();) {
+      Function f = it.next();
+      functions.add(f);
+      callCounters.put(f, counter++);
+      List<Instruction> insts = f.getFrameLayout().getInstructions();
+      hash = 31 * (31 * hash + f.getName().hashCode()) + insts.size();
+      for (Instruction inst : insts) {
+        if (inst instanceof JumpInst) {
+          jumpCounters.put((JumpInst) inst, counter);
+          counter += 2;
+          hash = 31 * hash + inst.getIndex();
+        }
+      }
+    }
+    numCounters = counter;
+    fingerprint = hash & Integer.MAX_VALUE;
+  }
+
+  public int getNumCounters() {
+    return numCounters;
+  }
+
+  /**
+   * A non-negative number that changes with the names and the shapes of the functions.
+   */
+  public int getFingerprint() {
+    return fingerprint;
+  }
+
+  /**
+   * The number of the counter of the calls of {@code f}.
+   */
+  public int getCallCounter(Function f) {
+    return callCounters.get(f);
+  }
+
+  /**
+   * The number of the counter of the times {@code jump} goes to next(1); the counter of next(0)
+   * follows it. Returns -1 for a jump that was added after the counters were numbered.
+   */
+  public int getTakenCounter(JumpInst jump) {
+    Integer counter = jumpCounters.get(jump);
+    return counter != null ? counter : -1;
+  }
+
+  /**
+   * Reads the counts of a profile file. Throws an Error if it was collected for another program.
+   */
+  public void read(InputStream in) throws IOException {
+    var reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII));
+    String header = reader.readLine();
+    String[] fields = header != null ? header.trim().split("\\s+") : new String[0];
+    if (fields.length != 3 || !fields[0].equals(MAGIC))
+      throw new Error("Not a profile file");
+    if (Long.parseLong(fields[1]) != fingerprint || Long.parseLong(fields[2]) != numCounters)
+      throw new Error("The profile was collected for a different program or different options");
+    long[] counts = new long[numCounters];
+    for (int counter = 0; counter < numCounters; counter++) {
+      String line = reader.readLine();
+      if (line == null)
+        throw new Error("The profile ends after " + counter + " of " + numCounters + " counts");
+      counts[counter] = Long.parseLong(line.trim());
+    }
+    for (Function f : functions)
+      calls.put(f, counts[callCounters.get(f)]);
+    for (var entry : jumpCounters.entrySet()) {
+      int counter = entry.getValue();
+      branches.put(entry.getKey(), new long[] {counts[counter], counts[counter + 1]});
+    }
+    executions.clear();
+  }
+
+  /**
+   * Writes the counts in the format that {@link #read} reads.
+   */
+  public void write(PrintStream out) {
+    long[] counts = new long[numCounters];
+    for (Function f : functions)
+      counts[callCounters.get(f)] = getCalls(f);
+    for (var entry : jumpCounters.entrySet()) {
+      long[] branch = branches.getOrDefault(entry.getKey(), new long[2]);
+      counts[entry.getValue()] = branch[0];
+      counts[entry.getValue() + 1] = branch[1];
+    }
+    out.printf("%s %d %d%n", MAGIC, fingerprint, numCounters);
+    for (long count : counts)
+      out.println(count);
+  }
+
+  /**
+   * How often {@code f} was called, counting the run of main as one call.
+   */
+  public long getCalls(Function f) {
+    return calls.getOrDefault(f, 0L);
+  }
+
+  void setCalls(Function f, long count) {
+    calls.put(f, count);
+    executions.remove(f);
+  }
+
+  /**
+   * How often {@code jump} went to next(1) and to next(0), or null if nothing is known about it.
+   */
+  public long[] getBranchCounts(JumpInst jump) {
+    long[] counts = branches.get(jump);
+    return counts != null ? counts.clone() : null;
+  }
+
+  void setBranchCounts(JumpInst jump, long taken, long fallThrough) {
+    branches.put(jump, new long[] {taken, fallThrough});
+  }
+
+  /**
+   * Splits the counts of {@code original}, which was copied to {@code copy} for a share
+   * {@code fraction} of its executions, between the two. See {@link Inliner}.
+   */
+  void split(JumpInst original, JumpInst copy, double fraction) {
+    long[] counts = branches.get(original);
+    if (counts == null)
+      return;
+    long[] copied = {Math.round(counts[0] * fraction), Math.round(counts[1] * fraction)};
+    branches.put(copy, copied);
+    branches.put(original, new long[] {counts[0] - copied[0], counts[1] - copied[1]});
+  }
+
+  /**
+   * Forgets the executions derived for {@code f} after its CFG changed.
+   */
+  void invalidate(Function f) {
+    executions.remove(f);
+  }
+
+  /**
+   * How often {@code inst} of {@code f} ran.
+   */
+  public long getExecutions(Function f, Instruction inst) {
+    return executions.computeIfAbsent(f, this::deriveExecutions).getOrDefault(inst, 0L);
+  }
+
+  /**
+   * Sums the counts of the edges into every instruction. The count of an edge out of a jump is
+   * known; the count of the edge out of any other instruction is the count of that instruction,
+   * so those are summed along the chains they form, in topological order.
+   */
+  private HashMap<Instruction, Long> deriveExecutions(Function f) {
+    var result = new HashMap<Instruction, Long>();
+    if (f.getStart() == null)
+      return result;
+    List<Instruction> insts = f.getFrameLayout().getInstructions();
+    // Straight-line predecessors not yet summed, by instruction.
+    var pending = new HashMap<Instruction, Integer>();
+    result.put(f.getStart(), getCalls(f));
+    for (Instruction inst : insts) {
+      if (inst instanceof JumpInst) {
+        long[] counts = branches.getOrDefault(inst, new long[2]);
+        Instruction taken = inst.getNext(1);
+        Instruction fallThrough = inst.getNext(0);
+        if (taken != null)
+          result.merge(taken, counts[0], Long::sum);
+        if (fallThrough != null)
+          result.merge(fallThrough, counts[1], Long::sum);
+      } else if (inst.getNext(0) != null) {
+        pending.merge(inst.getNext(0), 1, Integer::sum);
+      }
+    }
+    var ready = new ArrayDeque<Instruction>();
+    for (Instruction inst : insts) {
+      if (!pending.containsKey(inst))
+        ready.add(inst);
+    }
+    while (!ready.isEmpty()) {
+      Instruction inst = ready.poll();
+      Instruction next = inst instanceof JumpInst ? null : inst.getNext(0);
+      if (next == null)
+        continue;
+      result.merge(next, result.getOrDefault(inst, 0L), Long::sum);
+      if (pending.merge(next, -1, Integer::sum) == 0)
+        ready.add(next);
+    }
+    // Whatever is left forms a loop without a jump, which runs forever once entered.
+    return result;
+  }
+}
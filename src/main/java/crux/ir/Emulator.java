@@ -8,22 +8,42 @@ import crux.ast.types.*;
 
 public class Emulator {
   HashMap<String, Function> functions = new HashMap<>();
-  Stack<CallContext> stack = new Stack<>();
-  HashMap<Long, Long> globalMap = new HashMap<>();
+  // All frames live in one value stack; a CallContext only records where its frame starts. Both
+  // arrays grow on demand and are reused by later calls at the same depth.
+  long[] values = new long[1024];
+  CallContext[] stack = new CallContext[16];
+  int depth;
+  GlobalMemory memory;
   HashMap<Symbol, Long> offsetMap = new HashMap<>();
 
-  BufferedReader br;
-  PrintStream out;
-  public static boolean DEBUG = false;
+  EmulatorIO io;
+  Profiler profiler;
+  Tracer tracer;
+
+  // Execution limits and the progress of a run that is executed in slices.
+  ExecutionLimits limits = ExecutionLimits.NONE;
+  boolean started;
+  long executed;
+  long touchedWords;
+  // Set when a limit stopped the run.
+  RunResult.Status stopped;
+  RunResult result;
 
   public Emulator(Program p, InputStream emulatorInput, OutputStream emulatorOutput) {
-    br = new BufferedReader(new InputStreamReader(emulatorInput));
-    out = new PrintStream(emulatorOutput);
+    this(p, new BufferedEmulatorIO(emulatorInput, emulatorOutput));
+  }
+
+  public Emulator(Program p, EmulatorIO io) {
+    this.io = io;
 
     for (Iterator<Function> func_it = p.getFunctions(); func_it.hasNext();) {
       Function f = func_it.next();
+      // Resolve every variable to its frame slot once, before anything runs.
+      f.getFrameLayout();
       functions.put(f.getName(), f);
     }
+    p.link();
+    memory = GlobalMemory.forProgram(p);
     long offset = 0;
     for (Iterator<GlobalDecl> glob_it = p.getGlobals(); glob_it.hasNext();) {
       GlobalDecl g = glob_it.next();
@@ -32,84 +52,291 @@ public class Emulator {
     }
   }
 
+  /**
+   * Runs the program to its end. If the run exceeds one of its {@link #setLimits(ExecutionLimits)
+   * limits}, it throws an Error; {@link #runSlice(long)} reports that as a {@link RunResult}
+   * instead.
+   */
   public void run() {
-    Function main = functions.get("main");
-    CallContext mainc = new CallContext(main, null, null);
-    stack.push(mainc);
-    while (!stack.isEmpty()) {
-      CallContext c = stack.peek();
-      if (c.pc == null) {
-        // Handle implicit return from void function
-        stack.pop();
-      } else {
+    if (profiler != null) {
+      start();
+      runProfiled();
+    } else if (limits != ExecutionLimits.NONE) {
+      while (runSlice(Long.MAX_VALUE))
+        ;
+      Throwable failure = result.getFailure();
+      if (failure instanceof Error)
+        throw (Error) failure;
+      if (failure instanceof RuntimeException)
+        throw (RuntimeException) failure;
+    } else {
+      start();
+      try {
+        while (depth > 0) {
+          CallContext c = stack[depth - 1];
+          if (c.pc == null) {
+            // Handle implicit return from void function
+            depth--;
+          } else {
+            c.pc.accept(c);
+          }
+        }
+      } finally {
+        end();
+      }
+    }
+    if (stopped != null)
+      throw new Error("Program " + finish());
+  }
+
+  /**
+   * Executes at most {@code budget} further instructions, starting the program on the first call.
+   * Returns whether the program is still running. Once it is not, {@link #getResult()} tells how
+   * it ended and the output has been flushed. Errors of the program end the run with
+   * {@link RunResult.Status#FAILED} instead of being thrown.
+   * <p>
+   * All state of the run lives in the emulator, so one thread can interleave many runs by calling
+   * this in turn, see {@link Scheduler}.
+   */
+  public boolean runSlice(long budget) {
+    if (result != null)
+      return false;
+    start();
+    long n = Math.min(budget, limits.getMaxInstructions() - executed);
+    long i = 0;
+    try {
+      while (depth > 0) {
+        CallContext c = stack[depth - 1];
+        if (c.pc == null) {
+          // Handle implicit return from void function
+          depth--;
+          continue;
+        }
+        if (i == n)
+          break;
         c.pc.accept(c);
+        i++;
+      }
+    } catch (Error | RuntimeException e) {
+      executed += i;
+      result = new RunResult(RunResult.Status.FAILED, executed, e);
+      end();
+      return false;
+    }
+    executed += i;
+    if (depth > 0 && executed == limits.getMaxInstructions())
+      stop(RunResult.Status.INSTRUCTION_LIMIT);
+    if (depth > 0)
+      return true;
+    finish();
+    end();
+    return false;
+  }
+
+  /**
+   * How the run ended, or null while it has not ended. Only runs that count their instructions,
+   * i.e. runs with limits, profiled runs and runs in slices, have a result.
+   */
+  public RunResult getResult() {
+    return result;
+  }
+
+  /**
+   * Bounds the next run. Limits are checked deterministically: a run stops at the same instruction
+   * no matter how it is sliced.
+   */
+  public void setLimits(ExecutionLimits limits) {
+    this.limits = limits;
+  }
+
+  private void start() {
+    if (started)
+      return;
+    started = true;
+    push(functions.get("main"), 0, -1);
+  }
+
+  /**
+   * Ends the run because it exceeded a limit.
+   */
+  void stop(RunResult.Status status) {
+    stopped = status;
+    depth = 0;
+  }
+
+  private RunResult finish() {
+    if (result == null)
+      result = new RunResult(stopped != null ? stopped : RunResult.Status.FINISHED, executed, null);
+    return result;
+  }
+
+  private void end() {
+    drainTrace();
+    io.flush();
+  }
+
+  /**
+   * Records every instruction of the next {@link #run()} in {@code tracer}. Without a tracer,
+   * nothing is recorded.
+   */
+  public void setTracer(Tracer tracer) {
+    this.tracer = tracer;
+  }
+
+  /**
+   * Collects an execution profile of the next {@link #run()} in {@code profiler}. Without a
+   * profiler, run() takes a loop that does no profiling work at all.
+   */
+  public void setProfiler(Profiler profiler) {
+    this.profiler = profiler;
+  }
+
+  /**
+   * The loop of {@link #run()} with profiling. Calls and returns are recognized by the change of
+   * {@link #depth} around each instruction.
+   */
+  private void runProfiled() {
+    profiler.enter(stack[0].f);
+    try {
+      while (depth > 0) {
+        int d = depth;
+        CallContext c = stack[d - 1];
+        Instruction inst = c.pc;
+        if (inst == null) {
+          // Handle implicit return from void function
+          depth--;
+          profiler.leave();
+          continue;
+        }
+        if (executed == limits.getMaxInstructions()) {
+          stop(RunResult.Status.INSTRUCTION_LIMIT);
+          break;
+        }
+        executed++;
+        profiler.execute(inst);
+        inst.accept(c);
+        if (depth > d) {
+          profiler.enter(stack[d].f);
+        } else if (depth < d) {
+          profiler.leave();
+        } else if (inst instanceof CallInst && ((CallInst) inst).isTailCall()) {
+          // The callee replaced the caller in its frame.
+          profiler.leave();
+          profiler.enter(c.f);
+        } else {
+          profiler.branch(inst, c.pc);
+        }
       }
+      finish();
+    } finally {
+      profiler.finish();
+      end();
     }
   }
 
-  void debug(String msg) {
-    if (DEBUG)
-      out.println(msg);
+  /**
+   * Enters {@code f} with a frame starting at {@code base} in {@link #values}. The frame is
+   * cleared, the caller copies the arguments into its first slots.
+   */
+  CallContext push(Function f, int base, int retIndex) {
+    int numSlots = f.getFrameLayout().getNumSlots();
+    if (base + numSlots > values.length)
+      values = Arrays.copyOf(values, Math.max(values.length * 2, base + numSlots));
+    Arrays.fill(values, base, base + numSlots, 0);
+    if (depth == stack.length)
+      stack = Arrays.copyOf(stack, depth * 2);
+    CallContext c = stack[depth];
+    if (c == null)
+      c = stack[depth] = new CallContext();
+    depth++;
+    c.f = f;
+    c.pc = f.getStart();
+    c.base = base;
+    c.top = base + numSlots;
+    c.retIndex = retIndex;
+    if (tracer != null)
+      c.traceBase = tracer.register(f);
+    return c;
+  }
+
+  /**
+   * Prints the events a streaming tracer has buffered, so that they appear before whatever the
+   * program prints next.
+   */
+  void drainTrace() {
+    if (tracer != null)
+      tracer.drain();
+  }
+
+  /**
+   * Formats a raw frame value the way the variable's type prints it.
+   */
+  static String show(Value v, long raw) {
+    return v.getType() instanceof BoolType ? String.valueOf(raw != 0) : String.valueOf(raw);
   }
 
   class CallContext extends InstVisitor {
     Function f;
     Instruction pc;
-    HashMap<Variable, Object> localMap;
-    LocalVar retval;
-
-    CallContext(Function f, Object[] arguments, LocalVar retval) {
-      this.f = f;
-      pc = f.getStart();
-      localMap = new HashMap<>();
-      if (arguments != null) {
-        int index = 0;
-        for (LocalVar arg : f.getArguments()) {
-          localMap.put(arg, arguments[index++]);
-        }
-      }
-      this.retval = retval;
+    // The frame is values[base, top); retIndex is where the caller wants the return value, or -1.
+    int base;
+    int top;
+    int retIndex;
+    // The trace id of the function's first instruction.
+    int traceBase;
+
+    long get(Variable v) {
+      return values[base + v.getSlot()];
+    }
+
+    void set(Variable v, long value) {
+      values[base + v.getSlot()] = value;
     }
 
     public void visit(AddressAt i) {
       Symbol base = i.getBase();
       long address = offsetMap.get(base);
-      Value v = i.getOffset();
+      LocalVar v = i.getOffset();
       if (v != null) {
-        address += 8 * ((Long) localMap.get(v));
+        long index = get(v);
+        if (i.isChecked() && (index < 0 || index >= i.getExtent()))
+          throw BoundsChecks.indexError(index, i.getExtent());
+        address += 8 * index;
       }
-      localMap.put(i.getDst(), address);
-      debug("AddressAt: " + i.getDst() + " = " + address);
+      set(i.getDst(), address);
+      if (tracer != null)
+        tracer.record(traceBase + pc.getIndex(), address);
       pc = pc.getNext(0);
     }
 
     public void visit(BinaryOperator i) {
-      Object left = localMap.get(i.getLeftOperand());
-      Object right = localMap.get(i.getRightOperand());
-      Object result = null;
+      long left = get(i.getLeftOperand());
+      long right = get(i.getRightOperand());
+      long result = 0;
       switch (i.getOperator()) {
         case Add:
-          result = ((Long) left) + ((Long) right);
+          result = left + right;
           break;
         case Sub:
-          result = ((Long) left) - ((Long) right);
+          result = left - right;
           break;
         case Mul:
-          result = ((Long) left) * ((Long) right);
+          result = left * right;
           break;
         case Div:
-          result = ((Long) left) / ((Long) right);
+          result = left / right;
           break;
       }
-      localMap.put(i.getDst(), result);
-      debug("BinaryOperator: " + i.getDst() + "=" + left + i.getOperator() + right);
+      set(i.getDst(), result);
+      if (tracer != null)
+        tracer.record(traceBase + pc.getIndex(), left, right);
       pc = pc.getNext(0);
     }
 
     public void visit(CompareInst i) {
-      Long left = (Long) localMap.get(i.getLeftOperand());
-      Long right = (Long) localMap.get(i.getRightOperand());
-      Boolean result = null;
+      long left = get(i.getLeftOperand());
+      long right = get(i.getRightOperand());
+      boolean result = false;
       switch (i.getPredicate()) {
         case GE:
           result = left >= right;
@@ -124,143 +351,199 @@ public class Emulator {
           result = left < right;
           break;
         case EQ:
-          result = left.equals(right);
+          result = left == right;
           break;
         case NE:
-          result = !left.equals(right);
+          result = left != right;
           break;
       }
-      localMap.put(i.getDst(), result);
-      debug("CompareInst: " + i.getDst() + "=" + left + i.getPredicate() + right);
+      set(i.getDst(), result ? 1 : 0);
+      if (tracer != null)
+        tracer.record(traceBase + pc.getIndex(), left, right);
       pc = pc.getNext(0);
     }
 
     public void visit(CopyInst i) {
       Value srcval = i.getSrcValue();
-      Object val;
+      long val;
       if (srcval instanceof IntegerConstant) {
-        val = Long.valueOf(((IntegerConstant) srcval).getValue());
+        val = ((IntegerConstant) srcval).getValue();
       } else if (srcval instanceof BooleanConstant) {
-        val = ((BooleanConstant) srcval).getValue();
+        val = ((BooleanConstant) srcval).getValue() ? 1 : 0;
       } else {
-        val = localMap.get(srcval);
+        val = get(((Variable) srcval));
       }
 
-      debug("CopyInst: " + i.getDstVar() + "=" + val);
-      localMap.put(i.getDstVar(), val);
+      if (tracer != null)
+        tracer.record(traceBase + pc.getIndex(), val);
+      set(i.getDstVar(), val);
       pc = pc.getNext(0);
     }
 
     public void visit(JumpInst i) {
-      Boolean pred = (Boolean) localMap.get(i.getPredicate());
-      debug("Jump: " + i.getPredicate() + "=" + pred);
+      boolean pred = get(i.getPredicate()) != 0;
+      if (tracer != null)
+        tracer.record(traceBase + pc.getIndex(), pred ? 1 : 0);
       pc = pred ? pc.getNext(1) : pc.getNext(0);
     }
 
     public void visit(LoadInst i) {
       AddressVar var = i.getSrcAddress();
-      Long address = (Long) localMap.get(var);
-      Long value = globalMap.get(address);
-      if (value == null) {
-        out.println("Reading from uninitialized memory");
-        value = Long.valueOf(0);
+      long address = get(var);
+      // Frames hold byte addresses, the memory is addressed in words.
+      long value = 0;
+      if (!memory.isInitialized(address >> 3)) {
+        drainTrace();
+        io.println("Reading from uninitialized memory");
+      } else {
+        value = memory.get(address >> 3);
       }
 
-      Object val;
+      long val;
       if (var.getType() instanceof IntType) {
         val = value;
       } else {
-        val = Boolean.valueOf(value != 0);
+        val = value != 0 ? 1 : 0;
       }
 
-      debug("LoadInst: " + i.getDst() + "=" + val);
-      localMap.put(i.getDst(), val);
+      if (tracer != null)
+        tracer.record(traceBase + pc.getIndex(), val);
+      set(i.getDst(), val);
       pc = pc.getNext(0);
     }
 
     public void visit(NopInst i) {
       // Do nothing
-      debug("Nop:");
+      if (tracer != null)
+        tracer.record(traceBase + pc.getIndex());
       pc = pc.getNext(0);
     }
 
     public void visit(StoreInst i) {
-      Value srcval = i.getSrcValue();
-      Object val = localMap.get(srcval);
+      LocalVar srcval = i.getSrcValue();
+      long val = get(srcval);
       AddressVar dst = i.getDestAddress();
-      Long address = (Long) localMap.get(dst);
-      debug("StoreInst: *" + address + "=" + val);
+      long address = get(dst);
+      if (tracer != null)
+        tracer.record(traceBase + pc.getIndex(), address, val);
 
-      if (val instanceof Long) {
-        globalMap.put(address, (Long) val);
-      } else if (val instanceof Boolean) {
-        globalMap.put(address, ((Boolean) val) ? Long.valueOf(1) : Long.valueOf(0));
+      // Only words written for the first time count against the memory limit.
+      if (limits.getMaxGlobalWords() != Long.MAX_VALUE && !memory.isInitialized(address >> 3)
+          && ++touchedWords > limits.getMaxGlobalWords()) {
+        stop(RunResult.Status.MEMORY_LIMIT);
+        return;
       }
+      memory.set(address >> 3, val);
       pc = pc.getNext(0);
     }
 
     public void visit(ReturnInst i) {
-      Object val = i.getReturnValue() != null ? localMap.get(i.getReturnValue()) : null;
-      debug("ReturnInst: " + val);
-      // Remove ourselves from the stack
-      stack.pop();
-      // Return value to caller
-      if (!stack.isEmpty()) {
-        CallContext caller = stack.peek();
-        if (retval != null)
-          caller.localMap.put(retval, val);
-      }
+      LocalVar retValue = i.getReturnValue();
+      long val = retValue != null ? get(retValue) : 0;
+      if (tracer != null)
+        tracer.record(traceBase + pc.getIndex(), val);
+      // Remove ourselves from the stack and hand the value to the caller
+      depth--;
+      if (retIndex >= 0)
+        values[retIndex] = val;
     }
 
     public void visit(CallInst i) {
       List<LocalVar> params = i.getParams();
-      Object[] args = new Object[params.size()];
-      for (int j = 0; j < args.length; j++) {
-        args[j] = localMap.get(params.get(j));
+      Intrinsic intrinsic = i.getIntrinsic();
+      if (intrinsic == null && i.isTailCall()) {
+        tailCall(i.getTarget(), params);
+        return;
       }
-
-      Symbol varCallee = i.getCallee();
-      String fName = varCallee.getName();
-      debug("Calling " + fName + " with " + Arrays.toString(args));
-
-      if (fName.equals("readInt")) {
-        try {
-          out.print("int?");
-          String line = br.readLine();
-          localMap.put(i.mDestVar, Long.valueOf(line));
-        } catch (IOException e) {
-          throw new Error("Error in inputting Integer.");
+      if (intrinsic == null) {
+        if (depth == limits.getMaxCallDepth()) {
+          stop(RunResult.Status.CALL_DEPTH_LIMIT);
+          return;
         }
-      } else if (fName.equals("readChar")) {
-        try {
-          int val = br.read();
-          if (val == -1)
-            throw new Error("Reading past end of stream.");
-          localMap.put(i.mDestVar, new Long(val));
-        } catch (IOException e) {
-          throw new Error("Error in inputting Integer.");
+        LocalVar dst = i.getDst();
+        // The callee's frame starts right above ours; arguments go straight into its first slots.
+        push(i.getTarget(), top, dst != null ? base + dst.getSlot() : -1);
+        for (int j = 0; j < params.size(); j++) {
+          values[top + j] = get(params.get(j));
         }
-      } else if (fName.equals("printBool")) {
-        out.print(args[0]);
-      } else if (fName.equals("printInt")) {
-        out.print(args[0]);
-      } else if (fName.equals("printChar")) {
-        out.print((char) ((Long) args[0]).longValue());
-      } else if (fName.equals("println")) {
-        out.println("");
-      } else {
-        Function f = functions.get(fName);
-        CallContext callee = new CallContext(f, args, (LocalVar) i.getDst());
-        stack.push(callee);
+        if (tracer != null)
+          tracer.record(traceBase + pc.getIndex(), values, top, top + params.size());
+        pc = pc.getNext(0);
+        return;
+      }
+      if (tracer != null) {
+        // Builtins take at most one argument.
+        if (params.isEmpty())
+          tracer.record(traceBase + pc.getIndex());
+        else
+          tracer.record(traceBase + pc.getIndex(), get(params.get(0)));
+        drainTrace();
+      }
+      switch (intrinsic) {
+        case READ_INT:
+          try {
+            io.print("int?");
+            set(i.getDst(), io.readInt());
+          } catch (IOException e) {
+            throw new Error("Error in inputting Integer.");
+          }
+          break;
+        case READ_CHAR:
+          try {
+            int val = io.readChar();
+            if (val == -1)
+              throw new Error("Reading past end of stream.");
+            set(i.getDst(), val);
+          } catch (IOException e) {
+            throw new Error("Error in inputting Integer.");
+          }
+          break;
+        case PRINT_BOOL:
+          io.printBool(get(params.get(0)) != 0);
+          break;
+        case PRINT_INT:
+          io.printInt(get(params.get(0)));
+          break;
+        case PRINT_CHAR:
+          io.printChar((char) get(params.get(0)));
+          break;
+        case PRINTLN:
+          io.println("");
+          break;
       }
       pc = pc.getNext(0);
     }
 
+    /**
+     * Replaces this frame by one for {@code target}, which then returns to our caller. The
+     * arguments are evaluated above the frame before they are moved into its first slots.
+     */
+    private void tailCall(Function target, List<LocalVar> params) {
+      int n = params.size();
+      int numSlots = target.getFrameLayout().getNumSlots();
+      int end = Math.max(top + n, base + numSlots);
+      if (end > values.length)
+        values = Arrays.copyOf(values, Math.max(values.length * 2, end));
+      for (int j = 0; j < n; j++) {
+        values[top + j] = get(params.get(j));
+      }
+      if (tracer != null)
+        tracer.record(traceBase + pc.getIndex(), values, top, top + n);
+      System.arraycopy(values, top, values, base, n);
+      Arrays.fill(values, base + n, base + numSlots, 0);
+      f = target;
+      pc = target.getStart();
+      top = base + numSlots;
+      if (tracer != null)
+        traceBase = tracer.register(target);
+    }
+
     public void visit(UnaryNotInst i) {
-      Object left = localMap.get(i.getInner());
-      Object result = !((Boolean) left);
-      localMap.put(i.getDst(), result);
-      debug("UnaryNotInst: " + result);
+      long left = get(i.getInner());
+      long result = left != 0 ? 0 : 1;
+      set(i.getDst(), result);
+      if (tracer != null)
+        tracer.record(traceBase + pc.getIndex(), result);
       pc = pc.getNext(0);
     }
   }
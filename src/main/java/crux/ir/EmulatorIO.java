@@ -0,0 +1,40 @@
+package crux.ir;
+
+import java.io.IOException;
+
+/**
+ * The channel through which an emulated program reads input and writes output. Both
+ * {@link Emulator} and {@link BytecodeEmulator} route the builtins and their diagnostics through
+ * it, so the order of everything they print is preserved no matter how the channel buffers.
+ * <p>
+ * Output may be buffered; it is only guaranteed to have reached its destination after
+ * {@link #flush()}. An implementation that reads from an interactive source has to flush the
+ * output before it blocks, so that prompts are visible.
+ */
+public interface EmulatorIO {
+  /**
+   * Reads the rest of the current input line and parses it like {@link Long#parseLong(String)},
+   * including the exception for a malformed line or the end of the input.
+   */
+  long readInt() throws IOException;
+
+  /**
+   * Reads a single character, or returns -1 at the end of the input.
+   */
+  int readChar() throws IOException;
+
+  void printBool(boolean value);
+
+  void printInt(long value);
+
+  void printChar(char value);
+
+  void print(String s);
+
+  /**
+   * Prints {@code s} followed by the platform line separator.
+   */
+  void println(String s);
+
+  void flush();
+}
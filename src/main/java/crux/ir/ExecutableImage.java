@@ -0,0 +1,52 @@
+package crux.ir;
+
+import java.util.Map;
+
+/**
+ * A {@link Program} translated to {@link Bytecode} once, ready to be run any number of times. The
+ * image holds only what every run reads and nobody writes: the code of the functions, the index
+ * of main and the size of the globals. It is therefore immutable and can be shared by any number
+ * of {@link BytecodeEmulator}s, also on different threads; each emulator allocates its own frames,
+ * globals and compiled code.
+ */
+public final class ExecutableImage {
+  private final Bytecode[] mFunctions;
+  private final int mMainIndex;
+  private final long mNumGlobalWords;
+  private final Map<String, Integer> mFusionCounts;
+
+  /**
+   * Links and translates {@code p}. The program must not be changed or linked again while the
+   * image is being built.
+   */
+  public ExecutableImage(Program p) {
+    var translator = new BytecodeTranslator(p);
+    mFunctions = translator.translate();
+    mFusionCounts = translator.getFusionCounts();
+    mMainIndex = translator.getFunctionIndex("main");
+    mNumGlobalWords = translator.getNumGlobalWords();
+  }
+
+  /**
+   * The code of all functions, indexed like the callee operands of {@link Bytecode#CALL}. The
+   * array is shared, not copied, so callers must not modify it.
+   */
+  Bytecode[] getFunctions() {
+    return mFunctions;
+  }
+
+  int getMainIndex() {
+    return mMainIndex;
+  }
+
+  long getNumGlobalWords() {
+    return mNumGlobalWords;
+  }
+
+  /**
+   * How often the translator formed each superinstruction, keyed by opcode name.
+   */
+  public Map<String, Integer> getFusionCounts() {
+    return mFusionCounts;
+  }
+}
@@ -0,0 +1,41 @@
+package crux.ir;
+
+/**
+ * Deterministic bounds on what a single run of the {@link Emulator} may consume. They are counted
+ * in units of the program itself, not wall-clock time, so a program that exceeds a limit does so
+ * at the same instruction on every machine and under any load.
+ */
+public final class ExecutionLimits {
+  /** No limits at all. */
+  public static final ExecutionLimits NONE =
+      new ExecutionLimits(Long.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE);
+
+  private final long mMaxInstructions;
+  private final int mMaxCallDepth;
+  private final long mMaxGlobalWords;
+
+  /**
+   * @param maxInstructions IR instructions the run may execute
+   * @param maxCallDepth functions that may be active at once, counting main
+   * @param maxGlobalWords distinct words of global memory the run may write
+   */
+  public ExecutionLimits(long maxInstructions, int maxCallDepth, long maxGlobalWords) {
+    if (maxInstructions < 0 || maxCallDepth < 1 || maxGlobalWords < 0)
+      throw new IllegalArgumentException("invalid execution limits");
+    mMaxInstructions = maxInstructions;
+    mMaxCallDepth = maxCallDepth;
+    mMaxGlobalWords = maxGlobalWords;
+  }
+
+  public long getMaxInstructions() {
+    return mMaxInstructions;
+  }
+
+  public int getMaxCallDepth() {
+    return mMaxCallDepth;
+  }
+
+  public long getMaxGlobalWords() {
+    return mMaxGlobalWords;
+  }
+}
@@ -0,0 +1,125 @@
+package crux.ir;
+
+import java.util.*;
+
+/**
+ * Numbers every {@link LocalVar} and {@link AddressVar} of a {@link Function} into a dense slot
+ * index, so that a frame can be a plain {@code long[]} instead of a map from variables to values.
+ * The arguments always occupy the first slots, in declaration order. The remaining variables are
+ * numbered in the order in which they are first seen by a depth-first walk of the CFG.
+ * <p>
+ * The slot is recorded on the variable itself (see {@link Variable#getSlot()}), so the lookup on
+ * the hot path of an interpreter is a field read. Laying out a function is idempotent.
+ * <p>
+ * The same walk also counts the CFG edges into every instruction and the reads and writes of every
+ * slot, which is what a translator needs to know before it merges or drops instructions.
+ */
+public final class FrameLayout {
+  private final Function mFunction;
+  private final List<Instruction> mInstructions = new ArrayList<>();
+  private final HashMap<Instruction, Integer> mNumPredecessors = new HashMap<>();
+  private final List<Variable> mVariables = new ArrayList<>();
+  private int[] mNumReads;
+  private int[] mNumWrites;
+
+  FrameLayout(Function function) {
+    mFunction = function;
+    var seen = new HashSet<Variable>();
+    for (LocalVar arg : function.getArguments()) {
+      assign(arg, seen);
+    }
+
+    Stack<Instruction> tovisit = new Stack<>();
+    HashSet<Instruction> discovered = new HashSet<>();
+    if (function.getStart() != null) {
+      tovisit.push(function.getStart());
+      discovered.add(function.getStart());
+      // Entering the function counts as an edge.
+      mNumPredecessors.put(function.getStart(), 1);
+    }
+    while (!tovisit.isEmpty()) {
+      Instruction inst = tovisit.pop();
+      inst.setIndex(mInstructions.size());
+      mInstructions.add(inst);
+      if (inst.mDestVar != null)
+        assign(inst.mDestVar, seen);
+      for (Value operand : inst.mOperands) {
+        if (operand instanceof Variable)
+          assign((Variable) operand, seen);
+      }
+      for (int childIdx = inst.numNext() - 1; childIdx >= 0; childIdx--) {
+        Instruction child = inst.getNext(childIdx);
+        if (child == null)
+          continue;
+        mNumPredecessors.merge(child, 1, Integer::sum);
+        if (discovered.add(child))
+          tovisit.push(child);
+      }
+    }
+
+    mNumReads = new int[mVariables.size()];
+    mNumWrites = new int[mVariables.size()];
+    for (Instruction inst : mInstructions) {
+      if (inst.mDestVar != null)
+        mNumWrites[inst.mDestVar.getSlot()]++;
+      for (Value operand : inst.mOperands) {
+        if (operand instanceof Variable)
+          mNumReads[((Variable) operand).getSlot()]++;
+      }
+    }
+  }
+
+  private void assign(Variable var, Set<Variable> seen) {
+    if (seen.add(var)) {
+      var.setSlot(mVariables.size());
+      mVariables.add(var);
+    }
+  }
+
+  public Function getFunction() {
+    return mFunction;
+  }
+
+  /**
+   * Number of slots a frame of this function needs.
+   */
+  public int getNumSlots() {
+    return mVariables.size();
+  }
+
+  /**
+   * The variable that occupies {@code slot}.
+   */
+  public Variable getVariable(int slot) {
+    return mVariables.get(slot);
+  }
+
+  /**
+   * Number of CFG edges into {@code inst}, counting the entry of the function as one.
+   */
+  public int getNumPredecessors(Instruction inst) {
+    return mNumPredecessors.getOrDefault(inst, 0);
+  }
+
+  /**
+   * Number of instruction operands in the function that read {@code var}.
+   */
+  public int getNumReads(Variable var) {
+    return mNumReads[var.getSlot()];
+  }
+
+  /**
+   * Number of instructions in the function that write {@code var}. Arguments are also written on
+   * entry, which is not counted.
+   */
+  public int getNumWrites(Variable var) {
+    return mNumWrites[var.getSlot()];
+  }
+
+  /**
+   * All instructions reachable from the start of the function, in depth-first order.
+   */
+  public List<Instruction> getInstructions() {
+    return Collections.unmodifiableList(mInstructions);
+  }
+}
@@ -22,6 +22,7 @@ public final class Function implements Formattable, java.io.Serializable {
   private static final int FUNC_FORMAT_INDENT = 2;
   private int mTempVarCounter, mTempAddressVarCounter;
   private Instruction startInstruction;
+  private transient FrameLayout mFrameLayout;
 
   public Function(String name, FuncType funcType) {
     mFuncName = name;
@@ -34,8 +35,11 @@ public final class Function implements Formattable, java.io.Serializable {
     mArgs = List.copyOf(args);
   }
 
+  /**
+   * The arguments of the function. The list is unmodifiable and is not copied.
+   */
   public List<LocalVar> getArguments() {
-    return List.copyOf(mArgs);
+    return mArgs;
   }
 
   public String getName() {
@@ -75,6 +79,24 @@ public final class Function implements Formattable, java.io.Serializable {
 
   public void setStart(Instruction inst) {
     startInstruction = inst;
+    mFrameLayout = null;
+  }
+
+  /**
+   * Returns the slot layout of this function's frame, computing it on first use. The CFG must not
+   * be modified after this has been called, otherwise the layout may be stale.
+   */
+  public synchronized FrameLayout getFrameLayout() {
+    if (mFrameLayout == null)
+      mFrameLayout = new FrameLayout(this);
+    return mFrameLayout;
+  }
+
+  /**
+   * Drops the slot layout after a pass has changed the CFG, so that it is computed again.
+   */
+  synchronized void invalidateFrameLayout() {
+    mFrameLayout = null;
   }
 
   /**
@@ -88,8 +110,11 @@ public final class Function implements Formattable, java.io.Serializable {
     HashMap<Instruction, String> labelMap = new HashMap<>();
     Stack<Instruction> tovisit = new Stack<>();
     HashSet<Instruction> discovered = new HashSet<>();
-    if (getStart() != null)
+    if (getStart() != null) {
       tovisit.push(getStart());
+      // A loop back to the first instruction makes it a merge point as well.
+      discovered.add(getStart());
+    }
     while (!tovisit.isEmpty()) {
       Instruction inst = tovisit.pop();
 
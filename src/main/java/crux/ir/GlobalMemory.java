@@ -0,0 +1,174 @@
+package crux.ir;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * The global memory of an emulated program, addressed in 8-byte words. It is laid out from the
+ * {@link GlobalDecl} sizes of the program: small programs get one flat {@code long[]}, programs
+ * with very large arrays get pages that are only allocated once they are written to.
+ * <p>
+ * Next to the values, a shadow bitmap records which words have been written, so that reads of
+ * uninitialized memory can be diagnosed without boxing. Accesses outside the laid-out range (e.g.
+ * an out-of-bounds array index) are not an error in Crux; they go to a small overflow map and
+ * behave like any other word.
+ */
+public abstract class GlobalMemory {
+  /** Programs with at most this many words of globals use {@link Flat}. */
+  static final long FLAT_LIMIT = 1L << 22;
+
+  final HashMap<Long, Long> overflow = new HashMap<>();
+
+  /**
+   * Allocates a memory large enough for all globals of {@code p}.
+   */
+  public static GlobalMemory forProgram(Program p) {
+    long numWords = 0;
+    for (Iterator<GlobalDecl> glob_it = p.getGlobals(); glob_it.hasNext();) {
+      numWords += glob_it.next().getNumElement().getValue();
+    }
+    return allocate(numWords);
+  }
+
+  public static GlobalMemory allocate(long numWords) {
+    return numWords <= FLAT_LIMIT ? new Flat((int) numWords) : new Paged(numWords);
+  }
+
+  /**
+   * Whether the word at {@code address} has been written.
+   */
+  public abstract boolean isInitialized(long address);
+
+  /**
+   * Reads the word at {@code address}. Uninitialized words read as 0.
+   */
+  public abstract long get(long address);
+
+  public abstract void set(long address, long value);
+
+  /**
+   * Number of words the program can address without going to the overflow map.
+   */
+  public abstract long size();
+
+  /**
+   * Words of backing storage that are currently allocated.
+   */
+  public abstract long allocatedWords();
+
+  /**
+   * A single array for the whole memory.
+   */
+  static final class Flat extends GlobalMemory {
+    private final long[] words;
+    private final long[] initialized;
+
+    Flat(int numWords) {
+      words = new long[numWords];
+      initialized = new long[(numWords + 63) >>> 6];
+    }
+
+    @Override
+    public boolean isInitialized(long address) {
+      if (address >= 0 && address < words.length)
+        return (initialized[(int) (address >>> 6)] & (1L << address)) != 0;
+      return overflow.containsKey(address);
+    }
+
+    @Override
+    public long get(long address) {
+      if (address >= 0 && address < words.length)
+        return words[(int) address];
+      return overflow.getOrDefault(address, 0L);
+    }
+
+    @Override
+    public void set(long address, long value) {
+      if (address >= 0 && address < words.length) {
+        words[(int) address] = value;
+        initialized[(int) (address >>> 6)] |= 1L << address;
+      } else {
+        overflow.put(address, value);
+      }
+    }
+
+    @Override
+    public long size() {
+      return words.length;
+    }
+
+    @Override
+    public long allocatedWords() {
+      return words.length;
+    }
+  }
+
+  /**
+   * Fixed-size pages that are allocated on the first store. Reads of a missing page are reads of
+   * uninitialized memory.
+   */
+  static final class Paged extends GlobalMemory {
+    static final int PAGE_BITS = 12;
+    static final int PAGE_WORDS = 1 << PAGE_BITS;
+    static final int PAGE_MASK = PAGE_WORDS - 1;
+
+    private final long numWords;
+    private final long[][] pages;
+    private final long[][] initialized;
+    private int numAllocated;
+
+    Paged(long numWords) {
+      this.numWords = numWords;
+      int numPages = (int) ((numWords + PAGE_WORDS - 1) >>> PAGE_BITS);
+      pages = new long[numPages][];
+      initialized = new long[numPages][];
+    }
+
+    @Override
+    public boolean isInitialized(long address) {
+      if (address >= 0 && address < numWords) {
+        long[] bits = initialized[(int) (address >>> PAGE_BITS)];
+        int offset = (int) address & PAGE_MASK;
+        return bits != null && (bits[offset >>> 6] & (1L << offset)) != 0;
+      }
+      return overflow.containsKey(address);
+    }
+
+    @Override
+    public long get(long address) {
+      if (address >= 0 && address < numWords) {
+        long[] page = pages[(int) (address >>> PAGE_BITS)];
+        return page == null ? 0 : page[(int) address & PAGE_MASK];
+      }
+      return overflow.getOrDefault(address, 0L);
+    }
+
+    @Override
+    public void set(long address, long value) {
+      if (address >= 0 && address < numWords) {
+        int index = (int) (address >>> PAGE_BITS);
+        long[] page = pages[index];
+        if (page == null) {
+          page = pages[index] = new long[PAGE_WORDS];
+          initialized[index] = new long[PAGE_WORDS >>> 6];
+          numAllocated++;
+        }
+        int offset = (int) address & PAGE_MASK;
+        page[offset] = value;
+        initialized[index][offset >>> 6] |= 1L << offset;
+      } else {
+        overflow.put(address, value);
+      }
+    }
+
+    @Override
+    public long size() {
+      return numWords;
+    }
+
+    @Override
+    public long allocatedWords() {
+      return (long) numAllocated * PAGE_WORDS;
+    }
+  }
+}
@@ -0,0 +1,226 @@
+package crux.ir;
+
+import crux.ir.insts.*;
+
+import java.util.*;
+
+/**
+ * Replaces the hot calls of a program by copies of the called functions, as measured by an
+ * {@link EdgeProfile}. A call is hot if it ran at least 1/{@value #HOT_FRACTION} as often as the
+ * most frequent call of the program. Hot calls are inlined from the most frequent one down, as long
+ * as the callee is small, it is not the caller itself, and the caller stays below a size limit.
+ * Calls of builtins are left alone.
+ * <p>
+ * The copy of the callee gets fresh variables: its parameters are assigned the arguments first,
+ * and every return assigns the result of the call and continues after it. The profile is updated
+ * to match: the copied jumps get the share of the callee's counts that the call accounts for, and
+ * the callee keeps the rest, so that later decisions and the block layout see the new CFGs.
+ */
+public final class Inliner {
+  // A call is hot if it ran at least 1/HOT_FRACTION as often as the most frequent one.
+  private static final int HOT_FRACTION = 64;
+  // Callees with more instructions than this are not inlined.
+  private static final int MAX_CALLEE_SIZE = 80;
+  // No function grows beyond this many instructions by inlining.
+  private static final int MAX_CALLER_SIZE = 4000;
+
+  private final Program p;
+  private final EdgeProfile profile;
+  private int numInlined;
+
+  public Inliner(Program p, EdgeProfile profile) {
+    this.p = p;
+    this.profile = profile;
+  }
+
+  /**
+   * The number of calls that {@link #run()} inlined.
+   */
+  public int getNumInlined() {
+    return numInlined;
+  }
+
+  public void run() {
+    p.link();
+    var callers = new HashMap<CallInst, Function>();
+    var counts = new HashMap<CallInst, Long>();
+    var calls = new ArrayList<CallInst>();
+    long hottest = 0;
+    for (Iterator<Function> it = p.getFunctions(); it.hasNext();) {
+      Function f = it.next();
+      for (Instruction inst : f.getFrameLayout().getInstructions()) {
+        if (!(inst instanceof CallInst) || ((CallInst) inst).getTarget() == null)
+          continue;
+        long count = profile.getExecutions(f, inst);
+        if (count == 0)
+          continue;
+        callers.put((CallInst) inst, f);
+        counts.put((CallInst) inst, count);
+        calls.add((CallInst) inst);
+        hottest = Math.max(hottest, count);
+      }
+    }
+    // Stable, so that calls that ran equally often are inlined in program order.
+    calls.sort(Comparator.comparingLong(call -> -counts.get(call)));
+    for (CallInst call : calls) {
+      if (counts.get(call) * HOT_FRACTION < hottest)
+        break;
+      Function caller = callers.get(call);
+      Function callee = call.getTarget();
+      int calleeSize = callee.getFrameLayout().getInstructions().size();
+      if (callee == caller || calleeSize > MAX_CALLEE_SIZE
+          || caller.getFrameLayout().getInstructions().size() + calleeSize > MAX_CALLER_SIZE)
+        continue;
+      inline(caller, call, callee, counts.get(call));
+      numInlined++;
+    }
+    p.link();
+  }
+
+  private void inline(Function caller, CallInst call, Function callee, long count) {
+    var copier = new Copier(caller, callee.getName() + ".");
+    List<LocalVar> params = callee.getArguments();
+    Instruction head = null;
+    Instruction tail = null;
+    for (int idx = 0; idx < params.size(); idx++) {
+      var copy = new CopyInst(copier.map(params.get(idx)), call.getParams().get(idx));
+      copy.setPosition(call.getPosition());
+      if (head == null)
+        head = copy;
+      else
+        tail.setNext(0, copy);
+      tail = copy;
+    }
+
+    var exit = new NopInst();
+    exit.setPosition(call.getPosition());
+    exit.setNext(0, call.getNext(0));
+    var copies = new HashMap<Instruction, Instruction>();
+    List<Instruction> insts = callee.getStart() != null
+        ? callee.getFrameLayout().getInstructions() : List.of();
+    for (Instruction inst : insts) {
+      Instruction copy;
+      if (inst instanceof ReturnInst) {
+        LocalVar value = ((ReturnInst) inst).getReturnValue();
+        copy = value != null && call.getDst() != null
+            ? new CopyInst(call.getDst(), copier.map(value)) : new NopInst();
+      } else {
+        copy = copier.copy(inst);
+      }
+      copy.setPosition(inst.getPosition());
+      copies.put(inst, copy);
+    }
+    for (Instruction inst : insts) {
+      Instruction copy = copies.get(inst);
+      // A missing successor returns, which now continues after the call.
+      int numNext = inst instanceof JumpInst ? 2 : 1;
+      for (int childIdx = 0; childIdx < numNext; childIdx++) {
+        Instruction next = inst instanceof ReturnInst ? null : inst.getNext(childIdx);
+        copy.setNext(childIdx, next != null ? copies.get(next) : exit);
+      }
+    }
+
+    Instruction entry = insts.isEmpty() ? exit : copies.get(callee.getStart());
+    if (head == null)
+      head = entry;
+    else
+      tail.setNext(0, entry);
+    for (Instruction inst : caller.getFrameLayout().getInstructions()) {
+      for (int childIdx = 0; childIdx < inst.numNext(); childIdx++) {
+        if (inst.getNext(childIdx) == call)
+          inst.setNext(childIdx, head);
+      }
+    }
+    if (caller.getStart() == call)
+      caller.setStart(head);
+
+    long calls = profile.getCalls(callee);
+    double fraction = calls > 0 ? Math.min(1.0, (double) count / calls) : 0;
+    for (Instruction inst : insts) {
+      if (inst instanceof JumpInst)
+        profile.split((JumpInst) inst, (JumpInst) copies.get(inst), fraction);
+    }
+    profile.setCalls(callee, Math.max(0, calls - count));
+    caller.invalidateFrameLayout();
+    profile.invalidate(caller);
+  }
+
+  /**
+   * Copies instructions of a callee into a caller, renaming their variables to fresh ones of the
+   * caller. The successors of the copies are left unset.
+   */
+  private static final class Copier {
+    private final Function caller;
+    // Prefix of the names of the fresh variables.
+    private final String prefix;
+    private final HashMap<Variable, Variable> renamed = new HashMap<>();
+
+    Copier(Function caller, String prefix) {
+      this.caller = caller;
+      this.prefix = prefix;
+    }
+
+    LocalVar map(LocalVar var) {
+      if (var == null)
+        return null;
+      return (LocalVar) renamed.computeIfAbsent(var, v -> caller.getTempVar(v.getType(), prefix));
+    }
+
+    AddressVar map(AddressVar var) {
+      return (AddressVar) renamed.computeIfAbsent(var, v -> caller.getTempAddressVar(v.getType()));
+    }
+
+    Instruction copy(Instruction inst) {
+      if (inst instanceof AddressAt) {
+        AddressAt i = (AddressAt) inst;
+        AddressAt copy = i.getOffset() != null
+            ? new AddressAt(map(i.getDst()), i.getBase(), map(i.getOffset()))
+            : new AddressAt(map(i.getDst()), i.getBase());
+        copy.setChecked(i.isChecked());
+        return copy;
+      }
+      if (inst instanceof BinaryOperator) {
+        BinaryOperator i = (BinaryOperator) inst;
+        return new BinaryOperator(i.getOperator(), map(i.getDst()), map(i.getLeftOperand()),
+            map(i.getRightOperand()));
+      }
+      if (inst instanceof CallInst) {
+        CallInst i = (CallInst) inst;
+        var params = new ArrayList<LocalVar>();
+        for (LocalVar param : i.getParams())
+          params.add(map(param));
+        return i.getDst() != null ? new CallInst(map(i.getDst()), i.getCallee(), params)
+            : new CallInst(i.getCallee(), params);
+      }
+      if (inst instanceof CompareInst) {
+        CompareInst i = (CompareInst) inst;
+        return new CompareInst(map(i.getDst()), i.getPredicate(), map(i.getLeftOperand()),
+            map(i.getRightOperand()));
+      }
+      if (inst instanceof CopyInst) {
+        CopyInst i = (CopyInst) inst;
+        Value src = i.getSrcValue();
+        if (src instanceof LocalVar)
+          src = map((LocalVar) src);
+        return new CopyInst(map(i.getDstVar()), src);
+      }
+      if (inst instanceof JumpInst)
+        return new JumpInst(map(((JumpInst) inst).getPredicate()));
+      if (inst instanceof LoadInst) {
+        LoadInst i = (LoadInst) inst;
+        return new LoadInst(map(i.getDst()), map(i.getSrcAddress()));
+      }
+      if (inst instanceof NopInst)
+        return new NopInst();
+      if (inst instanceof StoreInst) {
+        StoreInst i = (StoreInst) inst;
+        return new StoreInst(map(i.getSrcValue()), map(i.getDestAddress()));
+      }
+      if (inst instanceof UnaryNotInst) {
+        UnaryNotInst i = (UnaryNotInst) inst;
+        return new UnaryNotInst(map(i.getDst()), map(i.getInner()));
+      }
+      throw new Error("Cannot inline " + inst.getClass().getSimpleName());
+    }
+  }
+}
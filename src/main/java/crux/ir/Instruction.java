@@ -2,6 +2,7 @@ package crux.ir;
 
 import java.util.List;
 import java.util.Vector;
+import crux.ast.Position;
 import crux.ir.insts.InstVisitor;
 
 /**
@@ -15,6 +16,8 @@ public abstract class Instruction implements Formattable, java.io.Serializable {
   protected Variable mDestVar;
   protected List<Value> mOperands;
   protected Vector<Instruction> next;
+  private Position mPosition;
+  private transient int mIndex = -1;
 
   protected Instruction(Variable destVar, List<Value> operands) {
     mDestVar = destVar;
@@ -37,6 +40,30 @@ public abstract class Instruction implements Formattable, java.io.Serializable {
       return next.get(i);
   }
 
+  /**
+   * The position of the AST node this instruction was lowered from, or null if it is unknown (e.g.
+   * for IR that was serialized before positions were recorded).
+   */
+  public Position getPosition() {
+    return mPosition;
+  }
+
+  public void setPosition(Position position) {
+    mPosition = position;
+  }
+
+  /**
+   * The index of this instruction in {@link FrameLayout#getInstructions()} of its function, or -1
+   * if the function has not been laid out.
+   */
+  int getIndex() {
+    return mIndex;
+  }
+
+  void setIndex(int index) {
+    mIndex = index;
+  }
+
   public int numNext() {
     return next.size();
   }
@@ -0,0 +1,44 @@
+package crux.ir;
+
+import java.util.HashMap;
+
+/**
+ * The built-in functions a Crux program can call without defining them. This mirrors the functions
+ * that the constructor of {@link crux.ast.SymbolTable} declares in the global scope; a call to one
+ * of them is linked to its intrinsic instead of a {@link Function} (see {@link Program#link()}).
+ */
+public enum Intrinsic {
+  READ_INT("readInt", 0), READ_CHAR("readChar", 0), PRINT_BOOL("printBool", 1), PRINT_INT(
+      "printInt", 1), PRINT_CHAR("printChar", 1), PRINTLN("println", 0);
+
+  private static final HashMap<String, Intrinsic> byName = new HashMap<>();
+
+  static {
+    for (Intrinsic intrinsic : values()) {
+      byName.put(intrinsic.name, intrinsic);
+    }
+  }
+
+  private final String name;
+  private final int numParams;
+
+  Intrinsic(String name, int numParams) {
+    this.name = name;
+    this.numParams = numParams;
+  }
+
+  /**
+   * The intrinsic called {@code name} in Crux source code, or null if there is none.
+   */
+  public static Intrinsic forName(String name) {
+    return byName.get(name);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getNumParams() {
+    return numParams;
+  }
+}
@@ -0,0 +1,73 @@
+package crux.ir;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Which variables of a {@link Function} are live before and after each of its instructions. A
+ * variable is live at a point if some path from there reads it before it is written again.
+ * Variables are identified by their {@link FrameLayout} slot, so the sets are plain bit sets.
+ * <p>
+ * The sets are computed by the usual backwards data flow over the CFG, iterated until nothing
+ * changes. A jump or a fall-through to a missing instruction returns from the function, so
+ * nothing is live after it.
+ */
+public final class Liveness {
+  private final BitSet[] mLiveIn;
+  private final BitSet[] mLiveOut;
+
+  public Liveness(Function function) {
+    List<Instruction> insts = function.getFrameLayout().getInstructions();
+    int n = insts.size();
+    mLiveIn = new BitSet[n];
+    mLiveOut = new BitSet[n];
+    for (int i = 0; i < n; i++) {
+      mLiveIn[i] = new BitSet();
+      mLiveOut[i] = new BitSet();
+    }
+
+    // The instructions are in depth-first order, so visiting them backwards sees most successors
+    // before their predecessors and only loops need another round.
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int i = n - 1; i >= 0; i--) {
+        Instruction inst = insts.get(i);
+        BitSet out = new BitSet();
+        for (int childIdx = 0; childIdx < inst.numNext(); childIdx++) {
+          Instruction child = inst.getNext(childIdx);
+          if (child != null)
+            out.or(mLiveIn[child.getIndex()]);
+        }
+        BitSet in = (BitSet) out.clone();
+        if (inst.mDestVar != null)
+          in.clear(inst.mDestVar.getSlot());
+        for (Value operand : inst.mOperands) {
+          if (operand instanceof Variable)
+            in.set(((Variable) operand).getSlot());
+        }
+        if (!out.equals(mLiveOut[i]) || !in.equals(mLiveIn[i])) {
+          mLiveOut[i] = out;
+          mLiveIn[i] = in;
+          changed = true;
+        }
+      }
+    }
+  }
+
+  /**
+   * The slots of the variables that are live right before {@code inst} executes. The set is
+   * shared, not copied, so callers must not modify it.
+   */
+  public BitSet getLiveIn(Instruction inst) {
+    return mLiveIn[inst.getIndex()];
+  }
+
+  /**
+   * The slots of the variables that are live right after {@code inst} executes. The set is shared,
+   * not copied, so callers must not modify it.
+   */
+  public BitSet getLiveOut(Instruction inst) {
+    return mLiveOut[inst.getIndex()];
+  }
+}
@@ -0,0 +1,312 @@
+package crux.ir;
+
+import crux.ast.Position;
+import crux.ir.insts.JumpInst;
+import crux.printing.IRValueFormatter;
+
+import java.io.PrintStream;
+import java.util.*;
+
+/**
+ * Collects an execution profile while the {@link Emulator} runs a program: how often every
+ * instruction executes, how often every function is called, how many instructions every function
+ * executes itself (exclusive) and including its callees (inclusive), and how often every loop
+ * back-edge is taken. Counts are kept in arrays indexed by {@link Instruction#getIndex()}, so
+ * profiling costs a few array increments per instruction.
+ * <p>
+ * Two reports can be written afterwards: a text report sorted by cost, which attributes
+ * instructions to source lines through {@link Instruction#getPosition()}, and the call stacks in
+ * the collapsed format ({@code main;f;g 123}) that flame graph tools read, weighted by the
+ * instructions executed in each stack. The calls and the edges taken by every jump also make up an
+ * {@link EdgeProfile}.
+ */
+public final class Profiler {
+  private static final int TOP = 20;
+  private static final IRValueFormatter FORMAT = new IRValueFormatter();
+
+  private final HashMap<Function, FunctionProfile> profiles = new HashMap<>();
+  private final StackNode root = new StackNode(null, null);
+
+  // Per call depth: the profile of the running function and the instruction count when it was
+  // entered.
+  private FunctionProfile[] active = new FunctionProfile[16];
+  private long[] enteredAt = new long[16];
+  private int depth;
+  private StackNode current = root;
+  private long totalInstructions;
+
+  private static final class FunctionProfile {
+    final Function function;
+    final List<Instruction> instructions;
+    final long[] counts;
+    // Bit i is set if the edge to getNext(i) of the instruction closes a loop.
+    final byte[] backEdges;
+    final long[] backEdgeCounts;
+    // How often each jump continued at next(1), and at next(0).
+    final long[] takenCounts;
+    final long[] fallThroughCounts;
+    long calls;
+    long exclusive;
+    long inclusive;
+    // Number of activations on the stack, so that recursion is counted once in inclusive.
+    int activations;
+
+    FunctionProfile(Function function) {
+      this.function = function;
+      instructions = function.getFrameLayout().getInstructions();
+      counts = new long[instructions.size()];
+      backEdges = findBackEdges(function, instructions);
+      backEdgeCounts = new long[instructions.size()];
+      takenCounts = new long[instructions.size()];
+      fallThroughCounts = new long[instructions.size()];
+    }
+  }
+
+  private static final class StackNode {
+    final StackNode parent;
+    final Function function;
+    final HashMap<Function, StackNode> children = new HashMap<>();
+    long self;
+
+    StackNode(StackNode parent, Function function) {
+      this.parent = parent;
+      this.function = function;
+    }
+  }
+
+  /**
+   * Marks the edges of a depth-first walk of the CFG that lead back to an instruction that is still
+   * on the walk's stack, i.e. the edges that close a loop.
+   */
+  private static byte[] findBackEdges(Function function, List<Instruction> instructions) {
+    byte[] backEdges = new byte[instructions.size()];
+    if (function.getStart() == null)
+      return backEdges;
+    boolean[] onStack = new boolean[instructions.size()];
+    boolean[] visited = new boolean[instructions.size()];
+    Deque<Instruction> stack = new ArrayDeque<>();
+    Deque<Integer> nextChild = new ArrayDeque<>();
+    stack.push(function.getStart());
+    nextChild.push(0);
+    visited[function.getStart().getIndex()] = true;
+    onStack[function.getStart().getIndex()] = true;
+    while (!stack.isEmpty()) {
+      Instruction inst = stack.peek();
+      int child = nextChild.pop();
+      if (child == inst.numNext()) {
+        stack.pop();
+        onStack[inst.getIndex()] = false;
+        continue;
+      }
+      nextChild.push(child + 1);
+      Instruction next = inst.getNext(child);
+      if (next == null)
+        continue;
+      if (onStack[next.getIndex()]) {
+        backEdges[inst.getIndex()] |= 1 << child;
+      } else if (!visited[next.getIndex()]) {
+        visited[next.getIndex()] = true;
+        onStack[next.getIndex()] = true;
+        stack.push(next);
+        nextChild.push(0);
+      }
+    }
+    return backEdges;
+  }
+
+  private FunctionProfile profileOf(Function f) {
+    return profiles.computeIfAbsent(f, FunctionProfile::new);
+  }
+
+  /**
+   * Called when {@code f} is entered, including the entry of main.
+   */
+  void enter(Function f) {
+    FunctionProfile p = profileOf(f);
+    if (depth == active.length) {
+      active = Arrays.copyOf(active, depth * 2);
+      enteredAt = Arrays.copyOf(enteredAt, depth * 2);
+    }
+    active[depth] = p;
+    enteredAt[depth] = totalInstructions;
+    depth++;
+    p.calls++;
+    p.activations++;
+    current = current.children.computeIfAbsent(f, g -> new StackNode(current, g));
+  }
+
+  /**
+   * Called when the running function returns.
+   */
+  void leave() {
+    depth--;
+    FunctionProfile p = active[depth];
+    if (--p.activations == 0)
+      p.inclusive += totalInstructions - enteredAt[depth];
+    active[depth] = null;
+    current = current.parent;
+  }
+
+  /**
+   * Called before {@code inst} of the running function executes.
+   */
+  void execute(Instruction inst) {
+    FunctionProfile p = active[depth - 1];
+    p.counts[inst.getIndex()]++;
+    p.exclusive++;
+    current.self++;
+    totalInstructions++;
+  }
+
+  /**
+   * Called after {@code inst} of a function that is still running continued at {@code next}.
+   */
+  void branch(Instruction inst, Instruction next) {
+    FunctionProfile p = active[depth - 1];
+    if (inst instanceof JumpInst) {
+      // A jump to null returns, which still happens in this frame.
+      if (next == inst.getNext(0))
+        p.fallThroughCounts[inst.getIndex()]++;
+      else
+        p.takenCounts[inst.getIndex()]++;
+    }
+    int edges = p.backEdges[inst.getIndex()];
+    if (edges == 0)
+      return;
+    for (int i = 0; i < inst.numNext(); i++) {
+      if ((edges & (1 << i)) != 0 && inst.getNext(i) == next) {
+        p.backEdgeCounts[inst.getIndex()]++;
+        return;
+      }
+    }
+  }
+
+  /**
+   * Ends the profile, accounting functions that are still running (e.g. after the program
+   * stopped with an error).
+   */
+  void finish() {
+    while (depth > 0)
+      leave();
+  }
+
+  /**
+   * The calls and jump counts of the run as an {@link EdgeProfile} of {@code p}, the program that
+   * ran.
+   */
+  public EdgeProfile getEdgeProfile(Program p) {
+    var result = new EdgeProfile(p);
+    for (FunctionProfile profile : profiles.values()) {
+      result.setCalls(profile.function, profile.calls);
+      for (int i = 0; i < profile.instructions.size(); i++) {
+        if (profile.instructions.get(i) instanceof JumpInst)
+          result.setBranchCounts((JumpInst) profile.instructions.get(i), profile.takenCounts[i],
+              profile.fallThroughCounts[i]);
+      }
+    }
+    return result;
+  }
+
+  public long getTotalInstructions() {
+    return totalInstructions;
+  }
+
+  /**
+   * Writes the text report: functions by exclusive instructions, then the hottest source lines,
+   * instructions and loops.
+   */
+  public void writeReport(PrintStream out) {
+    var functions = new ArrayList<>(profiles.values());
+    functions.sort(Comparator.comparingLong((FunctionProfile p) -> -p.exclusive)
+        .thenComparing(p -> p.function.getName()));
+    out.printf("Profile: %d instructions executed%n%n", totalInstructions);
+
+    out.println("Functions");
+    out.printf("%12s %14s %7s %14s %7s  %s%n", "calls", "exclusive", "%", "inclusive", "%",
+        "function");
+    for (var p : functions) {
+      out.printf("%12d %14d %7s %14d %7s  %s%n", p.calls, p.exclusive, percent(p.exclusive),
+          p.inclusive, percent(p.inclusive), p.function.getName());
+    }
+
+    var lines = new HashMap<String, long[]>();
+    for (var p : functions) {
+      for (int i = 0; i < p.counts.length; i++) {
+        if (p.counts[i] != 0)
+          lines.computeIfAbsent(location(p, i), k -> new long[1])[0] += p.counts[i];
+      }
+    }
+    var lineList = new ArrayList<>(lines.entrySet());
+    lineList.sort(Comparator.comparingLong((Map.Entry<String, long[]> e) -> -e.getValue()[0])
+        .thenComparing(Map.Entry::getKey));
+    out.printf("%nLines%n%14s %7s  %s%n", "instructions", "%", "location");
+    for (var e : lineList.subList(0, Math.min(TOP, lineList.size()))) {
+      out.printf("%14d %7s  %s%n", e.getValue()[0], percent(e.getValue()[0]), e.getKey());
+    }
+
+    var hot = new ArrayList<long[]>();
+    var loops = new ArrayList<long[]>();
+    for (int f = 0; f < functions.size(); f++) {
+      var p = functions.get(f);
+      for (int i = 0; i < p.counts.length; i++) {
+        if (p.counts[i] != 0)
+          hot.add(new long[] {p.counts[i], f, i});
+        if (p.backEdgeCounts[i] != 0)
+          loops.add(new long[] {p.backEdgeCounts[i], f, i});
+      }
+    }
+    Comparator<long[]> byCount = Comparator.comparingLong((long[] e) -> -e[0]);
+    hot.sort(byCount);
+    loops.sort(byCount);
+
+    out.printf("%nInstructions%n%14s %7s  %-24s %s%n", "executed", "%", "location", "instruction");
+    for (var e : hot.subList(0, Math.min(TOP, hot.size()))) {
+      var p = functions.get((int) e[1]);
+      out.printf("%14d %7s  %-24s %s%n", e[0], percent(e[0]), location(p, (int) e[2]),
+          p.instructions.get((int) e[2]).format(FORMAT));
+    }
+
+    out.printf("%nLoops%n%14s  %s%n", "back-edges", "location -> loop header");
+    for (var e : loops) {
+      var p = functions.get((int) e[1]);
+      int index = (int) e[2];
+      int edge = Integer.numberOfTrailingZeros(p.backEdges[index]);
+      int header = p.instructions.get(index).getNext(edge).getIndex();
+      out.printf("%14d  %s -> %s%n", e[0], location(p, index), location(p, header));
+    }
+  }
+
+  /**
+   * Writes one line per distinct call stack, with the instructions executed in its innermost
+   * function, e.g. {@code main;fib;fib 4711}.
+   */
+  public void writeCollapsedStacks(PrintStream out) {
+    var frames = new ArrayDeque<String>();
+    writeStacks(root, frames, out);
+  }
+
+  private void writeStacks(StackNode node, Deque<String> frames, PrintStream out) {
+    if (node.function != null) {
+      frames.addLast(node.function.getName());
+      if (node.self != 0)
+        out.printf("%s %d%n", String.join(";", frames), node.self);
+    }
+    var children = new ArrayList<>(node.children.values());
+    children.sort(Comparator.comparing(n -> n.function.getName()));
+    for (var child : children)
+      writeStacks(child, frames, out);
+    if (node.function != null)
+      frames.removeLast();
+  }
+
+  private String percent(long count) {
+    if (totalInstructions == 0)
+      return "-";
+    return String.format("%.1f", 100.0 * count / totalInstructions);
+  }
+
+  private static String location(FunctionProfile p, int index) {
+    Position position = p.instructions.get(index).getPosition();
+    return p.function.getName() + ":" + (position != null ? position.line : "?");
+  }
+}
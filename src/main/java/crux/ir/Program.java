@@ -1,6 +1,11 @@
 package crux.ir;
 
+import crux.ir.insts.CallInst;
+import crux.ir.insts.NopInst;
+import crux.ir.insts.ReturnInst;
+
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Iterator;
 
@@ -36,6 +41,58 @@ public final class Program implements Formattable, java.io.Serializable {
     return mFunctions.iterator();
   }
 
+  /**
+   * Resolves the callee of every {@link CallInst} once, to either an {@link Intrinsic} or a
+   * {@link Function} of this program, so that executing a call does not look anything up by name.
+   * Calls to unknown functions or with the wrong number of arguments are reported here, before the
+   * program runs. Linking is idempotent.
+   */
+  public void link() {
+    var byName = new HashMap<String, Function>();
+    for (Function f : mFunctions) {
+      byName.put(f.getName(), f);
+    }
+    for (Function f : mFunctions) {
+      for (Instruction inst : f.getFrameLayout().getInstructions()) {
+        if (!(inst instanceof CallInst))
+          continue;
+        CallInst call = (CallInst) inst;
+        String name = call.getCallee().getName();
+        Intrinsic intrinsic = Intrinsic.forName(name);
+        Function target = intrinsic == null ? byName.get(name) : null;
+        int numParams;
+        if (intrinsic != null)
+          numParams = intrinsic.getNumParams();
+        else if (target != null)
+          numParams = target.getArguments().size();
+        else
+          throw new Error("Unresolved call to " + name + " in function " + f.getName());
+        if (call.getParams().size() != numParams)
+          throw new Error("Call to " + name + " in function " + f.getName() + " passes "
+              + call.getParams().size() + " arguments, expected " + numParams);
+        call.link(target, intrinsic, target != null && isTailPosition(call));
+      }
+    }
+  }
+
+  /**
+   * Whether only nops lie between {@code call} and the end of its function, which either falls off
+   * the end or returns nothing or the call's result.
+   */
+  private static boolean isTailPosition(CallInst call) {
+    Instruction next = call.getNext(0);
+    // Bounded, in case the nops form a loop.
+    for (int steps = 0; next instanceof NopInst && steps < 64; steps++) {
+      next = next.getNext(0);
+    }
+    if (next == null)
+      return true;
+    if (!(next instanceof ReturnInst))
+      return false;
+    LocalVar value = ((ReturnInst) next).getReturnValue();
+    return value == null || value == call.getDst();
+  }
+
   @Override
   public String format(java.util.function.Function<Value, String> valueFormatter) {
     var builder = new StringBuilder();
@@ -0,0 +1,511 @@
+package crux.ir;
+
+import crux.ast.types.IntType;
+import crux.ir.insts.*;
+
+import java.util.*;
+
+/**
+ * The values that the array offsets of a {@link Function} can have, as an interval per offset. The
+ * intervals come from a forward data flow over the basic blocks of the CFG, in which every tracked
+ * variable holds an interval {@code [lo, hi]}:
+ * <ul>
+ * <li>Constants, copies and arithmetic are evaluated on the intervals. A result that may overflow,
+ * and any value that is loaded, read or returned by a call, can be anything.</li>
+ * <li>Along both edges of a jump on a comparison, the compared variables are narrowed to the values
+ * for which the comparison holds or fails. This is what bounds a loop index by the condition of its
+ * loop.</li>
+ * <li>After a checked {@link AddressAt} (see {@link BoundsChecks}), its offset lies within the
+ * array, since the program would have stopped otherwise.</li>
+ * </ul>
+ * Bounds that still change at a loop header are widened to the next constant of the function, or
+ * to infinity past the last one, so the analysis terminates. Widening to the constants keeps the
+ * bounds of a loop index intact in the loops nested inside its loop. A few more rounds over all
+ * blocks then narrow the bounds again. Only the variables that offsets are
+ * computed from, and the variables those are compared with, are tracked.
+ */
+public final class RangeAnalysis {
+  // Rounds over all blocks after the fixed point, which shrink the widened bounds again.
+  private static final int NARROWING_ROUNDS = 2;
+
+  private static final class Block {
+    final List<Instruction> insts = new ArrayList<>();
+    // Indexed like the successors of the last instruction; a null successor returns.
+    Block[] succs;
+    final List<Block> preds = new ArrayList<>();
+    int order = -1;
+    boolean loopHeader;
+    // The intervals on entry, and along each successor edge; null where nothing gets through.
+    long[] entry;
+    long[][] exits;
+
+    Block(Instruction first) {
+      insts.add(first);
+    }
+
+    Instruction last() {
+      return insts.get(insts.size() - 1);
+    }
+  }
+
+  private final FrameLayout layout;
+  // Dense numbers of the tracked variables; variable k has its interval at 2k and 2k + 1.
+  private final HashMap<Variable, Integer> tracked = new HashMap<>();
+  // The comparison right before a jump, whose result the jump tests.
+  private final HashMap<JumpInst, CompareInst> conditions = new HashMap<>();
+  private final HashMap<AddressAt, long[]> offsetRanges = new HashMap<>();
+  // The constants and array extents of the function, and their neighbours, in ascending order.
+  private long[] thresholds;
+
+  public RangeAnalysis(Function function) {
+    layout = function.getFrameLayout();
+    if (function.getStart() == null)
+      return;
+    chooseVariables();
+    for (Instruction inst : layout.getInstructions()) {
+      if (!(inst instanceof CompareInst))
+        continue;
+      CompareInst compare = (CompareInst) inst;
+      Instruction next = compare.getNext(0);
+      if (next instanceof JumpInst && ((JumpInst) next).getPredicate() == compare.getDst()
+          && layout.getNumPredecessors(next) == 1 && layout.getNumWrites(compare.getDst()) == 1)
+        conditions.put((JumpInst) next, compare);
+    }
+
+    List<Block> order = buildBlocks(function.getStart());
+    solve(order);
+    for (int round = 0; round < NARROWING_ROUNDS; round++) {
+      for (Block block : order) {
+        long[] in = join(block, order.get(0));
+        if (in != null && block.loopHeader && block.entry != null)
+          in = meet(block.entry, in);
+        block.entry = in;
+        transfer(block);
+      }
+    }
+    for (Block block : order) {
+      if (block.entry == null)
+        continue;
+      long[] state = block.entry.clone();
+      for (Instruction inst : block.insts) {
+        if (inst instanceof AddressAt && ((AddressAt) inst).getOffset() != null) {
+          int k = tracked.get(((AddressAt) inst).getOffset());
+          offsetRanges.put((AddressAt) inst, new long[] {state[2 * k], state[2 * k + 1]});
+        }
+        if (!step(inst, state))
+          break;
+      }
+    }
+  }
+
+  /**
+   * The lowest and highest value the offset of {@code address} can have, or null if the analysis
+   * found that {@code address} never runs.
+   */
+  public long[] getOffsetRange(AddressAt address) {
+    long[] range = offsetRanges.get(address);
+    return range == null ? null : range.clone();
+  }
+
+  /**
+   * Tracks the offsets, the integer variables they are computed from, and the integer variables
+   * compared with any of those.
+   */
+  private void chooseVariables() {
+    var definitions = new HashMap<Variable, List<Instruction>>();
+    var compares = new HashMap<Variable, List<CompareInst>>();
+    var pending = new ArrayDeque<Variable>();
+    var constants = new TreeSet<Long>();
+    for (Instruction inst : layout.getInstructions()) {
+      long constant;
+      if (inst instanceof CopyInst && ((CopyInst) inst).getSrcValue() instanceof IntegerConstant)
+        constant = ((IntegerConstant) ((CopyInst) inst).getSrcValue()).getValue();
+      else if (inst instanceof AddressAt && ((AddressAt) inst).getOffset() != null)
+        constant = ((AddressAt) inst).getExtent();
+      else
+        constant = 0;
+      for (long neighbour : new long[] {constant - 1, constant, constant + 1})
+        constants.add(neighbour);
+      if (inst.mDestVar != null)
+        definitions.computeIfAbsent(inst.mDestVar, k -> new ArrayList<>()).add(inst);
+      if (inst instanceof CompareInst) {
+        for (Value operand : inst.mOperands)
+          compares.computeIfAbsent((Variable) operand, k -> new ArrayList<>())
+              .add((CompareInst) inst);
+      }
+      if (inst instanceof AddressAt && ((AddressAt) inst).getOffset() != null)
+        pending.add(((AddressAt) inst).getOffset());
+    }
+    thresholds = constants.stream().mapToLong(Long::longValue).toArray();
+    while (!pending.isEmpty()) {
+      Variable var = pending.poll();
+      if (tracked.containsKey(var))
+        continue;
+      tracked.put(var, tracked.size());
+      for (Instruction def : definitions.getOrDefault(var, List.of())) {
+        if (def instanceof CopyInst || def instanceof BinaryOperator) {
+          for (Value operand : def.mOperands)
+            if (isInteger(operand))
+              pending.add((Variable) operand);
+        }
+      }
+      for (CompareInst compare : compares.getOrDefault(var, List.of())) {
+        for (Value operand : compare.mOperands)
+          if (isInteger(operand))
+            pending.add((Variable) operand);
+      }
+    }
+  }
+
+  private static boolean isInteger(Value value) {
+    return value instanceof LocalVar && ((LocalVar) value).getType() instanceof IntType;
+  }
+
+  /**
+   * Splits the CFG into basic blocks and returns them in reverse postorder, marking the blocks that
+   * a later block jumps back to as loop headers.
+   */
+  private List<Block> buildBlocks(Instruction start) {
+    var blockOf = new HashMap<Instruction, Block>();
+    for (Instruction inst : layout.getInstructions()) {
+      if (inst == start || layout.getNumPredecessors(inst) != 1)
+        blockOf.put(inst, new Block(inst));
+      if (inst instanceof JumpInst) {
+        for (int childIdx = 0; childIdx < 2; childIdx++) {
+          Instruction child = inst.getNext(childIdx);
+          if (child != null && !blockOf.containsKey(child))
+            blockOf.put(child, new Block(child));
+        }
+      }
+    }
+    for (Block block : List.copyOf(blockOf.values())) {
+      Instruction inst = block.last();
+      while (!(inst instanceof JumpInst || inst instanceof ReturnInst)) {
+        Instruction next = inst.getNext(0);
+        if (next == null || blockOf.containsKey(next))
+          break;
+        block.insts.add(next);
+        inst = next;
+      }
+      int numSuccs = inst instanceof ReturnInst ? 0 : inst instanceof JumpInst ? 2 : 1;
+      block.succs = new Block[numSuccs];
+      for (int childIdx = 0; childIdx < numSuccs; childIdx++) {
+        Instruction child = inst.getNext(childIdx);
+        block.succs[childIdx] = child == null ? null : blockOf.get(child);
+      }
+      block.exits = new long[numSuccs][];
+    }
+
+    var postorder = new ArrayList<Block>();
+    var stack = new ArrayDeque<Block>();
+    var nextChild = new HashMap<Block, Integer>();
+    Block first = blockOf.get(start);
+    first.order = 0;
+    stack.push(first);
+    while (!stack.isEmpty()) {
+      Block block = stack.peek();
+      int childIdx = nextChild.getOrDefault(block, 0);
+      if (childIdx == block.succs.length) {
+        stack.pop();
+        postorder.add(block);
+        continue;
+      }
+      nextChild.put(block, childIdx + 1);
+      Block child = block.succs[childIdx];
+      if (child != null && child.order < 0) {
+        child.order = 0;
+        stack.push(child);
+      }
+    }
+    Collections.reverse(postorder);
+    for (int idx = 0; idx < postorder.size(); idx++)
+      postorder.get(idx).order = idx;
+    for (Block block : postorder) {
+      for (Block succ : block.succs) {
+        if (succ == null)
+          continue;
+        if (!succ.preds.contains(block))
+          succ.preds.add(block);
+        if (succ.order <= block.order)
+          succ.loopHeader = true;
+      }
+    }
+    return postorder;
+  }
+
+  /**
+   * Iterates to a fixed point, widening at loop headers.
+   */
+  private void solve(List<Block> order) {
+    var pending = new TreeSet<Integer>();
+    pending.add(0);
+    while (!pending.isEmpty()) {
+      Block block = order.get(pending.pollFirst());
+      long[] in = join(block, order.get(0));
+      if (in == null)
+        continue;
+      if (block.entry != null) {
+        if (block.loopHeader)
+          in = widen(block.entry, in);
+        if (Arrays.equals(in, block.entry))
+          continue;
+      }
+      block.entry = in;
+      transfer(block);
+      for (Block succ : block.succs) {
+        if (succ != null)
+          pending.add(succ.order);
+      }
+    }
+  }
+
+  /**
+   * The intervals on entry to {@code block}: anything at the start of the function, otherwise the
+   * union over the edges that lead to it.
+   */
+  private long[] join(Block block, Block first) {
+    if (block == first)
+      return top();
+    long[] result = null;
+    for (Block pred : block.preds) {
+      for (int childIdx = 0; childIdx < pred.succs.length; childIdx++) {
+        long[] edge = pred.exits[childIdx];
+        if (pred.succs[childIdx] != block || edge == null)
+          continue;
+        if (result == null) {
+          result = edge.clone();
+          continue;
+        }
+        for (int k = 0; k < result.length; k += 2) {
+          result[k] = Math.min(result[k], edge[k]);
+          result[k + 1] = Math.max(result[k + 1], edge[k + 1]);
+        }
+      }
+    }
+    return result;
+  }
+
+  private long[] top() {
+    long[] state = new long[2 * tracked.size()];
+    for (int k = 0; k < state.length; k += 2) {
+      state[k] = Long.MIN_VALUE;
+      state[k + 1] = Long.MAX_VALUE;
+    }
+    return state;
+  }
+
+  private long[] widen(long[] old, long[] in) {
+    long[] result = new long[old.length];
+    for (int k = 0; k < old.length; k += 2) {
+      result[k] = old[k];
+      if (in[k] < old[k]) {
+        int idx = Arrays.binarySearch(thresholds, in[k]);
+        idx = idx >= 0 ? idx : -idx - 2;
+        result[k] = idx >= 0 ? thresholds[idx] : Long.MIN_VALUE;
+      }
+      result[k + 1] = old[k + 1];
+      if (in[k + 1] > old[k + 1]) {
+        int idx = Arrays.binarySearch(thresholds, in[k + 1]);
+        idx = idx >= 0 ? idx : -idx - 1;
+        result[k + 1] = idx < thresholds.length ? thresholds[idx] : Long.MAX_VALUE;
+      }
+    }
+    return result;
+  }
+
+  private static long[] meet(long[] old, long[] in) {
+    long[] result = new long[old.length];
+    for (int k = 0; k < old.length; k += 2) {
+      result[k] = Math.max(old[k], in[k]);
+      result[k + 1] = Math.min(old[k + 1], in[k + 1]);
+      if (result[k] > result[k + 1])
+        return null;
+    }
+    return result;
+  }
+
+  /**
+   * Computes the intervals along every edge out of {@code block} from its entry.
+   */
+  private void transfer(Block block) {
+    Arrays.fill(block.exits, null);
+    if (block.entry == null)
+      return;
+    long[] state = block.entry.clone();
+    for (Instruction inst : block.insts) {
+      if (!step(inst, state))
+        return;
+    }
+    Instruction last = block.last();
+    CompareInst compare = last instanceof JumpInst ? conditions.get(last) : null;
+    for (int childIdx = 0; childIdx < block.succs.length; childIdx++) {
+      long[] edge = state.clone();
+      if (compare != null) {
+        CompareInst.Predicate predicate = compare.getPredicate();
+        if (childIdx == 0)
+          predicate = negate(predicate);
+        if (!refine(edge, predicate, compare.getLeftOperand(), compare.getRightOperand()))
+          edge = null;
+      }
+      block.exits[childIdx] = edge;
+    }
+  }
+
+  /**
+   * Applies {@code inst} to {@code state}. Returns false if execution cannot continue after it.
+   */
+  private boolean step(Instruction inst, long[] state) {
+    if (inst instanceof AddressAt) {
+      AddressAt address = (AddressAt) inst;
+      if (!address.isChecked())
+        return true;
+      int k = tracked.get(address.getOffset());
+      state[2 * k] = Math.max(state[2 * k], 0);
+      state[2 * k + 1] = Math.min(state[2 * k + 1], address.getExtent() - 1);
+      return state[2 * k] <= state[2 * k + 1];
+    }
+    Integer dst = inst.mDestVar != null ? tracked.get(inst.mDestVar) : null;
+    if (dst == null)
+      return true;
+    long lo = Long.MIN_VALUE;
+    long hi = Long.MAX_VALUE;
+    if (inst instanceof CopyInst) {
+      Value src = ((CopyInst) inst).getSrcValue();
+      if (src instanceof IntegerConstant) {
+        lo = hi = ((IntegerConstant) src).getValue();
+      } else if (tracked.containsKey(src)) {
+        int k = tracked.get(src);
+        lo = state[2 * k];
+        hi = state[2 * k + 1];
+      }
+    } else if (inst instanceof BinaryOperator) {
+      BinaryOperator op = (BinaryOperator) inst;
+      long[] result = evaluate(op.getOperator(), rangeOf(op.getLeftOperand(), state),
+          rangeOf(op.getRightOperand(), state));
+      if (result != null) {
+        lo = result[0];
+        hi = result[1];
+      }
+    }
+    state[2 * dst] = lo;
+    state[2 * dst + 1] = hi;
+    return true;
+  }
+
+  private long[] rangeOf(Variable var, long[] state) {
+    Integer k = tracked.get(var);
+    if (k == null)
+      return new long[] {Long.MIN_VALUE, Long.MAX_VALUE};
+    return new long[] {state[2 * k], state[2 * k + 1]};
+  }
+
+  /**
+   * The interval of {@code a op b}, or null if it may overflow.
+   */
+  private static long[] evaluate(BinaryOperator.Op op, long[] a, long[] b) {
+    try {
+      switch (op) {
+        case Add:
+          return new long[] {Math.addExact(a[0], b[0]), Math.addExact(a[1], b[1])};
+        case Sub:
+          return new long[] {Math.subtractExact(a[0], b[1]), Math.subtractExact(a[1], b[0])};
+        case Mul: {
+          long[] corners = {Math.multiplyExact(a[0], b[0]), Math.multiplyExact(a[0], b[1]),
+              Math.multiplyExact(a[1], b[0]), Math.multiplyExact(a[1], b[1])};
+          return new long[] {Arrays.stream(corners).min().getAsLong(),
+              Arrays.stream(corners).max().getAsLong()};
+        }
+        default: {
+          if (a[0] == Long.MIN_VALUE)
+            return null;
+          if (b[0] <= 0 && b[1] >= 0) {
+            // The quotient is at most as large as the dividend.
+            long magnitude = Math.max(Math.abs(a[0]), Math.abs(a[1]));
+            return new long[] {-magnitude, magnitude};
+          }
+          long[] corners = {a[0] / b[0], a[0] / b[1], a[1] / b[0], a[1] / b[1]};
+          return new long[] {Arrays.stream(corners).min().getAsLong(),
+              Arrays.stream(corners).max().getAsLong()};
+        }
+      }
+    } catch (ArithmeticException e) {
+      return null;
+    }
+  }
+
+  static CompareInst.Predicate negate(CompareInst.Predicate predicate) {
+    switch (predicate) {
+      case GE:
+        return CompareInst.Predicate.LT;
+      case GT:
+        return CompareInst.Predicate.LE;
+      case LE:
+        return CompareInst.Predicate.GT;
+      case LT:
+        return CompareInst.Predicate.GE;
+      case EQ:
+        return CompareInst.Predicate.NE;
+      default:
+        return CompareInst.Predicate.EQ;
+    }
+  }
+
+  /**
+   * Narrows {@code state} to the values for which {@code lhs predicate rhs} holds. Returns false
+   * if there are none.
+   */
+  private boolean refine(long[] state, CompareInst.Predicate predicate, LocalVar lhs,
+      LocalVar rhs) {
+    if (lhs == rhs)
+      return true;
+    long[] a = rangeOf(lhs, state);
+    long[] b = rangeOf(rhs, state);
+    switch (predicate) {
+      case LT:
+        if (b[1] == Long.MIN_VALUE || a[0] == Long.MAX_VALUE)
+          return false;
+        a[1] = Math.min(a[1], b[1] - 1);
+        b[0] = Math.max(b[0], a[0] + 1);
+        break;
+      case LE:
+        a[1] = Math.min(a[1], b[1]);
+        b[0] = Math.max(b[0], a[0]);
+        break;
+      case GT:
+        return refine(state, CompareInst.Predicate.LT, rhs, lhs);
+      case GE:
+        return refine(state, CompareInst.Predicate.LE, rhs, lhs);
+      case EQ:
+        a[0] = b[0] = Math.max(a[0], b[0]);
+        a[1] = b[1] = Math.min(a[1], b[1]);
+        break;
+      default:
+        // Only a constant on one side can cut a value off the end of the other.
+        if (b[0] == b[1]) {
+          if (a[0] == b[0])
+            a[0]++;
+          else if (a[1] == b[0])
+            a[1]--;
+        } else if (a[0] == a[1]) {
+          if (b[0] == a[0])
+            b[0]++;
+          else if (b[1] == a[0])
+            b[1]--;
+        }
+        break;
+    }
+    if (a[0] > a[1] || b[0] > b[1])
+      return false;
+    update(state, lhs, a);
+    update(state, rhs, b);
+    return true;
+  }
+
+  private void update(long[] state, Variable var, long[] range) {
+    Integer k = tracked.get(var);
+    if (k != null) {
+      state[2 * k] = range[0];
+      state[2 * k + 1] = range[1];
+    }
+  }
+}
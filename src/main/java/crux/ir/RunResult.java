@@ -0,0 +1,70 @@
+package crux.ir;
+
+/**
+ * How a run of the {@link Emulator} ended, and how many instructions it executed until then.
+ */
+public final class RunResult {
+  public enum Status {
+    /** The program returned from main. */
+    FINISHED,
+    /** {@link ExecutionLimits#getMaxInstructions()} was reached. */
+    INSTRUCTION_LIMIT,
+    /** A call would have exceeded {@link ExecutionLimits#getMaxCallDepth()}. */
+    CALL_DEPTH_LIMIT,
+    /** A store would have exceeded {@link ExecutionLimits#getMaxGlobalWords()}. */
+    MEMORY_LIMIT,
+    /** The emulator threw, e.g. when reading past the end of the input. */
+    FAILED
+  }
+
+  private final Status mStatus;
+  private final long mInstructions;
+  private final Throwable mFailure;
+
+  RunResult(Status status, long instructions, Throwable failure) {
+    mStatus = status;
+    mInstructions = instructions;
+    mFailure = failure;
+  }
+
+  public Status getStatus() {
+    return mStatus;
+  }
+
+  /**
+   * Whether the program ran to its end.
+   */
+  public boolean isFinished() {
+    return mStatus == Status.FINISHED;
+  }
+
+  public long getInstructions() {
+    return mInstructions;
+  }
+
+  /**
+   * What the emulator threw if the status is {@link Status#FAILED}, otherwise null.
+   */
+  public Throwable getFailure() {
+    return mFailure;
+  }
+
+  @Override
+  public String toString() {
+    switch (mStatus) {
+      case FINISHED:
+        return String.format("finished after %d instructions", mInstructions);
+      case INSTRUCTION_LIMIT:
+        return String.format("stopped: instruction limit reached after %d instructions",
+            mInstructions);
+      case CALL_DEPTH_LIMIT:
+        return String.format("stopped: call depth limit exceeded after %d instructions",
+            mInstructions);
+      case MEMORY_LIMIT:
+        return String.format("stopped: global memory limit exceeded after %d instructions",
+            mInstructions);
+      default:
+        return String.format("failed after %d instructions: %s", mInstructions, mFailure);
+    }
+  }
+}
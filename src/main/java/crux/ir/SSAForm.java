@@ -0,0 +1,820 @@
+package crux.ir;
+
+import crux.ir.insts.CopyInst;
+import crux.ir.insts.NopInst;
+import crux.ir.insts.PhiInst;
+
+import java.util.*;
+
+/**
+ * Converts a {@link Function} into static single assignment form and back. In SSA form every
+ * {@link LocalVar} is assigned by at most one instruction, which dominates all of its reads, and a
+ * {@link PhiInst} at the start of a block merges the versions of a variable that reach it along
+ * different edges. A variable that is read before any assignment, like an argument, keeps its name
+ * for the value it has on entry. {@link AddressVar}s are assigned once by construction and are left
+ * alone.
+ * <p>
+ * {@link #construct} places phis at the iterated dominance frontiers of the assignments of every
+ * variable that is read in another block than the one assigning it, gives every assignment a fresh
+ * version named after the variable while walking the {@link DominatorTree}, and drops the phis
+ * whose results nothing reads. Variables that are assigned once, by an instruction dominating their
+ * reads, keep their names. The form records where every version is assigned and read.
+ * <p>
+ * {@link #destruct} turns the phis back into copies. Versions that are related by a phi or a copy,
+ * or that stand for the same variable, are coalesced into one variable as long as their live
+ * ranges do not overlap, so that most of these copies disappear. The copies that remain are placed
+ * on the edges into the block, where they do not need to split anything, in an order that respects
+ * their parallel semantics. The {@link Emulator} and the code generators run the result like any
+ * other function.
+ * <p>
+ * Passes in between may change instructions and variables, through {@link #replaceAllUses} for the
+ * def-use chains to stay valid. A pass that changes the CFG must keep every phi in step with the
+ * predecessors of its block; the dominator tree is not updated.
+ */
+public final class SSAForm {
+  private final Function function;
+  private DominatorTree tree;
+  // The variable of the function before construction that each version stands for.
+  private final HashMap<LocalVar, LocalVar> originals = new HashMap<>();
+  private final HashMap<LocalVar, Instruction> definitions = new HashMap<>();
+  private final HashMap<LocalVar, List<Instruction>> uses = new HashMap<>();
+  private int numPhis;
+  private boolean destructed;
+
+  private SSAForm(Function function) {
+    this.function = function;
+  }
+
+  /**
+   * Converts {@code function} into SSA form.
+   */
+  public static SSAForm construct(Function function) {
+    var form = new SSAForm(function);
+    form.build();
+    return form;
+  }
+
+  public Function getFunction() {
+    return function;
+  }
+
+  /**
+   * The dominator tree of the function, with the phis at the start of their blocks.
+   */
+  public DominatorTree getDominatorTree() {
+    return tree;
+  }
+
+  /**
+   * The number of phis that construction left in the function.
+   */
+  public int getNumPhis() {
+    return numPhis;
+  }
+
+  /**
+   * The instruction that assigns {@code var}, or null if it only has the value it has on entry.
+   */
+  public Instruction getDefinition(LocalVar var) {
+    return definitions.get(var);
+  }
+
+  /**
+   * The instructions that read {@code var}, each once. The list is unmodifiable and is not copied.
+   */
+  public List<Instruction> getUses(LocalVar var) {
+    return Collections.unmodifiableList(uses.getOrDefault(var, List.of()));
+  }
+
+  /**
+   * The variable that {@code var} is a version of, which is {@code var} itself if it was not
+   * renamed.
+   */
+  public LocalVar getOriginal(LocalVar var) {
+    return originals.getOrDefault(var, var);
+  }
+
+  /**
+   * Makes every instruction that reads {@code from} read {@code to} instead.
+   */
+  public void replaceAllUses(LocalVar from, LocalVar to) {
+    List<Instruction> readers = uses.remove(from);
+    if (readers == null || from == to)
+      return;
+    List<Instruction> toReaders = uses.computeIfAbsent(to, v -> new ArrayList<>());
+    for (Instruction inst : readers) {
+      var operands = new ArrayList<>(inst.mOperands);
+      Collections.replaceAll(operands, from, to);
+      inst.mOperands = Collections.unmodifiableList(operands);
+      if (!toReaders.contains(inst))
+        toReaders.add(inst);
+    }
+  }
+
+  private void build() {
+    Instruction start = function.getStart();
+    if (start == null) {
+      tree = new DominatorTree(function);
+      return;
+    }
+    FrameLayout layout = function.getFrameLayout();
+    if (layout.getNumPredecessors(start) > 1) {
+      // The entry block gets no predecessors, so that phis never need an operand for the entry.
+      var entry = new NopInst();
+      entry.setPosition(start.getPosition());
+      entry.setNext(0, start);
+      function.setStart(entry);
+      layout = function.getFrameLayout();
+    }
+    tree = new DominatorTree(function);
+    int numBlocks = tree.getNumBlocks();
+    int numSlots = layout.getNumSlots();
+
+    // Where every variable is assigned, and whether any block reads it before assigning it.
+    var defBlocks = new ArrayList<List<Integer>>();
+    for (int slot = 0; slot < numSlots; slot++)
+      defBlocks.add(new ArrayList<>());
+    var singleDefs = new Instruction[numSlots];
+    var numDefs = new int[numSlots];
+    var readAcrossBlocks = new boolean[numSlots];
+    var assignedIn = new int[numSlots];
+    for (int b = 0; b < numBlocks; b++) {
+      for (Instruction inst : tree.getInstructions(b)) {
+        for (Value operand : inst.mOperands) {
+          if (operand instanceof LocalVar && assignedIn[((LocalVar) operand).getSlot()] != b + 1)
+            readAcrossBlocks[((LocalVar) operand).getSlot()] = true;
+        }
+        if (inst.mDestVar instanceof LocalVar) {
+          int slot = inst.mDestVar.getSlot();
+          if (assignedIn[slot] != b + 1)
+            defBlocks.get(slot).add(b);
+          assignedIn[slot] = b + 1;
+          singleDefs[slot] = inst;
+          numDefs[slot]++;
+        }
+      }
+    }
+
+    var renamed = new boolean[numSlots];
+    for (int slot = 0; slot < numSlots; slot++)
+      renamed[slot] = numDefs[slot] > 1;
+    for (LocalVar arg : function.getArguments())
+      renamed[arg.getSlot()] = numDefs[arg.getSlot()] > 0;
+    for (int b = 0; b < numBlocks; b++) {
+      for (Instruction inst : tree.getInstructions(b)) {
+        for (Value operand : inst.mOperands) {
+          if (!(operand instanceof LocalVar))
+            continue;
+          int slot = ((LocalVar) operand).getSlot();
+          // An assignment reads its operands before it writes, so it does not dominate them.
+          if (numDefs[slot] == 1
+              && (singleDefs[slot] == inst || !tree.dominates(singleDefs[slot], inst)))
+            renamed[slot] = true;
+        }
+      }
+    }
+
+    // Place the phis at the iterated dominance frontiers of the assignments.
+    var phis = new ArrayList<List<PhiInst>>();
+    for (int b = 0; b < numBlocks; b++)
+      phis.add(new ArrayList<>());
+    var hasPhi = new int[numBlocks];
+    var queued = new int[numBlocks];
+    var work = new ArrayDeque<Integer>();
+    for (int slot = 0; slot < numSlots; slot++) {
+      if (!renamed[slot] || !readAcrossBlocks[slot])
+        continue;
+      var var = (LocalVar) layout.getVariable(slot);
+      for (int b : defBlocks.get(slot)) {
+        queued[b] = slot + 1;
+        work.push(b);
+      }
+      while (!work.isEmpty()) {
+        for (int y : tree.getFrontier(work.pop())) {
+          if (hasPhi[y] == slot + 1)
+            continue;
+          hasPhi[y] = slot + 1;
+          phis.get(y).add(newPhi(var, y));
+          if (queued[y] != slot + 1) {
+            queued[y] = slot + 1;
+            work.push(y);
+          }
+        }
+      }
+    }
+
+    rename(layout, renamed, phis);
+    insertLivePhis(phis);
+    function.invalidateFrameLayout();
+
+    for (int b = 0; b < numBlocks; b++) {
+      for (Instruction inst : tree.getInstructions(b))
+        record(inst);
+    }
+  }
+
+  private PhiInst newPhi(LocalVar var, int block) {
+    var preds = new ArrayList<Instruction>();
+    for (int pred : tree.getPredecessors(block))
+      preds.add(tree.getLast(pred));
+    var phi = new PhiInst(var, preds, Collections.nCopies(preds.size(), var));
+    phi.setPosition(tree.getFirst(block).getPosition());
+    return phi;
+  }
+
+  /**
+   * Gives every assignment of a renamed variable a fresh version and makes every read use the
+   * version that reaches it, walking the dominator tree with an explicit stack.
+   */
+  private void rename(FrameLayout layout, boolean[] renamed, List<List<PhiInst>> phis) {
+    int numSlots = renamed.length;
+    var current = new LocalVar[numSlots];
+    for (int slot = 0; slot < numSlots; slot++) {
+      if (renamed[slot]) {
+        current[slot] = (LocalVar) layout.getVariable(slot);
+        originals.put(current[slot], current[slot]);
+      }
+    }
+    // The versions that were current before each assignment, to restore on leaving a subtree.
+    var undoSlots = new ArrayList<Integer>();
+    var undoVersions = new ArrayList<LocalVar>();
+    var marks = new int[tree.getNumBlocks()];
+    var stack = new ArrayDeque<Integer>();
+    stack.push(0);
+    while (!stack.isEmpty()) {
+      int b = stack.pop();
+      if (b < 0) {
+        for (int idx = undoSlots.size() - 1; idx >= marks[~b]; idx--) {
+          current[undoSlots.get(idx)] = undoVersions.get(idx);
+          undoSlots.remove(idx);
+          undoVersions.remove(idx);
+        }
+        continue;
+      }
+      marks[b] = undoSlots.size();
+      for (PhiInst phi : phis.get(b)) {
+        int slot = phi.getDst().getSlot();
+        undoSlots.add(slot);
+        undoVersions.add(current[slot]);
+        phi.mDestVar = current[slot] = newVersion(current[slot]);
+      }
+      for (Instruction inst : tree.getInstructions(b)) {
+        List<Value> operands = null;
+        for (int idx = 0; idx < inst.mOperands.size(); idx++) {
+          Value operand = inst.mOperands.get(idx);
+          if (!(operand instanceof LocalVar) || !renamed[((LocalVar) operand).getSlot()])
+            continue;
+          if (operands == null)
+            operands = new ArrayList<>(inst.mOperands);
+          operands.set(idx, current[((LocalVar) operand).getSlot()]);
+        }
+        if (operands != null)
+          inst.mOperands = Collections.unmodifiableList(operands);
+        if (inst.mDestVar instanceof LocalVar && renamed[inst.mDestVar.getSlot()]) {
+          int slot = inst.mDestVar.getSlot();
+          undoSlots.add(slot);
+          undoVersions.add(current[slot]);
+          inst.mDestVar = current[slot] = newVersion(current[slot]);
+        }
+      }
+      Instruction last = tree.getLast(b);
+      for (int succ : tree.getSuccessors(b)) {
+        for (PhiInst phi : phis.get(succ)) {
+          var operands = new ArrayList<>(phi.mOperands);
+          operands.set(phi.indexOf(last), current[getOriginal(phi.getDst()).getSlot()]);
+          phi.mOperands = Collections.unmodifiableList(operands);
+        }
+      }
+      stack.push(~b);
+      for (int child : tree.getChildren(b))
+        stack.push(child);
+    }
+  }
+
+  private LocalVar newVersion(LocalVar var) {
+    LocalVar original = getOriginal(var);
+    String prefix = original.getName().substring(1) + ".";
+    LocalVar version = function.getTempVar(original.getType(), prefix);
+    originals.put(version, original);
+    return version;
+  }
+
+  /**
+   * Links the phis that some other instruction reads, directly or through other phis, into the
+   * start of their blocks.
+   */
+  private void insertLivePhis(List<List<PhiInst>> phis) {
+    var phiOf = new HashMap<Variable, PhiInst>();
+    for (List<PhiInst> blockPhis : phis) {
+      for (PhiInst phi : blockPhis)
+        phiOf.put(phi.getDst(), phi);
+    }
+    var live = new HashSet<PhiInst>();
+    var work = new ArrayDeque<PhiInst>();
+    for (int b = 0; b < tree.getNumBlocks(); b++) {
+      for (Instruction inst : tree.getInstructions(b))
+        markPhis(inst, phiOf, live, work);
+    }
+    while (!work.isEmpty())
+      markPhis(work.pop(), phiOf, live, work);
+
+    for (int b = 0; b < tree.getNumBlocks(); b++) {
+      Instruction first = tree.getFirst(b);
+      Instruction head = first;
+      List<PhiInst> blockPhis = phis.get(b);
+      for (int idx = blockPhis.size() - 1; idx >= 0; idx--) {
+        PhiInst phi = blockPhis.get(idx);
+        if (!live.contains(phi))
+          continue;
+        phi.setNext(0, head);
+        tree.prepend(b, phi);
+        head = phi;
+        numPhis++;
+      }
+      if (head == first)
+        continue;
+      for (int pred : tree.getPredecessors(b))
+        redirect(tree.getLast(pred), first, head);
+    }
+  }
+
+  private static void markPhis(Instruction inst, HashMap<Variable, PhiInst> phiOf,
+      Set<PhiInst> live, Deque<PhiInst> work) {
+    for (Value operand : inst.mOperands) {
+      PhiInst phi = phiOf.get(operand);
+      if (phi != null && live.add(phi))
+        work.push(phi);
+    }
+  }
+
+  /**
+   * Makes the edges from {@code inst} to {@code from} go to {@code to}.
+   */
+  private static void redirect(Instruction inst, Instruction from, Instruction to) {
+    for (int childIdx = 0; childIdx < DominatorTree.numSuccessors(inst); childIdx++) {
+      if (inst.getNext(childIdx) == from)
+        inst.setNext(childIdx, to);
+    }
+  }
+
+  private void record(Instruction inst) {
+    if (inst.mDestVar instanceof LocalVar)
+      definitions.put((LocalVar) inst.mDestVar, inst);
+    for (Value operand : inst.mOperands) {
+      if (!(operand instanceof LocalVar))
+        continue;
+      List<Instruction> readers = uses.computeIfAbsent((LocalVar) operand, v -> new ArrayList<>());
+      if (readers.isEmpty() || readers.get(readers.size() - 1) != inst)
+        readers.add(inst);
+    }
+  }
+
+  /**
+   * Converts the function out of SSA form, after which this form must not be used any more.
+   */
+  public void destruct() {
+    if (destructed)
+      throw new Error("The function is already out of SSA form");
+    destructed = true;
+    if (function.getStart() != null)
+      new Destruction().run();
+    function.invalidateFrameLayout();
+  }
+
+  /**
+   * The state of {@link #destruct}. Variables are numbered by their slots in a fresh layout, and
+   * blocks by a fresh dominator tree, so that passes in between may have changed the function.
+   */
+  private final class Destruction {
+    private final FrameLayout layout;
+    private final DominatorTree tree;
+    private final int numSlots;
+    // Where every variable is assigned; variables without an assignment have their entry value.
+    private final int[] defBlock;
+    private final int[] defPos;
+    private final boolean[] assigned;
+    // The blocks at whose end every variable is live, and its last read in any block.
+    private final BitSet[] liveOut;
+    private final HashMap<Long, Integer> lastRead = new HashMap<>();
+    private final Set<PhiInst> deadPhis = new HashSet<>();
+
+    // The congruence classes: a union-find forest, and the members of every class sorted so that
+    // every variable comes after those whose assignments dominate its own.
+    private final int[] parent;
+    private final List<List<Integer>> members = new ArrayList<>();
+    private final int[] entryMember;
+
+    Destruction() {
+      function.invalidateFrameLayout();
+      layout = function.getFrameLayout();
+      tree = new DominatorTree(function);
+      numSlots = layout.getNumSlots();
+      defBlock = new int[numSlots];
+      defPos = new int[numSlots];
+      assigned = new boolean[numSlots];
+      liveOut = new BitSet[numSlots];
+      parent = new int[numSlots];
+      entryMember = new int[numSlots];
+      Arrays.fill(defPos, Integer.MIN_VALUE);
+    }
+
+    void run() {
+      findDeadPhis();
+      computeLiveness();
+
+      for (int slot = 0; slot < numSlots; slot++) {
+        parent[slot] = slot;
+        members.add(new ArrayList<>(List.of(slot)));
+        entryMember[slot] = assigned[slot] || !(layout.getVariable(slot) instanceof LocalVar)
+            ? -1 : slot;
+      }
+      for (Instruction inst : instructions()) {
+        if (inst instanceof PhiInst) {
+          for (Value operand : inst.mOperands)
+            coalesce(inst.mDestVar.getSlot(), ((LocalVar) operand).getSlot());
+        }
+      }
+      for (Instruction inst : instructions()) {
+        if (inst instanceof CopyInst && inst.mOperands.get(0) instanceof LocalVar)
+          coalesce(inst.mDestVar.getSlot(), ((LocalVar) inst.mOperands.get(0)).getSlot());
+      }
+      var versions = new HashMap<LocalVar, Integer>();
+      for (int slot = 0; slot < numSlots; slot++) {
+        LocalVar original = originals.get(layout.getVariable(slot));
+        if (original == null)
+          continue;
+        Integer first = versions.putIfAbsent(original, slot);
+        if (first != null)
+          coalesce(first, slot);
+      }
+
+      LocalVar[] reps = chooseRepresentatives();
+      var insts = instructions();
+      for (Instruction inst : insts) {
+        if (inst.mDestVar instanceof LocalVar)
+          inst.mDestVar = reps[inst.mDestVar.getSlot()];
+        var operands = new ArrayList<>(inst.mOperands);
+        for (int idx = 0; idx < operands.size(); idx++) {
+          if (operands.get(idx) instanceof LocalVar)
+            operands.set(idx, reps[((LocalVar) operands.get(idx)).getSlot()]);
+        }
+        inst.mOperands = Collections.unmodifiableList(operands);
+      }
+      var copies = replacePhis();
+      removeTrivialCopies(insts, copies);
+    }
+
+    /**
+     * The instructions of all blocks but the phis that nothing reads.
+     */
+    private List<Instruction> instructions() {
+      var result = new ArrayList<Instruction>();
+      for (int b = 0; b < tree.getNumBlocks(); b++) {
+        for (Instruction inst : tree.getInstructions(b)) {
+          if (!deadPhis.contains(inst))
+            result.add(inst);
+        }
+      }
+      return result;
+    }
+
+    private void findDeadPhis() {
+      var phiOf = new HashMap<Variable, PhiInst>();
+      for (int b = 0; b < tree.getNumBlocks(); b++) {
+        for (Instruction inst : tree.getInstructions(b)) {
+          if (inst instanceof PhiInst)
+            phiOf.put(inst.mDestVar, (PhiInst) inst);
+        }
+      }
+      var live = new HashSet<PhiInst>();
+      var work = new ArrayDeque<PhiInst>();
+      for (int b = 0; b < tree.getNumBlocks(); b++) {
+        for (Instruction inst : tree.getInstructions(b)) {
+          if (!(inst instanceof PhiInst))
+            markPhis(inst, phiOf, live, work);
+        }
+      }
+      while (!work.isEmpty())
+        markPhis(work.pop(), phiOf, live, work);
+      for (PhiInst phi : phiOf.values()) {
+        if (!live.contains(phi))
+          deadPhis.add(phi);
+      }
+    }
+
+    /**
+     * Finds the blocks at whose end every variable is live by walking backwards from its reads to
+     * its assignment. A phi reads its operands at the end of their predecessors.
+     */
+    private void computeLiveness() {
+      var insts = instructions();
+      for (Instruction inst : insts) {
+        if (inst.mDestVar instanceof LocalVar) {
+          int slot = inst.mDestVar.getSlot();
+          defBlock[slot] = tree.getBlock(inst);
+          defPos[slot] = tree.getPosition(inst);
+          assigned[slot] = true;
+        }
+      }
+      // The blocks on entry to which every variable is live, seeded by its reads.
+      var liveIn = new HashMap<Integer, List<Integer>>();
+      for (Instruction inst : insts) {
+        int b = tree.getBlock(inst);
+        for (int idx = 0; idx < inst.mOperands.size(); idx++) {
+          Value operand = inst.mOperands.get(idx);
+          if (!(operand instanceof LocalVar))
+            continue;
+          int slot = ((LocalVar) operand).getSlot();
+          if (inst instanceof PhiInst) {
+            int pred = tree.getBlock(((PhiInst) inst).getPredecessor(idx));
+            liveOut(slot).set(pred);
+            if (pred != defBlock[slot])
+              liveIn.computeIfAbsent(slot, s -> new ArrayList<>()).add(pred);
+          } else {
+            lastRead.merge(key(slot, b), tree.getPosition(inst), Math::max);
+            if (b != defBlock[slot])
+              liveIn.computeIfAbsent(slot, s -> new ArrayList<>()).add(b);
+          }
+        }
+      }
+      var visited = new int[tree.getNumBlocks()];
+      var work = new ArrayDeque<Integer>();
+      for (var entry : liveIn.entrySet()) {
+        int slot = entry.getKey();
+        work.addAll(entry.getValue());
+        while (!work.isEmpty()) {
+          int b = work.pop();
+          if (visited[b] == slot + 1)
+            continue;
+          visited[b] = slot + 1;
+          for (int pred : tree.getPredecessors(b)) {
+            liveOut(slot).set(pred);
+            if (pred != defBlock[slot] && visited[pred] != slot + 1)
+              work.push(pred);
+          }
+        }
+      }
+    }
+
+    private BitSet liveOut(int slot) {
+      if (liveOut[slot] == null)
+        liveOut[slot] = new BitSet();
+      return liveOut[slot];
+    }
+
+    private long key(int slot, int block) {
+      return (long) slot << 32 | block;
+    }
+
+    /**
+     * Whether the assignment of {@code a} dominates that of {@code b}.
+     */
+    private boolean dominates(int a, int b) {
+      if (defBlock[a] == defBlock[b])
+        return defPos[a] <= defPos[b];
+      return tree.dominates(defBlock[a], defBlock[b]);
+    }
+
+    /**
+     * Whether {@code a}, whose assignment dominates that of {@code b}, is still live right after
+     * {@code b} is assigned. Only then do their live ranges overlap.
+     */
+    private boolean liveAfter(int a, int b) {
+      int block = defBlock[b];
+      if (liveOut[a] != null && liveOut[a].get(block))
+        return true;
+      Integer last = lastRead.get(key(a, block));
+      return last != null && last > defPos[b];
+    }
+
+    private int find(int slot) {
+      while (parent[slot] != slot) {
+        parent[slot] = parent[parent[slot]];
+        slot = parent[slot];
+      }
+      return slot;
+    }
+
+    /**
+     * Merges the classes of two variables unless they interfere. At most one member of a class
+     * may have its entry value, since it cannot be renamed.
+     */
+    private void coalesce(int a, int b) {
+      int rootA = find(a);
+      int rootB = find(b);
+      if (rootA == rootB || entryMember[rootA] >= 0 && entryMember[rootB] >= 0)
+        return;
+      List<Integer> merged = merge(members.get(rootA), members.get(rootB));
+      if (interfere(merged, rootA))
+        return;
+      if (members.get(rootA).size() < members.get(rootB).size()) {
+        int swap = rootA;
+        rootA = rootB;
+        rootB = swap;
+      }
+      parent[rootB] = rootA;
+      members.set(rootA, merged);
+      members.set(rootB, null);
+      entryMember[rootA] = Math.max(entryMember[rootA], entryMember[rootB]);
+    }
+
+    private List<Integer> merge(List<Integer> a, List<Integer> b) {
+      var result = new ArrayList<Integer>(a.size() + b.size());
+      int i = 0;
+      int j = 0;
+      while (i < a.size() || j < b.size()) {
+        if (j == b.size() || i < a.size() && compare(a.get(i), b.get(j)) <= 0)
+          result.add(a.get(i++));
+        else
+          result.add(b.get(j++));
+      }
+      return result;
+    }
+
+    private int compare(int a, int b) {
+      int byBlock = Integer.compare(tree.getPreorder(defBlock[a]), tree.getPreorder(defBlock[b]));
+      return byBlock != 0 ? byBlock : Integer.compare(defPos[a], defPos[b]);
+    }
+
+    /**
+     * Whether two classes, which do not interfere within themselves, interfere with each other.
+     * The members are visited with a stack of those whose assignments dominate the current one.
+     * Two live ranges can only overlap if one assignment dominates the other, and if a member
+     * overlaps a dominating member of the other class, it also overlaps the closest one, so each
+     * member is only checked against that.
+     */
+    private boolean interfere(List<Integer> merged, int rootA) {
+      int size = merged.size();
+      var stack = new int[size];
+      // The closest entries of the stack at or below each position that belong to each class.
+      var closestA = new int[size];
+      var closestB = new int[size];
+      int top = -1;
+      for (int slot : merged) {
+        while (top >= 0 && !dominates(stack[top], slot))
+          top--;
+        boolean inA = find(slot) == rootA;
+        int other = top < 0 ? -1 : inA ? closestB[top] : closestA[top];
+        if (other >= 0 && liveAfter(stack[other], slot))
+          return true;
+        top++;
+        stack[top] = slot;
+        closestA[top] = inA ? top : top > 0 ? closestA[top - 1] : -1;
+        closestB[top] = !inA ? top : top > 0 ? closestB[top - 1] : -1;
+      }
+      return false;
+    }
+
+    /**
+     * Picks the variable that every class becomes: the member that has its entry value, or else
+     * the first variable that a member is a version of and that no longer occurs, or else the
+     * first member.
+     */
+    private LocalVar[] chooseRepresentatives() {
+      var present = new HashSet<Variable>();
+      for (int slot = 0; slot < numSlots; slot++)
+        present.add(layout.getVariable(slot));
+      var reps = new LocalVar[numSlots];
+      for (int slot = 0; slot < numSlots; slot++) {
+        if (!(layout.getVariable(slot) instanceof LocalVar) || find(slot) != slot)
+          continue;
+        if (entryMember[slot] >= 0) {
+          reps[slot] = (LocalVar) layout.getVariable(entryMember[slot]);
+          continue;
+        }
+        for (int member : members.get(slot)) {
+          LocalVar original = originals.get(layout.getVariable(member));
+          if (original != null && present.add(original)) {
+            reps[slot] = original;
+            break;
+          }
+        }
+        if (reps[slot] == null)
+          reps[slot] = (LocalVar) layout.getVariable(members.get(slot).get(0));
+      }
+      for (int slot = 0; slot < numSlots; slot++) {
+        if (layout.getVariable(slot) instanceof LocalVar)
+          reps[slot] = reps[find(slot)];
+      }
+      return reps;
+    }
+
+    /**
+     * Replaces the phis of every block by copies on the edges into it and returns the copies.
+     */
+    private List<Instruction> replacePhis() {
+      var copies = new ArrayList<Instruction>();
+      for (int b = 0; b < tree.getNumBlocks(); b++) {
+        Instruction first = tree.getFirst(b);
+        if (!(first instanceof PhiInst))
+          continue;
+        var phis = new ArrayList<PhiInst>();
+        Instruction rest = first;
+        for (; rest instanceof PhiInst; rest = rest.getNext(0)) {
+          if (!deadPhis.contains(rest))
+            phis.add((PhiInst) rest);
+        }
+        for (int pred : tree.getPredecessors(b)) {
+          Instruction last = tree.getLast(pred);
+          var dsts = new ArrayList<LocalVar>();
+          var srcs = new ArrayList<LocalVar>();
+          for (PhiInst phi : phis) {
+            int idx = phi.indexOf(last);
+            if (idx < 0)
+              throw new Error("A phi has no operand for one of the predecessors of its block");
+            if (dsts.contains(phi.getDst()))
+              throw new Error("Coalesced two phis of the same block");
+            dsts.add(phi.getDst());
+            srcs.add(phi.getOperand(idx));
+          }
+          Instruction head = rest;
+          List<CopyInst> sequence = sequentialize(dsts, srcs);
+          for (int idx = sequence.size() - 1; idx >= 0; idx--) {
+            CopyInst copy = sequence.get(idx);
+            copy.setPosition(first.getPosition());
+            copy.setNext(0, head);
+            copies.add(copy);
+            head = copy;
+          }
+          redirect(last, first, head);
+        }
+      }
+      return copies;
+    }
+
+    /**
+     * Orders the parallel copies {@code dsts[i] = srcs[i]} so that no copy overwrites a source of
+     * a later one, saving a variable to a fresh one to break a cycle.
+     */
+    private List<CopyInst> sequentialize(List<LocalVar> dsts, List<LocalVar> srcs) {
+      var result = new ArrayList<CopyInst>();
+      var pendingDsts = new ArrayList<LocalVar>();
+      var pendingSrcs = new ArrayList<LocalVar>();
+      for (int idx = 0; idx < dsts.size(); idx++) {
+        if (dsts.get(idx) != srcs.get(idx)) {
+          pendingDsts.add(dsts.get(idx));
+          pendingSrcs.add(srcs.get(idx));
+        }
+      }
+      while (!pendingDsts.isEmpty()) {
+        boolean progress = false;
+        for (int idx = 0; idx < pendingDsts.size(); idx++) {
+          if (pendingSrcs.contains(pendingDsts.get(idx)))
+            continue;
+          result.add(new CopyInst(pendingDsts.remove(idx), pendingSrcs.remove(idx)));
+          idx--;
+          progress = true;
+        }
+        if (progress)
+          continue;
+        // Every destination is still read by another copy, so they form cycles.
+        LocalVar dst = pendingDsts.get(0);
+        LocalVar saved = function.getTempVar(dst.getType(), "swap");
+        result.add(new CopyInst(saved, dst));
+        Collections.replaceAll(pendingSrcs, dst, saved);
+      }
+      return result;
+    }
+
+    /**
+     * Unlinks the copies of a variable to itself that coalescing left behind.
+     */
+    private void removeTrivialCopies(List<Instruction> insts, List<Instruction> copies) {
+      int numTrivial = 0;
+      for (Instruction inst : insts) {
+        if (isTrivialCopy(inst))
+          numTrivial++;
+      }
+      if (numTrivial == 0)
+        return;
+      var sources = new ArrayList<>(insts);
+      sources.addAll(copies);
+      for (Instruction inst : sources) {
+        for (int childIdx = 0; childIdx < DominatorTree.numSuccessors(inst); childIdx++) {
+          Instruction next = inst.getNext(childIdx);
+          Instruction skipped = skipTrivialCopies(next, numTrivial);
+          if (skipped != next)
+            inst.setNext(childIdx, skipped);
+        }
+      }
+      Instruction start = skipTrivialCopies(function.getStart(), numTrivial);
+      if (start != null)
+        function.setStart(start);
+    }
+
+    private Instruction skipTrivialCopies(Instruction inst, int numTrivial) {
+      Instruction result = inst;
+      // A loop of nothing but trivial copies is kept, since it runs forever.
+      for (int steps = 0; isTrivialCopy(result); steps++) {
+        if (steps == numTrivial)
+          return inst;
+        result = result.getNext(0);
+      }
+      return result;
+    }
+
+    private boolean isTrivialCopy(Instruction inst) {
+      return inst instanceof CopyInst && inst.mOperands.get(0) == inst.mDestVar;
+    }
+  }
+}
@@ -0,0 +1,71 @@
+package crux.ir;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Interleaves many runs of the {@link Emulator} on one thread. Runs take turns in round-robin
+ * order, each executing a slice of at most {@code slice} instructions per turn with
+ * {@link Emulator#runSlice(long)}, so a program that loops forever only delays the others and is
+ * eventually ended by its {@link ExecutionLimits}.
+ * <p>
+ * A run that waits for input blocks the scheduler thread, so the runs should read from input that
+ * is already available, such as files or byte arrays. The scheduler is not thread-safe; runs are
+ * submitted from the thread that calls {@link #run()}.
+ */
+public final class Scheduler {
+  /** Default number of instructions a run may execute per turn. */
+  public static final long DEFAULT_SLICE = 10_000;
+
+  private final long slice;
+  private final ArrayDeque<Task> ready = new ArrayDeque<>();
+
+  private static final class Task {
+    final Emulator emulator;
+    final CompletableFuture<RunResult> result = new CompletableFuture<>();
+
+    Task(Emulator emulator) {
+      this.emulator = emulator;
+    }
+  }
+
+  public Scheduler() {
+    this(DEFAULT_SLICE);
+  }
+
+  public Scheduler(long slice) {
+    if (slice < 1)
+      throw new IllegalArgumentException("slice must be positive: " + slice);
+    this.slice = slice;
+  }
+
+  /**
+   * Adds a run of {@code emulator}, with the limits set on it, to the end of the queue. The future
+   * completes with the run's result when it ends.
+   */
+  public CompletableFuture<RunResult> submit(Emulator emulator) {
+    var task = new Task(emulator);
+    ready.add(task);
+    return task.result;
+  }
+
+  /**
+   * Number of runs that have not ended yet.
+   */
+  public int getNumRunning() {
+    return ready.size();
+  }
+
+  /**
+   * Executes the submitted runs until all of them have ended.
+   */
+  public void run() {
+    Task task;
+    while ((task = ready.poll()) != null) {
+      if (task.emulator.runSlice(slice))
+        ready.add(task);
+      else
+        task.result.complete(task.emulator.getResult());
+    }
+  }
+}
@@ -0,0 +1,222 @@
+package crux.ir;
+
+import crux.ir.insts.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.function.Consumer;
+
+/**
+ * Records what the {@link Emulator} executes. Every event is a record of primitive words in a ring
+ * buffer: a header with the instruction and the number of payload words, followed by the values
+ * the instruction computed. Nothing is formatted while the program runs; the records are turned
+ * into text only when they are read, in the format the Emulator's debug output always had.
+ * <p>
+ * A tracer either keeps the most recent events ({@link #Tracer(int)}), which can be written after
+ * the run, or {@link #streaming(EmulatorIO) streams} every event to the program's output in order
+ * with what the program prints itself.
+ */
+public final class Tracer {
+  // The header holds the instruction id above the payload length.
+  private static final int LENGTH_BITS = 16;
+  private static final int STREAMING_CAPACITY = 1 << 12;
+
+  // Instructions of all registered functions; an id is the function's base plus the index.
+  private Instruction[] instructions = new Instruction[0];
+  private final HashMap<Function, Integer> bases = new HashMap<>();
+
+  private long[] ring;
+  private int head;
+  private int size;
+  private final int maxEvents;
+  private int events;
+  private long dropped;
+
+  // Null unless streaming.
+  private final EmulatorIO sink;
+
+  /**
+   * Keeps the last {@code maxEvents} events.
+   */
+  public Tracer(int maxEvents) {
+    this(maxEvents, Math.max(maxEvents, 1) * 4, null);
+  }
+
+  private Tracer(int maxEvents, int capacity, EmulatorIO sink) {
+    this.maxEvents = maxEvents;
+    this.sink = sink;
+    ring = new long[capacity];
+  }
+
+  /**
+   * A tracer that prints every event to {@code io} as a line. Events are buffered until the ring is
+   * full or the Emulator is about to produce output of its own.
+   */
+  public static Tracer streaming(EmulatorIO io) {
+    return new Tracer(Integer.MAX_VALUE, STREAMING_CAPACITY, io);
+  }
+
+  /**
+   * The id of the first instruction of {@code f}; the ids of its other instructions follow in the
+   * order of {@link FrameLayout#getInstructions()}.
+   */
+  int register(Function f) {
+    Integer base = bases.get(f);
+    if (base != null)
+      return base;
+    var insts = f.getFrameLayout().getInstructions();
+    int start = instructions.length;
+    instructions = Arrays.copyOf(instructions, start + insts.size());
+    for (int i = 0; i < insts.size(); i++) {
+      instructions[start + i] = insts.get(i);
+    }
+    bases.put(f, start);
+    return start;
+  }
+
+  void record(int id) {
+    reserve(1);
+    put(header(id, 0));
+  }
+
+  void record(int id, long a) {
+    reserve(2);
+    put(header(id, 1));
+    put(a);
+  }
+
+  void record(int id, long a, long b) {
+    reserve(3);
+    put(header(id, 2));
+    put(a);
+    put(b);
+  }
+
+  /**
+   * Records an event whose payload is {@code values[from, to)}.
+   */
+  void record(int id, long[] values, int from, int to) {
+    int length = to - from;
+    reserve(length + 1);
+    put(header(id, length));
+    for (int i = from; i < to; i++) {
+      put(values[i]);
+    }
+  }
+
+  /**
+   * Prints the buffered events if the tracer is streaming.
+   */
+  void drain() {
+    if (sink != null)
+      drain(sink::println);
+  }
+
+  /**
+   * Formats the retained events, oldest first, and removes them from the buffer.
+   */
+  public void drain(Consumer<String> out) {
+    while (events > 0) {
+      out.accept(format(head));
+      drop();
+    }
+  }
+
+  /**
+   * The number of events that were overwritten before they were read.
+   */
+  public long getDropped() {
+    return dropped;
+  }
+
+  private static long header(int id, int length) {
+    return ((long) id << LENGTH_BITS) | length;
+  }
+
+  private int lengthAt(int pos) {
+    return (int) (ring[pos] & ((1 << LENGTH_BITS) - 1)) + 1;
+  }
+
+  /**
+   * Makes room for a record of {@code words} words, draining or dropping old events as needed.
+   */
+  private void reserve(int words) {
+    if (words > ring.length) {
+      // Unwrap into a larger ring that holds the record.
+      var grown = new long[Math.max(words, ring.length * 2)];
+      for (int i = 0; i < size; i++) {
+        grown[i] = ring[(head + i) % ring.length];
+      }
+      ring = grown;
+      head = 0;
+    }
+    if (sink != null && ring.length - size < words)
+      drain();
+    while (events > 0 && (events >= maxEvents || ring.length - size < words)) {
+      drop();
+      dropped++;
+    }
+    events++;
+  }
+
+  private void put(long word) {
+    ring[(head + size) % ring.length] = word;
+    size++;
+  }
+
+  private void drop() {
+    int length = lengthAt(head);
+    head = (head + length) % ring.length;
+    size -= length;
+    events--;
+  }
+
+  private long payload(int pos, int i) {
+    return ring[(pos + 1 + i) % ring.length];
+  }
+
+  private String format(int pos) {
+    Instruction inst = instructions[(int) (ring[pos] >>> LENGTH_BITS)];
+    if (inst instanceof AddressAt) {
+      var i = (AddressAt) inst;
+      return "AddressAt: " + i.getDst() + " = " + payload(pos, 0);
+    } else if (inst instanceof BinaryOperator) {
+      var i = (BinaryOperator) inst;
+      return "BinaryOperator: " + i.getDst() + "=" + payload(pos, 0) + i.getOperator()
+          + payload(pos, 1);
+    } else if (inst instanceof CompareInst) {
+      var i = (CompareInst) inst;
+      return "CompareInst: " + i.getDst() + "=" + payload(pos, 0) + i.getPredicate()
+          + payload(pos, 1);
+    } else if (inst instanceof CopyInst) {
+      var i = (CopyInst) inst;
+      return "CopyInst: " + i.getDstVar() + "=" + Emulator.show(i.getSrcValue(), payload(pos, 0));
+    } else if (inst instanceof JumpInst) {
+      var i = (JumpInst) inst;
+      return "Jump: " + i.getPredicate() + "=" + (payload(pos, 0) != 0);
+    } else if (inst instanceof LoadInst) {
+      var i = (LoadInst) inst;
+      return "LoadInst: " + i.getDst() + "=" + Emulator.show(i.getSrcAddress(), payload(pos, 0));
+    } else if (inst instanceof NopInst) {
+      return "Nop:";
+    } else if (inst instanceof StoreInst) {
+      var i = (StoreInst) inst;
+      return "StoreInst: *" + payload(pos, 0) + "="
+          + Emulator.show(i.getSrcValue(), payload(pos, 1));
+    } else if (inst instanceof ReturnInst) {
+      var v = ((ReturnInst) inst).getReturnValue();
+      return "ReturnInst: " + (v != null ? Emulator.show(v, payload(pos, 0)) : "null");
+    } else if (inst instanceof CallInst) {
+      var i = (CallInst) inst;
+      var params = i.getParams();
+      String[] shown = new String[params.size()];
+      for (int j = 0; j < shown.length; j++) {
+        shown[j] = Emulator.show(params.get(j), payload(pos, j));
+      }
+      return "Calling " + i.getCallee().getName() + " with " + Arrays.toString(shown);
+    } else if (inst instanceof UnaryNotInst) {
+      return "UnaryNotInst: " + (payload(pos, 0) != 0);
+    }
+    throw new Error("Unknown instruction in trace: " + inst);
+  }
+}
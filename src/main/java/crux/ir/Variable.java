@@ -9,6 +9,7 @@ import crux.ast.types.Type;
 public abstract class Variable extends Value implements java.io.Serializable {
   static final long serialVersionUID = 12022L;
   protected String mName = "";
+  private transient int mSlot = -1;
 
   protected Variable(Type type) {
     super(type);
@@ -22,4 +23,23 @@ public abstract class Variable extends Value implements java.io.Serializable {
   public String getName() {
     return mName;
   }
+
+  /**
+   * The index of this variable in the frame of its function, or -1 if the function has not been
+   * laid out yet. See {@link FrameLayout}.
+   */
+  public int getSlot() {
+    return mSlot;
+  }
+
+  void setSlot(int slot) {
+    mSlot = slot;
+  }
+
+  private void readObject(java.io.ObjectInputStream in)
+      throws java.io.IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    // Slots are not serialized; the function is laid out again after it is read.
+    mSlot = -1;
+  }
 }
@@ -6,6 +6,7 @@ import crux.ir.Value;
 import crux.ir.Variable;
 import crux.ir.LocalVar;
 import crux.ast.SymbolTable.Symbol;
+import crux.ast.types.ArrayType;
 
 import java.util.List;
 import java.util.function.Function;
@@ -18,6 +19,8 @@ import java.util.function.Function;
 public final class AddressAt extends Instruction implements java.io.Serializable {
   static final long serialVersionUID = 12022L;
   Symbol base;
+  // Set by BoundsChecks.
+  private transient boolean mChecked;
 
   public AddressAt(AddressVar destVar, Symbol base, LocalVar offset) {
     super(destVar, List.of(offset));
@@ -37,6 +40,25 @@ public final class AddressAt extends Instruction implements java.io.Serializable
     return mOperands.size() != 0 ? (LocalVar) mOperands.get(0) : null;
   }
 
+  /**
+   * Whether computing the address fails if the offset lies outside the base array, see
+   * {@link crux.ir.BoundsChecks}. Only an address with an offset is ever checked.
+   */
+  public boolean isChecked() {
+    return mChecked;
+  }
+
+  public void setChecked(boolean checked) {
+    mChecked = checked;
+  }
+
+  /**
+   * The number of elements of the base array, which a checked offset must be below.
+   */
+  public long getExtent() {
+    return ((ArrayType) base.getType()).getExtent();
+  }
+
   public AddressVar getDst() {
     return (AddressVar) mDestVar;
   }
@@ -51,6 +73,8 @@ public final class AddressAt extends Instruction implements java.io.Serializable
     var dest = valueFormatter.apply(mDestVar);
     var base = getBase().getName();
     var offset = valueFormatter.apply(getOffset());
+    if (mChecked)
+      return String.format("%s = addressAt %s, %s checked", dest, base, offset);
     return String.format("%s = addressAt %s, %s", dest, base, offset);
   }
 }
@@ -2,6 +2,7 @@ package crux.ir.insts;
 
 import crux.ir.AddressVar;
 import crux.ir.Instruction;
+import crux.ir.Intrinsic;
 import crux.ir.Value;
 import crux.ir.LocalVar;
 import crux.ast.SymbolTable.Symbol;
@@ -24,6 +25,10 @@ import java.util.function.Function;
 public final class CallInst extends Instruction implements java.io.Serializable {
   static final long serialVersionUID = 12022L;
   Symbol callee;
+  // Set by Program.link(); exactly one of them is non-null once the call is linked.
+  private transient crux.ir.Function mTarget;
+  private transient Intrinsic mIntrinsic;
+  private transient boolean mTailCall;
 
   static private List<Value> convert(List<LocalVar> params) {
     Value[] l = new Value[params.size()];
@@ -47,12 +52,42 @@ public final class CallInst extends Instruction implements java.io.Serializable
     return callee;
   }
 
-  public List<LocalVar> getParams() {
-    ArrayList<LocalVar> params = new ArrayList<>();
-    for (Value v : mOperands)
-      params.add((LocalVar) v);
+  /**
+   * The function that is called, or null if the callee is an intrinsic or the call is not linked.
+   */
+  public crux.ir.Function getTarget() {
+    return mTarget;
+  }
 
-    return params;
+  /**
+   * The intrinsic that is called, or null if the callee is a function or the call is not linked.
+   */
+  public Intrinsic getIntrinsic() {
+    return mIntrinsic;
+  }
+
+  /**
+   * Whether the call is a tail call: it calls a function, and nothing but nops lie between it and
+   * a return of its result. The callee can then take over the caller's frame. Set by
+   * Program.link().
+   */
+  public boolean isTailCall() {
+    return mTailCall;
+  }
+
+  public void link(crux.ir.Function target, Intrinsic intrinsic, boolean tailCall) {
+    mTarget = target;
+    mIntrinsic = intrinsic;
+    mTailCall = tailCall;
+  }
+
+  /**
+   * The arguments of the call. The list is unmodifiable and is not copied.
+   */
+  @SuppressWarnings("unchecked")
+  public List<LocalVar> getParams() {
+    // The operands are an immutable list that only holds LocalVars (see convert).
+    return (List<LocalVar>) (List<?>) mOperands;
   }
 
   public LocalVar getDst() {
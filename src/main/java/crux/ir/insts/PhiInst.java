@@ -0,0 +1,73 @@
+package crux.ir.insts;
+
+import crux.ir.Instruction;
+import crux.ir.LocalVar;
+import crux.ir.Value;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Selects the value that reaches a merge point along the edge that control came in on. Phis only
+ * exist while a function is in SSA form (see {@link crux.ir.SSAForm}), where they stand at the
+ * start of a basic block. Operand i is read at the end of predecessor i, the last instruction of
+ * the block that the edge leaves, and all phis of a block are assigned at once.
+ * <p>
+ * Operation (pseudo-code): {@code destVar = operand[i]}, if control came from predecessor i
+ */
+public final class PhiInst extends Instruction implements java.io.Serializable {
+  static final long serialVersionUID = 12022L;
+
+  private final List<Instruction> mPredecessors;
+
+  public PhiInst(LocalVar destVar, List<Instruction> predecessors, List<LocalVar> operands) {
+    super(destVar, List.copyOf(operands));
+    if (predecessors.size() != operands.size())
+      throw new Error("A phi needs one operand per predecessor");
+    mPredecessors = List.copyOf(predecessors);
+  }
+
+  public LocalVar getDst() {
+    return (LocalVar) mDestVar;
+  }
+
+  public int getNumIncoming() {
+    return mPredecessors.size();
+  }
+
+  /**
+   * The last instruction of the block that incoming edge {@code i} leaves.
+   */
+  public Instruction getPredecessor(int i) {
+    return mPredecessors.get(i);
+  }
+
+  /**
+   * The value of the destination if control came from predecessor {@code i}.
+   */
+  public LocalVar getOperand(int i) {
+    return (LocalVar) mOperands.get(i);
+  }
+
+  /**
+   * The index of the edge from {@code predecessor}, or -1 if there is none.
+   */
+  public int indexOf(Instruction predecessor) {
+    return mPredecessors.indexOf(predecessor);
+  }
+
+  @Override
+  public void accept(InstVisitor v) {
+    v.visit(this);
+  }
+
+  @Override
+  public String format(Function<Value, String> valueFormatter) {
+    var operands = new ArrayList<String>();
+    for (Value operand : mOperands)
+      operands.add(valueFormatter.apply(operand));
+    return String.format("%s = phi(%s)", valueFormatter.apply(mDestVar),
+        String.join(", ", operands));
+  }
+}
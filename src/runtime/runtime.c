@@ -1,39 +1,255 @@
-#include <stdio.h>
 #include <stdint.h>
+#include <stdio.h>
 #include <stdlib.h>
-#include <inttypes.h>
+#include <string.h>
+#include <errno.h>
+#include <unistd.h>
+
+/*
+ * Output goes to a large buffer that is written when it fills up, before the program waits for
+ * input, at exit, and after every line if stdout is a terminal. Input is read in large blocks.
+ * The bytes a program prints are the same as with printf and scanf.
+ *
+ * Code compiled with --instrument has counters in crux_profile, after a header of the profile
+ * fingerprint and the number of counters that main fills in. At exit they are written to the file
+ * named by $CRUX_PROFILE, or crux.profile, in the format that --profile-use reads.
+ *
+ * With GCC on x86-64 every function here preserves all registers but %rax, so the backend can
+ * call them without saving its caller-saved registers (see --fast-runtime-calls). The crux_
+ * names are those entry points; they do not exist where that is not available.
+ */
+#if defined(__x86_64__) && defined(__GNUC__) && !defined(__clang__)
+#pragma GCC target("general-regs-only")
+#define PRESERVES_REGISTERS __attribute__((no_caller_saved_registers))
+#define FAST_ENTRY(name) __typeof__(name) crux_##name __attribute__((alias(#name)));
+#else
+#define PRESERVES_REGISTERS
+#define FAST_ENTRY(name)
+#endif
+#define SLOW_PATH __attribute__((noinline, cold)) PRESERVES_REGISTERS
+
+#define OUTPUT_SIZE (1 << 16)
+#define INPUT_SIZE (1 << 16)
 
-void printInt(int64_t val) {
-    printf("%" PRId64, val);
+static char output[OUTPUT_SIZE];
+static size_t output_length;
+static int line_buffered;
+
+static unsigned char input[INPUT_SIZE];
+static size_t input_position;
+static size_t input_length;
+static int input_eof;
+
+static const char digit_pairs[] =
+    "00010203040506070809"
+    "10111213141516171819"
+    "20212223242526272829"
+    "30313233343536373839"
+    "40414243444546474849"
+    "50515253545556575859"
+    "60616263646566676869"
+    "70717273747576777879"
+    "80818283848586878889"
+    "90919293949596979899";
+
+static SLOW_PATH void flush_output(void) {
+  size_t written = 0;
+  while (written < output_length) {
+    ssize_t count = write(STDOUT_FILENO, output + written, output_length - written);
+    if (count < 0 && errno == EINTR)
+      continue;
+    if (count < 0)
+      break;
+    written += (size_t) count;
+  }
+  output_length = 0;
 }
 
-void printChar(int64_t val) {
-  printf("%c", (unsigned char) val);
+extern int64_t crux_profile[] __attribute__((weak));
+
+static void write_profile(void) {
+  if (crux_profile == NULL || crux_profile[1] <= 0)
+    return;
+  const char *name = getenv("CRUX_PROFILE");
+  if (name == NULL || *name == '\0')
+    name = "crux.profile";
+  FILE *file = fopen(name, "w");
+  if (file == NULL)
+    return;
+  fprintf(file, "crux-profile %lld %lld\n", (long long) crux_profile[0],
+          (long long) crux_profile[1]);
+  for (int64_t counter = 0; counter < crux_profile[1]; counter++)
+    fprintf(file, "%lld\n", (long long) crux_profile[2 + counter]);
+  fclose(file);
 }
 
-void println() {
-    printf("\n");
+static void flush_at_exit(void) {
+  flush_output();
+  write_profile();
 }
 
-void printBool(int64_t val) {
-    if (val != 0)
-        printf("true");
+__attribute__((constructor)) static void start_runtime(void) {
+  line_buffered = isatty(STDOUT_FILENO);
+  atexit(flush_at_exit);
+}
+
+static inline PRESERVES_REGISTERS void put(const char *bytes, size_t count) {
+  if (output_length + count > OUTPUT_SIZE)
+    flush_output();
+  memcpy(output + output_length, bytes, count);
+  output_length += count;
+}
+
+static inline PRESERVES_REGISTERS void end_line(void) {
+  put("\n", 1);
+  if (line_buffered)
+    flush_output();
+}
+
+/* Reads the next block of input and returns its first byte, or -1 at the end of the input. */
+static SLOW_PATH int refill_input(void) {
+  if (input_eof)
+    return -1;
+  flush_output();
+  ssize_t count;
+  do {
+    count = read(STDIN_FILENO, input, INPUT_SIZE);
+  } while (count < 0 && errno == EINTR);
+  if (count <= 0) {
+    input_eof = 1;
+    return -1;
+  }
+  input_position = 0;
+  input_length = (size_t) count;
+  return input[0];
+}
+
+/* The next input byte without consuming it, or -1 at the end of the input. */
+static inline PRESERVES_REGISTERS int peek_input(void) {
+  if (input_position < input_length)
+    return input[input_position];
+  return refill_input();
+}
+
+/* Writes the decimal digits of val so that they end at end, and returns where they start. */
+static inline PRESERVES_REGISTERS char *format_int(int64_t val, char *end) {
+  char *start = end;
+  uint64_t magnitude = val < 0 ? -(uint64_t) val : (uint64_t) val;
+  while (magnitude >= 100) {
+    unsigned pair = (unsigned) (magnitude % 100) * 2;
+    magnitude /= 100;
+    start -= 2;
+    memcpy(start, digit_pairs + pair, 2);
+  }
+  if (magnitude >= 10) {
+    start -= 2;
+    memcpy(start, digit_pairs + magnitude * 2, 2);
+  } else {
+    *--start = (char) ('0' + magnitude);
+  }
+  if (val < 0)
+    *--start = '-';
+  return start;
+}
+
+PRESERVES_REGISTERS void printInt(int64_t val) {
+  char digits[20];
+  char *end = digits + sizeof digits;
+  char *start = format_int(val, end);
+  put(start, (size_t) (end - start));
+}
+
+PRESERVES_REGISTERS void printChar(int64_t val) {
+  if ((unsigned char) val == '\n') {
+    end_line();
+    return;
+  }
+  char c = (char) val;
+  put(&c, 1);
+}
+
+PRESERVES_REGISTERS void println() {
+  end_line();
+}
+
+PRESERVES_REGISTERS void printBool(int64_t val) {
+  if (val != 0)
+    put("true", 4);
+  else
+    put("false", 5);
+}
+
+/* Reads an integer like scanf("%" SCNd64) does, saturating on overflow. */
+PRESERVES_REGISTERS int64_t readInt() {
+  put("int?", 4);
+  int c = peek_input();
+  while (c == ' ' || (c >= '\t' && c <= '\r')) {
+    input_position++;
+    c = peek_input();
+  }
+  int negative = c == '-';
+  if (c == '-' || c == '+') {
+    input_position++;
+    c = peek_input();
+  }
+  uint64_t limit = negative ? (uint64_t) INT64_MAX + 1 : (uint64_t) INT64_MAX;
+  uint64_t magnitude = 0;
+  int overflow = 0;
+  while (c >= '0' && c <= '9') {
+    unsigned digit = (unsigned) (c - '0');
+    if (magnitude > (limit - digit) / 10)
+      overflow = 1;
     else
-        printf("false");
+      magnitude = magnitude * 10 + digit;
+    input_position++;
+    c = peek_input();
+  }
+  if (overflow)
+    return negative ? INT64_MIN : INT64_MAX;
+  return negative ? (int64_t) (0 - magnitude) : (int64_t) magnitude;
 }
 
-int64_t readInt() {
-    int64_t val;
-    printf("int?");
-    scanf("%" PRId64, &val);
-    return val;
+PRESERVES_REGISTERS int64_t readChar() {
+  int c = peek_input();
+  if (c < 0) {
+    put("Read character past EOF\n", 24);
+    exit(-1);
+  }
+  input_position++;
+  return (int64_t) (char) c;
 }
 
-int64_t readChar() {
-    char val;
-    if (scanf("%c", &val) == EOF) {
-      printf("Read character past EOF\n");
-      exit(-1);
-    }
-    return (int64_t) val;
+/*
+ * Called by code compiled with --bounds-check when an array offset is out of range. It prints the
+ * same message as the emulators after the output so far, and does not return.
+ */
+__attribute__((noreturn, cold)) void crux_bounds_error(int64_t index, int64_t length) {
+  static const char prefix[] = "Index ";
+  static const char middle[] = " out of bounds for length ";
+  char message[sizeof prefix + sizeof middle + 2 * 20];
+  char digits[20];
+  char *end = digits + sizeof digits;
+  char *start = format_int(index, end);
+  size_t n = 0;
+  memcpy(message, prefix, sizeof prefix - 1);
+  n += sizeof prefix - 1;
+  memcpy(message + n, start, (size_t) (end - start));
+  n += (size_t) (end - start);
+  memcpy(message + n, middle, sizeof middle - 1);
+  n += sizeof middle - 1;
+  start = format_int(length, end);
+  memcpy(message + n, start, (size_t) (end - start));
+  n += (size_t) (end - start);
+  message[n++] = '\n';
+  flush_output();
+  while (write(STDERR_FILENO, message, n) < 0 && errno == EINTR)
+    continue;
+  exit(-1);
 }
+
+FAST_ENTRY(printInt)
+FAST_ENTRY(printChar)
+FAST_ENTRY(println)
+FAST_ENTRY(printBool)
+FAST_ENTRY(readInt)
+FAST_ENTRY(readChar)
@@ -1,13 +1,18 @@
 package crux;
 
+import crux.ir.EdgeProfile;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestFactory;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.List;
 import java.util.Objects;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.concurrent.ExecutorService;
@@ -25,7 +30,7 @@ final class CompilerStageTests {
    * all stages: private final String[] TEST_TO_RUN = {"stage1", "stage2", "stage3", "stage4",
    * "stage5"};
    */
-  private final String[] TEST_TO_RUN = {"stage5"};
+  private final String[] TEST_TO_RUN = {"stage4", "stage5"};
 
   private boolean skipStage(String stageName) {
     return List.of(TEST_TO_RUN).stream().noneMatch(s -> s.toLowerCase().equals(stageName));
@@ -47,6 +52,20 @@ final class CompilerStageTests {
 
   public static final int TIMEOUT = 20;
 
+  // Where --instrument writes the profile, both in the Emulator and in generated code.
+  private static final Path PROFILE = Path.of(EdgeProfile.DEFAULT_FILE);
+
+  // Deserializing the larger programs recurses along their instructions, deeper than the default
+  // stack of a thread allows when the JIT has not compiled ObjectInputStream yet.
+  private static final long STACK_SIZE = 64L << 20;
+
+  /**
+   * An executor for one test, whose thread has room to deserialize a program.
+   */
+  private static ExecutorService newExecutor() {
+    return Executors.newSingleThreadExecutor(r -> new Thread(null, r, "crux-test", STACK_SIZE));
+  }
+
   @TestFactory
   Stream<DynamicTest> parseTree() throws IOException {
     if (skipStage("stage1")) {
@@ -182,105 +201,349 @@ final class CompilerStageTests {
     }));
   }
 
+  /**
+   * The ways in which the tests run programs.
+   */
+  private enum Engine {
+    EMULATOR("IR"),
+    BYTECODE("Bytecode"),
+    // The bytecode emulator, compiling every function to closures once it calls or loops.
+    CLOSURES("Closure tier"),
+    NATIVE("CodeGen"),
+    // Generated code written as an ELF object file instead of assembly.
+    OBJECT("Object file");
+
+    final String description;
+
+    Engine(String description) {
+      this.description = description;
+    }
+  }
+
   @TestFactory
   Stream<DynamicTest> emulateIR() throws IOException {
     if (skipStage("stage4")) {
       return Stream.empty();
     }
+    return runPrograms("ir", Engine.EMULATOR, driver -> {
+    });
+  }
 
-    var tests = getTests("ir");
-    return tests.stream().map(test -> dynamicTest(test.in, () -> {
-      ExecutorService executor = Executors.newSingleThreadExecutor();
-      Future<StringPair> future = executor.submit(new Callable<StringPair>() {
-        public StringPair call() throws IOException {
-          var loader = getClass().getClassLoader();
-          var in = loader.getResourceAsStream(test.in);
-          var input = loader.getResourceAsStream(test.input);
+  @TestFactory
+  Stream<DynamicTest> emulateBytecode() throws IOException {
+    if (skipStage("stage4")) {
+      return Stream.empty();
+    }
+    return runPrograms("ir", Engine.BYTECODE, driver -> {
+    });
+  }
 
-          var outStream = new ByteArrayOutputStream();
-          var outPrintStream = new PrintStream(outStream);
-          var driver = new Driver(outPrintStream, outPrintStream);
-          driver.enableEmulator();
-          driver.setEmulatorInput(input);
+  @TestFactory
+  Stream<DynamicTest> emulateClosures() throws IOException {
+    if (skipStage("stage4")) {
+      return Stream.empty();
+    }
+    return runPrograms("ir", Engine.CLOSURES, driver -> {
+    });
+  }
 
-          if (!driver.hasSupportEndToEnd()) {
-            driver.readASTTYPE(loader.getResourceAsStream(test.inputdeserial));
-            driver.run();
-          } else {
-            driver.setInputStream(in);
-            driver.run();
-          }
+  @TestFactory
+  Stream<DynamicTest> codegen() throws IOException {
+    if (skipStage("stage5")) {
+      return Stream.empty();
+    }
+    return runPrograms("codegen", Engine.NATIVE, driver -> {
+    });
+  }
 
-          var actualOutput = outStream.toString();
-          var expectedOutput = readResourceToString(test.out);
+  @TestFactory
+  Stream<DynamicTest> codegenObjectFile() throws IOException {
+    if (skipStage("stage5")) {
+      return Stream.empty();
+    }
+    return runPrograms("codegen", Engine.OBJECT, driver -> {
+    });
+  }
 
-          return new StringPair(expectedOutput, actualOutput);
+  /**
+   * Runs the codegen programs without vector instructions, and with AVX2 as assembly and as an
+   * object file if the processor has it. The other codegen tests use the default, SSE2.
+   */
+  @TestFactory
+  Stream<DynamicTest> codegenVectorInstructions() throws IOException {
+    if (skipStage("stage5")) {
+      return Stream.empty();
+    }
+    var tests =
+        runPrograms("codegen", Engine.NATIVE, driver -> driver.setVectorInstructions("none"));
+    if (!hasAvx2()) {
+      return tests;
+    }
+    return Stream.of(tests,
+        runPrograms("codegen", Engine.NATIVE, driver -> driver.setVectorInstructions("avx2")),
+        runPrograms("codegen", Engine.OBJECT, driver -> driver.setVectorInstructions("avx2")))
+        .flatMap(s -> s);
+  }
+
+  /**
+   * Runs the codegen programs with builtins called through the register preserving runtime entry
+   * points, as assembly and as an object file.
+   */
+  @TestFactory
+  Stream<DynamicTest> codegenFastRuntimeCalls() throws IOException {
+    if (skipStage("stage5")) {
+      return Stream.empty();
+    }
+    return Stream.of(
+        runPrograms("codegen", Engine.NATIVE, Driver::enableFastRuntimeCalls),
+        runPrograms("codegen", Engine.OBJECT, Driver::enableFastRuntimeCalls))
+        .flatMap(s -> s);
+  }
+
+  private static boolean hasAvx2() {
+    try (var lines = Files.lines(Path.of("/proc/cpuinfo"))) {
+      return lines.anyMatch(line -> line.startsWith("flags") && line.contains(" avx2"));
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Runs the bounds check programs in every emulator. A program that fails a check must print the
+   * same output and message in every engine.
+   */
+  @TestFactory
+  Stream<DynamicTest> emulateBoundsChecks() throws IOException {
+    if (skipStage("stage4")) {
+      return Stream.empty();
+    }
+    return Stream.of(runPrograms("bounds-check", Engine.EMULATOR, Driver::enableBoundsChecks),
+        runPrograms("bounds-check", Engine.BYTECODE, Driver::enableBoundsChecks),
+        runPrograms("bounds-check", Engine.CLOSURES, Driver::enableBoundsChecks))
+        .flatMap(s -> s);
+  }
+
+  @TestFactory
+  Stream<DynamicTest> codegenBoundsChecks() throws IOException {
+    if (skipStage("stage5")) {
+      return Stream.empty();
+    }
+    return Stream.of(runPrograms("bounds-check", Engine.NATIVE, driver -> {
+      driver.enableBoundsChecks();
+      driver.setOptimizationLevel(0);
+    }), runPrograms("bounds-check", Engine.NATIVE, Driver::enableBoundsChecks),
+        runPrograms("bounds-check", Engine.OBJECT, Driver::enableBoundsChecks))
+        .flatMap(s -> s);
+  }
+
+  /**
+   * Runs the IR programs after taking every function into SSA form and back, which must not
+   * change what they print.
+   */
+  @TestFactory
+  Stream<DynamicTest> emulateSSARoundTrip() throws IOException {
+    if (skipStage("stage4")) {
+      return Stream.empty();
+    }
+    return Stream.of(runPrograms("ir", Engine.EMULATOR, Driver::enableSSARoundTrip),
+        runPrograms("ir", Engine.BYTECODE, Driver::enableSSARoundTrip)).flatMap(s -> s);
+  }
+
+  @TestFactory
+  Stream<DynamicTest> codegenSSARoundTrip() throws IOException {
+    if (skipStage("stage5")) {
+      return Stream.empty();
+    }
+    return Stream.of(runPrograms("codegen", Engine.NATIVE, driver -> {
+      driver.enableSSARoundTrip();
+      driver.setOptimizationLevel(0);
+    }), runPrograms("codegen", Engine.NATIVE, Driver::enableSSARoundTrip)).flatMap(s -> s);
+  }
+
+  /**
+   * Profiles every IR program with --instrument in the Emulator and in generated code, which must
+   * write the same profile. Compiling the program with --profile-use of that profile inlines hot
+   * calls and lays out the code by the counts, which must not change what it prints.
+   */
+  @TestFactory
+  Stream<DynamicTest> profileRoundTrip() throws IOException {
+    if (skipStage("stage5")) {
+      return Stream.empty();
+    }
+
+    var tests = getTests("ir");
+    return tests.stream().map(test -> dynamicTest(test.in, () -> {
+      ExecutorService executor = newExecutor();
+      Future<String[]> future = executor.submit(new Callable<String[]>() {
+        public String[] call() throws IOException {
+          try {
+            var emulated = runProgram("ir", test, Engine.EMULATOR, Driver::enableInstrument);
+            var emulatorProfile = Files.readString(PROFILE);
+            Files.delete(PROFILE);
+            var instrumented = runProgram("ir", test, Engine.NATIVE, Driver::enableInstrument);
+            var nativeProfile = Files.readString(PROFILE);
+            var optimized = runProgram("ir", test, Engine.NATIVE,
+                driver -> driver.setProfileUse(PROFILE.toString()));
+            return new String[] {emulated, instrumented, optimized, emulatorProfile,
+                nativeProfile};
+          } finally {
+            Files.deleteIfExists(PROFILE);
+          }
         }
       });
-      StringPair sp = null;
+      String[] results = null;
       try {
-        sp = future.get(TIMEOUT, TimeUnit.SECONDS);
+        results = future.get(TIMEOUT, TimeUnit.SECONDS);
       } catch (TimeoutException e) {
         future.cancel(true);
       }
-      if (sp == null) {
-        Assertions.fail(String.format("Timeout for IR for program %s.", test.in));
+      if (results == null) {
+        Assertions.fail(String.format("Timeout for profiles for program %s.", test.in));
       } else {
-        Assertions.assertEquals(sanitize(sp.a).trim(), sanitize(sp.b).trim(),
-            String.format("IR for program %s differs from expected output.", test.in));
+        var expectedOutput = sanitize(readResourceToString(test.out)).trim();
+        Assertions.assertEquals(expectedOutput, sanitize(results[0]).trim(), String
+            .format("Instrumented Emulator for program %s differs from expected output.", test.in));
+        Assertions.assertEquals(expectedOutput, sanitize(results[1]).trim(), String
+            .format("Instrumented CodeGen for program %s differs from expected output.", test.in));
+        Assertions.assertEquals(expectedOutput, sanitize(results[2]).trim(), String.format(
+            "Profile-guided CodeGen for program %s differs from expected output.", test.in));
+        Assertions.assertEquals(results[3], results[4],
+            String.format("Profiles of program %s differ between Emulator and CodeGen.", test.in));
       }
     }));
   }
 
+  @Test
+  void profileOfAnotherProgramIsRejected() throws IOException {
+    if (skipStage("stage5")) {
+      return;
+    }
+
+    var tests = getTests("ir");
+    var profiled = tests.stream().filter(test -> test.in.endsWith("/test01.crx")).findFirst().get();
+    var other = tests.stream().filter(test -> test.in.endsWith("/test02.crx")).findFirst().get();
+    try {
+      runProgram("ir", profiled, Engine.EMULATOR, Driver::enableInstrument);
+      var error = Assertions.assertThrows(Error.class, () -> runProgram("ir", other,
+          Engine.NATIVE, driver -> driver.setProfileUse(PROFILE.toString())));
+      Assertions.assertEquals(
+          "The profile was collected for a different program or different options",
+          error.getMessage());
+    } finally {
+      Files.deleteIfExists(PROFILE);
+    }
+  }
+
+  @Test
+  void bytecodeEmulatorWarnsWhenFallingBack() throws IOException {
+    if (skipStage("stage4")) {
+      return;
+    }
+
+    var test = getTests("ir").stream().filter(t -> t.in.endsWith("/test02.crx")).findFirst().get();
+    var output = runProgram("ir", test, Engine.BYTECODE, driver -> {
+      driver.setMaxInstructions(1_000_000);
+      driver.setMaxCallDepth(1000);
+    });
+    Assertions.assertEquals(("warning: --bytecode-emulator does not support --max-instructions, "
+        + "--max-call-depth; running the Emulator\n" + readResourceToString(test.out)).trim(),
+        sanitize(output).trim());
+  }
+
+  /**
+   * Compiles every codegen program on one thread and on eight, which must write the same assembly.
+   */
   @TestFactory
-  Stream<DynamicTest> codegen() throws IOException {
+  Stream<DynamicTest> codegenThreadsAreDeterministic() throws IOException {
     if (skipStage("stage5")) {
       return Stream.empty();
     }
 
     var tests = getTests("codegen");
-    Runtime runtime = Runtime.getRuntime();
-
     return tests.stream().map(test -> dynamicTest(test.in, () -> {
-      ExecutorService executor = Executors.newSingleThreadExecutor();
+      ExecutorService executor = newExecutor();
       Future<StringPair> future = executor.submit(new Callable<StringPair>() {
         public StringPair call() throws IOException {
-          var loader = getClass().getClassLoader();
-          var in = loader.getResourceAsStream(test.in);
-          var input = loader.getResourceAsStream(test.input);
-
-          var driver = new Driver();
-
-          if (!driver.hasSupportEndToEnd()) {
-            driver.readIR(loader.getResourceAsStream(test.inputdeserial));
-            driver.run();
-          } else {
-            driver.setInputStream(in);
+          var assembly = new String[2];
+          int[] threads = {1, 8};
+          for (int i = 0; i < threads.length; i++) {
+            var driver = new Driver();
+            driver.setCodegenThreads(threads[i]);
+            driver.readIR(getClass().getClassLoader().getResourceAsStream(test.inputdeserial));
             driver.run();
+            assembly[i] = Files.readString(Path.of("a.s"));
           }
+          return new StringPair(assembly[0], assembly[1]);
+        }
+      });
+      StringPair sp = null;
+      try {
+        sp = future.get(TIMEOUT, TimeUnit.SECONDS);
+      } catch (TimeoutException e) {
+        future.cancel(true);
+      }
+      if (sp == null) {
+        Assertions.fail(String.format("Timeout for CodeGen for program %s.", test.in));
+      } else {
+        Assertions.assertEquals(sp.a, sp.b, String.format(
+            "CodeGen on 8 threads for program %s differs from CodeGen on 1.", test.in));
+      }
+    }));
+  }
 
-          Process build = runtime.exec("gcc a.s src/runtime/runtime.c -o autotest.bin");
-          try {
-            if (build.waitFor() != 0) {
-              throw new Error("Assembling and linking failed");
-            }
-          } catch (Exception e) {
-            throw new Error("Assembling and linking failed");
-          }
-          Process run = runtime.exec("./autotest.bin");
-          OutputStream runinput = run.getOutputStream();
+  /**
+   * Runs the debug programs with --debug-emulator. Their expected output was written by the
+   * Emulator's debug messages before they were recorded by a Tracer, with every instruction in
+   * order with what the program prints.
+   */
+  @TestFactory
+  Stream<DynamicTest> emulateDebugTrace() throws IOException {
+    if (skipStage("stage4")) {
+      return Stream.empty();
+    }
+    return runPrograms("debug-emulator", Engine.EMULATOR, Driver::enableDebugEmulator);
+  }
 
-          int val;
-          while ((val = input.read()) != -1)
-            runinput.write(val);
-          runinput.close();
+  /**
+   * Runs the tail call programs in the Emulator with a call depth limit that they only stay within
+   * if their tail calls reuse the frame of the caller.
+   */
+  @TestFactory
+  Stream<DynamicTest> emulateTailCalls() throws IOException {
+    if (skipStage("stage4")) {
+      return Stream.empty();
+    }
+    return runPrograms("tail-calls", Engine.EMULATOR, driver -> driver.setMaxCallDepth(100));
+  }
+
+  /**
+   * Compiles the tail call programs at both optimization levels. They overflow the native stack
+   * unless their tail calls are jumps.
+   */
+  @TestFactory
+  Stream<DynamicTest> codegenTailCalls() throws IOException {
+    if (skipStage("stage5")) {
+      return Stream.empty();
+    }
+    return Stream.concat(
+        runPrograms("tail-calls", Engine.NATIVE, driver -> driver.setOptimizationLevel(0)),
+        runPrograms("tail-calls", Engine.NATIVE, driver -> driver.setOptimizationLevel(1)));
+  }
 
-          InputStream inputStream = run.getInputStream();
-          StringBuffer sb = new StringBuffer();
-          while ((val = inputStream.read()) != -1)
-            sb.append((char) val);
+  /**
+   * Runs the programs of a stage with {@code engine} and compares their output with the expected
+   * output. {@code options} enables further options of the driver. The programs of the codegen
+   * stage start from their serialized IR, all others from their serialized type-checked AST.
+   */
+  private Stream<DynamicTest> runPrograms(String stageName, Engine engine,
+      Consumer<Driver> options) throws IOException {
+    var tests = getTests(stageName);
 
-          var actualOutput = sb.toString();
+    return tests.stream().map(test -> dynamicTest(test.in, () -> {
+      ExecutorService executor = newExecutor();
+      Future<StringPair> future = executor.submit(new Callable<StringPair>() {
+        public StringPair call() throws IOException {
+          var actualOutput = runProgram(stageName, test, engine, options);
           var expectedOutput = readResourceToString(test.out);
           return new StringPair(expectedOutput, actualOutput);
         }
@@ -292,14 +555,104 @@ final class CompilerStageTests {
         future.cancel(true);
       }
       if (sp == null) {
-        Assertions.fail(String.format("Timeout for CodeGen for program %s.", test.in));
+        Assertions.fail(
+            String.format("Timeout for %s for program %s.", engine.description, test.in));
       } else {
         Assertions.assertEquals(sanitize(sp.a).trim(), sanitize(sp.b).trim(),
-            String.format("CodeGen for program %s differs from expected output.", test.in));
+            String.format("%s for program %s differs from expected output.", engine.description,
+                test.in));
       }
     }));
   }
 
+  /**
+   * Runs one program of a stage with {@code engine} and returns what it printed.
+   */
+  private String runProgram(String stageName, InOut test, Engine engine, Consumer<Driver> options)
+      throws IOException {
+    var loader = getClass().getClassLoader();
+    var in = loader.getResourceAsStream(test.in);
+    var input = loader.getResourceAsStream(test.input);
+
+    var outStream = new ByteArrayOutputStream();
+    var outPrintStream = new PrintStream(outStream);
+    var driver = new Driver(outPrintStream, outPrintStream);
+    switch (engine) {
+      case EMULATOR:
+        driver.enableEmulator();
+        break;
+      case BYTECODE:
+        driver.enableBytecodeEmulator();
+        break;
+      case CLOSURES:
+        driver.enableBytecodeEmulator();
+        driver.setTierThreshold(1);
+        break;
+      case OBJECT:
+        driver.setObjectFile("a.o");
+        break;
+      default:
+        break;
+    }
+    boolean compiled = engine == Engine.NATIVE || engine == Engine.OBJECT;
+    if (!compiled)
+      driver.setEmulatorInput(input);
+    options.accept(driver);
+
+    try {
+      if (!driver.hasSupportEndToEnd()) {
+        var serialized = loader.getResourceAsStream(test.inputdeserial);
+        if (stageName.equals("codegen"))
+          driver.readIR(serialized);
+        else
+          driver.readASTTYPE(serialized);
+        driver.run();
+      } else {
+        driver.setInputStream(in);
+        driver.run();
+      }
+    } catch (Error e) {
+      // A program failing a bounds check ends with the message of the error, as the runtime
+      // library does. Any other error is a bug in the engine and fails the test.
+      if (compiled || !stageName.equals("bounds-check"))
+        throw e;
+      outPrintStream.println(e.getMessage());
+    }
+
+    if (compiled)
+      return runExecutable(Runtime.getRuntime(), engine == Engine.OBJECT ? "a.o" : "a.s", input);
+    return outStream.toString();
+  }
+
+  /**
+   * Links the generated {@code code} with the runtime library, runs it on {@code input} and returns
+   * what it printed to stdout and stderr.
+   */
+  private String runExecutable(Runtime runtime, String code, InputStream input)
+      throws IOException {
+    Process build = runtime.exec("gcc " + code + " src/runtime/runtime.c -o autotest.bin");
+    try {
+      if (build.waitFor() != 0) {
+        throw new Error("Assembling and linking failed");
+      }
+    } catch (Exception e) {
+      throw new Error("Assembling and linking failed");
+    }
+    Process run = new ProcessBuilder("./autotest.bin").redirectErrorStream(true).start();
+    OutputStream runinput = run.getOutputStream();
+
+    int val;
+    while ((val = input.read()) != -1)
+      runinput.write(val);
+    runinput.close();
+
+    InputStream inputStream = run.getInputStream();
+    StringBuffer sb = new StringBuffer();
+    while ((val = inputStream.read()) != -1)
+      sb.append((char) val);
+    return sb.toString();
+  }
+
   private List<InOut> getTests(String stageName) throws IOException {
     var loader = getClass().getClassLoader();
     var folder = String.format("crux/stages/%s", stageName);
@@ -0,0 +1,168 @@
+package crux;
+
+import crux.ir.BytecodeEmulator;
+import crux.ir.ConcurrentRunner;
+import crux.ir.Emulator;
+import crux.ir.ExecutableImage;
+import crux.ir.Program;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Times the emulator on the serialized IR of the codegen stage tests. This is not a unit test; run
+ * it with
+ *
+ * <pre>
+ * {@code
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=crux.EmulatorBenchmark
+ * }
+ * </pre>
+ *
+ * Every program is executed {@code WARMUP} times to let the JIT settle and then {@code ITERATIONS}
+ * times while measuring. The program output is discarded. Pass {@code -Dexec.args=bytecode} to time
+ * the {@link BytecodeEmulator} instead of the {@link Emulator}.
+ * <p>
+ * Next to the time, the bytes allocated by the benchmark thread are reported, as measured by the
+ * JVM's per-thread allocation counter. Recursive programs such as fib should stay close to the
+ * fixed cost of setting up an emulator, independent of the number of calls.
+ * <p>
+ * {@code -Dexec.args=concurrent} instead translates every program once into an
+ * {@link ExecutableImage} and pushes all iterations through a {@link ConcurrentRunner} with one
+ * run per processor, reporting the throughput.
+ */
+final class EmulatorBenchmark {
+  private static final int WARMUP = 200;
+  private static final int ITERATIONS = 1000;
+
+  private static boolean bytecode = false;
+
+  private static final class Workload {
+    final String name;
+    final Program program;
+    final byte[] input;
+
+    Workload(String name, Program program, byte[] input) {
+      this.name = name;
+      this.program = program;
+      this.input = input;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    bytecode = args.length > 0 && args[0].equals("bytecode");
+    boolean concurrent = args.length > 0 && args[0].equals("concurrent");
+    // Deserializing the instruction graph recurses once per instruction.
+    Runnable benchmark = concurrent ? EmulatorBenchmark::benchmarkConcurrent
+        : EmulatorBenchmark::benchmark;
+    var thread = new Thread(null, benchmark, "benchmark", 1L << 28);
+    thread.start();
+    thread.join();
+  }
+
+  private static void benchmark() {
+    List<Workload> workloads;
+    try {
+      workloads = loadWorkloads("crux/stages/codegen");
+    } catch (Exception e) {
+      throw new RuntimeException("cannot load benchmark programs", e);
+    }
+    var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    long total = 0;
+    long totalBytes = 0;
+    for (var w : workloads) {
+      for (int i = 0; i < WARMUP; i++) {
+        runOnce(w);
+      }
+      long bytes = threads.getThreadAllocatedBytes(thread);
+      long start = System.nanoTime();
+      for (int i = 0; i < ITERATIONS; i++) {
+        runOnce(w);
+      }
+      long elapsed = System.nanoTime() - start;
+      bytes = threads.getThreadAllocatedBytes(thread) - bytes;
+      total += elapsed;
+      totalBytes += bytes;
+      System.out.printf("%-10s %10.2f us/run %12d bytes/run%n", w.name,
+          elapsed / 1000.0 / ITERATIONS, bytes / ITERATIONS);
+    }
+    System.out.printf("%-10s %10.2f us/run %12d bytes/run%n", "total", total / 1000.0 / ITERATIONS,
+        totalBytes / ITERATIONS);
+  }
+
+  private static void benchmarkConcurrent() {
+    List<Workload> workloads;
+    try {
+      workloads = loadWorkloads("crux/stages/codegen");
+    } catch (Exception e) {
+      throw new RuntimeException("cannot load benchmark programs", e);
+    }
+    long total = 0;
+    int processors = Runtime.getRuntime().availableProcessors();
+    for (var w : workloads) {
+      var image = new ExecutableImage(w.program);
+      try (var runner = new ConcurrentRunner(image, processors)) {
+        runBatch(runner, w, WARMUP);
+        long start = System.nanoTime();
+        runBatch(runner, w, ITERATIONS);
+        long elapsed = System.nanoTime() - start;
+        total += elapsed;
+        System.out.printf("%-10s %10.2f us/run %10.0f runs/s%n", w.name,
+            elapsed / 1000.0 / ITERATIONS, ITERATIONS * 1e9 / elapsed);
+      }
+    }
+    System.out.printf("%-10s %10.2f us/run on %d processors%n", "total",
+        total / 1000.0 / ITERATIONS, processors);
+  }
+
+  private static void runBatch(ConcurrentRunner runner, Workload w, int runs) {
+    var inputs = new ArrayList<InputStream>(runs);
+    var outputs = new ArrayList<OutputStream>(runs);
+    for (int i = 0; i < runs; i++) {
+      inputs.add(new ByteArrayInputStream(w.input));
+      outputs.add(OutputStream.nullOutputStream());
+    }
+    try {
+      runner.runAll(inputs, outputs);
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static void runOnce(Workload w) {
+    var input = new ByteArrayInputStream(w.input);
+    if (bytecode) {
+      new BytecodeEmulator(w.program, input, OutputStream.nullOutputStream()).run();
+    } else {
+      new Emulator(w.program, input, OutputStream.nullOutputStream()).run();
+    }
+  }
+
+  private static List<Workload> loadWorkloads(String folder) throws Exception {
+    var loader = EmulatorBenchmark.class.getClassLoader();
+    var workloads = new ArrayList<Workload>();
+    try (var index = loader.getResourceAsStream(folder);
+        var br = new BufferedReader(new InputStreamReader(Objects.requireNonNull(index)))) {
+      for (var resource : (Iterable<String>) br.lines()::iterator) {
+        if (!resource.endsWith(".ser"))
+          continue;
+        var name = resource.substring(0, resource.length() - 4);
+        Program program;
+        try (var ois = new ObjectInputStream(loader.getResourceAsStream(folder + "/" + resource))) {
+          program = (Program) ois.readObject();
+        }
+        byte[] input;
+        try (var in = loader.getResourceAsStream(folder + "/" + name + ".in")) {
+          input = in == null ? new byte[0] : in.readAllBytes();
+        }
+        workloads.add(new Workload(name, program, input));
+      }
+    }
+    workloads.sort((a, b) -> a.name.compareTo(b.name));
+    return workloads;
+  }
+}
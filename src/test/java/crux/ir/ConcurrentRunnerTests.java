@@ -0,0 +1,150 @@
+package crux.ir;
+
+import crux.Driver;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs one {@link ExecutableImage} against many inputs at once.
+ */
+final class ConcurrentRunnerTests {
+  // Fills a global array from the input and sums it, so runs that shared memory would see each
+  // other's values. An input of 0 fails in the division.
+  private static final String[] SOURCE = {
+      "let a: [int; 1000];",
+      "fn main() {",
+      "  let n: int;",
+      "  let i: int;",
+      "  let sum: int;",
+      "  n = readInt();",
+      "  i = 0;",
+      "  while (i < 1000) {",
+      "    a[i] = n * i;",
+      "    i = i + 1;",
+      "  }",
+      "  sum = 0;",
+      "  i = 0;",
+      "  while (i < 1000) {",
+      "    sum = sum + a[i];",
+      "    i = i + 1;",
+      "  }",
+      "  printInt(sum);",
+      "  println();",
+      "  printInt(1000 / n);",
+      "}"};
+
+  private static final Program PROGRAM = TestPrograms.lower(SOURCE);
+
+  private static ByteArrayInputStream input(int n) {
+    return new ByteArrayInputStream((n + "\n").getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String expected(int n) {
+    return "int?" + 499500L * n + "\n" + 1000 / n;
+  }
+
+  @Test
+  void runsAreIsolatedAndFailuresReportedPerRun() throws InterruptedException {
+    var inputs = new ArrayList<ByteArrayInputStream>();
+    var outputs = new ArrayList<ByteArrayOutputStream>();
+    int failing = 37;
+    for (int i = 0; i < 100; i++) {
+      inputs.add(input(i == failing ? 0 : i + 1));
+      outputs.add(new ByteArrayOutputStream());
+    }
+
+    List<Throwable> failures;
+    try (var runner = new ConcurrentRunner(new ExecutableImage(PROGRAM), 8)) {
+      // Compile every function to closures right away, which shares the compiled code as well.
+      runner.setTierThreshold(1);
+      failures = runner.runAll(inputs, outputs);
+    }
+
+    Assertions.assertEquals(100, failures.size());
+    for (int i = 0; i < 100; i++) {
+      if (i == failing) {
+        Assertions.assertTrue(failures.get(i) instanceof ArithmeticException,
+            "run " + i + " failed with " + failures.get(i));
+        Assertions.assertTrue(outputs.get(i).toString().startsWith("int?0\n"));
+      } else {
+        Assertions.assertNull(failures.get(i), "run " + i);
+        Assertions.assertEquals(expected(i + 1), outputs.get(i).toString(), "run " + i);
+      }
+    }
+  }
+
+  @Test
+  void runsAtMostParallelismAtOnce() throws InterruptedException {
+    var running = new AtomicInteger();
+    var maxRunning = new AtomicInteger();
+    var inputs = new ArrayList<ByteArrayInputStream>();
+    var outputs = new ArrayList<ByteArrayOutputStream>();
+    for (int i = 1; i <= 12; i++) {
+      // Every run holds its permit while it waits for its input.
+      inputs.add(new ByteArrayInputStream((i + "\n").getBytes(StandardCharsets.UTF_8)) {
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+          maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+          try {
+            Thread.sleep(50);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          running.decrementAndGet();
+          return super.read(b, off, len);
+        }
+      });
+      outputs.add(new ByteArrayOutputStream());
+    }
+
+    List<Throwable> failures;
+    try (var runner = new ConcurrentRunner(new ExecutableImage(PROGRAM), 3)) {
+      failures = runner.runAll(inputs, outputs);
+    }
+
+    Assertions.assertEquals(3, maxRunning.get());
+    for (int i = 0; i < 12; i++) {
+      Assertions.assertNull(failures.get(i));
+      Assertions.assertEquals(expected(i + 1), outputs.get(i).toString());
+    }
+  }
+
+  @Test
+  void driverPrintsBatchOutputsInOrder() throws IOException {
+    var files = new ArrayList<Path>();
+    try {
+      var out = new ByteArrayOutputStream();
+      var err = new ByteArrayOutputStream();
+      var driver = new Driver(new PrintStream(out), new PrintStream(err));
+      driver.setInputStream(new ByteArrayInputStream(
+          String.join("\n", SOURCE).getBytes(StandardCharsets.UTF_8)));
+      for (int n : new int[] {1, 0, 3}) {
+        var file = Files.createTempFile("crux", ".in");
+        Files.writeString(file, n + "\n");
+        files.add(file);
+        driver.addBatchInputFile(file.toString());
+      }
+      driver.run();
+
+      Assertions.assertEquals("== " + files.get(0) + " ==\n" + expected(1)
+          + "== " + files.get(1) + " ==\nint?0\n"
+          + "== " + files.get(2) + " ==\n" + expected(3), out.toString());
+      Assertions.assertEquals(
+          files.get(1) + ": java.lang.ArithmeticException: / by zero\n", err.toString());
+    } finally {
+      for (var file : files)
+        Files.delete(file);
+    }
+  }
+}
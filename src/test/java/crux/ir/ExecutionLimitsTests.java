@@ -0,0 +1,138 @@
+package crux.ir;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Runs programs that exceed their {@link ExecutionLimits} and checks that they stop at the same
+ * instruction however they are sliced.
+ */
+final class ExecutionLimitsTests {
+  private static final Program RUNAWAY = TestPrograms.lower(
+      "fn main() {",
+      "  let i: int;",
+      "  i = 0;",
+      "  while (true) {",
+      "    i = i + 1;",
+      "  }",
+      "}");
+
+  private static final Program RECURSION = TestPrograms.lower(
+      "fn down(n: int) -> int {",
+      "  return down(n + 1) + 1;",
+      "}",
+      "fn main() {",
+      "  printInt(down(0));",
+      "}");
+
+  private static final Program GLOBAL_WRITES = TestPrograms.lower(
+      "let a: [int; 1000];",
+      "fn main() {",
+      "  let i: int;",
+      "  i = 0;",
+      "  while (i < 1000) {",
+      "    a[i] = i;",
+      "    i = i + 1;",
+      "  }",
+      "  printInt(a[999]);",
+      "}");
+
+  private static final Program SHORT = TestPrograms.lower(
+      "fn main() {",
+      "  printInt(42);",
+      "}");
+
+  private static Emulator emulator(Program program, ExecutionLimits limits) {
+    var emulator = new Emulator(program, new ByteArrayInputStream(new byte[0]),
+        new ByteArrayOutputStream());
+    emulator.setLimits(limits);
+    return emulator;
+  }
+
+  /**
+   * Runs {@code program} under {@code limits} in slices of {@code slice} instructions and returns
+   * how it ended.
+   */
+  private static RunResult run(Program program, ExecutionLimits limits, long slice) {
+    var emulator = emulator(program, limits);
+    while (emulator.runSlice(slice))
+      ;
+    return emulator.getResult();
+  }
+
+  private static void assertStops(Program program, ExecutionLimits limits,
+      RunResult.Status status, long instructions) {
+    for (long slice : new long[] {Long.MAX_VALUE, 1, 7, 1000}) {
+      var result = run(program, limits, slice);
+      Assertions.assertEquals(status, result.getStatus(), "in slices of " + slice);
+      Assertions.assertEquals(instructions, result.getInstructions(), "in slices of " + slice);
+      Assertions.assertNull(result.getFailure());
+    }
+  }
+
+  @Test
+  void runawayLoopStopsAtInstructionLimit() {
+    assertStops(RUNAWAY, new ExecutionLimits(1_000_000, Integer.MAX_VALUE, Long.MAX_VALUE),
+        RunResult.Status.INSTRUCTION_LIMIT, 1_000_000);
+  }
+
+  @Test
+  void deepRecursionStopsAtCallDepthLimit() {
+    // main runs 3 instructions up to its call, every down 5; the call of the 999th down fails.
+    assertStops(RECURSION, new ExecutionLimits(Long.MAX_VALUE, 1000, Long.MAX_VALUE),
+        RunResult.Status.CALL_DEPTH_LIMIT, 4998);
+  }
+
+  @Test
+  void largeGlobalWriteStopsAtMemoryLimit() {
+    // 14 instructions before the loop and in every iteration; the 101st store fails.
+    assertStops(GLOBAL_WRITES, new ExecutionLimits(Long.MAX_VALUE, Integer.MAX_VALUE, 100),
+        RunResult.Status.MEMORY_LIMIT, 1414);
+  }
+
+  @Test
+  void limitsThatAreNotReachedLetTheProgramFinish() {
+    assertStops(GLOBAL_WRITES, new ExecutionLimits(1_000_000, 2, 1000),
+        RunResult.Status.FINISHED, 14014);
+  }
+
+  @Test
+  void schedulerInterleavesRunsOnOneThread() {
+    var limits = new ExecutionLimits(50_000, Integer.MAX_VALUE, Long.MAX_VALUE);
+    var scheduler = new Scheduler(1000);
+    var finished = new ArrayList<String>();
+    var runaways = new ArrayList<CompletableFuture<RunResult>>();
+    for (int i = 0; i < 8; i++) {
+      String name = "runaway " + i;
+      var future = scheduler.submit(emulator(RUNAWAY, limits));
+      future.thenRun(() -> finished.add(name));
+      runaways.add(future);
+    }
+    var output = new ByteArrayOutputStream();
+    var shortRun = new Emulator(SHORT, new ByteArrayInputStream(new byte[0]), output);
+    shortRun.setLimits(limits);
+    var shortResult = scheduler.submit(shortRun);
+    shortResult.thenRun(() -> finished.add("short"));
+    Assertions.assertEquals(9, scheduler.getNumRunning());
+
+    scheduler.run();
+
+    Assertions.assertEquals(0, scheduler.getNumRunning());
+    // The short run was submitted last, but needs only one slice and ends before the others.
+    Assertions.assertEquals(List.of("short", "runaway 0", "runaway 1", "runaway 2", "runaway 3",
+        "runaway 4", "runaway 5", "runaway 6", "runaway 7"), finished);
+    Assertions.assertTrue(shortResult.join().isFinished());
+    Assertions.assertEquals("42", output.toString());
+    for (var future : runaways) {
+      var result = future.join();
+      Assertions.assertEquals(RunResult.Status.INSTRUCTION_LIMIT, result.getStatus());
+      Assertions.assertEquals(50_000, result.getInstructions());
+    }
+  }
+}
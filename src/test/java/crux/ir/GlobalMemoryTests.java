@@ -0,0 +1,82 @@
+package crux.ir;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Runs a program whose globals are too large for {@link GlobalMemory.Flat}.
+ */
+final class GlobalMemoryTests {
+  // 100 million words, far above FLAT_LIMIT; a flat memory would need 800 MB.
+  private static final Program SPARSE = TestPrograms.lower(
+      "let big: [int; 100000000];",
+      "fn main() {",
+      "  big[0] = 1;",
+      "  big[50000000] = 2;",
+      "  big[99999999] = 3;",
+      "  printInt(big[0]);",
+      "  println();",
+      "  printInt(big[50000000]);",
+      "  println();",
+      "  printInt(big[99999999]);",
+      "  println();",
+      // Next to a written word, on a page that is allocated.
+      "  printInt(big[50000001]);",
+      "  println();",
+      // On a page that was never written.
+      "  printInt(big[70000000]);",
+      "  println();",
+      "}");
+
+  private static final String EXPECTED = "1\n2\n3\n"
+      + "Reading from uninitialized memory\n0\n"
+      + "Reading from uninitialized memory\n0\n";
+
+  @Test
+  void largeGlobalsArePaged() {
+    Assertions.assertTrue(
+        GlobalMemory.allocate(GlobalMemory.FLAT_LIMIT) instanceof GlobalMemory.Flat);
+    Assertions.assertTrue(
+        GlobalMemory.allocate(GlobalMemory.FLAT_LIMIT + 1) instanceof GlobalMemory.Paged);
+    Assertions.assertTrue(GlobalMemory.forProgram(SPARSE) instanceof GlobalMemory.Paged);
+  }
+
+  @Test
+  void emulatorOnlyAllocatesWrittenPages() {
+    var output = new ByteArrayOutputStream();
+    var emulator = new Emulator(SPARSE, new ByteArrayInputStream(new byte[0]), output);
+    emulator.run();
+
+    Assertions.assertEquals(EXPECTED, output.toString());
+    Assertions.assertEquals(100_000_000, emulator.memory.size());
+    // Three pages were written to; reading the others does not allocate them.
+    Assertions.assertEquals(3 * GlobalMemory.Paged.PAGE_WORDS, emulator.memory.allocatedWords());
+  }
+
+  @Test
+  void bytecodeEmulatorReadsPagedMemory() {
+    var output = new ByteArrayOutputStream();
+    new BytecodeEmulator(SPARSE, new ByteArrayInputStream(new byte[0]), output).run();
+    Assertions.assertEquals(EXPECTED, output.toString());
+  }
+
+  @Test
+  void pagesAreAllocatedOnFirstWrite() {
+    var memory = GlobalMemory.allocate(GlobalMemory.FLAT_LIMIT * 64);
+    Assertions.assertEquals(0, memory.allocatedWords());
+    for (long address = 0; address < memory.size(); address += 1_000_003)
+      memory.set(address, address);
+    long numWritten = (memory.size() + 1_000_002) / 1_000_003;
+    Assertions.assertEquals(numWritten * GlobalMemory.Paged.PAGE_WORDS, memory.allocatedWords());
+
+    Assertions.assertTrue(memory.isInitialized(2_000_006));
+    Assertions.assertEquals(2_000_006, memory.get(2_000_006));
+    Assertions.assertFalse(memory.isInitialized(2_000_007));
+    Assertions.assertEquals(0, memory.get(2_000_007));
+    Assertions.assertFalse(memory.isInitialized(memory.size() - 1));
+    Assertions.assertEquals(numWritten * GlobalMemory.Paged.PAGE_WORDS, memory.allocatedWords());
+  }
+}
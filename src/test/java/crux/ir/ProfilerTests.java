@@ -0,0 +1,118 @@
+package crux.ir;
+
+import crux.Driver;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Profiles a program with a loop, calls and a tail call, whose counts are easy to work out by hand.
+ */
+final class ProfilerTests {
+  private static final String[] SOURCE = {
+      "fn square(x: int) -> int {",
+      "  return x * x;",
+      "}",
+      "fn count(n: int, acc: int) -> int {",
+      "  if (n == 0) {",
+      "    return acc;",
+      "  }",
+      "  return count(n - 1, acc + square(n));",
+      "}",
+      "fn main() {",
+      "  let i: int;",
+      "  i = 0;",
+      "  while (i < 3) {",
+      "    printInt(count(2, 0));",
+      "    i = i + 1;",
+      "  }",
+      "}"};
+
+  // count(2, 0) runs 15 instructions twice and 8 when n is 0; its tail calls to itself leave it and
+  // enter it again, so they neither nest in the stacks nor count twice in inclusive. main runs 4
+  // instructions before the loop, 5 for every test of the condition, 9 in the body and the nop
+  // after the loop.
+  private static final List<String> FUNCTIONS = List.of(
+      "Functions",
+      "       calls      exclusive       %      inclusive       %  function",
+      "           9            114    58.2            144    73.5  count",
+      "           1             52    26.5            196   100.0  main",
+      "           6             30    15.3             30    15.3  square");
+
+  private static final List<String> LOOPS = List.of(
+      "Loops",
+      "    back-edges  location -> loop header",
+      "             3  main:15 -> main:13");
+
+  private static final String STACKS = "main 52\nmain;count 114\nmain;count;square 30\n";
+
+  /**
+   * The lines of the section of {@code report} that starts with {@code title}.
+   */
+  private static List<String> section(String report, String title) {
+    var lines = Arrays.asList(report.split("\n", -1));
+    int start = lines.indexOf(title);
+    Assertions.assertNotEquals(-1, start, "no section " + title);
+    int end = lines.subList(start, lines.size()).indexOf("");
+    return lines.subList(start, end == -1 ? lines.size() : start + end);
+  }
+
+  @Test
+  void profilesCallsInstructionsAndLoops() {
+    var output = new ByteArrayOutputStream();
+    var emulator =
+        new Emulator(TestPrograms.lower(SOURCE), new ByteArrayInputStream(new byte[0]), output);
+    var profiler = new Profiler();
+    emulator.setProfiler(profiler);
+    emulator.run();
+    Assertions.assertEquals("555", output.toString());
+    Assertions.assertEquals(196, profiler.getTotalInstructions());
+
+    var report = new ByteArrayOutputStream();
+    profiler.writeReport(new PrintStream(report));
+    var text = report.toString();
+    Assertions.assertTrue(text.startsWith("Profile: 196 instructions executed\n\n"));
+    Assertions.assertEquals(FUNCTIONS, section(text, "Functions"));
+    Assertions.assertEquals(LOOPS, section(text, "Loops"));
+    // Source lines of count: the condition in all 9 activations, the tail call in 6.
+    Assertions.assertTrue(section(text, "Lines").contains("            57    29.1  count:5"));
+    Assertions.assertTrue(section(text, "Lines").contains("            48    24.5  count:8"));
+
+    var stacks = new ByteArrayOutputStream();
+    profiler.writeCollapsedStacks(new PrintStream(stacks));
+    Assertions.assertEquals(STACKS, stacks.toString());
+  }
+
+  @Test
+  void driverWritesReportAndStacks() throws IOException {
+    var stacksFile = Files.createTempFile("crux", ".stacks");
+    try {
+      var out = new ByteArrayOutputStream();
+      var err = new ByteArrayOutputStream();
+      var driver = new Driver(new PrintStream(out), new PrintStream(err));
+      driver.setInputStream(new ByteArrayInputStream(
+          String.join("\n", SOURCE).getBytes(StandardCharsets.UTF_8)));
+      driver.enableEmulator();
+      driver.setEmulatorInput(new ByteArrayInputStream(new byte[0]));
+      driver.setProfileStacksFile(stacksFile.toString());
+      driver.run();
+
+      Assertions.assertEquals("555", out.toString());
+      var report = err.toString();
+      Assertions.assertTrue(report.startsWith("Profile: 196 instructions executed\n\n"));
+      Assertions.assertEquals(FUNCTIONS, section(report, "Functions"));
+      Assertions.assertEquals(LOOPS, section(report, "Loops"));
+      Assertions.assertEquals(STACKS, Files.readString(stacksFile));
+    } finally {
+      Files.delete(stacksFile);
+    }
+  }
+}
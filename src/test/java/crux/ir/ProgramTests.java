@@ -0,0 +1,70 @@
+package crux.ir;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Links programs whose calls do not match the functions they call. The type checker rejects such
+ * programs, so the tests put together functions lowered from different programs.
+ */
+final class ProgramTests {
+  private static final Program CALLER = TestPrograms.lower(
+      "fn f(a: int) -> int {",
+      "  return a;",
+      "}",
+      "fn main() {",
+      "  printInt(1);",
+      "  printInt(f(2));",
+      "}");
+
+  private static final Program CALLEE = TestPrograms.lower(
+      "fn f(a: int, b: int) -> int {",
+      "  return a + b;",
+      "}",
+      "fn main() {",
+      "  printInt(f(1, 2));",
+      "}");
+
+  private static Program program(Function... functions) {
+    var program = new Program();
+    for (Function f : functions)
+      program.addFunction(f);
+    return program;
+  }
+
+  private static void assertFailsBeforeOutput(Program program, String message) {
+    var output = new ByteArrayOutputStream();
+    var error = Assertions.assertThrows(Error.class,
+        () -> new Emulator(program, new ByteArrayInputStream(new byte[0]), output).run());
+    Assertions.assertEquals(message, error.getMessage());
+    error = Assertions.assertThrows(Error.class,
+        () -> new BytecodeEmulator(program, new ByteArrayInputStream(new byte[0]), output).run());
+    Assertions.assertEquals(message, error.getMessage());
+    Assertions.assertEquals("", output.toString());
+  }
+
+  @Test
+  void callToMissingFunctionFailsAtLink() {
+    var program = program(TestPrograms.function(CALLER, "main"));
+    assertFailsBeforeOutput(program, "Unresolved call to f in function main");
+  }
+
+  @Test
+  void callWithWrongNumberOfArgumentsFailsAtLink() {
+    var program =
+        program(TestPrograms.function(CALLEE, "f"), TestPrograms.function(CALLER, "main"));
+    assertFailsBeforeOutput(program, "Call to f in function main passes 1 arguments, expected 2");
+  }
+
+  @Test
+  void matchingCallsLink() {
+    var program =
+        program(TestPrograms.function(CALLER, "f"), TestPrograms.function(CALLER, "main"));
+    var output = new ByteArrayOutputStream();
+    new Emulator(program, new ByteArrayInputStream(new byte[0]), output).run();
+    Assertions.assertEquals("12", output.toString());
+  }
+}
@@ -0,0 +1,132 @@
+package crux.ir;
+
+import crux.ir.insts.CopyInst;
+import crux.ir.insts.PhiInst;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks the {@link DominatorTree} and {@link SSAForm} of a loop that swaps two variables.
+ */
+final class SSAFormTests {
+  // Lowers to the entry (block 0), the loop header (1), the loop body (2) and the exit (3).
+  private static final String[] SWAP = {
+      "fn main() {",
+      "  let a: int;",
+      "  let b: int;",
+      "  let t: int;",
+      "  let i: int;",
+      "  a = 1;",
+      "  b = 2;",
+      "  i = 0;",
+      "  while (i < 3) {",
+      "    t = a;",
+      "    a = b;",
+      "    b = t;",
+      "    i = i + 1;",
+      "  }",
+      "  printInt(a);",
+      "  printInt(b);",
+      "}"};
+
+  private static List<PhiInst> phis(DominatorTree tree, int block) {
+    var phis = new ArrayList<PhiInst>();
+    for (Instruction inst : tree.getInstructions(block)) {
+      if (inst instanceof PhiInst)
+        phis.add((PhiInst) inst);
+    }
+    return phis;
+  }
+
+  private static String run(Program program) {
+    var output = new ByteArrayOutputStream();
+    new Emulator(program, new ByteArrayInputStream(new byte[0]), output).run();
+    return output.toString();
+  }
+
+  @Test
+  void dominatorTreeOfLoop() {
+    var tree = new DominatorTree(TestPrograms.function(TestPrograms.lower(SWAP), "main"));
+
+    Assertions.assertEquals(4, tree.getNumBlocks());
+    Assertions.assertArrayEquals(new int[] {1}, tree.getSuccessors(0));
+    Assertions.assertArrayEquals(new int[] {3, 2}, tree.getSuccessors(1));
+    Assertions.assertArrayEquals(new int[] {1}, tree.getSuccessors(2));
+    Assertions.assertArrayEquals(new int[0], tree.getSuccessors(3));
+
+    Assertions.assertEquals(-1, tree.getIdom(0));
+    Assertions.assertEquals(0, tree.getIdom(1));
+    Assertions.assertEquals(1, tree.getIdom(2));
+    Assertions.assertEquals(1, tree.getIdom(3));
+    Assertions.assertTrue(tree.dominates(1, 2));
+    Assertions.assertFalse(tree.dominates(2, 3));
+
+    // The back edge puts the header in its own frontier and in that of the body.
+    Assertions.assertArrayEquals(new int[0], tree.getFrontier(0));
+    Assertions.assertArrayEquals(new int[] {1}, tree.getFrontier(1));
+    Assertions.assertArrayEquals(new int[] {1}, tree.getFrontier(2));
+    Assertions.assertArrayEquals(new int[0], tree.getFrontier(3));
+  }
+
+  @Test
+  void phisArePlacedAtLoopHeader() {
+    var function = TestPrograms.function(TestPrograms.lower(SWAP), "main");
+    var form = SSAForm.construct(function);
+    var tree = form.getDominatorTree();
+
+    // a, b and i are assigned in the loop and read after it or in the next iteration; t is not.
+    Assertions.assertEquals(3, form.getNumPhis());
+    Assertions.assertEquals(3, phis(tree, 1).size());
+    for (int block : new int[] {0, 2, 3})
+      Assertions.assertEquals(List.of(), phis(tree, block));
+    for (PhiInst phi : phis(tree, 1)) {
+      Assertions.assertEquals(2, phi.getNumIncoming());
+      Assertions.assertEquals(0, tree.getBlock(phi.getPredecessor(0)));
+      Assertions.assertEquals(2, tree.getBlock(phi.getPredecessor(1)));
+      Assertions.assertSame(phi, form.getDefinition(phi.getDst()));
+      Assertions.assertEquals(0, tree.getBlock(form.getDefinition(phi.getOperand(0))));
+      Assertions.assertEquals(2, tree.getBlock(form.getDefinition(phi.getOperand(1))));
+    }
+  }
+
+  @Test
+  void swapLoopSurvivesRoundTrip() {
+    var program = TestPrograms.lower(SWAP);
+    SSAForm.construct(TestPrograms.function(program, "main")).destruct();
+    Assertions.assertEquals("21", run(program));
+  }
+
+  @Test
+  void phiCycleIsDestructedWithTemporary() {
+    var program = TestPrograms.lower(SWAP);
+    var function = TestPrograms.function(program, "main");
+    var form = SSAForm.construct(function);
+    var tree = form.getDominatorTree();
+
+    // Propagating the copies of the body makes the phis of a and b read each other, so that their
+    // parallel copies on the back edge form a cycle.
+    for (Instruction inst : tree.getInstructions(2)) {
+      if (inst instanceof CopyInst && ((CopyInst) inst).getSrcValue() instanceof LocalVar) {
+        var copy = (CopyInst) inst;
+        form.replaceAllUses(copy.getDstVar(), (LocalVar) copy.getSrcValue());
+      }
+    }
+    var header = phis(tree, 1);
+    PhiInst phiA = header.get(0);
+    PhiInst phiB = header.get(1);
+    Assertions.assertSame(phiB.getDst(), phiA.getOperand(1));
+    Assertions.assertSame(phiA.getDst(), phiB.getOperand(1));
+
+    form.destruct();
+
+    var after = new DominatorTree(function);
+    for (int block = 0; block < after.getNumBlocks(); block++)
+      Assertions.assertEquals(List.of(), phis(after, block));
+    Assertions.assertEquals("21", run(program));
+  }
+}
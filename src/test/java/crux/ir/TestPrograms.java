@@ -0,0 +1,48 @@
+package crux.ir;
+
+import crux.ast.ParseTreeLower;
+import crux.ast.types.TypeChecker;
+import crux.pt.CruxLexer;
+import crux.pt.CruxParser;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+/**
+ * Compiles the Crux programs of the tests in this package to IR.
+ */
+final class TestPrograms {
+  private TestPrograms() {}
+
+  /**
+   * Lowers the program made of {@code lines} to IR. The program must be free of errors.
+   */
+  static Program lower(String... lines) {
+    var lexer = new CruxLexer(CharStreams.fromString(String.join("\n", lines)));
+    var parser = new CruxParser(new CommonTokenStream(lexer));
+    var errors = new ByteArrayOutputStream();
+    var parseTreeLower = new ParseTreeLower(new PrintStream(errors));
+    var ast = parseTreeLower.lower(parser.program());
+    if (parseTreeLower.hasEncounteredError())
+      throw new Error("Test program does not parse: " + errors);
+    var typeChecker = new TypeChecker();
+    typeChecker.check(ast);
+    if (!typeChecker.getErrors().isEmpty())
+      throw new Error("Test program has type errors: " + typeChecker.getErrors());
+    return new ASTLower().lower(ast);
+  }
+
+  /**
+   * The function of {@code program} called {@code name}.
+   */
+  static Function function(Program program, String name) {
+    for (var it = program.getFunctions(); it.hasNext();) {
+      Function f = it.next();
+      if (f.getName().equals(name))
+        return f;
+    }
+    throw new Error("No function " + name);
+  }
+}
@@ -0,0 +1,84 @@
+package crux.ir;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that a {@link Tracer} that keeps the last events returns exactly the tail of the complete
+ * trace, however its ring wraps around.
+ */
+final class TracerTests {
+  // Events of one to six words: nops, copies, binary operators and calls with five arguments.
+  private static final Program PROGRAM = TestPrograms.lower(
+      "fn sum(a: int, b: int, c: int, d: int, e: int) -> int {",
+      "  return a + b + c + d + e;",
+      "}",
+      "fn main() {",
+      "  let i: int;",
+      "  let total: int;",
+      "  i = 0;",
+      "  total = 0;",
+      "  while (i < 20) {",
+      "    total = total + sum(i, 1, 2, 3, 4);",
+      "    i = i + 1;",
+      "  }",
+      "  printInt(total);",
+      "}");
+
+  private static List<String> trace(Tracer tracer) {
+    var emulator = new Emulator(PROGRAM, new ByteArrayInputStream(new byte[0]),
+        new ByteArrayOutputStream());
+    emulator.setTracer(tracer);
+    emulator.run();
+    var lines = new ArrayList<String>();
+    tracer.drain(lines::add);
+    return lines;
+  }
+
+  @Test
+  void keepsLastEventsAndCountsDropped() {
+    var all = trace(new Tracer(100_000));
+    Assertions.assertEquals("Calling printInt with [390]", all.get(all.size() - 1));
+
+    for (int maxEvents : new int[] {1, 2, 3, 5, 7, 64, 333}) {
+      var tracer = new Tracer(maxEvents);
+      var last = trace(tracer);
+      Assertions.assertEquals(all.subList(all.size() - maxEvents, all.size()), last,
+          "keeping " + maxEvents);
+      Assertions.assertEquals(all.size() - maxEvents, tracer.getDropped(), "keeping " + maxEvents);
+    }
+  }
+
+  @Test
+  void growsForRecordLargerThanRing() {
+    var all = trace(new Tracer(100_000));
+    int call = all.lastIndexOf("Calling sum with [19, 1, 2, 3, 4]");
+    Assertions.assertNotEquals(-1, call);
+
+    // A ring of 4 words, which the 6 words of a call to sum do not fit in.
+    var tracer = new Tracer(1);
+    var emulator = new Emulator(PROGRAM, new ByteArrayInputStream(new byte[0]),
+        new ByteArrayOutputStream());
+    emulator.setTracer(tracer);
+    // Every instruction records one event; stop right after the call.
+    emulator.runSlice(call + 1);
+    var last = new ArrayList<String>();
+    tracer.drain(last::add);
+    Assertions.assertEquals(List.of("Calling sum with [19, 1, 2, 3, 4]"), last);
+    Assertions.assertEquals(call, tracer.getDropped());
+  }
+
+  @Test
+  void drainEmptiesTracer() {
+    var tracer = new Tracer(5);
+    Assertions.assertEquals(5, trace(tracer).size());
+    var again = new ArrayList<String>();
+    tracer.drain(again::add);
+    Assertions.assertEquals(List.of(), again);
+  }
+}
@@ -0,0 +1,41 @@
+package crux.ir;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+final class VariableTests {
+  @Test
+  void deserializedVariablesHaveNoSlotUntilLaidOut() throws IOException, ClassNotFoundException {
+    var program = TestPrograms.lower(
+        "fn twice(a: int) -> int {",
+        "  return a + a;",
+        "}",
+        "fn main() {",
+        "  printInt(twice(21));",
+        "}");
+    TestPrograms.function(program, "twice").getFrameLayout();
+    Assertions.assertEquals(0, TestPrograms.function(program, "twice").getArguments().get(0)
+        .getSlot());
+
+    var bytes = new ByteArrayOutputStream();
+    try (var out = new ObjectOutputStream(bytes)) {
+      out.writeObject(program);
+    }
+    Program copy;
+    try (var in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+      copy = (Program) in.readObject();
+    }
+
+    var twice = TestPrograms.function(copy, "twice");
+    var arg = twice.getArguments().get(0);
+    Assertions.assertEquals(-1, arg.getSlot());
+    twice.getFrameLayout();
+    Assertions.assertEquals(0, arg.getSlot());
+  }
+}